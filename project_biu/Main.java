@@ -1,11 +1,22 @@
-import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
 
+import log.Level;
+import log.Log;
+import log.Logger;
 import server.HTTPServer;
 import server.MyHTTPServer;
+import server.NioHTTPServer;
+import server.ServerMetrics;
+import servlets.BatchEvaluator;
+import servlets.BulkPublisher;
 import servlets.ConfLoader;
 import servlets.HtmlLoader;
+import servlets.MetricsServlet;
+import servlets.TopicApi;
 import servlets.TopicDisplayer;
+import servlets.TopicEventStream;
 
 /**
  * Entry point for running the AgentGraph-WebServer HTTP server.
@@ -15,38 +26,79 @@ import servlets.TopicDisplayer;
  * <pre>{@code
  * // Compile and run:
  * //   javac -d out/ -sourcepath . project_biu/Main.java
- * //   java -cp out/ Main
+ * //   java -cp out/ Main              (blocking engine)
+ * //   java -cp out/ Main nio          (selector-based engine)
+ * //   java -cp out/ Main [nio] virtual (either engine on virtual threads, Java 21+)
+ * //   java -Dlog.level=DEBUG -cp out/ Main   (log every request to project.log)
  * }
  * </pre>
  * The server will listen on port 8080 and register example servlets for GET and POST requests.
+ * It stops on a line from standard input or on SIGTERM; either way requests in progress are drained first.
  * </p>
  */
 public class Main {
     /**
      * Main method: sets up and starts the HTTP server.
      *
-     * @param args Command-line arguments (not used)
+     * @param args Command-line arguments: "nio" selects {@link NioHTTPServer}, "virtual" runs requests on virtual threads
      * @throws Exception if an error occurs during server setup or execution
      */
     public static void main(String[] args) throws Exception{
-        // Redirect standard output and error to a log file
-        // This is useful for debugging and keeping track of server activity
-        PrintStream logStream = new PrintStream(new FileOutputStream("project.log", false));
-        System.setOut(logStream);
-        System.setErr(logStream); // Also redirect errors
+        // Log to project.log (10 MB per file, 5 old files kept), written by a background thread
+        // Standard output and error end up in the same log
+        Log.configure(Paths.get("project.log"), Log.getLevel(), 10 * 1024 * 1024, 5);
+        System.setOut(Log.printStream("stdout", Level.INFO));
+        System.setErr(Log.printStream("stderr", Level.ERROR));
+        Logger log = Log.getLogger(Main.class);
 
 
         // Create the HTTP server
-        HTTPServer server=new MyHTTPServer(8080,5);
+        List<String> options = Arrays.asList(args);
+        boolean nio = options.contains("nio");
+        boolean virtual = options.contains("virtual");
+        HTTPServer server;
+        ServerMetrics metrics;
+        // Each POST route has slots of its own, so long bulk feeds or batches cannot keep uploads out: two uploads
+        // (each builds a whole graph), one bulk feed and one batch at a time, which leaves /publish a worker
+        if (nio) {
+            NioHTTPServer nioServer = virtual ? NioHTTPServer.withVirtualThreads(8080) : new NioHTTPServer(8080,5);
+            nioServer.setConcurrencyLimit("POST", "/upload", 2);
+            nioServer.setConcurrencyLimit("POST", "/publish/bulk", 1);
+            nioServer.setConcurrencyLimit("POST", "/evaluate", 1);
+            metrics = nioServer.getMetrics();
+            server = nioServer;
+        } else {
+            MyHTTPServer blockingServer = virtual ? MyHTTPServer.withVirtualThreads(8080) : new MyHTTPServer(8080,5);
+            blockingServer.setConcurrencyLimit("POST", "/upload", 2);
+            blockingServer.setConcurrencyLimit("POST", "/publish/bulk", 1);
+            blockingServer.setConcurrencyLimit("POST", "/evaluate", 1);
+            metrics = blockingServer.getMetrics();
+            server = blockingServer;
+        }
         // Register servlets
         server.addServlet("GET", "/publish", new TopicDisplayer());
+        // The values of that table as JSON
+        server.addServlet("GET", "/api/topics", new TopicApi());
+        // Topic values pushed as Server-Sent Events; the streams do not hold worker threads
+        server.addServlet("GET", "/topics/stream", new TopicEventStream());
         server.addServlet("POST", "/upload", new ConfLoader());
+        // Many topic values in one streamed request (CSV or NDJSON lines), answered with a JSON summary
+        server.addServlet("POST", "/publish/bulk", new BulkPublisher());
+        // The graph evaluated over many rows of inputs (CSV or binary columns), nothing published
+        server.addServlet("POST", "/evaluate", new BatchEvaluator());
         server.addServlet("GET", "/app/", new HtmlLoader("html_files"));
+        // Latency histograms per route, in the Prometheus text format
+        server.addServlet("GET", "/metrics", new MetricsServlet(metrics));
+        // Stop on SIGTERM (rolling restarts) the same way as from the console: drain, close servlets, flush the log
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            log.info("done");
+            Log.shutdown();
+        }, "shutdown"));
         // Start and stop the server
         server.start();
-        System.out.println("Server started on port 8080");
+        log.info("Server started on port 8080");
         System.in.read();
-        server.close();
-        System.out.println("done");
+        System.exit(0);
     }
 }
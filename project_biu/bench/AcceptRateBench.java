@@ -0,0 +1,113 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import log.Level;
+import log.Log;
+import server.MyHTTPServer;
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+import servlets.Servlet;
+
+/**
+ * AcceptRateBench measures how many new connections per second the blocking engine sets up with 1, 2, 4, ...
+ * acceptor threads.
+ * <p>
+ * Every client opens a connection, sends one trivial request with {@code Connection: close}, reads the response and
+ * starts over, so the server spends its time in {@code accept}, connection setup and teardown rather than in
+ * servlets. Scaling needs free cores for the extra acceptors; on a machine with fewer cores than acceptors plus
+ * clients the numbers stay flat.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * javac -d out/ -sourcepath project_biu project_biu/bench/AcceptRateBench.java
+ * java -cp out/ bench.AcceptRateBench [clients] [seconds] [maxAcceptors]
+ * }</pre>
+ */
+public class AcceptRateBench {
+    private static final byte[] REQUEST =
+            "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int maxAcceptors = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        // Refused and reset connections would flood the console
+        Log.setLevel(Level.ERROR);
+        int cores = Runtime.getRuntime().availableProcessors();
+        Bench.out.printf("clients=%d seconds=%d cores=%d SO_REUSEPORT=%b%n", clients, seconds, cores,
+                MyHTTPServer.isReusePortSupported());
+
+        int port = 18400;
+        for (int acceptors = 1; acceptors <= maxAcceptors; acceptors *= 2) {
+            MyHTTPServer server = new MyHTTPServer(port, Math.max(4, cores * 2), 4096);
+            server.setAcceptors(acceptors);
+            server.setQueueDelayTarget(0, 1000);
+            server.addServlet("GET", "/ping", new PingServlet());
+            server.start();
+            Thread.sleep(200);
+            AtomicLong ok = new AtomicLong();
+            AtomicLong failed = new AtomicLong();
+            runClients(port, clients, seconds, ok, failed);
+            server.close();
+            Bench.out.printf("acceptors=%-2d %9.0f conn/s  failed %d%n", acceptors, ok.get() / (double) seconds,
+                    failed.get());
+            port++;
+        }
+        System.exit(0);
+    }
+
+    private static void runClients(int port, int clients, int seconds, AtomicLong ok, AtomicLong failed)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                byte[] buf = new byte[256];
+                while (System.nanoTime() < deadline) {
+                    try (Socket s = new Socket("localhost", port)) {
+                        OutputStream out = s.getOutputStream();
+                        out.write(REQUEST);
+                        InputStream in = s.getInputStream();
+                        int n = in.read(buf);
+                        while (in.read(buf) != -1) {
+                            // until the server closes
+                        }
+                        if (n > 12 && buf[9] == '2') {
+                            ok.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+    }
+
+    private static final class PingServlet implements Servlet {
+        private static final byte[] PONG = "pong".getBytes(StandardCharsets.ISO_8859_1);
+
+        @Override
+        public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+            response.contentType("text/plain").send(PONG);
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,173 @@
+package bench;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import graph.Agent;
+import graph.Message;
+import graph.ParallelAgent;
+import graph.ParallelAgent.WaitStrategy;
+
+/**
+ * AgentMailboxBench compares the mailbox of {@link ParallelAgent} under each {@link WaitStrategy} with the
+ * {@code ArrayBlockingQueue} it replaced, which carried {@code topic + " " + text} messages that the agent's thread
+ * split and parsed again.
+ * <p>
+ * Throughput: several threads post to one agent as fast as the mailbox takes them, until the agent has seen them
+ * all. Latency: one thread posts a message, waits until the agent has seen it, and posts the next; the time from
+ * posting to the callback is recorded. {@code SPIN} and {@code YIELD} assume the agent's thread has a core to itself;
+ * on a machine with fewer cores than busy threads they mostly measure the scheduler.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.AgentMailboxBench [messages per producer] [producers] [latency samples]
+ * }</pre>
+ */
+public class AgentMailboxBench {
+    private static final int CAPACITY = 100;
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int producers = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int samples = args.length > 2 ? Integer.parseInt(args[2]) : 20_000;
+        System.out.printf("messages=%d producers=%d capacity=%d cores=%d%n", messages, producers, CAPACITY,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-16s %14s %10s %10s %10s%n", "mailbox", "msgs/s", "p50 us", "p99 us", "max us");
+        for (String mode : new String[] {"blocking-queue", "PARK", "YIELD", "SPIN"}) {
+            // Warm-up run, then the measured one
+            throughput(mode, messages / 10, producers);
+            double rate = throughput(mode, messages, producers);
+            long[] latencies = latency(mode, samples);
+            System.out.printf("%-16s %14.0f %10.1f %10.1f %10.1f%n", mode, rate,
+                    percentile(latencies, 0.50) / 1000.0, percentile(latencies, 0.99) / 1000.0,
+                    latencies[latencies.length - 1] / 1000.0);
+        }
+    }
+
+    private static double throughput(String mode, int messages, int producers) throws Exception {
+        Counter counter = new Counter();
+        Agent agent = create(mode, counter);
+        long total = (long) messages * producers;
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < messages; i++) {
+                    agent.callback("A", new Message(i));
+                }
+            });
+            threads[p].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        while (counter.count.get() < total) {
+            Thread.yield();
+        }
+        long elapsed = System.nanoTime() - start;
+        agent.close();
+        return total * 1e9 / elapsed;
+    }
+
+    private static long[] latency(String mode, int samples) {
+        Counter counter = new Counter();
+        Agent agent = create(mode, counter);
+        long[] latencies = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            // The value is the time of posting, so it survives the text round trip of the blocking queue
+            agent.callback("A", new Message((double) System.nanoTime()));
+            while (counter.count.get() <= i) {
+                Thread.yield();
+            }
+            latencies[i] = counter.lastLatency;
+        }
+        agent.close();
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    private static Agent create(String mode, Counter counter) {
+        if (mode.equals("blocking-queue")) {
+            return new BlockingQueueAgent(counter, CAPACITY);
+        }
+        return new ParallelAgent(counter, CAPACITY, WaitStrategy.valueOf(mode));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+    // Counts the messages and records how long the last one took to arrive
+    private static final class Counter implements Agent {
+        final AtomicLong count = new AtomicLong();
+        volatile long lastLatency;
+
+        @Override
+        public String getName() {
+            return "counter";
+        }
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public void callback(String topic, Message msg) {
+            lastLatency = System.nanoTime() - (long) msg.asDouble;
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    // ParallelAgent as it was before the mailbox
+    private static final class BlockingQueueAgent implements Agent {
+        private final Agent agent;
+        private final BlockingQueue<Message> queue;
+        private final Thread t;
+        private volatile boolean run = true;
+
+        BlockingQueueAgent(Agent agent, int capacity) {
+            this.agent = agent;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+            this.t = new Thread(() -> {
+                while (run) {
+                    try {
+                        Message current = queue.take();
+                        String[] parts = current.asText().split(" ");
+                        agent.callback(parts[0], new Message(parts[1]));
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+        }
+
+        @Override
+        public String getName() {
+            return agent.getName();
+        }
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public void callback(String topic, Message msg) {
+            try {
+                queue.put(new Message(topic + " " + msg.asText()));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close() {
+            run = false;
+            t.interrupt();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+import configs.GenericConfig;
+import graph.Agent;
+import graph.IncAgent;
+import graph.Message;
+import graph.ParallelAgent;
+import graph.ParallelAgent.Execution;
+import graph.ParallelAgent.WaitStrategy;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+
+/**
+ * AgentSchedulerBench compares what the agents of a large configuration run on: a thread each, the shared pool, or
+ * virtual threads.
+ * <p>
+ * A configuration of {@code chains} chains of {@code length} {@link IncAgent}s is loaded through
+ * {@link GenericConfig}, as an upload would be. Every chain then gets {@code messages} values published to its
+ * first topic, and the run ends when the last topic of every chain has seen them all. Reported are the threads
+ * alive once the agents are created, the time to create and to close them, and the hops per second.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.AgentSchedulerBench [chains] [length] [messages]
+ * }</pre>
+ */
+public class AgentSchedulerBench {
+
+    public static void main(String[] args) throws Exception {
+        int chains = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int messages = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        Path conf = Files.createTempFile("chains", ".conf");
+        StringBuilder sb = new StringBuilder();
+        for (int c = 0; c < chains; c++) {
+            for (int i = 0; i < length; i++) {
+                sb.append("graph.IncAgent\nc").append(c).append('_').append(i)
+                        .append("\nc").append(c).append('_').append(i + 1).append('\n');
+            }
+        }
+        Files.writeString(conf, sb);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        System.out.printf("%d agents (%d chains of %d), %d messages per chain, %d cores%n", chains * length, chains,
+                length, messages, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-8s %-8s %8s %10s %12s %10s%n", "asked", "ran on", "threads", "create ms", "hops/s",
+                "close ms");
+        for (Execution execution : Execution.values()) {
+            // Warm-up run, then the measured one
+            run(conf, execution, chains, length, messages / 4, threads, false);
+            run(conf, execution, chains, length, messages, threads, true);
+        }
+        Files.delete(conf);
+    }
+
+    private static void run(Path conf, Execution execution, int chains, int length, int messages,
+            ThreadMXBean threads, boolean report) throws Exception {
+        TopicManager tm = TopicManagerSingleton.get();
+        tm.clear();
+        GenericConfig config = new GenericConfig();
+        config.setConfFile(conf.toString());
+        config.setExecution(execution);
+        long start = System.nanoTime();
+        config.create();
+        long created = System.nanoTime();
+        int liveThreads = threads.getThreadCount();
+
+        AtomicLong arrived = new AtomicLong();
+        for (int c = 0; c < chains; c++) {
+            tm.getTopic("c" + c + "_" + length).subscribe(new Sink(arrived));
+        }
+        // VIRTUAL falls back to the pool on older JVMs
+        ParallelAgent probe = new ParallelAgent(new Sink(arrived), 1, WaitStrategy.PARK, execution);
+        Execution ranOn = probe.getExecution();
+        probe.close();
+        Topic[] heads = new Topic[chains];
+        for (int c = 0; c < chains; c++) {
+            heads[c] = tm.getTopic("c" + c + "_0");
+        }
+        long sent = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            Message msg = new Message(m);
+            for (Topic head : heads) {
+                head.publish(msg);
+            }
+        }
+        long expected = (long) chains * messages;
+        while (arrived.get() < expected) {
+            Thread.sleep(1);
+        }
+        long done = System.nanoTime();
+        config.close();
+        long closed = System.nanoTime();
+        if (report) {
+            System.out.printf("%-8s %-8s %8d %10.1f %12.0f %10.1f%n", execution, ranOn, liveThreads,
+                    (created - start) / 1e6, expected * length * 1e9 / (done - sent), (closed - done) / 1e6);
+        }
+    }
+
+    // Counts what reaches the end of a chain
+    private static final class Sink implements Agent {
+        private final AtomicLong arrived;
+
+        Sink(AtomicLong arrived) {
+            this.arrived = arrived;
+        }
+
+        @Override
+        public String getName() {
+            return "sink";
+        }
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public void callback(String topic, Message msg) {
+            arrived.incrementAndGet();
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,132 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import configs.GenericConfig;
+import graph.Agent;
+import graph.BatchPlan;
+import graph.Graph;
+import graph.Message;
+import graph.NNAgent;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+
+/**
+ * BatchBench compares scoring many rows with {@link BatchPlan} against publishing them one by one.
+ * <p>
+ * The graph is a network in the style of {@code NN.conf}: {@code layers} layers of three {@link NNAgent}s, each
+ * reading the three topics of the layer before, and one more agent for the result. Row by row, the three input
+ * values of a row are published to a {@code WaveEngine} (the fastest way to run the graph for one publish) and the
+ * result is read when the third has been through it; in a batch, the input columns are evaluated at once, as
+ * {@code /evaluate} does. Reported are the rows per second and the time per row; the results must be the same.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.BatchBench [layers] [rows]
+ * }</pre>
+ */
+public class BatchBench {
+
+    public static void main(String[] args) throws Exception {
+        int layers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        Path conf = Files.createTempFile("layers", ".conf");
+        StringBuilder sb = new StringBuilder("# engine: wave\n");
+        String previous = "I1,I2,I3";
+        for (int l = 1; l <= layers; l++) {
+            String layer = "H" + l + "_1,H" + l + "_2,H" + l + "_3";
+            for (String out : layer.split(",")) {
+                sb.append("graph.NNAgent\n").append(previous).append('\n').append(out).append('\n');
+            }
+            previous = layer;
+        }
+        sb.append("graph.NNAgent\n").append(previous).append("\nR\n");
+        Files.writeString(conf, sb);
+
+        TopicManager tm = TopicManagerSingleton.get();
+        tm.clear();
+        GenericConfig config = new GenericConfig();
+        config.setConfFile(conf.toString());
+        config.create();
+        Map<String, double[]> columns = new HashMap<>();
+        for (int i = 1; i <= 3; i++) {
+            double[] column = new double[rows];
+            for (int r = 0; r < rows; r++) {
+                column[r] = ((r * 7 + i * 13) % 1000) / 1000.0;
+            }
+            columns.put("I" + i, column);
+        }
+        System.out.printf("%d agents, %d rows, %d cores%n", 3 * layers + 1, rows,
+                Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-12s %14s %12s%n", "evaluated", "rows/s", "ns/row");
+
+        // Row by row, on a tenth of the rows
+        int published = Math.max(1, rows / 10);
+        double[] byRow = new double[published];
+        Result result = new Result();
+        tm.getTopic("R").subscribe(result);
+        List<Topic> inputs = List.of(tm.getTopic("I1"), tm.getTopic("I2"), tm.getTopic("I3"));
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int r = 0; r < published; r++) {
+                for (int i = 0; i < 3; i++) {
+                    inputs.get(i).publish(new Message(columns.get("I" + (i + 1))[r]));
+                }
+                byRow[r] = result.value;
+            }
+            long elapsed = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.printf("%-12s %14.0f %12.1f%n", "row by row", published * 1e9 / elapsed,
+                        (double) elapsed / published);
+            }
+        }
+
+        Graph graph = new Graph();
+        graph.createFromTopics();
+        BatchPlan plan = BatchPlan.compile(graph);
+        double[] batch = null;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            batch = plan.evaluate(columns).get("R");
+            long elapsed = System.nanoTime() - start;
+            if (round == 4) {
+                System.out.printf("%-12s %14.0f %12.1f%n", "batch", rows * 1e9 / elapsed, (double) elapsed / rows);
+            }
+        }
+        config.close();
+        Files.delete(conf);
+        for (int r = 0; r < published; r++) {
+            if (Double.compare(byRow[r], batch[r]) != 0) {
+                throw new IllegalStateException("Row " + r + ": " + byRow[r] + " row by row, " + batch[r]
+                        + " in a batch");
+            }
+        }
+        System.out.println("results match");
+    }
+
+    // Keeps the last result
+    private static final class Result implements Agent {
+        volatile double value;
+
+        @Override
+        public String getName() {
+            return "result";
+        }
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public void callback(String topic, Message msg) {
+            value = msg.asDouble;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,64 @@
+package bench;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bench is a minimal micro-benchmark harness shared by the drivers in this package.
+ * <p>
+ * The sources build with plain {@code javac}, so JMH is not available. Bench runs a warm-up phase, then times a
+ * measured phase on the calling thread and reports the average time per operation and, like JMH's GC profiler,
+ * the bytes allocated per operation (from {@code com.sun.management.ThreadMXBean}).
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * Bench.run("parse", 1_000_000, () -> parser.parse(buffer));
+ * }</pre>
+ */
+final class Bench {
+    /** A benchmarked operation. */
+    interface Op {
+        void run() throws Exception;
+    }
+
+    /** Result of one {@link #run}. */
+    static final class Result {
+        final double nanosPerOp;
+        final double bytesPerOp;
+
+        Result(double nanosPerOp, double bytesPerOp) {
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+
+    // Results are stored here so the JIT cannot drop the benchmarked work
+    static volatile Object sink;
+    // Where results are reported; drivers that silence System.out keep the console here
+    static PrintStream out = System.out;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Bench() {}
+
+    /**
+     * Warm up, then measure {@code iterations} calls of {@code op} and print one result line.
+     */
+    static Result run(String name, int iterations, Op op) throws Exception {
+        for (int i = 0; i < Math.max(10_000, iterations / 2); i++) {
+            op.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            op.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        Result result = new Result(elapsed / (double) iterations, allocated / (double) iterations);
+        out.printf("%-40s %10.1f ns/op %10.1f B/op%n", name, result.nanosPerOp, result.bytesPerOp);
+        return result;
+    }
+}
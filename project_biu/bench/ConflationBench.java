@@ -0,0 +1,135 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import configs.GenericConfig;
+import graph.Agent;
+import graph.Message;
+import graph.NNAgent;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+
+/**
+ * ConflationBench measures how much work conflating mailboxes save when inputs arrive in bursts.
+ * <p>
+ * The graph is a network in the style of {@code NN.conf}: {@code layers} layers of three {@link NNAgent}s, each
+ * reading the three topics of the layer before, and one more agent for the result. Bursts of values are published to
+ * the three inputs as fast as possible, with a pause between bursts, once with conflation off and once on. Reported
+ * are the results the agents computed and published, and the time until the graph is quiet again; the final result
+ * must be the same both times.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.ConflationBench [layers] [bursts] [values per burst]
+ * }</pre>
+ */
+public class ConflationBench {
+
+    public static void main(String[] args) throws Exception {
+        int layers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int bursts = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int burst = args.length > 2 ? Integer.parseInt(args[2]) : 3000;
+        Path conf = Files.createTempFile("layers", ".conf");
+        StringBuilder sb = new StringBuilder();
+        String previous = "I1,I2,I3";
+        for (int l = 1; l <= layers; l++) {
+            String layer = "H" + l + "_1,H" + l + "_2,H" + l + "_3";
+            for (String out : layer.split(",")) {
+                sb.append("graph.NNAgent\n").append(previous).append('\n').append(out).append('\n');
+            }
+            previous = layer;
+        }
+        sb.append("graph.NNAgent\n").append(previous).append("\nR\n");
+        Files.writeString(conf, sb);
+        System.out.printf("%d agents, %d bursts of %d values%n", 3 * layers + 1, bursts, burst);
+        System.out.printf("%-12s %14s %12s %22s%n", "conflation", "published", "quiet ms", "result");
+        long[] published = new long[2];
+        for (int on = 0; on < 2; on++) {
+            // Warm-up run, then the measured one
+            run(conf, on == 1, Math.max(1, bursts / 4), burst, false);
+            published[on] = run(conf, on == 1, bursts, burst, true);
+        }
+        System.out.printf("conflation saved %.1f%% of the results%n", 100.0 - 100.0 * published[1] / published[0]);
+        Files.delete(conf);
+    }
+
+    // Returns the results the agents published
+    private static long run(Path conf, boolean conflation, int bursts, int burst, boolean report) throws Exception {
+        TopicManager tm = TopicManagerSingleton.get();
+        tm.clear();
+        GenericConfig config = new GenericConfig();
+        config.setConfFile(conf.toString());
+        config.setConflation(conflation);
+        config.create();
+
+        // Count what the agents publish, inputs excluded
+        AtomicLong published = new AtomicLong();
+        Sink result = new Sink(published);
+        List<Topic> inputs = new ArrayList<>();
+        for (Topic t : tm.getTopics()) {
+            if (t.name.startsWith("I")) {
+                inputs.add(t);
+            } else {
+                t.subscribe(t.name.equals("R") ? result : new Sink(published));
+            }
+        }
+        long start = System.nanoTime();
+        int value = 0;
+        for (int b = 0; b < bursts; b++) {
+            for (int i = 0; i < burst; i++) {
+                inputs.get(i % inputs.size()).publish(new Message((value++ % 1000) / 1000.0));
+            }
+            Thread.sleep(5);
+        }
+        // Quiet: nothing published for 100 ms
+        long last = -1;
+        long quietSince = System.nanoTime();
+        while (System.nanoTime() - quietSince < 100_000_000L) {
+            long now = published.get();
+            if (now != last) {
+                last = now;
+                quietSince = System.nanoTime();
+            }
+            Thread.sleep(1);
+        }
+        long quiet = quietSince - start;
+        config.close();
+        if (report) {
+            System.out.printf("%-12s %14d %12.1f %22s%n", conflation ? "on" : "off", published.get(), quiet / 1e6,
+                    result.last);
+        }
+        return published.get();
+    }
+
+    // Counts the messages of a topic and keeps the last one
+    private static final class Sink implements Agent {
+        private final AtomicLong published;
+        volatile String last;
+
+        Sink(AtomicLong published) {
+            this.published = published;
+        }
+
+        @Override
+        public String getName() {
+            return "sink";
+        }
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public void callback(String topic, Message msg) {
+            published.incrementAndGet();
+            last = msg.asText();
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import log.Level;
+import log.Log;
+import server.MyHTTPServer;
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+import servlets.Servlet;
+
+/**
+ * Http2Bench sends many concurrent publishes to the blocking engine, once over HTTP/1.1 and once over h2c, with the
+ * JDK's {@link HttpClient}.
+ * <p>
+ * Over HTTP/1.1 the client opens a connection per request in flight, and each connection holds a server worker for
+ * as long as it is open, so at most {@code workers} publishes make progress at a time. Over h2c the client upgrades
+ * its first connection and multiplexes every later request on it as a stream; the server runs each stream on a
+ * thread of its own. Every publish takes {@code serviceMillis}, like a servlet that waits on an agent.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * javac -d out/ -sourcepath project_biu project_biu/bench/Http2Bench.java
+ * java -cp out/ bench.Http2Bench [inFlight] [requests] [workers] [serviceMillis]
+ * }</pre>
+ */
+public class Http2Bench {
+    public static void main(String[] args) throws Exception {
+        int inFlight = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int serviceMillis = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+        Log.setLevel(Level.ERROR);
+        Bench.out.printf("inFlight=%d requests=%d workers=%d service=%dms%n", inFlight, requests, workers,
+                serviceMillis);
+
+        int port = 18500;
+        MyHTTPServer server = new MyHTTPServer(port, workers, 4096);
+        server.setQueueDelayTarget(0, 1000);
+        // The client pools more HTTP/1.1 connections than there are workers; an idle one must not hold its worker
+        // for long, or the connections queued behind it wait out the whole default idle timeout
+        server.setKeepAlive(200, 1000);
+        server.addServlet("GET", "/publish", new PublishServlet(serviceMillis));
+        server.start();
+        Thread.sleep(200);
+        URI uri = URI.create("http://localhost:" + port + "/publish?topic=A&message=1");
+
+        for (HttpClient.Version version : new HttpClient.Version[] {HttpClient.Version.HTTP_1_1, HttpClient.Version.HTTP_2}) {
+            HttpClient client = HttpClient.newBuilder().version(version).build();
+            // Warm-up, which also lets the h2c client upgrade its connection before the load starts
+            run(client, uri, Math.min(inFlight, 20), 200);
+            long[] latencies = run(client, uri, inFlight, requests);
+            Bench.out.printf("%-8s %8.0f req/s  p50 %6.1f ms  p99 %6.1f ms%n", version,
+                    requests / (latencies[latencies.length - 1] / 1e9),
+                    latencies[requests / 2] / 1e6, latencies[requests * 99 / 100] / 1e6);
+        }
+        server.close();
+        System.exit(0);
+    }
+
+    /**
+     * @return sorted request latencies in nanoseconds, followed by the wall time of the run
+     */
+    private static long[] run(HttpClient client, URI uri, int inFlight, int requests) throws Exception {
+        HttpRequest request = HttpRequest.newBuilder(uri).GET().build();
+        Semaphore slots = new Semaphore(inFlight);
+        long[] latencies = new long[requests + 1];
+        AtomicLong failed = new AtomicLong();
+        CompletableFuture<?>[] all = new CompletableFuture<?>[requests];
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            slots.acquire();
+            int n = i;
+            long sent = System.nanoTime();
+            all[i] = client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                    .whenComplete((response, e) -> {
+                        latencies[n] = System.nanoTime() - sent;
+                        if (e != null || response.statusCode() != 200) {
+                            failed.incrementAndGet();
+                        }
+                        slots.release();
+                    });
+        }
+        CompletableFuture.allOf(all).exceptionally(e -> null).join();
+        latencies[requests] = System.nanoTime() - start;
+        if (failed.get() > 0) {
+            Bench.out.printf("  %d requests failed%n", failed.get());
+        }
+        Arrays.sort(latencies, 0, requests);
+        return latencies;
+    }
+
+    private static final class PublishServlet implements Servlet {
+        private static final byte[] OK = "published".getBytes(StandardCharsets.ISO_8859_1);
+        private final int serviceMillis;
+
+        PublishServlet(int serviceMillis) {
+            this.serviceMillis = serviceMillis;
+        }
+
+        @Override
+        public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+            try {
+                Thread.sleep(serviceMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            response.contentType("text/plain").send(OK);
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,143 @@
+package bench;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import log.Level;
+import log.Log;
+import server.MyHTTPServer;
+import servlets.TopicDisplayer;
+
+/**
+ * LoggingBench measures what logging costs the {@code /publish} request path.
+ * <p>
+ * Keep-alive clients publish to {@link TopicDisplayer} for a fixed duration under three set-ups:
+ * </p>
+ * <ul>
+ *   <li>{@code println}: the old arrangement, every line written through a {@code PrintStream} on the log file
+ *   by the request thread, with every request detail logged;</li>
+ *   <li>{@code async-debug}: the same lines through the asynchronous ring-buffer appender;</li>
+ *   <li>{@code async-info}: the default, request details below the level and never built.</li>
+ * </ul>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * javac -d out/ -sourcepath project_biu project_biu/bench/LoggingBench.java
+ * java -cp out/ bench.LoggingBench [clients] [seconds] [workers]
+ * }</pre>
+ */
+public class LoggingBench {
+    private static final byte[] REQUEST = ("GET /publish?topic=A&message=1 HTTP/1.1\r\nHost: localhost\r\n\r\n")
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        PrintStream console = System.out;
+        Path dir = Files.createTempDirectory("logbench");
+
+        console.printf("clients=%d seconds=%d workers=%d%n", clients, seconds, workers);
+        int port = 18090;
+        for (String mode : new String[] {"println", "async-debug", "async-info"}) {
+            Path file = dir.resolve(mode + ".log");
+            PrintStream legacy = null;
+            if (mode.equals("println")) {
+                // What Main used to do: log lines go straight to the file from the calling thread
+                legacy = new PrintStream(new FileOutputStream(file.toFile()));
+                System.setOut(legacy);
+                Log.setLevel(Level.DEBUG);
+            } else {
+                Log.configure(file, mode.equals("async-debug") ? Level.DEBUG : Level.INFO, 100L * 1024 * 1024, 1);
+            }
+            double rate = run(port++, clients, seconds, workers);
+            Log.shutdown();
+            System.setOut(console);
+            if (legacy != null) {
+                legacy.close();
+            }
+            console.printf("%-12s %10.0f req/s  (log %d KB)%n", mode, rate, Files.size(file) / 1024);
+        }
+        System.exit(0);
+    }
+
+    private static double run(int port, int clients, int seconds, int workers) throws Exception {
+        MyHTTPServer server = new MyHTTPServer(port, workers);
+        server.addServlet("GET", "/publish", new TopicDisplayer());
+        server.setKeepAlive(10_000, Integer.MAX_VALUE);
+        server.start();
+        Thread.sleep(200);
+
+        AtomicLong completed = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                try (Socket s = new Socket("localhost", port)) {
+                    s.setSoTimeout(10_000);
+                    OutputStream out = s.getOutputStream();
+                    InputStream in = s.getInputStream();
+                    byte[] buf = new byte[16 * 1024];
+                    while (System.nanoTime() < deadline) {
+                        out.write(REQUEST);
+                        out.flush();
+                        if (!readResponse(in, buf)) {
+                            break;
+                        }
+                        completed.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // Counted as lost throughput
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join(seconds * 1000L + 2000);
+        }
+        server.close();
+        return completed.get() / (double) seconds;
+    }
+
+    // Read one response framed by Content-Length; false on end of stream
+    private static boolean readResponse(InputStream in, byte[] buf) throws IOException {
+        int length = 0;
+        int headEnd = -1;
+        while (headEnd < 0) {
+            int n = in.read(buf, length, buf.length - length);
+            if (n == -1) {
+                return false;
+            }
+            length += n;
+            for (int i = 3; i < length; i++) {
+                if (buf[i - 3] == '\r' && buf[i - 2] == '\n' && buf[i - 1] == '\r' && buf[i] == '\n') {
+                    headEnd = i + 1;
+                    break;
+                }
+            }
+        }
+        String head = new String(buf, 0, headEnd, StandardCharsets.ISO_8859_1);
+        int at = head.indexOf("Content-Length: ");
+        int bodyLength = Integer.parseInt(head.substring(at + 16, head.indexOf('\r', at)).trim());
+        int remaining = bodyLength - (length - headEnd);
+        while (remaining > 0) {
+            int n = in.read(buf, 0, Math.min(buf.length, remaining));
+            if (n == -1) {
+                return false;
+            }
+            remaining -= n;
+        }
+        return true;
+    }
+}
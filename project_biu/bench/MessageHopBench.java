@@ -0,0 +1,57 @@
+package bench;
+
+import graph.Agent;
+import graph.IncAgent;
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+
+/**
+ * MessageHopBench measures what one hop of a computation graph costs: an agent reads its input, computes, and
+ * publishes a new {@link Message}.
+ * <p>
+ * A chain of {@link IncAgent}s, each feeding the next, is driven by publishing to its first topic; the time and
+ * allocation of one publish are divided by the number of hops. The construction of a numeric message, which every
+ * arithmetic agent pays on every hop, is measured on its own as well.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.MessageHopBench [iterations] [hops]
+ * }</pre>
+ */
+public class MessageHopBench {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int hops = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        double[] x = {0};
+        Bench.run("new Message(double)", iterations, () -> Bench.sink = new Message(x[0]++));
+
+        for (int i = 0; i < hops; i++) {
+            new IncAgent(new String[] {"hop" + i}, new String[] {"hop" + (i + 1)});
+        }
+        Topic last = TopicManagerSingleton.get().getTopic("hop" + hops);
+        last.subscribe(new Agent() {
+            @Override
+            public String getName() {
+                return "sink";
+            }
+
+            @Override
+            public void reset() {}
+
+            @Override
+            public void callback(String topic, Message msg) {
+                Bench.sink = msg.asDouble;
+            }
+
+            @Override
+            public void close() {}
+        });
+        Topic first = TopicManagerSingleton.get().getTopic("hop0");
+        Message input = new Message(1.0);
+        Bench.Result r = Bench.run(hops + "-hop chain", iterations / hops, () -> first.publish(input));
+        Bench.out.printf("  %.1f ns/hop %.1f B/hop%n", r.nanosPerOp / hops, r.bytesPerOp / hops);
+    }
+}
@@ -0,0 +1,202 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import log.Level;
+import log.Log;
+import server.MyHTTPServer;
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+import servlets.Servlet;
+
+/**
+ * OverloadBench offers the blocking engine more load than it can serve and compares it without and with admission
+ * control.
+ * <p>
+ * Every request takes a worker for {@code serviceMillis}. Clients send requests back to back, so the offered load
+ * is {@code clients / workers} times what the server can do. Without admission control (an effectively unbounded
+ * queue, no shedding) every request is served, but only after waiting behind all the others; with it, excess work
+ * is refused with {@code 503} and the requests that are served stay fast. A second phase checks that a concurrency
+ * limit on {@code POST} keeps slow uploads from starving {@code GET}s.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * javac -d out/ -sourcepath project_biu project_biu/bench/OverloadBench.java
+ * java -cp out/ bench.OverloadBench [clients] [seconds] [workers] [serviceMillis]
+ * }</pre>
+ */
+public class OverloadBench {
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int serviceMillis = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        // Keep refused connections and per-request logging off the console
+        Log.setLevel(Level.ERROR);
+        Bench.out.printf("clients=%d seconds=%d workers=%d service=%dms%n", clients, seconds, workers, serviceMillis);
+
+        MyHTTPServer unbounded = new MyHTTPServer(18100, workers, 1_000_000);
+        unbounded.setQueueDelayTarget(0, 1000);
+        spike("unbounded", unbounded, 18100, clients, seconds, serviceMillis);
+
+        MyHTTPServer controlled = new MyHTTPServer(18101, workers, 16);
+        spike("admission", controlled, 18101, clients, seconds, serviceMillis);
+        Bench.out.printf("          rejected=%d shed=%d%n", controlled.getRejectedCount(), controlled.getShedCount());
+
+        methodLimit(workers, seconds, serviceMillis);
+        System.exit(0);
+    }
+
+    private static void spike(String name, MyHTTPServer server, int port, int clients, int seconds, int serviceMillis)
+            throws Exception {
+        server.addServlet("GET", "/work", new SlowServlet(serviceMillis));
+        server.start();
+        Thread.sleep(200);
+
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong refused = new AtomicLong();
+        runClients(clients, seconds, () -> {
+            long start = System.nanoTime();
+            int status = oneRequest(port, "GET /work");
+            if (status == 200) {
+                latencies.add(System.nanoTime() - start);
+            } else {
+                refused.incrementAndGet();
+                Thread.sleep(serviceMillis);
+            }
+        });
+        server.close();
+        report(name, latencies, refused.get(), seconds);
+    }
+
+    // Slow POSTs from every client but one, which sends GETs; the POST limit leaves it a worker
+    private static void methodLimit(int workers, int seconds, int serviceMillis) throws Exception {
+        for (boolean limited : new boolean[] {false, true}) {
+            int port = limited ? 18103 : 18102;
+            MyHTTPServer server = new MyHTTPServer(port, workers, 1_000_000);
+            server.setQueueDelayTarget(0, 1000);
+            if (limited) {
+                server.setConcurrencyLimit("POST", Math.max(1, workers - 1));
+            }
+            server.addServlet("POST", "/upload", new SlowServlet(serviceMillis * 5));
+            server.addServlet("GET", "/publish", new SlowServlet(1));
+            server.start();
+            Thread.sleep(200);
+
+            List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+            AtomicLong refused = new AtomicLong();
+            Thread publisher = new Thread(() -> {
+                long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    try {
+                        if (oneRequest(port, "GET /publish") == 200) {
+                            latencies.add(System.nanoTime() - start);
+                        }
+                    } catch (IOException ignored) {}
+                }
+            });
+            publisher.start();
+            runClients(workers * 4, seconds, () -> {
+                if (oneRequest(port, "POST /upload") != 200) {
+                    refused.incrementAndGet();
+                    Thread.sleep(serviceMillis);
+                }
+            });
+            publisher.join();
+            server.close();
+            report(limited ? "GET, POST limit" : "GET, no limit", latencies, refused.get(), seconds);
+        }
+    }
+
+    private interface ClientOp {
+        void run() throws Exception;
+    }
+
+    private static void runClients(int clients, int seconds, ClientOp op) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try {
+                        op.run();
+                    } catch (Exception ignored) {
+                        // A refused or reset connection; try again
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join(seconds * 1000L + 30_000);
+        }
+    }
+
+    private static void report(String name, List<Long> latencies, long refused, int seconds) {
+        List<Long> sorted = new ArrayList<>(latencies);
+        Collections.sort(sorted);
+        Bench.out.printf("%-16s %7.0f ok/s  p50 %6.1f ms  p99 %7.1f ms  refused %d%n", name,
+                sorted.size() / (double) seconds, percentile(sorted, 0.50), percentile(sorted, 0.99), refused);
+    }
+
+    private static double percentile(List<Long> sorted, double p) {
+        if (sorted.isEmpty()) {
+            return 0;
+        }
+        return sorted.get((int) Math.min(sorted.size() - 1, sorted.size() * p)) / 1e6;
+    }
+
+    // One request on a fresh connection; returns the status code
+    private static int oneRequest(int port, String requestLine) throws IOException {
+        try (Socket s = new Socket("localhost", port)) {
+            s.setSoTimeout(60_000);
+            OutputStream out = s.getOutputStream();
+            out.write((requestLine + " HTTP/1.1\r\nHost: localhost\r\nContent-Length: 0\r\nConnection: close\r\n\r\n")
+                    .getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[512];
+            int n = in.read(buf);
+            while (in.read() != -1) {
+                // drain until the server closes the connection
+            }
+            if (n < 12) {
+                throw new IOException("No response");
+            }
+            return Integer.parseInt(new String(buf, 9, 3, StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private static final class SlowServlet implements Servlet {
+        private static final byte[] OK = "ok".getBytes(StandardCharsets.ISO_8859_1);
+        private final long millis;
+
+        SlowServlet(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            response.contentType("text/plain").send(OK);
+        }
+
+        @Override
+        public void close() {}
+    }
+}
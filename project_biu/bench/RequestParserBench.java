@@ -0,0 +1,106 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import server.IncrementalRequestParser;
+import server.RequestParser;
+import server.RequestParser.RequestInfo;
+
+/**
+ * RequestParserBench compares {@link RequestParser#parseRequest} with {@link IncrementalRequestParser}.
+ * <p>
+ * Two realistic requests are parsed: a browser {@code GET /publish} and a multipart {@code POST /upload} of
+ * {@code config_files/NN.conf}. Each operation parses the request and reads what the servlet would read
+ * (the publish parameters, or the content type and body). The legacy parser reads from an in-memory stream here;
+ * on a socket every one of its single-byte reads is a system call, so the real gap is larger.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.RequestParserBench [iterations]
+ * }</pre>
+ */
+public class RequestParserBench {
+    private static final String PUBLISH = "GET /publish?topic=I1&message=0.75 HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.9\r\n"
+            + "Accept-Encoding: gzip, deflate, br\r\n"
+            + "Referer: http://localhost:8080/app/index.html\r\n"
+            + "Connection: keep-alive\r\n"
+            + "\r\n";
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+        byte[] publish = PUBLISH.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] upload = multipart();
+
+        // The legacy parser prints debug lines for every body
+        Bench.out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        bench("publish", publish, iterations, true);
+        bench("multipart upload (" + upload.length + " B)", upload, iterations / 5, false);
+    }
+
+    private static void bench(String name, byte[] request, int iterations, boolean publish) throws Exception {
+        Bench.Op legacy = () -> Bench.sink = touch(RequestParser.parseRequest(new ByteArrayInputStream(request)), publish);
+        IncrementalRequestParser parser = new IncrementalRequestParser();
+        ByteBuffer buffer = ByteBuffer.wrap(request);
+        Bench.Op incremental = () -> {
+            buffer.rewind();
+            RequestInfo ri = parser.parse(buffer);
+            // The parser stops after the head; the body that follows is what a servlet would stream
+            Bench.sink = publish ? touch(ri, true) : ri.getHeader("Content-Type").length() + readBody(ri, buffer);
+        };
+        Bench.Result a = Bench.run("legacy      " + name, iterations, legacy);
+        Bench.Result b = Bench.run("incremental " + name, iterations, incremental);
+        Bench.out.printf("  speed-up %.1fx, allocation %.0f%% of legacy%n",
+                a.nanosPerOp / b.nanosPerOp, 100 * b.bytesPerOp / a.bytesPerOp);
+    }
+
+    // What a servlet reads from the request
+    private static Object touch(RequestInfo ri, boolean publish) {
+        if (publish) {
+            return ri.getParameters().get("topic") + ri.getParameters().get("message") + ri.isKeepAlive();
+        }
+        return ri.getHeader("Content-Type").length() + ri.getContent().length;
+    }
+
+    private static int readBody(RequestInfo ri, ByteBuffer buffer) {
+        byte[] body = new byte[(int) ri.getContentLength()];
+        buffer.get(body);
+        return body.length;
+    }
+
+    private static byte[] multipart() throws Exception {
+        byte[] file = Files.exists(Paths.get("config_files/NN.conf"))
+                ? Files.readAllBytes(Paths.get("config_files/NN.conf"))
+                : "graph.PlusAgent\nA,B\nC\ngraph.IncAgent\nC\nD\n".repeat(8).getBytes(StandardCharsets.ISO_8859_1);
+        String boundary = "----WebKitFormBoundary7MA4YWxkTrZu0gW";
+        String head = "--" + boundary + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"NN.conf\"\r\n"
+                + "Content-Type: application/octet-stream\r\n\r\n";
+        String tail = "\r\n--" + boundary + "--\r\n";
+        int length = head.length() + file.length + tail.length();
+        String headers = "POST /upload HTTP/1.1\r\n"
+                + "Host: localhost:8080\r\n"
+                + "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0 Safari/537.36\r\n"
+                + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+                + "Content-Type: multipart/form-data; boundary=" + boundary + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "Origin: http://localhost:8080\r\n"
+                + "Referer: http://localhost:8080/app/index.html\r\n"
+                + "Connection: keep-alive\r\n\r\n";
+        ByteBuffer out = ByteBuffer.allocate(headers.length() + length);
+        out.put(headers.getBytes(StandardCharsets.ISO_8859_1)).put(head.getBytes(StandardCharsets.ISO_8859_1))
+                .put(file).put(tail.getBytes(StandardCharsets.ISO_8859_1));
+        return out.array();
+    }
+}
@@ -0,0 +1,117 @@
+package bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.HTTPServer;
+import server.MyHTTPServer;
+import server.NioHTTPServer;
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+import servlets.Servlet;
+
+/**
+ * ServerEngineBench compares the blocking {@link MyHTTPServer} engine with the selector-based {@link NioHTTPServer}.
+ * <p>
+ * Both engines get the same worker count and a trivial servlet. A number of "slow" clients first open a connection
+ * and send only part of a request, then the load clients hammer the server for a fixed duration.
+ * The blocking engine loses a worker to every slow client; the event loop does not.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * javac -d out/ -sourcepath project_biu project_biu/bench/ServerEngineBench.java
+ * java -cp out/ bench.ServerEngineBench [clients] [seconds] [slowClients] [workers]
+ * }</pre>
+ */
+public class ServerEngineBench {
+    private static final byte[] REQUEST = "GET /bench HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int slowClients = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        System.out.printf("clients=%d seconds=%d slowClients=%d workers=%d%n", clients, seconds, slowClients, workers);
+        run("blocking", new MyHTTPServer(18080, workers), 18080, clients, seconds, slowClients);
+        run("nio", new NioHTTPServer(18081, workers), 18081, clients, seconds, slowClients);
+        System.exit(0);
+    }
+
+    private static void run(String name, HTTPServer server, int port, int clients, int seconds, int slowClients) throws Exception {
+        server.addServlet("GET", "/bench", new OkServlet());
+        server.start();
+        Thread.sleep(200);
+
+        List<Socket> slow = new ArrayList<>();
+        for (int i = 0; i < slowClients; i++) {
+            Socket s = new Socket("localhost", port);
+            s.getOutputStream().write("GET /bench HTTP/1.1\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            slow.add(s);
+        }
+
+        AtomicLong completed = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Thread t = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try {
+                        oneRequest(port);
+                        completed.incrementAndGet();
+                    } catch (IOException e) {
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            // Requests stuck behind slow clients never finish; don't wait for them
+            t.join(seconds * 1000L + 2000);
+        }
+        System.out.printf("%-9s %10.0f req/s  (%d ok, %d failed)%n", name,
+                completed.get() / (double) seconds, completed.get(), failed.get());
+
+        for (Socket s : slow) {
+            s.close();
+        }
+        server.close();
+    }
+
+    private static void oneRequest(int port) throws IOException {
+        try (Socket s = new Socket("localhost", port)) {
+            s.setSoTimeout(10_000);
+            OutputStream out = s.getOutputStream();
+            out.write(REQUEST);
+            out.flush();
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[512];
+            while (in.read(buf) != -1) {
+                // drain until the server closes the connection
+            }
+        }
+    }
+
+    private static final class OkServlet implements Servlet {
+        private static final byte[] OK = "ok".getBytes(StandardCharsets.ISO_8859_1);
+
+        @Override
+        public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+            response.contentType("text/plain").send(OK);
+        }
+
+        @Override
+        public void close() {}
+    }
+}
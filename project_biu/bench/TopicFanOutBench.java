@@ -0,0 +1,155 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import graph.Agent;
+import graph.Message;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+
+/**
+ * TopicFanOutBench measures {@link Topic#publish} and checks that subscribing while publishing is safe.
+ * <p>
+ * The fan-out phase publishes to a topic with 1, 10 and 1000 subscribers whose callbacks only count, so the time is
+ * the topic's own dispatch cost. The stress phase then publishes from several threads while other threads keep
+ * subscribing and unsubscribing short-lived agents; it fails if a publish throws, if an agent subscribed the whole
+ * time misses a message, or if a subscription is left behind.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.TopicFanOutBench [iterations] [stress seconds]
+ * }</pre>
+ */
+public class TopicFanOutBench {
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        Message message = new Message("1");
+
+        for (int subscribers : new int[] {1, 10, 1000}) {
+            Topic topic = TopicManagerSingleton.get().getTopic("fanout-" + subscribers);
+            for (int i = 0; i < subscribers; i++) {
+                topic.subscribe(new Counter("c" + i));
+            }
+            // Same number of callbacks for every size
+            Bench.Result r = Bench.run("publish to " + subscribers + " subscribers",
+                    Math.max(1000, iterations / subscribers), () -> topic.publish(message));
+            Bench.out.printf("  %.2f ns per subscriber%n", r.nanosPerOp / subscribers);
+        }
+
+        boolean ok = stress(seconds);
+        Bench.out.println(ok ? "stress: ok" : "stress: FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    private static boolean stress(int seconds) throws Exception {
+        Topic topic = TopicManagerSingleton.get().getTopic("stress");
+        int publishers = 4;
+        int churners = 4;
+        List<Counter> steady = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Counter c = new Counter("steady" + i);
+            steady.add(c);
+            topic.subscribe(c);
+        }
+        AtomicLong published = new AtomicLong();
+        AtomicLong churned = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        long end = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(publishers + churners);
+        Message message = new Message("1");
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < publishers; p++) {
+            threads.add(new Thread(() -> {
+                try {
+                    while (System.nanoTime() < end) {
+                        topic.publish(message);
+                        published.incrementAndGet();
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }, "publisher-" + p));
+        }
+        for (int c = 0; c < churners; c++) {
+            int id = c;
+            threads.add(new Thread(() -> {
+                try {
+                    Counter[] batch = new Counter[16];
+                    while (System.nanoTime() < end) {
+                        for (int i = 0; i < batch.length; i++) {
+                            batch[i] = new Counter("churn" + id + "-" + i);
+                            topic.subscribe(batch[i]);
+                        }
+                        for (Counter agent : batch) {
+                            topic.unsubscribe(agent);
+                        }
+                        churned.addAndGet(batch.length);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }, "churner-" + c));
+        }
+        threads.forEach(Thread::start);
+        done.await();
+
+        Bench.out.printf("stress: %d publishes, %d subscribe/unsubscribe pairs in %d s%n",
+                published.get(), churned.get(), seconds);
+        boolean ok = true;
+        if (failure.get() != null) {
+            Bench.out.println("  publish or subscribe threw: " + failure.get());
+            ok = false;
+        }
+        for (Counter c : steady) {
+            if (c.count.get() != published.get()) {
+                Bench.out.printf("  %s got %d of %d messages%n", c.getName(), c.count.get(), published.get());
+                ok = false;
+            }
+        }
+        if (topic.getSubscribers().size() != steady.size()) {
+            Bench.out.printf("  %d subscribers left, expected %d%n", topic.getSubscribers().size(), steady.size());
+            ok = false;
+        }
+        return ok;
+    }
+
+    // Counts its callbacks and does nothing else
+    private static final class Counter implements Agent {
+        private final String name;
+        final AtomicLong count = new AtomicLong();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public void reset() {
+            count.set(0);
+        }
+
+        @Override
+        public void callback(String topic, Message msg) {
+            count.incrementAndGet();
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,162 @@
+package bench;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import server.MyHTTPServer;
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+import servlets.Servlet;
+
+/**
+ * VirtualThreadLoadBench compares the fixed worker pool with virtual-thread-per-connection execution
+ * under many concurrent keep-alive connections.
+ * <p>
+ * Every client holds one persistent connection and sends requests back to back. The servlet blocks for a few
+ * milliseconds per request, like a publish that waits on a full agent queue. With a fixed pool each connection
+ * occupies a worker for its whole lifetime, so only {@code workers} clients make progress; with virtual threads
+ * every connection does.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.VirtualThreadLoadBench [connections] [seconds] [blockMillis] [workers]
+ * }</pre>
+ * Run on Java 21+ to measure real virtual threads; older JVMs fall back to a platform thread per connection.
+ */
+public class VirtualThreadLoadBench {
+    private static final byte[] REQUEST = "GET /work HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // Latency histogram with 1 ms buckets
+    private static final int BUCKETS = 30_000;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int blockMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        int workers = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+
+        System.out.printf("connections=%d seconds=%d blockMillis=%d workers=%d java=%s%n",
+                connections, seconds, blockMillis, workers, System.getProperty("java.version"));
+        run("fixed-" + workers, new MyHTTPServer(18082, Executors.newFixedThreadPool(workers)), 18082,
+                connections, seconds, blockMillis);
+        run("virtual", MyHTTPServer.withVirtualThreads(18083), 18083, connections, seconds, blockMillis);
+        System.exit(0);
+    }
+
+    private static void run(String name, MyHTTPServer server, int port, int connections, int seconds, int blockMillis)
+            throws Exception {
+        server.setKeepAlive(seconds * 1000 + 5000, Integer.MAX_VALUE);
+        server.addServlet("GET", "/work", new BlockingServlet(blockMillis));
+        server.start();
+        Thread.sleep(200);
+
+        AtomicLong completed = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        AtomicLong activeClients = new AtomicLong();
+        AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            Thread t = new Thread(() -> {
+                boolean progressed = false;
+                try (Socket s = new Socket("localhost", port)) {
+                    s.setSoTimeout(1000);
+                    OutputStream out = s.getOutputStream();
+                    InputStream in = new BufferedInputStream(s.getInputStream());
+                    while (System.nanoTime() < deadline) {
+                        long start = System.nanoTime();
+                        out.write(REQUEST);
+                        out.flush();
+                        readResponse(in, deadline);
+                        long ms = (System.nanoTime() - start) / 1_000_000;
+                        latencies.incrementAndGet((int) Math.min(ms, BUCKETS - 1));
+                        completed.incrementAndGet();
+                        if (!progressed) {
+                            progressed = true;
+                            activeClients.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+            }, "client-" + i);
+            t.setDaemon(true);
+            t.start();
+            clients.add(t);
+        }
+        for (Thread t : clients) {
+            t.join(Math.max(1, (deadline - System.nanoTime()) / 1_000_000) + 3000);
+        }
+
+        System.out.printf("%-9s %8.0f req/s  clients served %d/%d  p50 %s  p99 %s  errors %d%n", name,
+                completed.get() / (double) seconds, activeClients.get(), connections,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), errors.get());
+        server.close();
+        Thread.sleep(500);
+    }
+
+    // Reads one response (headers + Content-Length body), waiting until the deadline at most
+    private static void readResponse(InputStream in, long deadline) throws IOException {
+        StringBuilder head = new StringBuilder();
+        int b;
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            try {
+                b = in.read();
+            } catch (java.net.SocketTimeoutException e) {
+                if (System.nanoTime() > deadline) throw e;
+                continue;
+            }
+            if (b == -1) throw new IOException("connection closed");
+            head.append((char) b);
+        }
+        int idx = head.indexOf("Content-Length: ");
+        int length = idx < 0 ? 0 : Integer.parseInt(head.substring(idx + 16, head.indexOf("\r\n", idx)));
+        for (int i = 0; i < length; i++) {
+            if (in.read() == -1) throw new IOException("connection closed");
+        }
+    }
+
+    private static String percentile(AtomicLongArray histogram, double p) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += histogram.get(i);
+        if (total == 0) return "n/a";
+        long target = (long) Math.ceil(total * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram.get(i);
+            if (seen >= target) return i + "ms";
+        }
+        return ">" + BUCKETS + "ms";
+    }
+
+    private static final class BlockingServlet implements Servlet {
+        private static final byte[] OK = "ok".getBytes(StandardCharsets.ISO_8859_1);
+        private final int blockMillis;
+
+        BlockingServlet(int blockMillis) {
+            this.blockMillis = blockMillis;
+        }
+
+        @Override
+        public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+            try {
+                Thread.sleep(blockMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            response.send(OK);
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,158 @@
+package bench;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import configs.GenericConfig;
+import graph.Agent;
+import graph.Message;
+import graph.NNAgent;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+import graph.WaveEngine;
+
+/**
+ * WaveBench compares a {@link WaveEngine} with the cascade of callbacks it replaces.
+ * <p>
+ * The graph is a network in the style of {@code NN.conf}: {@code layers} layers of three {@link NNAgent}s, each
+ * reading the three topics of the layer before, and one more agent for the result, so that every agent can be
+ * reached from an input along several paths. Values are published to the three inputs in turn, one at a time: each
+ * publish waits until the graph has settled before the next. The graph runs three ways: the agents on their own
+ * callbacks, on the publisher's thread; the agents as an upload runs them, in the shared pool with conflation off;
+ * and as waves. Reported are the results computed per publish, the time from publishing until the graph has
+ * settled, and the final result, which must be the same all three ways.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * java -cp out/ bench.WaveBench [layers] [publishes]
+ * }</pre>
+ */
+public class WaveBench {
+
+    public static void main(String[] args) throws Exception {
+        int layers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int publishes = args.length > 1 ? Integer.parseInt(args[1]) : 20_000;
+        Path conf = Files.createTempFile("layers", ".conf");
+        StringBuilder sb = new StringBuilder();
+        String previous = "I1,I2,I3";
+        for (int l = 1; l <= layers; l++) {
+            String layer = "H" + l + "_1,H" + l + "_2,H" + l + "_3";
+            for (String out : layer.split(",")) {
+                sb.append("graph.NNAgent\n").append(previous).append('\n').append(out).append('\n');
+            }
+            previous = layer;
+        }
+        sb.append("graph.NNAgent\n").append(previous).append("\nR\n");
+        Files.writeString(conf, sb);
+        System.out.printf("%d agents, %d publishes%n", 3 * layers + 1, publishes);
+        System.out.printf("%-10s %16s %12s %12s %24s%n", "run as", "results/publish", "us/publish", "publishes/s",
+                "result");
+        for (String mode : new String[] {"callbacks", "pool", "waves"}) {
+            // Warm-up run, then the measured one
+            run(conf, mode, layers, publishes / 4, false);
+            run(conf, mode, layers, publishes, true);
+        }
+        Files.delete(conf);
+    }
+
+    private static void run(Path conf, String mode, int layers, int publishes, boolean report) throws Exception {
+        TopicManager tm = TopicManagerSingleton.get();
+        tm.clear();
+        GenericConfig config = null;
+        List<Agent> agents = new ArrayList<>();
+        if (mode.equals("callbacks")) {
+            List<String> lines = Files.readAllLines(conf);
+            for (int i = 0; i < lines.size(); i += 3) {
+                agents.add(new NNAgent(lines.get(i + 1).split(","), lines.get(i + 2).split(",")));
+            }
+        } else {
+            config = new GenericConfig();
+            config.setConfFile(conf.toString());
+            config.setConflation(false);
+            config.setWave(mode.equals("waves"));
+            config.create();
+        }
+
+        // Count what the agents publish, inputs excluded
+        AtomicLong published = new AtomicLong();
+        Sink result = new Sink(published);
+        List<Topic> inputs = new ArrayList<>();
+        for (Topic t : tm.getTopics()) {
+            if (t.name.startsWith("I")) {
+                inputs.add(t);
+            } else {
+                t.subscribe(t.name.equals("R") ? result : new Sink(published));
+            }
+        }
+        // What a cascade publishes for one input: every agent of a layer sees every result of the layer before
+        // and R sees every result of the last layer
+        long perPublish = 0;
+        long layerResults = 1;
+        for (int l = 1; l <= layers; l++) {
+            layerResults *= 3;
+            perPublish += layerResults;
+        }
+        long atResult = layerResults;
+        perPublish += atResult;
+        long start = System.nanoTime();
+        for (int i = 0; i < publishes; i++) {
+            long before = result.count;
+            inputs.get(i % inputs.size()).publish(new Message((i % 1000) / 1000.0));
+            if (mode.equals("pool")) {
+                // The cascade has settled when the last of its results reaches R
+                long expected = before + atResult;
+                while (result.count < expected) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (config != null) {
+            config.close();
+        }
+        for (Agent agent : agents) {
+            agent.close();
+        }
+        if (report) {
+            System.out.printf("%-10s %16.1f %12.2f %12.0f %24s%n", mode, (double) published.get() / publishes,
+                    elapsed / 1e3 / publishes, publishes * 1e9 / elapsed, result.last);
+        }
+        if (!mode.equals("waves") && published.get() != perPublish * publishes) {
+            throw new IllegalStateException(mode + " published " + published.get() + ", not "
+                    + perPublish * publishes);
+        }
+    }
+
+    // Counts the messages of a topic and keeps the last one
+    private static final class Sink implements Agent {
+        private final AtomicLong published;
+        volatile long count;
+        volatile String last;
+
+        Sink(AtomicLong published) {
+            this.published = published;
+        }
+
+        @Override
+        public String getName() {
+            return "sink";
+        }
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public void callback(String topic, Message msg) {
+            published.incrementAndGet();
+            last = msg.asText();
+            count++;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
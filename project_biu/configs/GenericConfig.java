@@ -1,8 +1,18 @@
 package configs;
 
 
+import log.Log;
+import log.Logger;
 import graph.Agent;
+import graph.Graph;
+import graph.NumericAgent;
 import graph.ParallelAgent;
+import graph.ParallelAgent.Execution;
+import graph.ParallelAgent.WaitStrategy;
+import graph.Topic;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+import graph.WaveEngine;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
@@ -10,29 +20,76 @@ import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.lang.reflect.Constructor;
 
 
 public class GenericConfig implements Config{
+    private static final Logger LOG = Log.getLogger(GenericConfig.class);
+
     String confFileLocation;
     List<ParallelAgent> pAgentList;
     int agentsCap = 100;
+    // What the agents run on, unless the file says otherwise with a line "# execution: thread|pool|virtual"
+    Execution execution = Execution.POOL;
+    // Whether conflation-safe agents skip stale messages (see Agent.isConflationSafe); "# conflation: on|off"
+    boolean conflation = true;
+    // Whether the agents run as a compiled WaveEngine rather than a cascade of callbacks; "# engine: wave|cascade".
+    // Only for acyclic graphs of numeric agents; anything else falls back to the cascade
+    boolean wave = false;
+    WaveEngine engine;
     List<String> lines; //
 
     public void setConfFile(String confFileLocation){
         this.confFileLocation = confFileLocation;
     }
 
+    public void setExecution(Execution execution){
+        this.execution = execution;
+    }
+
+    public void setConflation(boolean conflation){
+        this.conflation = conflation;
+    }
+
+    public void setWave(boolean wave){
+        this.wave = wave;
+    }
+
     @Override
     // Create the configuration.
     public void create() {
         if(confFileLocation!=null){
             try {
                 this.pAgentList = new ArrayList<ParallelAgent>();
-                // Read all the lines of the file into a list.
-                lines = Files.readAllLines(Paths.get(this.confFileLocation));
+                // Read all the lines of the file into a list, apart from comments and settings.
+                lines = new ArrayList<String>();
+                Execution exec = this.execution;
+                boolean conflate = this.conflation;
+                boolean waves = this.wave;
+                for (String line : Files.readAllLines(Paths.get(this.confFileLocation))) {
+                    if (!line.startsWith("#")) {
+                        lines.add(line);
+                        continue;
+                    }
+                    String[] setting = line.substring(1).split(":", 2);
+                    if (setting.length == 2 && setting[0].trim().equalsIgnoreCase("conflation")) {
+                        conflate = !setting[1].trim().equalsIgnoreCase("off");
+                    } else if (setting.length == 2 && setting[0].trim().equalsIgnoreCase("engine")) {
+                        waves = setting[1].trim().equalsIgnoreCase("wave");
+                    } else if (setting.length == 2 && setting[0].trim().equalsIgnoreCase("execution")) {
+                        try {
+                            exec = Execution.valueOf(setting[1].trim().toUpperCase(Locale.ROOT));
+                        } catch (IllegalArgumentException e) {
+                            LOG.warn("Unknown execution \"" + setting[1].trim() + "\", using " + exec);
+                        }
+                    }
+                }
                 // Check that the number of lines div in 3 -> indicate that the file correct.
                 if (lines.size() % 3 == 0){
+                    List<Agent> agents = new ArrayList<Agent>();
+                    List<String[]> inputs = new ArrayList<String[]>();
+                    List<String[]> outputs = new ArrayList<String[]>();
                     for(int i = 0; i < (lines.size() / 3); i++){
                         // Extract the data.
                         String agentLocation = lines.get(i*3);
@@ -43,22 +100,64 @@ public class GenericConfig implements Config{
                             // Create agent.
                             Class<?> agentClass = Class.forName(agentLocation);
                             Constructor<?> ctor = agentClass.getConstructor(String[].class, String[].class);
-                            Object agent = ctor.newInstance((Object) pubsList, (Object) subsList);
-                            ParallelAgent pAgent = new ParallelAgent((Agent) agent, this.agentsCap);
-                            this.pAgentList.add(pAgent);
+                            agents.add((Agent) ctor.newInstance((Object) pubsList, (Object) subsList));
+                            inputs.add(pubsList);
+                            outputs.add(subsList);
 
                         } catch (ClassNotFoundException |
                                  NoSuchMethodException   |
                                  InstantiationException  |
                                  IllegalAccessException   |
-                                 InvocationTargetException e) {System.out.println(e);}
+                                 InvocationTargetException e) {LOG.error("Cannot create agent " + agentLocation, e);}
 
                     }
+                    if (waves && !agents.isEmpty()) {
+                        if (agents.stream().allMatch(a -> a instanceof NumericAgent)) {
+                            Graph graph = new Graph();
+                            graph.createFromTopics();
+                            try {
+                                this.engine = WaveEngine.compile(graph);
+                                LOG.info(this.engine.getAgentCount() + " agents running as waves");
+                                return;
+                            } catch (IllegalArgumentException e) {
+                                LOG.warn("Cannot run the agents as waves, running them as a cascade: "
+                                        + e.getMessage());
+                            }
+                        } else {
+                            LOG.warn("Not all the agents are numeric, running them as a cascade");
+                        }
+                    }
+                    for (int i = 0; i < agents.size(); i++) {
+                        wrap(agents.get(i), inputs.get(i), outputs.get(i), exec, conflate);
+                    }
+                    if (!this.pAgentList.isEmpty()) {
+                        long conflating = this.pAgentList.stream().filter(ParallelAgent::isConflating).count();
+                        LOG.info(this.pAgentList.size() + " agents running on " + this.pAgentList.get(0).getExecution()
+                                + ", " + conflating + " conflating");
+                    }
                 }
             } catch (IOException e){}
         }
     }
 
+    // The agent registered itself with its topics; put a wrapper in its place, so that its input goes through the
+    // mailbox instead of running on the publisher's thread
+    private void wrap(Agent agent, String[] inputs, String[] outputs, Execution exec, boolean conflate) {
+        ParallelAgent pAgent = new ParallelAgent(agent, this.agentsCap, WaitStrategy.PARK, exec, conflate);
+        this.pAgentList.add(pAgent);
+        TopicManager tm = TopicManagerSingleton.get();
+        for (String input : inputs) {
+            Topic topic = tm.getTopic(input);
+            topic.unsubscribe(agent);
+            topic.subscribe(pAgent);
+        }
+        for (String output : outputs) {
+            Topic topic = tm.getTopic(output);
+            topic.removePublisher(agent);
+            topic.addPublisher(pAgent);
+        }
+    }
+
     @Override
     public String getName() {
         return this.confFileLocation;
@@ -71,6 +170,13 @@ public class GenericConfig implements Config{
 
     @Override
     public void close() {
+        if (this.engine != null) {
+            this.engine.close();
+            this.engine = null;
+        }
+        if (this.pAgentList == null) {
+            return;
+        }
         for(ParallelAgent pa : this.pAgentList){
             pa.close();
         }
@@ -5,4 +5,11 @@ public interface Agent {
     void reset();
     void callback(String topic, Message msg);
     void close();
+
+    // Whether only the latest message of each input topic matters: the agent keeps the last value per topic and its
+    // output depends on nothing else. A ParallelAgent may then replace a message still waiting in the mailbox with a
+    // newer one of the same topic, instead of having the agent compute a result that is stale already.
+    default boolean isConflationSafe() {
+        return false;
+    }
 }
@@ -0,0 +1,71 @@
+package graph;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * AgentPool holds what the {@link ParallelAgent}s that do not have a platform thread of their own run on: the shared
+ * work-stealing pool, and virtual threads where the JVM has them.
+ * <p>
+ * The pool has a thread per core and is in FIFO mode, which suits tasks that are never joined, such as agents'
+ * turns. Its threads are daemons, like the agents' own threads, and it is created on first use.
+ * </p>
+ */
+final class AgentPool {
+    private static volatile ForkJoinPool pool;
+    // Thread.ofVirtual() and Thread.Builder.unstarted(Runnable), Java 21+; null before
+    private static final Method OF_VIRTUAL;
+    private static final Method UNSTARTED;
+    static {
+        Method ofVirtual = null;
+        Method unstarted = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException e) {
+            // Older JVM
+        }
+        OF_VIRTUAL = ofVirtual;
+        UNSTARTED = unstarted;
+    }
+
+    private AgentPool() {}
+
+    static ForkJoinPool get() {
+        ForkJoinPool p = pool;
+        if (p == null) {
+            synchronized (AgentPool.class) {
+                p = pool;
+                if (p == null) {
+                    p = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), fjp -> {
+                        ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(fjp);
+                        t.setName("agent-pool-" + t.getPoolIndex());
+                        t.setDaemon(true);
+                        return t;
+                    }, null, true);
+                    pool = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /**
+     * @return whether {@link #newVirtualThread} is available
+     */
+    static boolean hasVirtualThreads() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Create an unstarted virtual thread; only if {@link #hasVirtualThreads()}.
+     */
+    static Thread newVirtualThread(Runnable task) {
+        try {
+            return (Thread) UNSTARTED.invoke(OF_VIRTUAL.invoke(null), task);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create a virtual thread", e);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * BatchPlan evaluates the numeric agents of an acyclic graph over many rows of input values at once, a column of
+ * values per topic, without publishing anything.
+ * <p>
+ * The agents run in topological order, each over a whole chunk of rows with its array kernel
+ * ({@link NumericAgent#compute(double[][], double[], int, int)}), so that a row is what a wave started from those
+ * input values would leave on the topics. Chunks of {@value #CHUNK} rows keep an agent's columns in cache while it
+ * runs; a batch of more than one chunk is spread over the shared agent pool. The graph's running agents and the
+ * values of its topics are not affected.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * Graph graph = new Graph();
+ * graph.createFromTopics();
+ * BatchPlan plan = BatchPlan.compile(graph);
+ * Map<String, double[]> outputs = plan.evaluate(Map.of("A", a, "B", b));
+ * }</pre>
+ */
+public final class BatchPlan {
+    // Rows an agent runs over at a time
+    static final int CHUNK = 4096;
+
+    private final Plan plan;
+    // Topics no agent writes, whose columns the caller gives, by name
+    private final int[] sources;
+    // Topics the agents write, in topological order
+    private final int[] results;
+
+    private BatchPlan(Plan plan) {
+        this.plan = plan;
+        boolean[] written = new boolean[plan.topics.length];
+        List<Integer> results = new ArrayList<>();
+        for (int out : plan.outputs) {
+            if (!written[out]) {
+                written[out] = true;
+                results.add(out);
+            }
+        }
+        List<Integer> sources = new ArrayList<>();
+        for (int t = 0; t < plan.topics.length; t++) {
+            if (!written[t]) {
+                sources.add(t);
+            }
+        }
+        sources.sort((a, b) -> plan.topics[a].name.compareTo(plan.topics[b].name));
+        this.sources = sources.stream().mapToInt(Integer::intValue).toArray();
+        this.results = results.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Plan the numeric agents of the graph, as built by {@link Graph#createFromTopics()}, including those run by
+     * {@link ParallelAgent}s or a {@link WaveEngine}.
+     *
+     * @throws IllegalArgumentException if the graph has cycles, which cannot be evaluated row by row
+     */
+    public static BatchPlan compile(Graph graph) {
+        return new BatchPlan(Plan.compile(graph, true));
+    }
+
+    /**
+     * @return the topics whose columns {@link #evaluate} needs, by name
+     */
+    public List<String> getInputs() {
+        return names(this.sources);
+    }
+
+    /**
+     * @return the topics {@link #evaluate} computes, in the order the agents write them
+     */
+    public List<String> getOutputs() {
+        return names(this.results);
+    }
+
+    private List<String> names(int[] indices) {
+        List<String> names = new ArrayList<>(indices.length);
+        for (int t : indices) {
+            names.add(this.plan.topics[t].name);
+        }
+        return Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Evaluate the graph for every row of the input columns, one per topic of {@link #getInputs()}, all of the same
+     * length. The columns are not changed.
+     *
+     * @return a column per topic of {@link #getOutputs()}, in that order
+     * @throws IllegalArgumentException if a column is missing, unknown or of another length
+     */
+    public Map<String, double[]> evaluate(Map<String, double[]> columns) {
+        double[][] values = new double[this.plan.topics.length][];
+        int rows = -1;
+        for (int t : this.sources) {
+            String name = this.plan.topics[t].name;
+            double[] column = columns.get(name);
+            if (column == null) {
+                throw new IllegalArgumentException("Missing column \"" + name + "\"");
+            }
+            if (rows >= 0 && column.length != rows) {
+                throw new IllegalArgumentException("Column \"" + name + "\" has " + column.length + " rows, not "
+                        + rows);
+            }
+            rows = column.length;
+            values[t] = column;
+        }
+        List<String> inputs = getInputs();
+        for (String name : columns.keySet()) {
+            if (!inputs.contains(name)) {
+                throw new IllegalArgumentException("\"" + name + "\" is not an input of the graph");
+            }
+        }
+        rows = Math.max(rows, 0);
+        for (int t : this.results) {
+            values[t] = new double[rows];
+        }
+        // The columns of each agent's inputs, in its order
+        double[][][] in = new double[this.plan.agents.length][][];
+        for (int s = 0; s < in.length; s++) {
+            int[] topics = this.plan.inputs[s];
+            in[s] = new double[topics.length][];
+            for (int i = 0; i < topics.length; i++) {
+                in[s][i] = values[topics[i]];
+            }
+        }
+
+        if (rows <= CHUNK) {
+            run(in, values, 0, rows);
+        } else {
+            ForkJoinPool pool = AgentPool.get();
+            List<ForkJoinTask<?>> chunks = new ArrayList<>();
+            for (int from = 0; from < rows; from += CHUNK) {
+                int start = from;
+                int end = Math.min(rows, from + CHUNK);
+                chunks.add(pool.submit(() -> run(in, values, start, end)));
+            }
+            for (ForkJoinTask<?> chunk : chunks) {
+                chunk.join();
+            }
+        }
+
+        Map<String, double[]> outputs = new LinkedHashMap<>();
+        for (int t : this.results) {
+            outputs.put(this.plan.topics[t].name, values[t]);
+        }
+        return outputs;
+    }
+
+    // Every agent, in order, over rows from to to
+    private void run(double[][][] in, double[][] values, int from, int to) {
+        for (int s = 0; s < this.plan.agents.length; s++) {
+            this.plan.agents[s].compute(in[s], values[this.plan.outputs[s]], from, to);
+        }
+    }
+}
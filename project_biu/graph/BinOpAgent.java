@@ -5,7 +5,7 @@ import graph.TopicManagerSingleton.TopicManager;
 import java.util.Objects;
 import java.util.function.BinaryOperator;
 
-public class BinOpAgent implements Agent{
+public class BinOpAgent implements NumericAgent{
     String name;
     Double input1;
     Double input2;
@@ -59,6 +59,38 @@ public class BinOpAgent implements Agent{
         tOut.publish(new Message(result));
     }
 
+    @Override
+    public Topic[] getInputs() {
+        return new Topic[] {t1In, t2In};
+    }
+
+    @Override
+    public Topic getOutput() {
+        return tOut;
+    }
+
+    @Override
+    public double compute(double[] inputs) {
+        return op.apply(inputs[0], inputs[1]);
+    }
+
+    @Override
+    public void compute(double[][] inputs, double[] out, int from, int to) {
+        // The operator takes boxed values, so this loop cannot be vectorised; it still saves the copy per row
+        BinaryOperator<Double> f = op;
+        double[] a = inputs[0];
+        double[] b = inputs[1];
+        for (int r = from; r < to; r++) {
+            out[r] = f.apply(a[r], b[r]);
+        }
+    }
+
+    @Override
+    public boolean isConflationSafe() {
+        // The result of the latest value of each input
+        return true;
+    }
+
     @Override
     public void close() {}
 }
@@ -35,14 +35,14 @@ public class Graph extends ArrayList<Node>{
             // For each topic, add it as a node:
             Node topicNode = new Node("T" + t.name);
 
-            for (Agent a : t.subs){
+            for (Agent a : t.getSubscribers()){
                 // If the agent not at the graph we need to add him:
                 Node subNode = this.getNodeAgent(a);
                 topicNode.addEdge(subNode);
             }
             this.add(topicNode);
 
-            for (Agent a : t.pubs){
+            for (Agent a : t.getPublishers()){
                 // If the agent not at the graph we need to add him:
                 Node pubNode = this.getNodeAgent(a);
                 pubNode.addEdge(topicNode);
@@ -5,7 +5,7 @@ import graph.TopicManagerSingleton.TopicManager;
 import java.util.Objects;
 
 
-public class IncAgent implements Agent{
+public class IncAgent implements NumericAgent{
     Topic tIn;
     Topic tOut;
 
@@ -42,6 +42,35 @@ public class IncAgent implements Agent{
 
     }
 
+    @Override
+    public Topic[] getInputs() {
+        return new Topic[] {tIn};
+    }
+
+    @Override
+    public Topic getOutput() {
+        return tOut;
+    }
+
+    @Override
+    public double compute(double[] inputs) {
+        return inputs[0] + 1;
+    }
+
+    @Override
+    public void compute(double[][] inputs, double[] out, int from, int to) {
+        double[] x = inputs[0];
+        for (int r = from; r < to; r++) {
+            out[r] = x[r] + 1;
+        }
+    }
+
+    @Override
+    public boolean isConflationSafe() {
+        // The result depends on the latest input only
+        return true;
+    }
+
     @Override
     public void close() {
 
@@ -0,0 +1,225 @@
+package graph;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import graph.ParallelAgent.WaitStrategy;
+
+/**
+ * Mailbox is the queue of a {@link ParallelAgent}: the messages of its topics, posted by any thread, taken by the
+ * agent's own thread.
+ * <p>
+ * It is a bounded lock-free ring of preallocated slots, the same multi-producer design as the log's
+ * {@code AsyncAppender}: a producer claims a slot with one CAS on the tail and publishes it through the slot's sequence
+ * number. A slot holds the topic and the message as they are, so posting allocates nothing. When the ring is full the
+ * producer waits for room, as with a blocking queue, and when it is empty the consumer waits for a message; how they
+ * wait is the {@link WaitStrategy}.
+ * </p>
+ * <p>
+ * A conflating mailbox, for agents that only keep the latest value of each topic, holds at most one message per
+ * topic: a message posted while an older one of its topic is still waiting takes that one's place, and keeps its
+ * position in the queue. The ring then only carries topics; their values wait in a slot per topic.
+ * </p>
+ */
+final class Mailbox {
+    private static final int SPINS = 64;
+    private final WaitStrategy wait;
+    private final int mask;
+    // Per slot: the position it is ready to be written at (== position) or read at (== position + 1)
+    private final AtomicLongArray sequences;
+    private final String[] topics;
+    private final Message[] messages;
+    // Conflating: the waiting message of each topic, null when none is; null when not conflating
+    private final ConcurrentHashMap<String, AtomicReference<Message>> latest;
+    private final AtomicLong tail = new AtomicLong();
+    // Advanced by the consumer only
+    private long head;
+    private volatile Thread consumer;
+    private volatile boolean consumerParked;
+    private volatile boolean closed;
+
+    /**
+     * @param capacity   Messages the ring holds, rounded up to a power of two
+     * @param conflating Whether a newer message replaces a waiting one of the same topic
+     */
+    Mailbox(int capacity, WaitStrategy wait, boolean conflating) {
+        this.wait = wait;
+        this.latest = conflating ? new ConcurrentHashMap<>() : null;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.topics = new String[size];
+        this.messages = new Message[size];
+    }
+
+    /**
+     * Post a message, waiting while the mailbox is full.
+     *
+     * @return false if the mailbox was closed, or a pool thread was interrupted while it waited; the message is
+     * dropped then
+     */
+    boolean offer(String topic, Message msg) {
+        if (latest != null) {
+            AtomicReference<Message> waiting = latest.computeIfAbsent(topic, t -> new AtomicReference<>());
+            if (waiting.getAndSet(msg) != null) {
+                // The topic is in the queue already and now delivers this message
+                return !closed;
+            }
+            // The ring carries the topic; drain takes whatever message is waiting by then
+            msg = null;
+        }
+        long position;
+        int index;
+        int idle = 0;
+        while (true) {
+            if (closed) {
+                return false;
+            }
+            position = tail.get();
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                // Full: the consumer is a whole ring behind
+                wakeConsumer();
+                if (Thread.currentThread() instanceof ForkJoinWorkerThread) {
+                    // An agent of the shared pool: the agent it waits for may need this very thread to run
+                    if (!awaitRoomInPool(index, position)) {
+                        return false;
+                    }
+                } else {
+                    idle(idle++, true);
+                }
+            }
+            // Another producer took this position; try the next one
+        }
+        topics[index] = topic;
+        messages[index] = msg;
+        sequences.set(index, position + 1);
+        if (consumerParked) {
+            wakeConsumer();
+        }
+        return true;
+    }
+
+    /**
+     * Hand every posted message to {@code handler}, in order. Called by the consumer only.
+     *
+     * @return how many there were
+     */
+    int drain(BiConsumer<String, Message> handler) {
+        return drain(handler, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Hand at most {@code limit} posted messages to {@code handler}, in order. Called by the consumer only; when the
+     * agent runs on a pool, whichever thread runs its turn is the consumer.
+     *
+     * @return how many there were
+     */
+    int drain(BiConsumer<String, Message> handler, int limit) {
+        int count = 0;
+        while (count < limit) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                return count;
+            }
+            String topic = topics[index];
+            Message msg = messages[index];
+            topics[index] = null;
+            messages[index] = null;
+            // Hand the slot back to the producers before the callback, which may take long
+            sequences.set(index, head + mask + 1);
+            head++;
+            count++;
+            if (msg == null) {
+                msg = latest.get(topic).getAndSet(null);
+            }
+            handler.accept(topic, msg);
+        }
+        return count;
+    }
+
+    /**
+     * Wait until a message may have been posted or the mailbox was closed. Called by the consumer when
+     * {@link #drain} found nothing; {@code idle} counts the calls since it last found something.
+     */
+    void await(int idle) {
+        if (wait != WaitStrategy.PARK || idle < SPINS) {
+            idle(idle, false);
+            return;
+        }
+        consumer = Thread.currentThread();
+        consumerParked = true;
+        // Re-check after announcing the park, so a message posted just before is not left waiting
+        if (isEmpty() && !closed) {
+            LockSupport.park(this);
+        }
+        consumerParked = false;
+    }
+
+    boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    /**
+     * Stop taking messages: producers waiting for room give up, and the consumer is woken.
+     */
+    void close() {
+        closed = true;
+        wakeConsumer();
+    }
+
+    // Wait for the slot at position to be free, letting the pool start another thread meanwhile; false if interrupted
+    private boolean awaitRoomInPool(int index, long position) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                @Override
+                public boolean block() {
+                    LockSupport.parkNanos(Mailbox.this, 100_000L);
+                    return isReleasable();
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return closed || sequences.get(index) - position >= 0;
+                }
+            });
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void wakeConsumer() {
+        Thread c = consumer;
+        if (c != null) {
+            LockSupport.unpark(c);
+        }
+    }
+
+    // One round of waiting. PARK spins for the first rounds, since the wait is often shorter than a park and unpark;
+    // after that a producer sleeps briefly (the consumer parks in await instead)
+    private void idle(int round, boolean producer) {
+        if (wait == WaitStrategy.YIELD) {
+            Thread.yield();
+        } else if (wait == WaitStrategy.SPIN || round < SPINS || !producer) {
+            Thread.onSpinWait();
+        } else {
+            LockSupport.parkNanos(this, 100_000L);
+        }
+    }
+}
@@ -1,15 +1,17 @@
 package graph;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 
 public class Message {
-    public final byte[] data;
-    public final String asText;
     public final double asDouble; // We assume that String only represent numbers.
-    public final Date date; // The date when the message was created.
+    public final long nanoTime; // When the message was created, from System.nanoTime: for ordering and latency.
+    // Derived from asDouble on first use for numeric messages, which most agents never read as text. Races only
+    // compute the same value twice; data is volatile so its content is seen complete.
+    private String text;
+    private volatile byte[] data;
 
     public Message(String asText){
-        this.data = asText.getBytes();
         double valueDouble;
         try {
             valueDouble = Double.parseDouble(asText);
@@ -17,16 +19,42 @@ public class Message {
             valueDouble = Double.NaN;
         }
         this.asDouble = valueDouble;
-        this.asText = asText;
-        this.date = new Date();
+        this.text = asText;
+        this.nanoTime = System.nanoTime();
     }
 
     public Message(byte[] dataAsBytes){
         this(dataAsBytes.toString());
     }
 
+    // The agents' results: no text is made, nor parsed back
     public Message(double dataAsDouble){
-        this(Double.toString(dataAsDouble));
+        this.asDouble = dataAsDouble;
+        this.nanoTime = System.nanoTime();
+    }
+
+    public String asText(){
+        String t = this.text;
+        if (t == null) {
+            t = Double.toString(this.asDouble);
+            this.text = t;
+        }
+        return t;
+    }
+
+    public byte[] data(){
+        byte[] d = this.data;
+        if (d == null) {
+            d = asText().getBytes(StandardCharsets.UTF_8);
+            this.data = d;
+        }
+        return d;
+    }
+
+    // The date when the message was created
+    public Date date(){
+        long age = (System.nanoTime() - this.nanoTime) / 1_000_000;
+        return new Date(System.currentTimeMillis() - age);
     }
 
 }
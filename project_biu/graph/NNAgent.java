@@ -1,10 +1,14 @@
 package graph;
     
+import log.Log;
+import log.Logger;
 import graph.TopicManagerSingleton.TopicManager;
 
 import java.util.Objects;
 
-public class NNAgent implements Agent{
+public class NNAgent implements NumericAgent{
+    private static final Logger LOG = Log.getLogger(NNAgent.class);
+
     Double x = 0.0;
     Double y = 0.0;
     Double z = 0.0; // Not used in this example, but can be used for additional inputs
@@ -54,7 +58,7 @@ public class NNAgent implements Agent{
         } else if (Objects.equals(topic, t3In.name)){
             z = msg.asDouble; // Not used in this example, but can be used for additional inputs
         } else {
-            System.out.println("NNAgent received message on unknown topic: " + topic);
+            LOG.warn("NNAgent received message on unknown topic: " + topic);
             return; // Ignore messages on unknown topics
         }
         // Calc the result:
@@ -62,6 +66,38 @@ public class NNAgent implements Agent{
         tOut.publish(new Message(result));
     }
 
+    @Override
+    public Topic[] getInputs() {
+        return new Topic[] {t1In, t2In, t3In};
+    }
+
+    @Override
+    public Topic getOutput() {
+        return tOut;
+    }
+
+    @Override
+    public double compute(double[] inputs) {
+        return w1*inputs[0] + w2*inputs[1] + w3*inputs[2];
+    }
+
+    @Override
+    public void compute(double[][] inputs, double[] out, int from, int to) {
+        double a = w1, b = w2, c = w3;
+        double[] x = inputs[0];
+        double[] y = inputs[1];
+        double[] z = inputs[2];
+        for (int r = from; r < to; r++) {
+            out[r] = a*x[r] + b*y[r] + c*z[r];
+        }
+    }
+
+    @Override
+    public boolean isConflationSafe() {
+        // The weighted sum of the latest value of each input
+        return true;
+    }
+
     @Override
     public void close() {
 
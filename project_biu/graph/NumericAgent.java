@@ -0,0 +1,27 @@
+package graph;
+
+// An agent whose output is a number computed from the latest value of each of its input topics and nothing else.
+// Besides running as an ordinary agent, it can be evaluated by a WaveEngine, which keeps the values itself.
+public interface NumericAgent extends Agent {
+    // The topics the agent reads, in the order compute gets their values
+    Topic[] getInputs();
+
+    // The topic the result is published to
+    Topic getOutput();
+
+    // The result for these input values; must not publish or keep state
+    double compute(double[] inputs);
+
+    // The results for rows from (inclusive) to to (exclusive) of the input columns, in the same order as getInputs,
+    // written to the same rows of out. Agents override it with a plain loop over the arrays, which the JIT can unroll
+    // and vectorise
+    default void compute(double[][] inputs, double[] out, int from, int to) {
+        double[] row = new double[inputs.length];
+        for (int r = from; r < to; r++) {
+            for (int i = 0; i < inputs.length; i++) {
+                row[i] = inputs[i][r];
+            }
+            out[r] = compute(row);
+        }
+    }
+}
@@ -1,38 +1,116 @@
 package graph;
 
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
 
+// Runs an agent apart from its publishers: a callback posts the topic and message to the agent's mailbox as they
+// are, and the agent is handed them one at a time, in order, on a thread of its own or in turns on a shared pool.
 public class ParallelAgent implements Agent{
+    /**
+     * How the agent's thread waits for messages, and a publisher for room in a full mailbox.
+     */
+    public enum WaitStrategy {
+        /** Busy-spin: the lowest latency, but the thread keeps a core busy even when idle. */
+        SPIN,
+        /** Yield the core between checks: lower latency than parking, at the cost of CPU while idle. */
+        YIELD,
+        /** Spin briefly, then park until woken: costs nothing while idle. */
+        PARK
+    }
+
+    /**
+     * What the agent runs on. Whichever it is, the agent gets one message at a time, in order.
+     */
+    public enum Execution {
+        /** A platform thread of its own, mostly idle: simple, but thousands of agents are thousands of threads. */
+        THREAD,
+        /**
+         * Turns on a shared work-stealing pool with a thread per core: an agent with mail is scheduled, handles a
+         * batch of messages and is scheduled again if more came. The wait strategy only applies to publishers.
+         */
+        POOL,
+        /** A virtual thread of its own (Java 21+); on older JVMs the pool is used instead. */
+        VIRTUAL
+    }
+
+    // Messages an agent handles in one turn on the pool before the others get theirs
+    static final int TURN = 64;
+
     protected Agent agent;
-    protected BlockingQueue<Message> messagesQueue;
-    protected Thread t;
-    protected boolean run;
+    protected Mailbox mailbox;
+    protected Thread t; // Null on the pool
+    protected volatile boolean run;
+    private final Execution execution;
+    private final boolean conflating;
+    private final BiConsumer<String, Message> deliver;
+    // Pool: whether a turn is queued or running
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable turn = this::turn;
 
     public ParallelAgent(Agent a, int capacity) {
+        this(a, capacity, WaitStrategy.PARK, Execution.THREAD);
+    }
+
+    public ParallelAgent(Agent a, int capacity, WaitStrategy wait) {
+        this(a, capacity, wait, Execution.THREAD);
+    }
+
+    public ParallelAgent(Agent a, int capacity, WaitStrategy wait, Execution execution) {
+        this(a, capacity, wait, execution, false);
+    }
+
+    // conflate: let a newer message replace a waiting one of the same topic, if the agent is conflation-safe
+    public ParallelAgent(Agent a, int capacity, WaitStrategy wait, Execution execution, boolean conflate) {
         this.agent = a;
-        this.messagesQueue = new ArrayBlockingQueue<>(capacity);
+        this.conflating = conflate && a.isConflationSafe();
+        this.mailbox = new Mailbox(capacity, wait, this.conflating);
         this.run = true;
+        this.deliver = a::callback;
+        if (execution == Execution.VIRTUAL && !AgentPool.hasVirtualThreads()) {
+            execution = Execution.POOL;
+        }
+        this.execution = execution;
+        if (execution == Execution.POOL) {
+            return;
+        }
 
-        // Thread which pulls messages one by one from the queue:
-        t = new Thread(() -> {
+        // Thread which hands the messages of the mailbox to the agent:
+        Runnable loop = () -> {
+            int idle = 0;
             while (this.run){
-                try {
-                    Message currentElement = this.messagesQueue.take();
-                    // Extracts the topic + message:
-                    String[] parts = currentElement.asText.split(" ");
-                    String topicName = parts[0];
-                    String stringMsg = parts[1];
-                    Message msg = new Message(stringMsg);
-                    this.agent.callback(topicName, msg);
-                }catch (InterruptedException e) {
-                    break;
+                if (this.mailbox.drain(this.deliver) > 0) {
+                    idle = 0;
+                } else {
+                    this.mailbox.await(idle++);
                 }
             }
-        });
+        };
+        t = execution == Execution.VIRTUAL ? AgentPool.newVirtualThread(loop) : new Thread(loop);
+        // Agent threads must not keep the JVM alive once the server has stopped (virtual threads never do)
+        t.setName("agent-" + a.getName());
+        t.setDaemon(true);
         t.start();
     }
 
+    // What the agent actually runs on: VIRTUAL becomes POOL where there are no virtual threads
+    public Execution getExecution() {
+        return execution;
+    }
+
+    public boolean isConflating() {
+        return conflating;
+    }
+
+    // The agent this one runs
+    public Agent getAgent() {
+        return agent;
+    }
+
+    @Override
+    public boolean isConflationSafe() {
+        return agent.isConflationSafe();
+    }
+
     @Override
     public String getName() {
         return agent.getName();
@@ -45,19 +123,49 @@ public class ParallelAgent implements Agent{
 
     @Override
     public void callback(String topic, Message msg) {
-        // We want to insert to the queue the topic and the message.
-        // So we warped them together to topic + the msg as text.
+        // Waits while the mailbox is full; once closed, nobody takes from it any more and the message is dropped
+        if (this.mailbox.offer(topic, msg) && this.t == null) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            AgentPool.get().execute(this.turn);
+        }
+    }
+
+    private void turn() {
         try {
-            this.messagesQueue.put(new Message(topic+" "+msg.asText));
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+            if (this.run) {
+                this.mailbox.drain(this.deliver, TURN);
+            }
+        } finally {
+            this.scheduled.set(false);
+            // Publishers that posted during the turn saw it scheduled and left the messages to it
+            if (this.run && !this.mailbox.isEmpty()) {
+                schedule();
+            }
         }
     }
 
     @Override
     public void close() {
         this.run = false;
-        this.t.interrupt();
+        this.mailbox.close();
+        // Let a callback in progress finish before the agent is closed under it
+        try {
+            if (this.t != null) {
+                this.t.join(1000);
+            } else {
+                long deadline = System.nanoTime() + 1_000_000_000L;
+                while (this.scheduled.get() && System.nanoTime() - deadline < 0) {
+                    Thread.sleep(1);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         agent.close();
     }
 }
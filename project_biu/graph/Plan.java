@@ -0,0 +1,139 @@
+package graph;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plan is the numeric agents of an acyclic graph in topological order, with the topics they touch numbered; what
+ * {@link WaveEngine} and {@link BatchPlan} run.
+ */
+final class Plan {
+    // In topological order
+    final NumericAgent[] agents;
+    final Topic[] topics;
+    // Per agent: its input topics and its output topic, as indices of topics
+    final int[][] inputs;
+    final int[] outputs;
+    // Per topic: the agents reading it, in order
+    final int[][] readers;
+
+    private Plan(NumericAgent[] agents) {
+        this.agents = agents;
+        Map<Topic, Integer> index = new IdentityHashMap<>();
+        List<Topic> topicList = new ArrayList<>();
+        this.inputs = new int[agents.length][];
+        this.outputs = new int[agents.length];
+        for (int s = 0; s < agents.length; s++) {
+            Topic[] in = agents[s].getInputs();
+            this.inputs[s] = new int[in.length];
+            for (int i = 0; i < in.length; i++) {
+                this.inputs[s][i] = index.computeIfAbsent(in[i], t -> add(topicList, t));
+            }
+            this.outputs[s] = index.computeIfAbsent(agents[s].getOutput(), t -> add(topicList, t));
+        }
+        this.topics = topicList.toArray(new Topic[0]);
+
+        List<List<Integer>> reading = new ArrayList<>();
+        for (int t = 0; t < this.topics.length; t++) {
+            reading.add(new ArrayList<>());
+        }
+        for (int s = 0; s < agents.length; s++) {
+            for (int t : this.inputs[s]) {
+                List<Integer> r = reading.get(t);
+                if (r.isEmpty() || r.get(r.size() - 1) != s) {
+                    r.add(s);
+                }
+            }
+        }
+        this.readers = new int[this.topics.length][];
+        for (int t = 0; t < this.topics.length; t++) {
+            this.readers[t] = reading.get(t).stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private static int add(List<Topic> topicList, Topic t) {
+        if (t == null) {
+            throw new IllegalArgumentException("An agent is missing a topic");
+        }
+        topicList.add(t);
+        return topicList.size() - 1;
+    }
+
+    /**
+     * Plan the numeric agents of the graph, as built by {@link Graph#createFromTopics()}. With {@code unwrap}, the
+     * agents that {@link ParallelAgent}s and running {@link WaveEngine}s stand for are planned too.
+     *
+     * @throws IllegalArgumentException if the graph has cycles, which cannot be ordered
+     */
+    static Plan compile(Graph graph, boolean unwrap) {
+        if (graph.hasCycles()) {
+            throw new IllegalArgumentException("The graph has cycles");
+        }
+        // Kahn's algorithm over all the nodes, topics included
+        Map<Node, Integer> inDegree = new IdentityHashMap<>();
+        for (Node n : graph) {
+            inDegree.putIfAbsent(n, 0);
+            for (Node next : n.getEdges()) {
+                inDegree.merge(next, 1, Integer::sum);
+            }
+        }
+        Deque<Node> ready = new ArrayDeque<>();
+        for (Node n : graph) {
+            if (inDegree.get(n) == 0) {
+                ready.add(n);
+            }
+        }
+        List<NumericAgent> order = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            Node n = ready.poll();
+            NumericAgent agent = numeric(n.getAgent(), unwrap);
+            if (agent != null) {
+                order.add(agent);
+            }
+            for (Node next : n.getEdges()) {
+                if (inDegree.merge(next, -1, Integer::sum) == 0) {
+                    ready.add(next);
+                }
+            }
+        }
+        Plan plan = new Plan(order.toArray(new NumericAgent[0]));
+        plan.check();
+        return plan;
+    }
+
+    private static NumericAgent numeric(Agent a, boolean unwrap) {
+        if (unwrap && a instanceof ParallelAgent) {
+            a = ((ParallelAgent) a).getAgent();
+        } else if (unwrap && a instanceof WaveEngine.Stand) {
+            a = ((WaveEngine.Stand) a).agent();
+        }
+        return a instanceof NumericAgent ? (NumericAgent) a : null;
+    }
+
+    // Every agent must come after the agents writing its inputs; it does, unless an agent's topics do not match
+    // what it registered
+    private void check() {
+        int[] writer = new int[this.topics.length];
+        Arrays.fill(writer, -1);
+        for (int s = 0; s < this.agents.length; s++) {
+            writer[this.outputs[s]] = Math.max(writer[this.outputs[s]], s);
+        }
+        for (int s = 0; s < this.agents.length; s++) {
+            for (int t : this.inputs[s]) {
+                if (writer[t] >= s) {
+                    throw new IllegalArgumentException(this.agents[s].getName() + " reads " + this.topics[t].name
+                            + " before it is written");
+                }
+            }
+        }
+    }
+
+    static int[] distinct(int[] indices) {
+        return Arrays.stream(indices).distinct().toArray();
+    }
+}
@@ -4,7 +4,7 @@ import graph.TopicManagerSingleton.TopicManager;
 
 import java.util.Objects;
 
-public class PlusAgent implements Agent{
+public class PlusAgent implements NumericAgent{
     Double x = 0.0;
     Double y = 0.0;
     Topic t1In;
@@ -51,6 +51,36 @@ public class PlusAgent implements Agent{
         tOut.publish(new Message(result));
     }
 
+    @Override
+    public Topic[] getInputs() {
+        return new Topic[] {t1In, t2In};
+    }
+
+    @Override
+    public Topic getOutput() {
+        return tOut;
+    }
+
+    @Override
+    public double compute(double[] inputs) {
+        return inputs[0] + inputs[1];
+    }
+
+    @Override
+    public void compute(double[][] inputs, double[] out, int from, int to) {
+        double[] x = inputs[0];
+        double[] y = inputs[1];
+        for (int r = from; r < to; r++) {
+            out[r] = x[r] + y[r];
+        }
+    }
+
+    @Override
+    public boolean isConflationSafe() {
+        // The sum of the latest value of each input
+        return true;
+    }
+
     @Override
     public void close() {
 
@@ -5,7 +5,7 @@ import graph.TopicManagerSingleton.TopicManager;
 import java.util.Objects;
 
 
-public class SigmoidAgent implements Agent{
+public class SigmoidAgent implements NumericAgent{
     Topic tIn;
     Topic tOut;
 
@@ -42,6 +42,35 @@ public class SigmoidAgent implements Agent{
 
     }
 
+    @Override
+    public Topic[] getInputs() {
+        return new Topic[] {tIn};
+    }
+
+    @Override
+    public Topic getOutput() {
+        return tOut;
+    }
+
+    @Override
+    public double compute(double[] inputs) {
+        return 1 / (1 + Math.exp(-inputs[0]));
+    }
+
+    @Override
+    public void compute(double[][] inputs, double[] out, int from, int to) {
+        double[] x = inputs[0];
+        for (int r = from; r < to; r++) {
+            out[r] = 1 / (1 + Math.exp(-x[r]));
+        }
+    }
+
+    @Override
+    public boolean isConflationSafe() {
+        // The result depends on the latest input only
+        return true;
+    }
+
     @Override
     public void close() {
 
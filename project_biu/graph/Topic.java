@@ -1,38 +1,103 @@
 package graph;
-import java.util.ArrayList;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 public class Topic {
+    private static final Agent[] NO_AGENTS = new Agent[0];
+    private static final VarHandle SUBS;
+    private static final VarHandle PUBS;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            SUBS = lookup.findVarHandle(Topic.class, "subs", Agent[].class);
+            PUBS = lookup.findVarHandle(Topic.class, "pubs", Agent[].class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     public final String name; // The name of the topic
-    public List<Agent> subs; // A list of agents who subscribed to the topic
-    public List<Agent> pubs; // A list of agents who will publish to the topic
+    // The agents who subscribed to the topic, and those who will publish to it. The arrays are never changed: a
+    // change swaps in a copy, so publish reads them without locking while agents come and go on other threads
+    private volatile Agent[] subs = NO_AGENTS;
+    private volatile Agent[] pubs = NO_AGENTS;
 
     Topic(String name) { // The permission of the constructor is package.
         this.name = name;
-        this.subs = new ArrayList<Agent>();
-        this.pubs = new ArrayList<Agent>();
     }
     // I don't know if the methods are need to be public!
     public void subscribe(Agent agent) {
-        this.subs.add(agent);
+        add(SUBS, agent);
     }
 
     public void unsubscribe(Agent agent) {
-        this.subs.remove(agent);
+        remove(SUBS, agent);
     }
 
     public void publish(Message msg) {
+        // Listeners first, so a value is reported before the values agents derive from it
+        TopicManagerSingleton.get().published(this.name, msg);
+        // The subscribers at the time of the call; one subscribing meanwhile gets the next message
         for (Agent agent : this.subs) {
             agent.callback(this.name, msg);
         }
     }
 
     public void addPublisher(Agent agent) {
-        this.pubs.add(agent);
+        add(PUBS, agent);
     }
 
     public void removePublisher(Agent agent) {
-        this.pubs.remove(agent);
+        remove(PUBS, agent);
+    }
+
+    // Snapshots of the agents, which later changes do not affect
+    public List<Agent> getSubscribers() {
+        return Collections.unmodifiableList(Arrays.asList(this.subs));
+    }
+
+    public List<Agent> getPublishers() {
+        return Collections.unmodifiableList(Arrays.asList(this.pubs));
+    }
+
+    private void add(VarHandle agents, Agent agent) {
+        Agent[] current;
+        Agent[] next;
+        do {
+            current = (Agent[]) agents.getVolatile(this);
+            next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = agent;
+        } while (!agents.compareAndSet(this, current, next));
+        TopicManagerSingleton.get().graphChanged();
+    }
+
+    // Removes the first occurrence, like List.remove
+    private void remove(VarHandle agents, Agent agent) {
+        Agent[] current;
+        Agent[] next;
+        do {
+            current = (Agent[]) agents.getVolatile(this);
+            int i = indexOf(current, agent);
+            if (i < 0) {
+                return;
+            }
+            next = new Agent[current.length - 1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+        } while (!agents.compareAndSet(this, current, next));
+        TopicManagerSingleton.get().graphChanged();
+    }
+
+    private static int indexOf(Agent[] agents, Agent agent) {
+        for (int i = 0; i < agents.length; i++) {
+            if (agents[i].equals(agent)) {
+                return i;
+            }
+        }
+        return -1;
     }
 
 }
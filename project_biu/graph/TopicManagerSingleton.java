@@ -1,8 +1,14 @@
 package graph;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 public class TopicManagerSingleton {
 
@@ -11,6 +17,13 @@ public class TopicManagerSingleton {
         private ConcurrentHashMap<String, Topic> topicsMap;
         // Map of topic names to their latest Message (thread-safe)
         private ConcurrentHashMap<String, Message> leastValuesMap;
+        // Told about every message published to any topic, e.g. the event stream servlet. Copied on write, like
+        // Topic's agents, so that a publish iterates a plain array and allocates nothing
+        private volatile BiConsumer<String, Message>[] listeners = none();
+        // Told when a topic's latest value changes, e.g. to keep a rendered table of the values current
+        private volatile BiConsumer<String, Message>[] valueListeners = none();
+        // Changes whenever an agent joins or leaves a topic, or the topics are cleared
+        private final AtomicLong graphVersion = new AtomicLong();
 
         private TopicManager(){
             // Initialize the maps
@@ -40,11 +53,102 @@ public class TopicManagerSingleton {
         // Update the latest message for a topic
         public void addLeastValue(String topicName, Message message){
             this.leastValuesMap.put(topicName, message);
+            for (BiConsumer<String, Message> listener : this.valueListeners) {
+                listener.accept(topicName, message);
+            }
+        }
+
+        // Publish messages in order, for bulk loads: each topic is looked up once per batch, and its latest value
+        // recorded once. Messages for topics that do not exist are dropped; returns how many were published.
+        public int publishAll(List<String> topicNames, List<Message> messages){
+            Map<String, Topic> topics = new HashMap<>();
+            Map<String, Message> latest = new HashMap<>();
+            int published = 0;
+            for (int i = 0; i < topicNames.size(); i++) {
+                String name = topicNames.get(i);
+                Topic topic = topics.computeIfAbsent(name, this.topicsMap::get);
+                if (topic == null) {
+                    continue;
+                }
+                topic.publish(messages.get(i));
+                latest.put(name, messages.get(i));
+                published++;
+            }
+            this.leastValuesMap.putAll(latest);
+            for (Map.Entry<String, Message> entry : latest.entrySet()) {
+                for (BiConsumer<String, Message> listener : this.valueListeners) {
+                    listener.accept(entry.getKey(), entry.getValue());
+                }
+            }
+            return published;
         }
 
         // Remove all topics
         public void clear(){
             this.topicsMap.clear();
+            this.graphVersion.incrementAndGet();
+        }
+
+        // What is derived from the graph of agents and topics, such as a plan to evaluate it, stays valid for as
+        // long as this does not change
+        public long getGraphVersion(){
+            return this.graphVersion.get();
+        }
+
+        // Called by Topic once its agents changed
+        void graphChanged(){
+            this.graphVersion.incrementAndGet();
+        }
+
+        // Listen to the messages of all topics, whichever agent or request publishes them; the listener runs on
+        // the publishing thread, so it must not block
+        public synchronized void addListener(BiConsumer<String, Message> listener){
+            this.listeners = added(this.listeners, listener);
+        }
+
+        public synchronized void removeListener(BiConsumer<String, Message> listener){
+            this.listeners = removed(this.listeners, listener);
+        }
+
+        // Listen to changes of the latest values (see addLeastValue); runs on the updating thread, after the map
+        public synchronized void addValueListener(BiConsumer<String, Message> listener){
+            this.valueListeners = added(this.valueListeners, listener);
+        }
+
+        public synchronized void removeValueListener(BiConsumer<String, Message> listener){
+            this.valueListeners = removed(this.valueListeners, listener);
+        }
+
+        // Called by Topic.publish
+        void published(String topicName, Message message){
+            for (BiConsumer<String, Message> listener : this.listeners) {
+                listener.accept(topicName, message);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private static BiConsumer<String, Message>[] none(){
+            return (BiConsumer<String, Message>[]) new BiConsumer<?, ?>[0];
+        }
+
+        private static BiConsumer<String, Message>[] added(BiConsumer<String, Message>[] array,
+                BiConsumer<String, Message> listener){
+            BiConsumer<String, Message>[] copy = Arrays.copyOf(array, array.length + 1);
+            copy[array.length] = listener;
+            return copy;
+        }
+
+        // Without the first occurrence of listener, if any
+        private static BiConsumer<String, Message>[] removed(BiConsumer<String, Message>[] array,
+                BiConsumer<String, Message> listener){
+            for (int i = 0; i < array.length; i++) {
+                if (array[i].equals(listener)) {
+                    BiConsumer<String, Message>[] copy = Arrays.copyOf(array, array.length - 1);
+                    System.arraycopy(array, i + 1, copy, i, array.length - 1 - i);
+                    return copy;
+                }
+            }
+            return array;
         }
     }
 
@@ -0,0 +1,207 @@
+package graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * WaveEngine runs the {@link NumericAgent}s of an acyclic graph as one compiled plan instead of a cascade of
+ * callbacks.
+ * <p>
+ * {@link #compile} orders the agents topologically and keeps the latest value of every topic they touch. A message
+ * published to one of those topics starts a wave: the agents it affects are evaluated in that order, each exactly
+ * once and after all of its inputs are final, and every result is published to its topic as the agent would have.
+ * In a cascade an agent that two paths lead to runs once per path, and publishes the intermediate results of the
+ * first one. Waves run one at a time.
+ * </p>
+ * <p>
+ * The agents stay registered in the topics' view through stand-ins with their names, so the graph looks the same;
+ * other subscribers of the topics keep getting their callbacks. Agents that are not numeric are left as they are.
+ * </p>
+ */
+public final class WaveEngine {
+    private final ReentrantLock lock = new ReentrantLock();
+    // In topological order
+    private final NumericAgent[] agents;
+    private final Topic[] topics;
+    // The latest value of each topic, as the agents would have kept it
+    private final double[] values;
+    // Per agent: its input topics and its output topic, as indices of topics
+    private final int[][] inputs;
+    private final int[] outputs;
+    // Per topic: the agents reading it, in order
+    private final int[][] readers;
+    private final double[][] args;
+    private final boolean[] dirty;
+    private final List<Stand> stands = new ArrayList<>();
+    private long waves;
+    private long evaluations;
+
+    private WaveEngine(Plan plan) {
+        this.agents = plan.agents;
+        this.topics = plan.topics;
+        this.inputs = plan.inputs;
+        this.outputs = plan.outputs;
+        this.readers = plan.readers;
+        this.values = new double[this.topics.length];
+        this.dirty = new boolean[this.agents.length];
+        this.args = new double[this.agents.length][];
+        for (int s = 0; s < this.agents.length; s++) {
+            this.args[s] = new double[this.inputs[s].length];
+        }
+    }
+
+    /**
+     * Compile the numeric agents of the graph, as built by {@link Graph#createFromTopics()}, and put the engine in
+     * their place on their topics.
+     *
+     * @throws IllegalArgumentException if the graph has cycles, which waves cannot order
+     */
+    public static WaveEngine compile(Graph graph) {
+        WaveEngine engine = new WaveEngine(Plan.compile(graph, false));
+        engine.install();
+        return engine;
+    }
+
+    private void install() {
+        for (int s = 0; s < this.agents.length; s++) {
+            Stand stand = new Stand(s);
+            this.stands.add(stand);
+            for (int t : Plan.distinct(this.inputs[s])) {
+                Topic topic = this.topics[t];
+                // Once for each time the agent subscribed
+                for (int in : this.inputs[s]) {
+                    if (in == t) {
+                        topic.unsubscribe(this.agents[s]);
+                    }
+                }
+                topic.subscribe(stand);
+            }
+            Topic out = this.topics[this.outputs[s]];
+            out.removePublisher(this.agents[s]);
+            out.addPublisher(stand);
+        }
+    }
+
+    // A message reached agent s on topic t; only the first agent reading t starts the wave, and the engine's own
+    // publishes come back here while it runs
+    private void received(int s, int t, Message msg) {
+        if (this.readers[t][0] != s || this.lock.isHeldByCurrentThread()) {
+            return;
+        }
+        wave(t, msg.asDouble);
+    }
+
+    private void wave(int topic, double value) {
+        this.lock.lock();
+        try {
+            this.waves++;
+            this.values[topic] = value;
+            int pending = mark(topic);
+            for (int s = this.readers[topic][0]; s < this.agents.length && pending > 0; s++) {
+                if (!this.dirty[s]) {
+                    continue;
+                }
+                this.dirty[s] = false;
+                pending--;
+                double[] a = this.args[s];
+                for (int i = 0; i < a.length; i++) {
+                    a[i] = this.values[this.inputs[s][i]];
+                }
+                double result = this.agents[s].compute(a);
+                this.evaluations++;
+                int out = this.outputs[s];
+                this.values[out] = result;
+                pending += mark(out);
+                this.topics[out].publish(new Message(result));
+            }
+        } finally {
+            // Only left set if an agent or a subscriber threw
+            Arrays.fill(this.dirty, false);
+            this.lock.unlock();
+        }
+    }
+
+    // Returns how many agents it newly marked
+    private int mark(int topic) {
+        int marked = 0;
+        for (int s : this.readers[topic]) {
+            if (!this.dirty[s]) {
+                this.dirty[s] = true;
+                marked++;
+            }
+        }
+        return marked;
+    }
+
+    public int getAgentCount() {
+        return this.agents.length;
+    }
+
+    // Waves run so far
+    public long getWaves() {
+        this.lock.lock();
+        try {
+            return this.waves;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Agent evaluations so far
+    public long getEvaluations() {
+        this.lock.lock();
+        try {
+            return this.evaluations;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Take the engine off the topics and close the agents
+    public void close() {
+        for (Stand stand : this.stands) {
+            for (int t : Plan.distinct(this.inputs[stand.step])) {
+                this.topics[t].unsubscribe(stand);
+            }
+            this.topics[this.outputs[stand.step]].removePublisher(stand);
+            this.agents[stand.step].close();
+        }
+        this.stands.clear();
+    }
+
+    // Stands in for an agent on its topics
+    final class Stand implements Agent {
+        private final int step;
+
+        Stand(int step) {
+            this.step = step;
+        }
+
+        NumericAgent agent() {
+            return agents[this.step];
+        }
+
+        @Override
+        public String getName() {
+            return agents[this.step].getName();
+        }
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public void callback(String topic, Message msg) {
+            for (int t : inputs[this.step]) {
+                if (topics[t].name.equals(topic)) {
+                    received(this.step, t, msg);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,51 @@
+package log;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Appender is where log records end up. Implementations are called concurrently from any thread.
+ */
+abstract class Appender {
+    private static final DateTimeFormatter TIMESTAMP =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    void append(long millis, Level level, String logger, String thread, String message, Throwable thrown) {
+        write(format(millis, level, logger, thread, message, thrown));
+    }
+
+    /**
+     * Write one formatted record, see {@link #format}.
+     */
+    abstract void write(String record);
+
+    /**
+     * Write out everything appended so far.
+     */
+    abstract void flush();
+
+    abstract void close() throws IOException;
+
+    /**
+     * One record as it appears in the log: timestamp, level, thread, logger, message, then the stack trace if any.
+     */
+    static String format(long millis, Level level, String logger, String thread, String message, Throwable thrown) {
+        StringBuilder line = new StringBuilder(96 + (message != null ? message.length() : 4));
+        TIMESTAMP.formatTo(Instant.ofEpochMilli(millis), line);
+        line.append(' ').append(level.name());
+        for (int i = level.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(" [").append(thread).append("] ").append(logger).append(" - ").append(message).append('\n');
+        if (thrown != null) {
+            StringWriter trace = new StringWriter();
+            thrown.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+        return line.toString();
+    }
+}
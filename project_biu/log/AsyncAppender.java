@@ -0,0 +1,181 @@
+package log;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * AsyncAppender takes records off the logging threads: they are put in a bounded ring and written to the target
+ * appender by a single background thread, which also does the formatting.
+ * <p>
+ * The ring is lock-free (a bounded multi-producer queue after Dmitry Vyukov): a producer claims a slot with one CAS
+ * on the tail and publishes it through the slot's sequence number, so request threads never wait on each other or on
+ * the file. When the ring is full a debug or info record is dropped rather than blocking the caller, and the number
+ * of dropped records is written to the log once there is room again; warnings and errors wait for room. The writer thread parks when the ring is empty and is
+ * unparked by the next producer.
+ * </p>
+ */
+final class AsyncAppender extends Appender {
+    private final Appender target;
+    private final int mask;
+    // Per slot: the position it is ready to be written at (== position) or read at (== position + 1)
+    private final AtomicLongArray sequences;
+    private final Slot[] slots;
+    private final AtomicLong tail = new AtomicLong();
+    // Advanced by the writer thread only; read by flush()
+    private volatile long head;
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    /**
+     * @param target   Appender the records are written to, only ever called from the writer thread
+     * @param capacity Records the ring holds, rounded up to a power of two
+     */
+    AsyncAppender(Appender target, int capacity) {
+        this.target = target;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.sequences = new AtomicLongArray(size);
+        this.slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+            slots[i] = new Slot();
+        }
+        this.writer = new Thread(this::drainLoop, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    void append(long millis, Level level, String logger, String thread, String message, Throwable thrown) {
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (difference < 0) {
+                // Full: the writer is a whole ring behind
+                if (level == null || level.ordinal() < Level.WARN.ordinal()) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                // Warnings and errors are worth the wait
+                LockSupport.unpark(writer);
+                LockSupport.parkNanos(100_000L);
+            }
+            // Another producer took this position; try the next one
+        }
+        Slot slot = slots[index];
+        slot.millis = millis;
+        slot.level = level;
+        slot.logger = logger;
+        slot.thread = thread;
+        slot.message = message;
+        slot.thrown = thrown;
+        sequences.set(index, position + 1);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // A preformatted record goes through the ring with no level
+    @Override
+    void write(String record) {
+        append(0, null, null, null, record, null);
+    }
+
+    private void drainLoop() {
+        while (true) {
+            if (drain() == 0) {
+                target.flush();
+                if (closed) {
+                    break;
+                }
+                writerParked = true;
+                // Re-check after announcing the park, so a record published just before is not left waiting
+                if (isEmpty()) {
+                    LockSupport.parkNanos(100_000_000L);
+                }
+                writerParked = false;
+            }
+        }
+    }
+
+    // Write all published records; returns how many
+    private int drain() {
+        int count = 0;
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) != head + 1) {
+                break;
+            }
+            Slot slot = slots[index];
+            String record = slot.level == null ? slot.message
+                    : format(slot.millis, slot.level, slot.logger, slot.thread, slot.message, slot.thrown);
+            slot.clear();
+            // Hand the slot back to the producers before the (slow) write
+            sequences.set(index, head + mask + 1);
+            head++;
+            count++;
+            target.write(record);
+        }
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            target.append(System.currentTimeMillis(), Level.WARN, AsyncAppender.class.getName(), writer.getName(),
+                    lost + " log records dropped, the log writer could not keep up", null);
+        }
+        return count;
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int) head & mask) != head + 1;
+    }
+
+    @Override
+    void flush() {
+        // Best effort: wait briefly for the writer to catch up with what is published
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        while (tail.get() != head && System.nanoTime() < deadline) {
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+        target.flush();
+    }
+
+    @Override
+    void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        target.close();
+    }
+
+    private static final class Slot {
+        long millis;
+        Level level;
+        String logger;
+        String thread;
+        String message;
+        Throwable thrown;
+
+        void clear() {
+            level = null;
+            logger = null;
+            thread = null;
+            message = null;
+            thrown = null;
+        }
+    }
+}
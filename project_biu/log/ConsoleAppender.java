@@ -0,0 +1,22 @@
+package log;
+
+/**
+ * ConsoleAppender writes records synchronously to whatever {@code System.out} is at the time. It is the appender in
+ * effect until {@link Log#configure} is called, so tools and benchmarks that never configure logging print as before.
+ */
+final class ConsoleAppender extends Appender {
+    @Override
+    void write(String record) {
+        System.out.print(record);
+    }
+
+    @Override
+    void flush() {
+        System.out.flush();
+    }
+
+    @Override
+    void close() {
+        flush();
+    }
+}
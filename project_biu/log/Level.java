@@ -0,0 +1,26 @@
+package log;
+
+/**
+ * Severity of a log message, from least to most severe. {@link #OFF} as the threshold disables logging.
+ */
+public enum Level {
+    DEBUG, INFO, WARN, ERROR, OFF;
+
+    /**
+     * Parse a level name, case-insensitively.
+     *
+     * @param name     e.g. {@code "debug"}, may be null
+     * @param fallback Returned for null or unknown names
+     */
+    public static Level parse(String name, Level fallback) {
+        if (name == null) {
+            return fallback;
+        }
+        for (Level level : values()) {
+            if (level.name().equalsIgnoreCase(name.trim())) {
+                return level;
+            }
+        }
+        return fallback;
+    }
+}
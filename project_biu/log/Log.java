@@ -0,0 +1,136 @@
+package log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Log is the logging facade: it hands out {@link Logger}s and holds the global level and appender.
+ * <p>
+ * Until {@link #configure} is called records go synchronously to {@code System.out}. The server configures an
+ * {@link AsyncAppender} in front of a {@link RollingFileAppender}, so logging on the request path is a level check
+ * and, for enabled levels, one slot in a lock-free ring; formatting and file writes happen on a background thread.
+ * The level defaults to {@link Level#INFO}, or the {@code log.level} system property; per-request details and body
+ * dumps are logged at {@link Level#DEBUG} and cost nothing unless it is enabled.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * Log.configure(Paths.get("project.log"), Level.INFO, 10 * 1024 * 1024, 5);
+ * Logger log = Log.getLogger(Main.class);
+ * log.info("Server started");
+ * Log.shutdown();
+ * }</pre>
+ */
+public final class Log {
+    /** Default ring capacity of the asynchronous appender, in records. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 8192;
+
+    // Ordinal of the lowest enabled level; read on every log call
+    static volatile int threshold = Level.parse(System.getProperty("log.level"), Level.INFO).ordinal();
+    static volatile Appender appender = new ConsoleAppender();
+
+    private static final ConcurrentMap<String, Logger> LOGGERS = new ConcurrentHashMap<>();
+
+    private Log() {}
+
+    public static Logger getLogger(Class<?> type) {
+        return getLogger(type.getName());
+    }
+
+    public static Logger getLogger(String name) {
+        return LOGGERS.computeIfAbsent(name, Logger::new);
+    }
+
+    public static Level getLevel() {
+        return Level.values()[threshold];
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * Log asynchronously to a size-rolled file. The previous appender is flushed and closed.
+     *
+     * @param file         Log file; older contents are rolled to {@code file.1}, {@code file.2}, ...
+     * @param level        Lowest level written
+     * @param maxFileBytes Size at which the file is rolled over
+     * @param maxFiles     Rolled files kept
+     */
+    public static void configure(Path file, Level level, long maxFileBytes, int maxFiles) throws IOException {
+        install(new AsyncAppender(new RollingFileAppender(file, maxFileBytes, maxFiles), DEFAULT_QUEUE_CAPACITY),
+                level);
+    }
+
+    /**
+     * Like {@link #configure}, but every record is written by the logging thread itself before the call returns.
+     * Useful when debugging a crash, where records still queued would be lost.
+     */
+    public static void configureSynchronous(Path file, Level level, long maxFileBytes, int maxFiles) throws IOException {
+        install(new RollingFileAppender(file, maxFileBytes, maxFiles), level);
+    }
+
+    private static void install(Appender next, Level level) throws IOException {
+        Appender previous = appender;
+        appender = next;
+        setLevel(level);
+        previous.close();
+    }
+
+    /**
+     * Write out every record logged so far.
+     */
+    public static void flush() {
+        appender.flush();
+    }
+
+    /**
+     * Write out pending records and go back to logging to {@code System.out}.
+     */
+    public static void shutdown() {
+        Appender previous = appender;
+        appender = new ConsoleAppender();
+        try {
+            previous.close();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    /**
+     * A stream whose lines are logged at {@code level}, to route {@code System.out} and {@code System.err} into the
+     * log. Don't install it as {@code System.out} while logging to the console.
+     */
+    public static PrintStream printStream(String name, Level level) {
+        Logger logger = getLogger(name);
+        return new PrintStream(new OutputStream() {
+            private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+            @Override
+            public void write(int b) {
+                if (b == '\n') {
+                    flushLine();
+                } else if (b != '\r') {
+                    line.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                for (int i = off; i < off + len; i++) {
+                    write(b[i]);
+                }
+            }
+
+            private void flushLine() {
+                logger.log(level, line.toString(StandardCharsets.UTF_8), null);
+                line.reset();
+            }
+        }, true, StandardCharsets.UTF_8);
+    }
+}
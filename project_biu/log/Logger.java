@@ -0,0 +1,74 @@
+package log;
+
+import java.util.function.Supplier;
+
+/**
+ * Logger is the handle a class logs through, obtained once with {@link Log#getLogger(Class)}.
+ * <p>
+ * A disabled level costs one volatile read: the message is not built, and nothing reaches the appender. Messages
+ * that are expensive to build (body dumps, request details) should use the {@link Supplier} overloads or check
+ * {@link #isDebugEnabled()} first.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * private static final Logger LOG = Log.getLogger(MyServlet.class);
+ * LOG.debug(() -> "Request: " + info);
+ * LOG.error("Upload failed", e);
+ * }</pre>
+ */
+public final class Logger {
+    private final String name;
+
+    Logger(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= Log.threshold;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    public void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public void debug(Supplier<String> message) {
+        if (isEnabled(Level.DEBUG)) {
+            log(Level.DEBUG, message.get(), null);
+        }
+    }
+
+    public void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public void warn(String message, Throwable thrown) {
+        log(Level.WARN, message, thrown);
+    }
+
+    public void error(String message) {
+        log(Level.ERROR, message, null);
+    }
+
+    public void error(String message, Throwable thrown) {
+        log(Level.ERROR, message, thrown);
+    }
+
+    public void log(Level level, String message, Throwable thrown) {
+        if (isEnabled(level)) {
+            Log.appender.append(System.currentTimeMillis(), level, name, Thread.currentThread().getName(),
+                    message, thrown);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * RollingFileAppender writes records to a file and rolls it over by size: when the next record would take the file
+ * past {@code maxFileBytes}, {@code name} becomes {@code name.1}, {@code name.1} becomes {@code name.2} and so on,
+ * keeping at most {@code maxFiles} old files. A non-empty file left by a previous run is rolled over at start.
+ * <p>
+ * Writes go through a buffer that is flushed on {@link #flush()}; the methods are synchronized so the appender can
+ * also be used directly, without {@link AsyncAppender} in front of it.
+ * </p>
+ */
+final class RollingFileAppender extends Appender {
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private OutputStream out;
+    private long size;
+
+    RollingFileAppender(Path file, long maxFileBytes, int maxFiles) throws IOException {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        if (Files.exists(file) && Files.size(file) > 0) {
+            roll();
+        }
+        open();
+    }
+
+    // Rolls over first if the record would not fit
+    @Override
+    synchronized void write(String formatted) {
+        byte[] record = formatted.getBytes(StandardCharsets.UTF_8);
+        try {
+            if (size > 0 && size + record.length > maxFileBytes) {
+                out.close();
+                roll();
+                open();
+            }
+            out.write(record);
+            size += record.length;
+        } catch (IOException e) {
+            // Nowhere left to log to
+            e.printStackTrace(System.err);
+        }
+    }
+
+    @Override
+    synchronized void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    @Override
+    synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private void open() throws IOException {
+        out = new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 64 * 1024);
+        size = 0;
+    }
+
+    private void roll() throws IOException {
+        if (maxFiles <= 0) {
+            return;
+        }
+        Files.deleteIfExists(rolled(maxFiles));
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path from = rolled(i);
+            if (Files.exists(from)) {
+                Files.move(from, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path rolled(int index) {
+        return Paths.get(file.toString() + "." + index);
+    }
+}
@@ -0,0 +1,388 @@
+package server;
+
+import log.Log;
+import log.Logger;
+import servlets.Servlet;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import server.RequestParser.RequestInfo;
+
+/**
+ * AbstractHTTPServer holds the parts shared by every server engine: servlet registration and request dispatch.
+ * Requests are routed by a {@link ServletRouter}, which picks the servlet with the longest matching URI prefix.
+ * <p>
+ * Engines ({@link MyHTTPServer}, {@link NioHTTPServer}) only differ in how they accept connections and move bytes;
+ * once a request is parsed they all call {@link #dispatch(RequestInfo, ResponseWriter, ServerMetrics.Sample)}, so servlets behave the same
+ * regardless of the engine in use.
+ * </p>
+ * <p>
+ * Connections are persistent by default (HTTP/1.1 keep-alive). Pipelined requests on one connection are
+ * served strictly in order; see {@link #setKeepAlive(int, int)} for the idle timeout and per-connection limit.
+ * </p>
+ * <p>
+ * Under overload the server refuses work early rather than letting queues and latency grow: the worker queue is
+ * bounded, tasks that waited too long are shed, and methods can be given concurrency limits. See
+ * {@link #setOverloadPolicy}, {@link #setQueueDelayTarget} and {@link #setConcurrencyLimit}.
+ * </p>
+ * <p>
+ * {@link #close()} stops accepting at once, lets requests in progress finish (answering them with
+ * {@code Connection: close}) and closes idle connections, then closes the servlets. Responses a servlet
+ * {@link ResponseWriter#detach() detached} are ended. Requests still running at the drain deadline
+ * ({@link #setDrainTimeout}) are cut off.
+ * </p>
+ */
+abstract class AbstractHTTPServer extends Thread implements HTTPServer {
+    private static final Logger LOG = Log.getLogger(AbstractHTTPServer.class);
+
+    // Defaults for persistent (keep-alive) connections
+    static final int DEFAULT_IDLE_TIMEOUT_MILLIS = 5000;
+    static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 100;
+    // Unread request body left by a servlet is discarded up to this size to keep the connection; beyond it the
+    // connection is closed instead
+    static final long MAX_DRAIN_BYTES = 256 * 1024;
+    // Interim response for "Expect: 100-continue", sent when the servlet starts reading the body
+    static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // Answer to a request head that cannot be parsed (BadRequestException)
+    static final byte[] BAD_REQUEST = "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n"
+            .getBytes(StandardCharsets.ISO_8859_1);
+    static final long DEFAULT_DRAIN_TIMEOUT_MILLIS = 10_000;
+
+    // HTTP method + URI prefix -> Servlet
+    final ServletRouter router = new ServletRouter();
+    // How long an idle persistent connection is kept open, and how many requests it may carry
+    volatile int idleTimeoutMillis = DEFAULT_IDLE_TIMEOUT_MILLIS;
+    volatile int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+    // Cap for request bodies a servlet buffers with RequestInfo.getContent()
+    volatile int maxBufferedBodyBytes = RequestBody.DEFAULT_MAX_BUFFERED_BYTES;
+    // Smallest response body that is compressed, negative to never compress
+    volatile int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+    // Queue bound, shedding and per-method limits
+    final AdmissionControl admission = new AdmissionControl();
+    // Latency and size histograms per method and route
+    final ServerMetrics metrics = new ServerMetrics(admission);
+    // How long close() waits for requests in progress
+    volatile long drainTimeoutMillis = DEFAULT_DRAIN_TIMEOUT_MILLIS;
+    // Set when close() starts: responses carry "Connection: close" and idle connections are closed
+    volatile boolean draining;
+    // Responses servlets detached and that have not ended yet
+    private final Set<DetachedResponse> detachedResponses = ConcurrentHashMap.newKeySet();
+    // Guards closed and drainMillis; a second close() waits for the first
+    private final ReentrantLock closeLock = new ReentrantLock();
+    private boolean closed;
+    private long drainMillis = -1;
+
+    /**
+     * Register a servlet to handle a specific HTTP method and URI prefix.
+     *
+     * Segments written as {@code {name}} bind path parameters, see {@link RequestInfo#getPathParameters()}.
+     *
+     * @param httpCommanmd HTTP method (e.g., "GET", "POST", "DELETE")
+     * @param uri URI prefix to match (e.g., "/api/", "/topics/{name}")
+     * @param s   The servlet to handle matching requests
+     */
+    public void addServlet(String httpCommanmd, String uri, Servlet s){
+        router.add(httpCommanmd, uri, s);
+    }
+
+    /**
+     * Remove a servlet for a specific HTTP method and URI prefix.
+     *
+     * @param httpCommanmd HTTP method (e.g., "GET", "POST", "DELETE")
+     * @param uri URI prefix to remove
+     */
+    public void removeServlet(String httpCommanmd, String uri){
+        router.remove(httpCommanmd, uri);
+    }
+
+    /**
+     * Configure HTTP/1.1 persistent connections.
+     *
+     * @param idleTimeoutMillis        How long to wait for the next request on an idle connection
+     * @param maxRequestsPerConnection Requests served on one connection before it is closed; 1 disables keep-alive
+     */
+    public void setKeepAlive(int idleTimeoutMillis, int maxRequestsPerConnection) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxRequestsPerConnection = Math.max(1, maxRequestsPerConnection);
+    }
+
+    /**
+     * Limit the request body a servlet may buffer in memory with {@link RequestInfo#getContent()}.
+     * Bodies read as a stream ({@link RequestInfo#getBody()}) are not limited.
+     *
+     * @param maxBufferedBodyBytes Largest body getContent() accepts
+     */
+    public void setMaxBufferedBody(int maxBufferedBodyBytes) {
+        this.maxBufferedBodyBytes = maxBufferedBodyBytes;
+    }
+
+    /**
+     * Compress text-like responses of at least {@code minBytes} with gzip or deflate when the client accepts it.
+     * Small bodies are not worth the CPU time; a streamed body of unknown length is always compressed.
+     *
+     * @param minBytes Smallest body to compress; negative disables compression
+     */
+    public void setCompressionThreshold(int minBytes) {
+        this.compressionThreshold = minBytes;
+    }
+
+    /**
+     * Choose how refused work is answered: a {@code 503} with {@code Retry-After} (the default, 1 second) or a
+     * closed connection.
+     */
+    public void setOverloadPolicy(OverloadPolicy policy, int retryAfterSeconds) {
+        admission.setPolicy(policy, retryAfterSeconds);
+    }
+
+    /**
+     * Configure queue-delay shedding (CoDel): once work has waited for a worker longer than {@code targetMillis} for
+     * a whole {@code intervalMillis}, queued work is refused at an increasing rate until the wait is back under the
+     * target. Defaults to 100 ms and 1 s.
+     *
+     * @param targetMillis   Acceptable standing queue wait; 0 disables shedding
+     * @param intervalMillis How long the wait must stay above target before shedding starts
+     */
+    public void setQueueDelayTarget(long targetMillis, long intervalMillis) {
+        admission.setQueueDelayTarget(targetMillis, intervalMillis);
+    }
+
+    /**
+     * Limit how many requests of one method are handled at the same time; requests beyond the limit are refused
+     * at once, so slow requests of one kind cannot take every worker.
+     *
+     * @param httpCommand   HTTP method, e.g. "POST"
+     * @param maxConcurrent Requests in progress at most; 0 or less removes the limit
+     */
+    public void setConcurrencyLimit(String httpCommand, int maxConcurrent) {
+        admission.setLimit(httpCommand, maxConcurrent);
+    }
+
+    /**
+     * Limit how many requests of one route are handled at the same time, like
+     * {@link #setConcurrencyLimit(String, int)}. The route's requests count against this limit instead of their
+     * method's.
+     *
+     * @param httpCommand   HTTP method, e.g. "POST"
+     * @param uri           URI pattern the servlet is registered under, e.g. "/upload"
+     * @param maxConcurrent Requests in progress at most; 0 or less removes the limit
+     */
+    public void setConcurrencyLimit(String httpCommand, String uri, int maxConcurrent) {
+        admission.setLimit(httpCommand, uri, maxConcurrent);
+    }
+
+    /**
+     * Bound how long {@link #close()} waits for requests in progress; after that they are cut off.
+     *
+     * @param timeoutMillis Drain deadline, counted from the call to close()
+     */
+    public void setDrainTimeout(long timeoutMillis) {
+        this.drainTimeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    /**
+     * Stop the server: stop accepting, drain the requests in progress, then close every registered servlet.
+     * Returns once that is done; calling it again waits for the first call and returns.
+     */
+    @Override
+    public void close() {
+        closeLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            long start = System.nanoTime();
+            draining = true;
+            // A detached response only ends when told to; the drain waits for what it has queued
+            for (DetachedResponse response : detachedResponses) {
+                response.close();
+            }
+            boolean drained;
+            try {
+                drained = shutdown(start + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                drained = false;
+            }
+            drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            for (Servlet s : router.servlets()) {
+                try {
+                    s.close();
+                } catch (IOException | RuntimeException e) {
+                    LOG.warn("Closing servlet " + s.getClass().getName() + " failed", e);
+                }
+            }
+            if (drained) {
+                LOG.info("Server stopped, drained in " + drainMillis + " ms");
+            } else {
+                LOG.warn("Server stopped, requests still running after " + drainMillis + " ms were cut off");
+            }
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    /**
+     * @return how long the last {@link #close()} took to drain requests, in milliseconds; -1 before it ran
+     */
+    public long getDrainMillis() {
+        closeLock.lock();
+        try {
+            return drainMillis;
+        } finally {
+            closeLock.unlock();
+        }
+    }
+
+    /**
+     * Engine part of {@link #close()}: stop accepting right away, close idle connections, wait for requests in
+     * progress until {@code deadlineNanos} and then release the engine's threads and sockets. {@link #draining} is
+     * already set.
+     *
+     * @param deadlineNanos {@link System#nanoTime()} by which to give up on requests in progress
+     * @return whether every request finished before the deadline
+     */
+    abstract boolean shutdown(long deadlineNanos) throws InterruptedException;
+
+    /**
+     * Keep track of a response an engine has detached, so that {@link #close()} can end it.
+     */
+    void track(DetachedResponse response) {
+        detachedResponses.add(response);
+        response.onClose(() -> detachedResponses.remove(response));
+        // Set before close() looks at the detached responses; one of the two sees the other
+        if (draining) {
+            response.close();
+        }
+    }
+
+    // Time left until a deadline, for timed waits
+    static long millisUntil(long deadlineNanos) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * @return the server's request metrics, for {@code servlets.MetricsServlet}
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return work refused because the worker queue was full
+     */
+    public long getRejectedCount() {
+        return admission.rejected.get();
+    }
+
+    /**
+     * @return work refused because it waited too long for a worker
+     */
+    public long getShedCount() {
+        return admission.shed.get();
+    }
+
+    /**
+     * @return requests refused by a per-method concurrency limit
+     */
+    public long getLimitedCount() {
+        return admission.limited.get();
+    }
+
+    /**
+     * Decoder for the body that follows a parsed head, or null if the request has none.
+     */
+    static BodyDecoder bodyDecoder(RequestInfo info) {
+        if (!info.hasBody()) {
+            return null;
+        }
+        return info.isChunked() ? BodyDecoder.chunked() : BodyDecoder.fixedLength(info.getContentLength());
+    }
+
+    /**
+     * Whether the client waits for {@code 100 Continue} before sending the body (RFC 7231, 5.1.1).
+     */
+    static boolean expectsContinue(RequestInfo info) {
+        return "HTTP/1.1".equals(info.getHttpVersion()) && "100-continue".equalsIgnoreCase(info.getHeader("Expect"));
+    }
+
+    /**
+     * Route a parsed request to its servlet and let it write the response.
+     * Answers 404 when no servlet matches, and 503 when the route or method is at its concurrency limit. The engine
+     * finishes the response afterwards, and records {@code sample}, which gets the route and the servlet time.
+     */
+    void dispatch(RequestInfo info, ResponseWriter response, ServerMetrics.Sample sample) throws IOException {
+        response.setCompression(info.acceptEncoding(), compressionThreshold);
+        ServletRouter.Match match = router.match(info.getHttpCommand(), info.getUri());
+        Semaphore limit = admission.limit(info.getHttpCommand(), match == null ? null : match.pattern);
+        if (limit != null && !limit.tryAcquire()) {
+            admission.limited.incrementAndGet();
+            admission.refuse(response);
+            sample.route = metrics.refused(info.getHttpCommand());
+            return;
+        }
+        try {
+            sample.route = metrics.route(info.getHttpCommand(), match == null ? null : match.pattern);
+            if (match != null) {
+                info.setPathParameters(match.pathParameters);
+                long start = System.nanoTime();
+                try {
+                    match.servlet.handle(info, response);
+                } finally {
+                    sample.servletNanos = System.nanoTime() - start;
+                }
+            } else {
+                response.status(404).contentLength(0);
+            }
+        } finally {
+            if (limit != null) {
+                limit.release();
+            }
+        }
+    }
+
+    /**
+     * {@link #dispatch} for the HTTP/1 engines. A servlet that throws is answered with 500 in place of its response
+     * if none of it was sent yet; otherwise the exception is passed on, and the engine closes the connection.
+     */
+    void dispatch(RequestInfo info, Http1ResponseWriter response, ServerMetrics.Sample sample) throws IOException {
+        try {
+            dispatch(info, (ResponseWriter) response, sample);
+        } catch (RuntimeException e) {
+            if (!response.sendError(500)) {
+                throw e;
+            }
+            LOG.warn("Request " + info.getHttpCommand() + " " + info.getUri() + " failed", e);
+        }
+    }
+
+    /**
+     * Create an executor that runs every task on a new virtual thread ({@code Executors.newVirtualThreadPerTaskExecutor},
+     * Java 21+). The method is looked up reflectively so the sources still build on older JDKs; there the server falls
+     * back to a thread-per-task cached pool, which keeps the same "no fixed cap" semantics with platform threads.
+     * <p>
+     * Pinning audit of the request path (a virtual thread blocked inside {@code synchronized} pins its carrier):
+     * socket reads and channel writes park without pinning, the request body pipe and the selector engine's output
+     * queue wait on a {@code ReentrantLock}, and a publish into a full {@code ParallelAgent} mailbox parks as well.
+     * Logging only claims a slot in a lock-free ring ({@code log.AsyncAppender}); the file is written by a background
+     * thread.
+     * {@code ConfLoader}'s file writes briefly occupy a carrier.
+     * </p>
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOG.info("Virtual threads are not available on this JVM, using a thread-per-task pool");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * AdmissionControl decides which work the server refuses when it cannot keep up. There are three gates:
+ * <ul>
+ *   <li>The worker pool has a bounded queue ({@link #newBoundedPool}); a task that does not fit is rejected
+ *   right away.</li>
+ *   <li>Tasks that waited in the queue too long are shed when a worker picks them up, following CoDel
+ *   (Nichols and Jacobson, RFC 8289): once the queue wait stays above the target for a whole interval, tasks are
+ *   shed at a rate that grows with the square root of the number shed, until the wait drops below the target.
+ *   A short burst is absorbed by the queue; a standing queue is not.</li>
+ *   <li>Per-method and per-route concurrency limits keep one kind of request (say, slow {@code POST} uploads) from
+ *   taking every worker. A request over its limit is refused, not queued.</li>
+ * </ul>
+ * Refused work gets a fast {@code 503} with {@code Retry-After} or a closed connection, see {@link OverloadPolicy}.
+ * Each gate has a counter.
+ */
+final class AdmissionControl {
+    static final int DEFAULT_QUEUE_CAPACITY = 256;
+    static final long DEFAULT_TARGET_MILLIS = 100;
+    static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    private volatile OverloadPolicy policy = OverloadPolicy.REJECT;
+    private volatile int retryAfterSeconds = 1;
+    private volatile byte[] rejection = encodeRejection(1);
+
+    // CoDel state, guarded by codelLock; a target of 0 turns shedding off
+    private final ReentrantLock codelLock = new ReentrantLock();
+    private long targetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TARGET_MILLIS);
+    private long intervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_INTERVAL_MILLIS);
+    // When the wait went above target (plus one interval), 0 while below
+    private long firstAboveTime;
+    private boolean dropping;
+    private long dropNext;
+    private int dropCount;
+
+    // HTTP method -> permits for requests of that method in progress
+    private final ConcurrentMap<String, Semaphore> limits = new ConcurrentHashMap<>();
+    // HTTP method -> route pattern -> permits for requests of that route in progress, instead of the method's
+    private final ConcurrentMap<String, ConcurrentMap<String, Semaphore>> routeLimits = new ConcurrentHashMap<>();
+
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong shed = new AtomicLong();
+    final AtomicLong limited = new AtomicLong();
+
+    /**
+     * A fixed pool whose queue holds at most {@code queueCapacity} tasks; {@code execute} beyond that throws
+     * {@link java.util.concurrent.RejectedExecutionException}.
+     */
+    static ThreadPoolExecutor newBoundedPool(int nThreads, int queueCapacity) {
+        return new ThreadPoolExecutor(nThreads, nThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)));
+    }
+
+    void setPolicy(OverloadPolicy policy, int retryAfterSeconds) {
+        this.policy = policy;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.rejection = encodeRejection(retryAfterSeconds);
+    }
+
+    OverloadPolicy policy() {
+        return policy;
+    }
+
+    void setQueueDelayTarget(long targetMillis, long intervalMillis) {
+        codelLock.lock();
+        try {
+            targetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, targetMillis));
+            intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, intervalMillis));
+            firstAboveTime = 0;
+            dropping = false;
+        } finally {
+            codelLock.unlock();
+        }
+    }
+
+    void setLimit(String method, int maxConcurrent) {
+        if (maxConcurrent <= 0) {
+            limits.remove(method);
+        } else {
+            limits.put(method, new Semaphore(maxConcurrent));
+        }
+    }
+
+    void setLimit(String method, String pattern, int maxConcurrent) {
+        if (maxConcurrent <= 0) {
+            routeLimits.computeIfPresent(method, (m, routes) -> {
+                routes.remove(pattern);
+                return routes.isEmpty() ? null : routes;
+            });
+        } else {
+            routeLimits.computeIfAbsent(method, m -> new ConcurrentHashMap<>())
+                    .put(pattern, new Semaphore(maxConcurrent));
+        }
+    }
+
+    /**
+     * @param pattern The route the request matched, null if none
+     * @return the permits of the route if it has a limit of its own, else those of {@code method}, or null if
+     *         neither is limited
+     */
+    Semaphore limit(String method, String pattern) {
+        if (pattern != null && !routeLimits.isEmpty()) {
+            ConcurrentMap<String, Semaphore> routes = routeLimits.get(method);
+            Semaphore limit = routes == null ? null : routes.get(pattern);
+            if (limit != null) {
+                return limit;
+            }
+        }
+        return limits.isEmpty() ? null : limits.get(method);
+    }
+
+    /**
+     * Called when a worker takes a task off the queue: whether to shed it.
+     *
+     * @param enqueuedNanos {@link System#nanoTime()} when the task was queued
+     */
+    boolean shouldShed(long enqueuedNanos) {
+        long now = System.nanoTime();
+        long sojourn = now - enqueuedNanos;
+        codelLock.lock();
+        try {
+            if (targetNanos == 0) {
+                return false;
+            }
+            boolean okToDrop = false;
+            if (sojourn < targetNanos) {
+                firstAboveTime = 0;
+            } else if (firstAboveTime == 0) {
+                firstAboveTime = now + intervalNanos;
+            } else if (now >= firstAboveTime) {
+                okToDrop = true;
+            }
+
+            boolean drop = false;
+            if (dropping) {
+                if (!okToDrop) {
+                    dropping = false;
+                } else if (now >= dropNext) {
+                    drop = true;
+                    dropCount++;
+                    dropNext = controlLaw(dropNext);
+                }
+            } else if (okToDrop) {
+                drop = true;
+                dropping = true;
+                // Start near the previous drop rate if the last dropping state ended recently
+                boolean recent = now - dropNext < 16 * intervalNanos;
+                dropCount = recent && dropCount > 2 ? dropCount - 2 : 1;
+                dropNext = controlLaw(now);
+            }
+            if (drop) {
+                shed.incrementAndGet();
+            }
+            return drop;
+        } finally {
+            codelLock.unlock();
+        }
+    }
+
+    // Next drop time: the interval shrinks with the square root of the drops so far
+    private long controlLaw(long time) {
+        return time + (long) (intervalNanos / Math.sqrt(dropCount));
+    }
+
+    /**
+     * Answer a refused request according to the policy. With {@link OverloadPolicy#CLOSE} the response is left
+     * untouched, which closes the connection.
+     */
+    void refuse(ResponseWriter response) {
+        if (policy == OverloadPolicy.REJECT) {
+            response.status(503).header("Retry-After", Integer.toString(retryAfterSeconds)).contentLength(0);
+        }
+    }
+
+    /**
+     * The complete 503 response, for refusing before a request has been read.
+     */
+    byte[] rejectionResponse() {
+        return rejection;
+    }
+
+    private static byte[] encodeRejection(int retryAfterSeconds) {
+        return ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + retryAfterSeconds
+                + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
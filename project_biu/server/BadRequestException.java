@@ -0,0 +1,15 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * A request head that cannot be parsed: the engines answer it with {@code 400 Bad Request} and close the
+ * connection, since where the next request would start is unknown.
+ */
+public class BadRequestException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public BadRequestException(String message) {
+        super(message);
+    }
+}
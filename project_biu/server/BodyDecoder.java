@@ -0,0 +1,148 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * BodyDecoder removes the transfer framing from a request body: either a fixed {@code Content-Length} or
+ * {@code Transfer-Encoding: chunked}.
+ * <p>
+ * It is fed raw connection bytes and writes decoded body bytes into a caller-supplied array. Framing bytes are
+ * consumed even when there is no room for body bytes, so the decoder can reach its end as soon as the last framing
+ * byte arrives. It never reads past the end of the body, which leaves pipelined requests in the input buffer.
+ * </p>
+ */
+final class BodyDecoder {
+    // Longest chunk-size or trailer line accepted
+    private static final int MAX_LINE = 4096;
+
+    private enum State { SIZE, DATA, DATA_CR, DATA_LF, TRAILER, DONE }
+
+    private final boolean chunked;
+    // Bytes left in the body (fixed length) or in the current chunk (chunked)
+    private long remaining;
+    private State state;
+    private boolean sawDigit;
+    private boolean inExtension;
+    private int lineLength;
+
+    private BodyDecoder(boolean chunked, long length) {
+        this.chunked = chunked;
+        this.remaining = length;
+        this.state = chunked ? State.SIZE : (length > 0 ? State.DATA : State.DONE);
+    }
+
+    static BodyDecoder fixedLength(long length) {
+        return new BodyDecoder(false, length);
+    }
+
+    static BodyDecoder chunked() {
+        return new BodyDecoder(true, 0);
+    }
+
+    boolean isComplete() {
+        return state == State.DONE;
+    }
+
+    /**
+     * Decode from {@code in} into {@code dst[off..off+len)}.
+     *
+     * @return the number of body bytes written; 0 means {@code in} is exhausted, the body is complete or
+     *         {@code len} is 0 while body bytes are next
+     * @throws IOException if the chunked framing is malformed
+     */
+    int decode(ByteBuffer in, byte[] dst, int off, int len) throws IOException {
+        int written = 0;
+        while (state != State.DONE && in.hasRemaining()) {
+            switch (state) {
+                case DATA: {
+                    int n = (int) Math.min(Math.min(in.remaining(), len - written), remaining);
+                    if (n == 0) {
+                        return written;
+                    }
+                    in.get(dst, off + written, n);
+                    written += n;
+                    remaining -= n;
+                    if (remaining == 0) {
+                        state = chunked ? State.DATA_CR : State.DONE;
+                    }
+                    break;
+                }
+                case SIZE:
+                    sizeByte(in.get());
+                    break;
+                case DATA_CR: {
+                    byte b = in.get();
+                    if (b == '\r') {
+                        state = State.DATA_LF;
+                    } else if (b == '\n') {
+                        startSizeLine();
+                    } else {
+                        throw new IOException("Malformed chunked body");
+                    }
+                    break;
+                }
+                case DATA_LF:
+                    if (in.get() != '\n') {
+                        throw new IOException("Malformed chunked body");
+                    }
+                    startSizeLine();
+                    break;
+                case TRAILER: {
+                    // Trailer fields are skipped; an empty line ends the body
+                    byte b = in.get();
+                    if (b == '\n') {
+                        if (lineLength == 0) {
+                            state = State.DONE;
+                        }
+                        lineLength = 0;
+                    } else if (b != '\r' && ++lineLength > MAX_LINE) {
+                        throw new IOException("Chunk trailer too long");
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        return written;
+    }
+
+    private void startSizeLine() {
+        state = State.SIZE;
+        remaining = 0;
+        sawDigit = false;
+        inExtension = false;
+        lineLength = 0;
+    }
+
+    private void sizeByte(byte b) throws IOException {
+        if (++lineLength > MAX_LINE) {
+            throw new IOException("Chunk size line too long");
+        }
+        if (b == '\n') {
+            if (!sawDigit) {
+                throw new IOException("Missing chunk size");
+            }
+            lineLength = 0;
+            state = remaining == 0 ? State.TRAILER : State.DATA;
+            return;
+        }
+        if (b == '\r' || inExtension) {
+            return;
+        }
+        if (b == ';') {
+            inExtension = true;
+            return;
+        }
+        if (b == ' ' || b == '\t') {
+            return;
+        }
+        int digit = Character.digit(b, 16);
+        if (digit < 0 || remaining > (Long.MAX_VALUE >> 4)) {
+            throw new IOException("Invalid chunk size");
+        }
+        remaining = remaining * 16 + digit;
+        sawDigit = true;
+    }
+}
@@ -0,0 +1,51 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BufferPool recycles the direct buffers responses are written from.
+ * <p>
+ * Channels write heap buffers by first copying them into a temporary direct buffer; collecting the response in a
+ * direct buffer saves that copy, and pooling saves allocating (and later freeing) one per response.
+ * Only buffers handed out by {@link #acquire()} are taken back: they are the only writable direct buffers of
+ * {@link #BUFFER_SIZE} bytes in the server. Buffers from elsewhere reach the engines only as read-only views:
+ * mapped file content, and what servlets pass to {@code ResponseWriter.send} or {@code DetachedResponse.write}.
+ * A released buffer must not be used again by its previous owner.
+ * </p>
+ */
+final class BufferPool {
+    static final int BUFFER_SIZE = 16 * 1024;
+    // Upper bound for idle pooled memory: 4 MB
+    private static final int MAX_POOLED = 256;
+
+    private static final Queue<ByteBuffer> FREE = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private BufferPool() {}
+
+    static ByteBuffer acquire() {
+        ByteBuffer buffer = FREE.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        POOLED.decrementAndGet();
+        return buffer.clear();
+    }
+
+    /**
+     * Return a buffer once it has been written. Buffers that did not come from the pool are ignored.
+     */
+    static void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != BUFFER_SIZE || buffer.isReadOnly()) {
+            return;
+        }
+        if (POOLED.incrementAndGet() > MAX_POOLED) {
+            POOLED.decrementAndGet();
+            return;
+        }
+        FREE.offer(buffer);
+    }
+}
@@ -0,0 +1,123 @@
+package server;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Compression holds the content-coding rules shared by the response writers: {@code Accept-Encoding} negotiation,
+ * which content types are worth compressing, and a pool of {@link Deflater}s.
+ * <p>
+ * Only {@code gzip} and {@code deflate} (zlib) are offered; both come with the JDK. A {@code Deflater} holds
+ * native memory and is expensive to set up, so instances are reset and reused rather than created per response.
+ * </p>
+ */
+final class Compression {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    /** Default smallest body that is compressed; below it the saving does not pay for the CPU time. */
+    static final int DEFAULT_THRESHOLD = 1024;
+
+    // Fixed gzip member header: deflate method, no flags, no mtime, unknown OS (RFC 1952)
+    static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private static final int MAX_POOLED = 32;
+    private static final Queue<Deflater> GZIP_POOL = new ConcurrentLinkedQueue<>();
+    private static final Queue<Deflater> DEFLATE_POOL = new ConcurrentLinkedQueue<>();
+
+    private Compression() {}
+
+    /**
+     * Pick the coding to use for a request.
+     *
+     * @param acceptEncoding The request's {@code Accept-Encoding} header, may be null
+     * @return {@link #GZIP}, {@link #DEFLATE} or null for identity
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzip = quality(acceptEncoding, GZIP);
+        double deflate = quality(acceptEncoding, DEFLATE);
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        // gzip wins ties: some clients mis-handle raw deflate
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * @return whether {@code acceptEncoding} allows {@code coding}
+     */
+    static boolean accepts(String acceptEncoding, String coding) {
+        return acceptEncoding != null && quality(acceptEncoding, coding) > 0;
+    }
+
+    // q-value of coding in an Accept-Encoding list; "*" covers codings not listed
+    private static double quality(String acceptEncoding, String coding) {
+        double wildcard = 0;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.split(";");
+            String name = parts[0].trim();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equalsIgnoreCase(coding)) {
+                return q;
+            }
+            if (name.equals("*")) {
+                wildcard = q;
+            }
+        }
+        return wildcard;
+    }
+
+    /**
+     * @return whether a body of this type shrinks enough to compress it (text and text-like formats)
+     */
+    static boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/")
+                || type.startsWith("application/json")
+                || type.startsWith("application/javascript")
+                || type.startsWith("application/xml")
+                || type.startsWith("image/svg+xml");
+    }
+
+    /**
+     * A reset deflater for {@code coding}: raw deflate for gzip (the writer adds the gzip framing), zlib for deflate.
+     */
+    static Deflater acquire(String coding) {
+        Deflater deflater = pool(coding).poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, GZIP.equals(coding));
+        }
+        return deflater;
+    }
+
+    static void release(String coding, Deflater deflater) {
+        Queue<Deflater> pool = pool(coding);
+        if (pool.size() < MAX_POOLED) {
+            deflater.reset();
+            pool.offer(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    private static Queue<Deflater> pool(String coding) {
+        return GZIP.equals(coding) ? GZIP_POOL : DEFLATE_POOL;
+    }
+}
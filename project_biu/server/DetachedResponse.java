@@ -0,0 +1,268 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * DetachedResponse is the body of a response that goes on after the servlet has returned, such as an event stream.
+ * A servlet gets one from {@link ResponseWriter#detach()}.
+ * <p>
+ * Writes never block: the bytes are queued and the engine's I/O thread sends them as the client takes them, so
+ * a slow client holds memory, not a thread. The queue is not bounded; a writer that must not run ahead of the client
+ * checks {@link #pendingBytes()} and waits for {@link #onDrained(Runnable)} before writing more.
+ * </p>
+ * <p>
+ * The response ends with {@link #close()}, when the client goes away, or when the server shuts down, and the
+ * connection is closed with it. HTTP/1.1 bodies are sent chunked, HTTP/1.0 ones end with the connection.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * DetachedResponse events = response.contentType("text/event-stream").detach();
+ * events.onClose(() -> subscribers.remove(events));
+ * subscribers.add(events);
+ * // later, from any thread
+ * events.write(ByteBuffer.wrap(bytes));
+ * }</pre>
+ */
+public abstract class DetachedResponse {
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final boolean chunked;
+    // Buffers for the client in order; guarded by lock so the parts of a chunk stay together
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+    private long pending;
+    private boolean ending;
+    private volatile boolean closed;
+    // I/O thread only: buffers taken off output and not completely written yet
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+    private final ByteBuffer[] batch = new ByteBuffer[16];
+    private volatile Runnable drainListener;
+    private final List<Runnable> closeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param chunked Whether each write is sent as a chunk of a chunked body
+     */
+    DetachedResponse(boolean chunked) {
+        this.chunked = chunked;
+    }
+
+    /**
+     * Queue bytes for the client. The buffer is sent as it is when it reaches the socket, so its content must not
+     * change afterwards; its position is left alone.
+     *
+     * @return false if the response has ended, in which case nothing is sent
+     */
+    public boolean write(ByteBuffer data) {
+        ByteBuffer view = data.asReadOnlyBuffer();
+        if (!view.hasRemaining()) {
+            // An empty chunk would end the body
+            return isOpen();
+        }
+        if (!chunked) {
+            return enqueue(false, view);
+        }
+        return enqueue(false, ByteBuffer.wrap(hex(view.remaining())), view, ByteBuffer.wrap(CRLF));
+    }
+
+    /**
+     * @return bytes written and not yet taken by the client
+     */
+    public long pendingBytes() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether writes are still accepted
+     */
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return !ending && !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Run {@code listener} each time the client has taken everything written so far. It runs on the engine's I/O
+     * thread, so it must not block; writing from it is fine. Replaces an earlier listener.
+     */
+    public void onDrained(Runnable listener) {
+        this.drainListener = listener;
+    }
+
+    /**
+     * Run {@code listener} once the connection is gone, whichever side ended it; at once if it already is.
+     */
+    public void onClose(Runnable listener) {
+        closeListeners.add(listener);
+        if (closed && closeListeners.remove(listener)) {
+            listener.run();
+        }
+    }
+
+    /**
+     * End the response once the bytes already written have been sent, and close the connection.
+     */
+    public void close() {
+        if (chunked) {
+            enqueue(true, ByteBuffer.wrap(LAST_CHUNK));
+        } else {
+            enqueue(true);
+        }
+    }
+
+    // For the engines
+
+    /**
+     * Tell the I/O thread that there is output to send, or that the response has ended.
+     */
+    abstract void wakeup();
+
+    /**
+     * Queue bytes that are not framed, the response head.
+     */
+    void enqueueHead(ByteBuffer... buffers) {
+        enqueue(false, buffers);
+    }
+
+    private boolean enqueue(boolean last, ByteBuffer... buffers) {
+        lock.lock();
+        try {
+            if (ending || closed) {
+                return false;
+            }
+            for (ByteBuffer b : buffers) {
+                output.add(b);
+                pending += b.remaining();
+            }
+            ending = last;
+        } finally {
+            lock.unlock();
+        }
+        wakeup();
+        return true;
+    }
+
+    /**
+     * @return whether there are bytes waiting for the socket
+     */
+    boolean hasOutput() {
+        return !writing.isEmpty() || !output.isEmpty();
+    }
+
+    /**
+     * @return whether the response has ended and everything has been sent: the connection can be closed
+     */
+    boolean isFinished() {
+        lock.lock();
+        try {
+            return (ending || closed) && pending == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write what the socket takes without blocking, then run the drain listener if everything was sent. Called by
+     * the I/O thread only.
+     *
+     * @return whether bytes are left for the next time the socket is writable
+     */
+    boolean writeTo(SocketChannel channel) throws IOException {
+        ByteBuffer b;
+        while ((b = output.poll()) != null) {
+            writing.add(b);
+        }
+        while (!writing.isEmpty()) {
+            int count = 0;
+            for (ByteBuffer w : writing) {
+                if (count == batch.length) {
+                    break;
+                }
+                batch[count++] = w;
+            }
+            long n = channel.write(batch, 0, count);
+            boolean full = batch[count - 1].hasRemaining();
+            while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) {
+                BufferPool.release(writing.pollFirst());
+            }
+            written(n);
+            if (full) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Take the next buffer to send, for engines that write it themselves; report it with {@link #written(long)}.
+     */
+    ByteBuffer poll() {
+        return output.poll();
+    }
+
+    /**
+     * Account for bytes that reached the client, and run the drain listener once nothing is left.
+     */
+    void written(long n) {
+        boolean drained;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            pending -= n;
+            drained = pending == 0 && !ending && !closed;
+        } finally {
+            lock.unlock();
+        }
+        Runnable listener = drainListener;
+        if (drained && n > 0 && listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * The connection is gone: drop what was not sent and run the close listeners. Called by the engine; later calls
+     * do nothing.
+     */
+    void closed() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending = 0;
+            output.clear();
+        } finally {
+            lock.unlock();
+        }
+        wakeup();
+        for (Runnable listener : closeListeners) {
+            if (closeListeners.remove(listener)) {
+                listener.run();
+            }
+        }
+    }
+
+    private static byte[] hex(int n) {
+        return (Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,181 @@
+package server;
+
+import log.Log;
+import log.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * DetachedWriter sends the detached responses of {@link MyHTTPServer} from a single selector thread.
+ * <p>
+ * A worker that serves a detached response hands its socket over and goes back to the pool. The socket is switched
+ * to non-blocking mode and only written when the client takes bytes, so one thread serves any number of long-lived
+ * responses, slow clients included. The socket is also read, to notice a client that goes away; what it sends is
+ * discarded.
+ * </p>
+ */
+final class DetachedWriter extends Thread {
+    private static final Logger LOG = Log.getLogger(DetachedWriter.class);
+
+    private final Selector selector;
+    // Responses whose interest ops need recomputing: new ones, and ones with output queued
+    private final Queue<Entry> updates = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer discard = ByteBuffer.allocate(1024);
+    private volatile boolean run = true;
+    private volatile long deadlineNanos;
+    // Connections still open when the loop gave up at the deadline
+    private volatile int abandoned;
+
+    DetachedWriter(String name) throws IOException {
+        super(name);
+        setDaemon(true);
+        selector = Selector.open();
+    }
+
+    /**
+     * Take over a connection; {@code head} goes out first.
+     */
+    DetachedResponse attach(SocketChannel channel, ByteBuffer head, boolean chunked) throws IOException {
+        channel.configureBlocking(false);
+        Entry entry = new Entry(channel, chunked);
+        entry.enqueueHead(head);
+        return entry;
+    }
+
+    @Override
+    public void run() {
+        try {
+            // Once stopped, keep going until the responses, which have been ended, are sent or the deadline passes
+            while (run || !selector.keys().isEmpty() && System.nanoTime() - deadlineNanos < 0) {
+                selector.select(run ? 0 : 50);
+                applyUpdates();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Entry entry = (Entry) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable() && read(entry)) {
+                            close(key);
+                            continue;
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key, entry);
+                        }
+                    } catch (IOException e) {
+                        close(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Detached response loop failed", e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    abandoned++;
+                }
+                close(key);
+            }
+            Entry entry;
+            while ((entry = updates.poll()) != null) {
+                closeChannel(entry);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Stop once the responses left are sent, or at {@code deadlineNanos}, whichever comes first. They must have
+     * been ended already.
+     */
+    void shutdown(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+        run = false;
+        selector.wakeup();
+    }
+
+    /**
+     * @return whether every response was sent completely; meaningful once the thread has ended
+     */
+    boolean isDrained() {
+        return abandoned == 0;
+    }
+
+    private void applyUpdates() {
+        Entry entry;
+        while ((entry = updates.poll()) != null) {
+            try {
+                SelectionKey key = entry.channel.keyFor(selector);
+                if (key == null) {
+                    key = entry.channel.register(selector, 0, entry);
+                }
+                if (key.isValid()) {
+                    updateInterest(key, entry);
+                }
+            } catch (IOException e) {
+                closeChannel(entry);
+            }
+        }
+    }
+
+    // True when the client has closed its side
+    private boolean read(Entry entry) throws IOException {
+        int n;
+        while ((n = entry.channel.read(discard.clear())) > 0) {
+            // Nothing is expected from the client
+        }
+        return n < 0;
+    }
+
+    private void write(SelectionKey key, Entry entry) throws IOException {
+        if (!entry.writeTo(entry.channel) && entry.isFinished()) {
+            close(key);
+            return;
+        }
+        updateInterest(key, entry);
+    }
+
+    private static void updateInterest(SelectionKey key, Entry entry) {
+        int ops = SelectionKey.OP_READ;
+        if (entry.hasOutput() || entry.isFinished()) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void close(SelectionKey key) {
+        key.cancel();
+        closeChannel((Entry) key.attachment());
+    }
+
+    private static void closeChannel(Entry entry) {
+        try {
+            entry.channel.close();
+        } catch (IOException ignored) {}
+        entry.closed();
+    }
+
+    private final class Entry extends DetachedResponse {
+        final SocketChannel channel;
+
+        Entry(SocketChannel channel, boolean chunked) {
+            super(chunked);
+            this.channel = channel;
+        }
+
+        @Override
+        void wakeup() {
+            updates.add(this);
+            selector.wakeup();
+        }
+    }
+}
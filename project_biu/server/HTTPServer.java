@@ -31,5 +31,10 @@ public interface HTTPServer extends Runnable {
     void addServlet(String httpCommanmd, String uri, Servlet s);
     void removeServlet(String httpCommanmd, String uri);
     void start();
+
+    /**
+     * Stop accepting connections, let requests in progress finish and close the registered servlets.
+     * Returns when the server has stopped.
+     */
     void close();
 }
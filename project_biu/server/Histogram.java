@@ -0,0 +1,104 @@
+package server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram counts non-negative values (nanoseconds, bytes) in log-linear buckets, in the style of HdrHistogram:
+ * every power of two is split into {@value #SUB_BUCKETS} equal buckets, so a value is known to within 25% whatever its
+ * magnitude, and the whole range up to 2^{@value #MAX_EXPONENT} fits in {@value #BUCKETS} counters.
+ * <p>
+ * {@link #record(long)} takes no lock and allocates nothing. Counters are striped: a thread increments the stripe
+ * picked by its id, so workers rarely touch the same cache lines, and readers sum the stripes. A snapshot taken while
+ * values are recorded may miss the latest ones, but every value ends up in exactly one bucket.
+ * </p>
+ */
+final class Histogram {
+    static final int SUB_BITS = 2;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Values from 2^MAX_EXPONENT on are counted in the last bucket
+    static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+    // Per stripe: the buckets, then the sum of all values
+    private static final int SUM = BUCKETS;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+    Histogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS + 1);
+        }
+    }
+
+    // A power of two at least the core count, so that stripe selection is a mask; more stripes than 16 cost memory
+    // per route without reducing contention much
+    private static int stripes(int cores) {
+        int n = 1;
+        while (n < cores && n < 16) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    void record(long value) {
+        AtomicLongArray stripe = stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        stripe.getAndIncrement(bucket(value));
+        stripe.getAndAdd(SUM, Math.max(0, value));
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(0, value);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Smallest value counted in a bucket.
+     */
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * Largest value counted in a bucket.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        return lowerBound(bucket + 1) - 1;
+    }
+
+    /**
+     * Sum the stripes. The count of values is the sum of the buckets.
+     *
+     * @param buckets Receives the count of every bucket; at least {@link #BUCKETS} long
+     * @return the sum of the values recorded
+     */
+    long snapshot(long[] buckets) {
+        Arrays.fill(buckets, 0, BUCKETS, 0);
+        long sum = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += stripe.get(i);
+            }
+            sum += stripe.get(SUM);
+        }
+        return sum;
+    }
+}
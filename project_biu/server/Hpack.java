@@ -0,0 +1,449 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hpack is the HTTP/2 header compression of RFC 7541: a {@link Decoder} for request header blocks and an
+ * {@link Encoder} for response header blocks. Each HTTP/2 connection has one of each, since both ends keep a dynamic
+ * table of recently sent fields that later blocks refer to by index.
+ * <p>
+ * Field names and values are handled as Latin-1 strings, so their length in chars is their length in octets, as the
+ * table sizes require. The decoder understands every representation, Huffman-coded strings included. The encoder
+ * refers to the static and dynamic tables and adds the fields a response repeats (content type, cache headers) to
+ * its dynamic table, so that after the first response they cost one or two bytes; it sends strings as plain octets.
+ * </p>
+ */
+final class Hpack {
+    /** Dynamic table size both ends start with (SETTINGS_HEADER_TABLE_SIZE default). */
+    static final int DEFAULT_TABLE_SIZE = 4096;
+    // Per-entry overhead counted in the table size (RFC 7541, 4.1)
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"},
+            {":path", "/index.html"}, {":scheme", "http"}, {":scheme", "https"}, {":status", "200"},
+            {":status", "204"}, {":status", "206"}, {":status", "304"}, {":status", "400"},
+            {":status", "404"}, {":status", "500"}, {"accept-charset", ""}, {"accept-encoding", "gzip, deflate"},
+            {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""}, {"access-control-allow-origin", ""},
+            {"age", ""}, {"allow", ""}, {"authorization", ""}, {"cache-control", ""},
+            {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""}, {"content-length", ""},
+            {"content-location", ""}, {"content-range", ""}, {"content-type", ""}, {"cookie", ""},
+            {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""},
+            {"from", ""}, {"host", ""}, {"if-match", ""}, {"if-modified-since", ""},
+            {"if-none-match", ""}, {"if-range", ""}, {"if-unmodified-since", ""}, {"last-modified", ""},
+            {"link", ""}, {"location", ""}, {"max-forwards", ""}, {"proxy-authenticate", ""},
+            {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""},
+            {"www-authenticate", ""}
+    };
+    // "name\0value" -> static index, for fields with a value in the table; "name" -> its first static index
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<>();
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<>();
+
+    // Huffman code length of every octet and of EOS (256), RFC 7541 Appendix B. The code is canonical: codes follow
+    // from the lengths by assigning consecutive values in order of length, then symbol.
+    private static final byte[] HUFFMAN_LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+    private static final int MAX_CODE_LENGTH = 30;
+    private static final int EOS = 256;
+    // Canonical decoding: for each length, the first code of that length, how many codes have it, and where its
+    // symbols start in SYMBOLS (sorted by length, then value)
+    private static final int[] FIRST_CODE = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] CODE_COUNT = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] SYMBOL_OFFSET = new int[MAX_CODE_LENGTH + 1];
+    private static final int[] SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+
+    static {
+        for (int i = 0; i < STATIC_TABLE.length; i++) {
+            String name = STATIC_TABLE[i][0];
+            String value = STATIC_TABLE[i][1];
+            STATIC_NAMES.putIfAbsent(name, i + 1);
+            if (!value.isEmpty()) {
+                STATIC_FIELDS.put(name + '\0' + value, i + 1);
+            }
+        }
+        for (byte length : HUFFMAN_LENGTHS) {
+            CODE_COUNT[length]++;
+        }
+        int code = 0;
+        int offset = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code <<= 1;
+            FIRST_CODE[length] = code;
+            SYMBOL_OFFSET[length] = offset;
+            code += CODE_COUNT[length];
+            offset += CODE_COUNT[length];
+        }
+        int[] next = SYMBOL_OFFSET.clone();
+        for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+            SYMBOLS[next[HUFFMAN_LENGTHS[symbol]]++] = symbol;
+        }
+    }
+
+    private Hpack() {}
+
+    /**
+     * Receives the fields of a decoded header block in order.
+     */
+    interface FieldSink {
+        void field(String name, String value) throws IOException;
+    }
+
+    /**
+     * Decodes the header blocks a client sends on one connection, in the order it sent them.
+     */
+    static final class Decoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        // The SETTINGS_HEADER_TABLE_SIZE we announced: the most the client may resize the table to
+        private final int maxTableSize;
+        private final int maxHeaderListSize;
+        private byte[] block;
+        private int pos;
+        private int end;
+
+        /**
+         * @param maxHeaderListSize Largest header list accepted, counted as in SETTINGS_MAX_HEADER_LIST_SIZE
+         */
+        Decoder(int maxHeaderListSize) {
+            this.maxTableSize = DEFAULT_TABLE_SIZE;
+            this.maxHeaderListSize = maxHeaderListSize;
+        }
+
+        /**
+         * Decode one complete header block.
+         *
+         * @throws IOException if the block is malformed or too large; the connection cannot go on after that, since
+         *                     the two dynamic tables may no longer agree
+         */
+        void decode(byte[] block, int off, int len, FieldSink sink) throws IOException {
+            this.block = block;
+            this.pos = off;
+            this.end = off + len;
+            int listSize = 0;
+            try {
+                while (pos < end) {
+                    int first = block[pos] & 0xff;
+                    String name;
+                    String value;
+                    if ((first & 0x80) != 0) {
+                        // Indexed field
+                        int index = readInt(7);
+                        name = name(index);
+                        value = value(index);
+                    } else if ((first & 0x40) != 0) {
+                        // Literal with incremental indexing
+                        int index = readInt(6);
+                        name = index == 0 ? readString() : name(index);
+                        value = readString();
+                        table.add(name, value);
+                    } else if ((first & 0x20) != 0) {
+                        int size = readInt(5);
+                        if (size > maxTableSize) {
+                            throw new IOException("HPACK table size " + size + " exceeds " + maxTableSize);
+                        }
+                        table.resize(size);
+                        continue;
+                    } else {
+                        // Literal without indexing (0000) or never indexed (0001)
+                        int index = readInt(4);
+                        name = index == 0 ? readString() : name(index);
+                        value = readString();
+                    }
+                    listSize += name.length() + value.length() + ENTRY_OVERHEAD;
+                    if (listSize > maxHeaderListSize) {
+                        throw new IOException("Header list exceeds " + maxHeaderListSize + " bytes");
+                    }
+                    sink.field(name, value);
+                }
+            } finally {
+                this.block = null;
+            }
+        }
+
+        private String name(int index) throws IOException {
+            return index <= STATIC_TABLE.length ? staticEntry(index)[0] : table.name(dynamicIndex(index));
+        }
+
+        private String value(int index) throws IOException {
+            return index <= STATIC_TABLE.length ? staticEntry(index)[1] : table.value(dynamicIndex(index));
+        }
+
+        private static String[] staticEntry(int index) throws IOException {
+            if (index == 0) {
+                throw new IOException("HPACK index 0");
+            }
+            return STATIC_TABLE[index - 1];
+        }
+
+        private int dynamicIndex(int index) throws IOException {
+            int i = index - STATIC_TABLE.length - 1;
+            if (i >= table.count()) {
+                throw new IOException("HPACK index " + index + " out of range");
+            }
+            return i;
+        }
+
+        // Prefix integer (RFC 7541, 5.1) starting in the low prefixBits of the current byte
+        private int readInt(int prefixBits) throws IOException {
+            int mask = (1 << prefixBits) - 1;
+            int value = block[pos++] & mask;
+            if (value < mask) {
+                return value;
+            }
+            int shift = 0;
+            while (true) {
+                if (pos == end) {
+                    throw new IOException("HPACK integer truncated");
+                }
+                int b = block[pos++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+                if (shift > 21) {
+                    throw new IOException("HPACK integer too large");
+                }
+            }
+            if (value < 0) {
+                throw new IOException("HPACK integer too large");
+            }
+            return value;
+        }
+
+        private String readString() throws IOException {
+            if (pos == end) {
+                throw new IOException("HPACK string truncated");
+            }
+            boolean huffman = (block[pos] & 0x80) != 0;
+            int length = readInt(7);
+            if (length > end - pos) {
+                throw new IOException("HPACK string truncated");
+            }
+            int from = pos;
+            pos += length;
+            return huffman ? huffmanDecode(block, from, length)
+                    : new String(block, from, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection's responses. Blocks must be sent in the order they are encoded.
+     */
+    static final class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        // Set when the table was resized; the next block starts with a size update (RFC 7541, 4.2)
+        private boolean sizeChanged;
+
+        /**
+         * Apply the client's SETTINGS_HEADER_TABLE_SIZE. The table never grows beyond the default: a larger table
+         * only costs memory for a response head this short.
+         */
+        void setMaxTableSize(int size) {
+            table.resize(Math.min(size, DEFAULT_TABLE_SIZE));
+            sizeChanged = true;
+        }
+
+        /**
+         * Append one field to the block in {@code out}. A field the table holds is sent as an index; otherwise it
+         * is sent as a literal and, if {@code index}, added to the table for later blocks.
+         *
+         * @param name Lower-case field name
+         */
+        void encode(ByteArrayOutputStream out, String name, String value, boolean index) {
+            if (sizeChanged) {
+                writeInt(out, 0x20, 5, table.capacity());
+                sizeChanged = false;
+            }
+            Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+            if (exact != null) {
+                writeInt(out, 0x80, 7, exact);
+                return;
+            }
+            int nameIndex = 0;
+            for (int i = 0; i < table.count(); i++) {
+                if (table.name(i).equals(name)) {
+                    if (table.value(i).equals(value)) {
+                        writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + i);
+                        return;
+                    }
+                    if (nameIndex == 0) {
+                        nameIndex = STATIC_TABLE.length + 1 + i;
+                    }
+                }
+            }
+            Integer staticName = STATIC_NAMES.get(name);
+            if (staticName != null) {
+                nameIndex = staticName;
+            }
+            if (index) {
+                writeInt(out, 0x40, 6, nameIndex);
+                table.add(name, value);
+            } else {
+                writeInt(out, 0x00, 4, nameIndex);
+            }
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+
+        private static void writeString(ByteArrayOutputStream out, String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.ISO_8859_1);
+            writeInt(out, 0x00, 7, bytes.length);
+            out.write(bytes, 0, bytes.length);
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int pattern, int prefixBits, int value) {
+            int mask = (1 << prefixBits) - 1;
+            if (value < mask) {
+                out.write(pattern | value);
+                return;
+            }
+            out.write(pattern | mask);
+            value -= mask;
+            while (value >= 0x80) {
+                out.write((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+    }
+
+    /**
+     * Decode a Huffman-coded string (RFC 7541, 5.2): codes are read bit by bit, and padding must be the most
+     * significant bits of EOS, at most 7 of them.
+     */
+    static String huffmanDecode(byte[] b, int off, int len) throws IOException {
+        StringBuilder s = new StringBuilder(len * 8 / 5);
+        int code = 0;
+        int length = 0;
+        for (int i = off; i < off + len; i++) {
+            int octet = b[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                code = (code << 1) | ((octet >>> bit) & 1);
+                length++;
+                int rank = code - FIRST_CODE[length];
+                if (rank >= 0 && rank < CODE_COUNT[length]) {
+                    int symbol = SYMBOLS[SYMBOL_OFFSET[length] + rank];
+                    if (symbol == EOS) {
+                        throw new IOException("Huffman string contains EOS");
+                    }
+                    s.append((char) symbol);
+                    code = 0;
+                    length = 0;
+                } else if (length == MAX_CODE_LENGTH) {
+                    throw new IOException("Invalid Huffman code");
+                }
+            }
+        }
+        if (length > 7 || code != (1 << length) - 1) {
+            throw new IOException("Invalid Huffman padding");
+        }
+        return s.toString();
+    }
+
+    /**
+     * A dynamic table: newest entry first, oldest evicted once the size exceeds the capacity.
+     */
+    private static final class Table {
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        // Ring of count entries; the newest is at head
+        private int head;
+        private int count;
+        private int size;
+        private int capacity;
+
+        Table(int capacity) {
+            this.capacity = capacity;
+        }
+
+        int count() {
+            return count;
+        }
+
+        int capacity() {
+            return capacity;
+        }
+
+        // i = 0 is the newest entry
+        String name(int i) {
+            return names[(head + i) % names.length];
+        }
+
+        String value(int i) {
+            return values[(head + i) % values.length];
+        }
+
+        void add(String name, String value) {
+            int entrySize = name.length() + value.length() + ENTRY_OVERHEAD;
+            if (entrySize > capacity) {
+                // An entry larger than the table empties it (RFC 7541, 4.4)
+                count = 0;
+                size = 0;
+                return;
+            }
+            while (size + entrySize > capacity) {
+                evict();
+            }
+            if (count == names.length) {
+                grow();
+            }
+            head = (head - 1 + names.length) % names.length;
+            names[head] = name;
+            values[head] = value;
+            count++;
+            size += entrySize;
+        }
+
+        void resize(int capacity) {
+            this.capacity = capacity;
+            while (size > capacity) {
+                evict();
+            }
+        }
+
+        private void evict() {
+            int last = (head + count - 1) % names.length;
+            size -= names[last].length() + values[last].length() + ENTRY_OVERHEAD;
+            names[last] = null;
+            values[last] = null;
+            count--;
+        }
+
+        private void grow() {
+            String[] n = new String[names.length * 2];
+            String[] v = new String[values.length * 2];
+            for (int i = 0; i < count; i++) {
+                n[i] = name(i);
+                v[i] = value(i);
+            }
+            names = n;
+            values = v;
+            head = 0;
+        }
+    }
+}
@@ -0,0 +1,563 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Http1ResponseWriter encodes a {@link ResponseWriter} response as HTTP/1.1 (or 1.0) onto a connection.
+ * <p>
+ * The head is encoded straight into a pooled buffer from pre-encoded status lines and header names, without
+ * building strings. It is handed to the engine's {@link Sink} together with the first body buffer, so a response
+ * that fits in one buffer leaves in a single gathering write. Later buffers are sent as chunks.
+ * </p>
+ * <p>
+ * A compressible body is run through a pooled {@link Deflater} on its way out, as a stream: each buffer the servlet
+ * fills is compressed and sent as one chunk, so the body is never held in memory whole. A body that is complete
+ * before the first emit and smaller than the threshold is sent uncompressed.
+ * </p>
+ * The writer decides whether the connection can be kept: see {@link #finish()}.
+ */
+final class Http1ResponseWriter extends ResponseWriter {
+    /**
+     * Where encoded bytes go. The engine writes the buffers in order, gathering them into one write where it can,
+     * and gives pooled buffers back to {@link BufferPool} once they are written.
+     */
+    interface Sink {
+        void write(ByteBuffer... buffers) throws IOException;
+
+        /**
+         * Write a region of a file after everything written before. Returns once the region has been written, so
+         * the caller may close the file. Engines override this to send from the file directly; by default the
+         * region is copied through pooled buffers.
+         */
+        default void transfer(FileChannel file, long position, long count) throws IOException {
+            while (count > 0) {
+                ByteBuffer buffer = BufferPool.acquire();
+                buffer.limit((int) Math.min(buffer.capacity(), count));
+                int n = file.read(buffer, position);
+                if (n < 0) {
+                    BufferPool.release(buffer);
+                    throw new EOFException("File ended " + count + " bytes before the end of the region");
+                }
+                position += n;
+                count -= n;
+                write(buffer.flip());
+            }
+        }
+
+        /**
+         * Hand the connection over to a detached response, after everything written before. {@code head} is its
+         * first output.
+         *
+         * @param chunked Whether the body is sent with chunked encoding
+         */
+        DetachedResponse detach(ByteBuffer head, boolean chunked) throws IOException;
+    }
+
+    private static final byte[] STATUS_200 = ascii("HTTP/1.1 200 OK\r\n");
+    private static final byte[] HTTP_11 = ascii("HTTP/1.1 ");
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] CONTENT_TYPE_HTML = ascii("Content-Type: text/html; charset=UTF-8\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONTENT_ENCODING_GZIP = ascii("Content-Encoding: gzip\r\n");
+    private static final byte[] CONTENT_ENCODING_DEFLATE = ascii("Content-Encoding: deflate\r\n");
+    private static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+
+    private final Sink sink;
+    private final boolean http10;
+    private boolean keepAlive;
+    // Body bytes not sent yet, a pooled buffer in write mode
+    private ByteBuffer body;
+    private boolean committed;
+    private boolean chunked;
+    private boolean finished;
+    private boolean detached;
+    // Body bytes written by the servlet so far
+    private long bodyBytes;
+    // Bytes handed to the sink, head and framing included
+    private long bytesSent;
+    // Content coding chosen at commit time, null for identity
+    private String coding;
+    private Deflater deflater;
+    private CRC32 crc;
+    private boolean gzipHeaderSent;
+    private boolean varyAcceptEncoding;
+    // Checked when the head is encoded: true once the server is shutting down
+    private BooleanSupplier closing = () -> false;
+
+    /**
+     * @param sink      The connection
+     * @param keepAlive Whether the server wants to keep the connection open after this response
+     * @param http10    Whether the request was HTTP/1.0, which has no chunked encoding and needs an explicit
+     *                  keep-alive header
+     */
+    Http1ResponseWriter(Sink sink, boolean keepAlive, boolean http10) {
+        this.sink = sink;
+        this.keepAlive = keepAlive;
+        this.http10 = http10;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (body == null) {
+            body = BufferPool.acquire();
+        }
+        body.put((byte) b);
+        bodyBytes++;
+        if (!body.hasRemaining()) {
+            emit(false, false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (body == null) {
+                body = BufferPool.acquire();
+            }
+            int n = Math.min(len, body.remaining());
+            body.put(b, off, n);
+            off += n;
+            len -= n;
+            bodyBytes += n;
+            if (!body.hasRemaining()) {
+                emit(false, false);
+            }
+        }
+    }
+
+    /**
+     * Send what has been written so far. Without a declared length this commits the response to chunked encoding.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!finished && isTouched()) {
+            emit(false, true);
+        }
+    }
+
+    /**
+     * Sends {@code content} without copying it unless it has to be compressed.
+     */
+    @Override
+    public void send(ByteBuffer content) throws IOException {
+        if (!startsBody()) {
+            super.send(content);
+            return;
+        }
+        // Read-only, so the engine does not take the servlet's buffer for the pool once it is written
+        ByteBuffer data = content.asReadOnlyBuffer();
+        contentLength(data.remaining());
+        bodyBytes = data.remaining();
+        startCompression(true);
+        List<ByteBuffer> payload = new ArrayList<>(2);
+        if (coding != null) {
+            deflate(data, true, false, payload);
+        } else if (data.hasRemaining() && !isBodyless(getStatus())) {
+            payload.add(data);
+        }
+        finished = true;
+        transmit(payload, true);
+    }
+
+    /**
+     * Sends the region through {@link Sink#transfer} unless it has to be compressed.
+     */
+    @Override
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        if (!startsBody()) {
+            super.sendFile(file, position, count);
+            return;
+        }
+        contentLength(count);
+        bodyBytes = count;
+        startCompression(true);
+        if (coding != null) {
+            // Undo the decision; the copying path decides again at commit
+            Compression.release(coding, deflater);
+            deflater = null;
+            coding = null;
+            crc = null;
+            bodyBytes = 0;
+            super.sendFile(file, position, count);
+            return;
+        }
+        finished = true;
+        transmit(new ArrayList<>(0), true);
+        if (count > 0 && !isBodyless(getStatus())) {
+            sink.transfer(file, position, count);
+            bytesSent += count;
+        }
+    }
+
+    // Whether nothing of the body has been written yet, so a whole body can be handed over directly
+    private boolean startsBody() throws IOException {
+        ensureOpen();
+        return !committed && body == null && bodyBytes == 0;
+    }
+
+    /**
+     * Ask {@code closing} when the head goes out whether the server is shutting down; if so, the response carries
+     * {@code Connection: close} even though keep-alive was granted when the request arrived.
+     */
+    void closeWhen(BooleanSupplier closing) {
+        this.closing = closing;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * The connection will not be reused: it is closed when the detached response ends.
+     */
+    @Override
+    public DetachedResponse detach() throws IOException {
+        if (committed || isBodyless(getStatus())) {
+            throw new IllegalStateException(committed ? "Response already committed" : "Status " + getStatus()
+                    + " has no body");
+        }
+        ensureOpen();
+        finished = true;
+        detached = true;
+        keepAlive = false;
+        ByteBuffer data = body;
+        body = null;
+        contentLength(-1);
+        // Neither a length nor compression: the body is written as it comes, chunked unless this is HTTP/1.0
+        ByteBuffer head = encodeHead(false, 0);
+        committed = true;
+        bytesSent += head.remaining();
+        DetachedResponse response = sink.detach(head, chunked);
+        if (data != null) {
+            response.write(data.flip());
+        }
+        return response;
+    }
+
+    /**
+     * @return whether the servlet detached the response: the engine leaves the connection to it
+     */
+    boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * @return bytes of this response handed to the connection so far
+     */
+    long bytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Replace the response with an empty one of this status, for a servlet that failed. The connection is closed
+     * afterwards, since the state the servlet left it in is unknown.
+     *
+     * @return false if part of the response was sent already, or it was detached: then only closing the connection
+     *         tells the client
+     */
+    boolean sendError(int status) {
+        if (committed || finished) {
+            return false;
+        }
+        if (body != null) {
+            BufferPool.release(body);
+            body = null;
+        }
+        bodyBytes = 0;
+        resetHead();
+        status(status).contentLength(0);
+        keepAlive = false;
+        return true;
+    }
+
+    /**
+     * Complete the response. A servlet that wrote nothing leaves the connection unusable, as does a body that does
+     * not match its declared length.
+     *
+     * @return whether the connection may be reused once this response has been sent
+     */
+    boolean finish() throws IOException {
+        if (finished) {
+            return keepAlive;
+        }
+        finished = true;
+        if (!committed && !isTouched()) {
+            keepAlive = false;
+            if (body != null) {
+                BufferPool.release(body);
+                body = null;
+            }
+            return false;
+        }
+        emit(true, false);
+        if (declaredLength() >= 0 && bodyBytes != declaredLength() && !isBodyless(getStatus())) {
+            keepAlive = false;
+        }
+        return keepAlive;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Response already finished");
+        }
+        markTouched();
+    }
+
+    // Hand the head (if not sent yet) and the buffered body to the sink in one call
+    private void emit(boolean last, boolean sync) throws IOException {
+        ByteBuffer data = body;
+        body = null;
+        if (data != null) {
+            data.flip();
+            if (!data.hasRemaining() || isBodyless(getStatus())) {
+                BufferPool.release(data);
+                data = null;
+            }
+        }
+        if (!committed) {
+            startCompression(last);
+        }
+        List<ByteBuffer> payload = new ArrayList<>(2);
+        if (coding != null) {
+            deflate(data, last, sync, payload);
+            if (data != null) {
+                BufferPool.release(data);
+            }
+        } else if (data != null) {
+            payload.add(data);
+        }
+        transmit(payload, last);
+    }
+
+    // Frame the payload, preceded by the head on the first call, and hand it to the sink
+    private void transmit(List<ByteBuffer> payload, boolean last) throws IOException {
+        long payloadBytes = 0;
+        for (ByteBuffer b : payload) {
+            payloadBytes += b.remaining();
+        }
+
+        List<ByteBuffer> out = new ArrayList<>(payload.size() + 4);
+        if (!committed) {
+            out.add(encodeHead(last, payloadBytes));
+            committed = true;
+        }
+        if (payloadBytes > 0) {
+            if (chunked) {
+                // One chunk per emit; an empty chunk would end the body
+                out.add(ByteBuffer.wrap(ascii(Long.toHexString(payloadBytes) + "\r\n")));
+                out.addAll(payload);
+                out.add(ByteBuffer.wrap(CRLF));
+            } else {
+                out.addAll(payload);
+            }
+        } else {
+            for (ByteBuffer b : payload) {
+                BufferPool.release(b);
+            }
+        }
+        if (last && chunked) {
+            out.add(ByteBuffer.wrap(LAST_CHUNK));
+        }
+        if (!out.isEmpty()) {
+            for (ByteBuffer b : out) {
+                bytesSent += b.remaining();
+            }
+            sink.write(out.toArray(new ByteBuffer[0]));
+        }
+    }
+
+    // Decide at commit time whether the body is compressed
+    private void startCompression(boolean last) {
+        int threshold = compressionThreshold();
+        int status = getStatus();
+        if (threshold < 0 || isBodyless(status) || status == 206 || contentEncodingValue() != null
+                || !Compression.isCompressible(contentTypeValue())) {
+            return;
+        }
+        // The body could be compressed, so caches must key it by Accept-Encoding
+        varyAcceptEncoding = !hasHeader("Vary");
+        String negotiated = Compression.negotiate(acceptEncodingValue());
+        long expected = declaredLength() >= 0 ? declaredLength() : last ? bodyBytes : Long.MAX_VALUE;
+        if (negotiated == null || expected < threshold) {
+            return;
+        }
+        coding = negotiated;
+        deflater = Compression.acquire(negotiated);
+        if (Compression.GZIP.equals(negotiated)) {
+            crc = new CRC32();
+        }
+    }
+
+    // Compress data into pooled buffers appended to out; data stays the caller's
+    private void deflate(ByteBuffer data, boolean last, boolean sync, List<ByteBuffer> out) {
+        ByteBuffer buf = BufferPool.acquire();
+        if (crc != null && !gzipHeaderSent) {
+            buf.put(Compression.GZIP_HEADER);
+            gzipHeaderSent = true;
+        }
+        if (data != null) {
+            if (crc != null) {
+                crc.update(data.duplicate());
+            }
+            deflater.setInput(data);
+        }
+        if (last) {
+            deflater.finish();
+        }
+        // SYNC_FLUSH when the servlet flushed, so what it wrote so far can be decoded by the client
+        int mode = sync ? Deflater.SYNC_FLUSH : Deflater.NO_FLUSH;
+        while (true) {
+            if (!buf.hasRemaining()) {
+                out.add(buf.flip());
+                buf = BufferPool.acquire();
+            }
+            int room = buf.remaining();
+            int n = deflater.deflate(buf, mode);
+            if (last ? deflater.finished() : n < room) {
+                break;
+            }
+        }
+        if (last) {
+            if (crc != null) {
+                if (buf.remaining() < 8) {
+                    out.add(buf.flip());
+                    buf = BufferPool.acquire();
+                }
+                // gzip trailer: CRC-32 and input size mod 2^32, little-endian
+                putIntLE(buf, (int) crc.getValue());
+                putIntLE(buf, (int) bodyBytes);
+            }
+            Compression.release(coding, deflater);
+            deflater = null;
+        }
+        if (buf.position() > 0) {
+            out.add(buf.flip());
+        } else {
+            BufferPool.release(buf);
+        }
+    }
+
+    private boolean hasHeader(String name) {
+        for (String n : headerNames()) {
+            if (n.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void putIntLE(ByteBuffer buf, int v) {
+        buf.put((byte) v).put((byte) (v >>> 8)).put((byte) (v >>> 16)).put((byte) (v >>> 24));
+    }
+
+    /**
+     * @param last         Whether the whole body is known at this point
+     * @param payloadBytes Size of the (possibly compressed) body that goes out with the head
+     */
+    private ByteBuffer encodeHead(boolean last, long payloadBytes) throws IOException {
+        if (keepAlive && closing.getAsBoolean()) {
+            keepAlive = false;
+        }
+        int status = getStatus();
+        long length = -1;
+        if (!isBodyless(status)) {
+            if (coding == null && declaredLength() >= 0) {
+                length = declaredLength();
+            } else if (last) {
+                // The whole body is buffered: its length is known after all
+                length = payloadBytes;
+            } else if (!http10) {
+                chunked = true;
+            } else {
+                // HTTP/1.0 streams end with the connection
+                keepAlive = false;
+            }
+        }
+        ByteBuffer head = BufferPool.acquire();
+        try {
+            if (status == 200 && "OK".equals(reason())) {
+                head.put(STATUS_200);
+            } else {
+                head.put(HTTP_11);
+                putAscii(head, Integer.toString(status));
+                head.put((byte) ' ');
+                putAscii(head, reason());
+                head.put(CRLF);
+            }
+            String contentType = contentTypeValue();
+            if ("text/html; charset=UTF-8".equals(contentType)) {
+                head.put(CONTENT_TYPE_HTML);
+            } else if (contentType != null) {
+                head.put(CONTENT_TYPE);
+                putAscii(head, contentType);
+                head.put(CRLF);
+            }
+            if (length >= 0) {
+                head.put(CONTENT_LENGTH);
+                putAscii(head, Long.toString(length));
+                head.put(CRLF);
+            } else if (chunked) {
+                head.put(CHUNKED);
+            }
+            if (coding != null) {
+                head.put(Compression.GZIP.equals(coding) ? CONTENT_ENCODING_GZIP : CONTENT_ENCODING_DEFLATE);
+            }
+            if (varyAcceptEncoding) {
+                head.put(VARY_ACCEPT_ENCODING);
+            }
+            List<String> names = headerNames();
+            List<String> values = headerValues();
+            for (int i = 0; i < names.size(); i++) {
+                putAscii(head, names.get(i));
+                head.put((byte) ':').put((byte) ' ');
+                putAscii(head, values.get(i));
+                head.put(CRLF);
+            }
+            if (!keepAlive) {
+                head.put(CONNECTION_CLOSE);
+            } else if (http10) {
+                head.put(CONNECTION_KEEP_ALIVE);
+            }
+            head.put(CRLF);
+        } catch (BufferOverflowException e) {
+            BufferPool.release(head);
+            throw new IOException("Response head exceeds " + BufferPool.BUFFER_SIZE + " bytes");
+        }
+        return head.flip();
+    }
+
+    // Latin-1 encode; line breaks would let a header value start a new header, so they become spaces
+    private static void putAscii(ByteBuffer buffer, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            buffer.put(c == '\r' || c == '\n' ? (byte) ' ' : c > 0xff ? (byte) '?' : (byte) c);
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,1248 @@
+package server;
+
+import log.Log;
+import log.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import server.RequestParser.RequestInfo;
+
+/**
+ * Http2Connection serves one cleartext HTTP/2 connection (h2c, RFC 9113) for {@link MyHTTPServer}, which hands a
+ * connection over when its first request is the HTTP/2 preface (prior knowledge) or asks for {@code Upgrade: h2c}.
+ * <p>
+ * The connection's thread reads frames and nothing else. A request stream is handed to an executor as soon as its
+ * header block is complete, and is dispatched through the server's router like any HTTP/1.1 request, so one
+ * connection carries up to {@value #MAX_CONCURRENT_STREAMS} requests at a time. Request bodies are queued per stream
+ * and read by the servlet as a stream; responses are written by the servlets' threads, one frame at a time, under a
+ * lock that keeps frames and the HPACK state of the connection in order.
+ * </p>
+ * <p>
+ * Flow control works in both directions. The connection grants each stream the default 64 KB window and returns it
+ * as the servlet reads the body, so a slow reader holds back only its own client stream; the connection window is
+ * larger and returned on receipt. A response waits for the client's window before every frame it cannot send.
+ * </p>
+ * <p>
+ * When the server drains, the connection sends {@code GOAWAY}, refuses new streams, lets the open ones finish and
+ * then ends. An idle connection is closed the same way once the server's keep-alive timeout passes.
+ * </p>
+ */
+final class Http2Connection {
+    private static final Logger LOG = Log.getLogger(Http2Connection.class);
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    // The part of the preface that follows the "PRI * HTTP/2.0" request head
+    private static final byte[] PREFACE_TAIL = "SM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] SWITCHING_PROTOCOLS =
+            "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n"
+                    .getBytes(StandardCharsets.ISO_8859_1);
+
+    // Frame types
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int PRIORITY = 0x2;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int PUSH_PROMISE = 0x5;
+    private static final int PING = 0x6;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION = 0x9;
+    // Flags
+    private static final int END_STREAM = 0x1;
+    private static final int ACK = 0x1;
+    private static final int END_HEADERS = 0x4;
+    private static final int PADDED = 0x8;
+    private static final int PRIORITY_FLAG = 0x20;
+    // Error codes
+    static final int NO_ERROR = 0x0;
+    static final int PROTOCOL_ERROR = 0x1;
+    static final int INTERNAL_ERROR = 0x2;
+    static final int FLOW_CONTROL_ERROR = 0x3;
+    static final int STREAM_CLOSED = 0x5;
+    static final int FRAME_SIZE_ERROR = 0x6;
+    static final int REFUSED_STREAM = 0x7;
+    static final int CANCEL = 0x8;
+    static final int COMPRESSION_ERROR = 0x9;
+    static final int ENHANCE_YOUR_CALM = 0xb;
+    // Settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+    static final int MAX_CONCURRENT_STREAMS = 256;
+    // Largest frame payload in both directions, the protocol default; one pooled buffer holds a DATA frame
+    static final int MAX_FRAME_SIZE = BufferPool.BUFFER_SIZE;
+    private static final int FRAME_HEADER_LENGTH = 9;
+    private static final int DEFAULT_WINDOW = 65535;
+    // Receive window of the whole connection, room for many streams uploading at once
+    private static final int CONNECTION_WINDOW = 1024 * 1024;
+    private static final int MAX_HEADER_LIST_SIZE = IncrementalRequestParser.DEFAULT_MAX_HEADER_BYTES;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final AbstractHTTPServer server;
+    private final InputStream in;
+    // Bytes read with the HTTP/1.1 head that belong to the connection preface and the first frames, read mode
+    private final ByteBuffer buffer;
+    private final Http1ResponseWriter.Sink sink;
+    private final ExecutorService executor;
+    // Ends the connection's input, so that the reading thread returns
+    private final Runnable endInput;
+
+    // Reading thread only
+    private final Hpack.Decoder decoder = new Hpack.Decoder(MAX_HEADER_LIST_SIZE);
+    private int highestStreamId;
+    private int receiveWindow = CONNECTION_WINDOW;
+    private int unacknowledged;
+    // Header block being collected over CONTINUATION frames
+    private ByteArrayOutputStream headerBlock;
+    private int headerStreamId;
+    private int headerFlags;
+
+    // Guards the output, the HPACK encoder, the send windows and the open streams
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition windowOpened = lock.newCondition();
+    private final Condition streamsClosed = lock.newCondition();
+    private final Hpack.Encoder encoder = new Hpack.Encoder();
+    private final Map<Integer, Stream> streams = new HashMap<>();
+    // Highest stream handed to a servlet, reported in GOAWAY
+    private int lastStreamId;
+    private long sendWindow = DEFAULT_WINDOW;
+    private int initialSendWindow = DEFAULT_WINDOW;
+    private boolean settingsSent;
+    private boolean goAwaySent;
+    // The connection failed: nothing more can be written
+    private boolean closed;
+
+    /**
+     * @param in       The connection's input stream
+     * @param buffer   Bytes already read from it, in read mode
+     * @param executor Runs the streams
+     * @param endInput Ends {@code in}, e.g. by shutting down the socket's input
+     */
+    Http2Connection(AbstractHTTPServer server, InputStream in, ByteBuffer buffer, Http1ResponseWriter.Sink sink,
+                    ExecutorService executor, Runnable endInput) {
+        this.server = server;
+        this.in = in;
+        this.buffer = buffer;
+        this.sink = sink;
+        this.executor = executor;
+        this.endInput = endInput;
+    }
+
+    /**
+     * Whether a request head just parsed is the start of the HTTP/2 connection preface.
+     */
+    static boolean isPreface(RequestInfo info) {
+        return "PRI".equals(info.getHttpCommand()) && "*".equals(info.getUri())
+                && "HTTP/2.0".equals(info.getHttpVersion());
+    }
+
+    /**
+     * Whether a request asks to continue the connection as h2c (RFC 7540, 3.2). Requests with a body are served
+     * over HTTP/1.1, which the client must accept.
+     */
+    static boolean isUpgrade(RequestInfo info) {
+        // Connection is known without building the header map, and rules out almost every request
+        String connection = info.connectionHeader();
+        if (connection == null || !hasToken(connection, "upgrade")) {
+            return false;
+        }
+        String upgrade = info.getHeader("Upgrade");
+        return "HTTP/1.1".equals(info.getHttpVersion()) && !info.hasBody()
+                && upgrade != null && hasToken(upgrade, "h2c")
+                && info.getHeader("HTTP2-Settings") != null;
+    }
+
+    private static boolean hasToken(String list, String token) {
+        for (String item : list.split(",")) {
+            if (item.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Serve the connection until the client closes it, it idles out or the server drains it, then wait for the
+     * open streams to finish.
+     *
+     * @param upgrade The HTTP/1.1 request that asked for h2c, answered as stream 1; null when the client sent the
+     *                preface right away
+     */
+    void serve(RequestInfo upgrade) throws IOException {
+        boolean failed = true;
+        try {
+            try {
+                if (upgrade != null) {
+                    sink.write(ByteBuffer.wrap(SWITCHING_PROTOCOLS));
+                }
+                sendSettings();
+                if (upgrade != null) {
+                    byte[] settings = decodeSettingsHeader(upgrade.getHeader("HTTP2-Settings"));
+                    applySettings(settings, settings.length);
+                    highestStreamId = 1;
+                    open(1, upgrade, upgrade.headBytes(), 0, true);
+                }
+                expect(upgrade != null ? PREFACE : PREFACE_TAIL);
+                if (server.draining) {
+                    goAway();
+                }
+                readFrames();
+                failed = false;
+            } catch (Http2Exception e) {
+                LOG.debug(() -> "HTTP/2 connection error " + e.code + ": " + e.getMessage());
+                sendGoAway(e.code);
+            }
+        } finally {
+            awaitStreams(failed);
+        }
+    }
+
+    /**
+     * Stop taking new streams: send {@code GOAWAY} and end the connection once the open streams are done. Called
+     * when the server drains; the connection checks for that itself once its settings are out.
+     */
+    void goAway() {
+        lock.lock();
+        try {
+            if (!settingsSent) {
+                return;
+            }
+            sendGoAway(NO_ERROR);
+            if (streams.isEmpty()) {
+                endInput.run();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sendGoAway(int code) {
+        lock.lock();
+        try {
+            if (goAwaySent || closed) {
+                return;
+            }
+            goAwaySent = true;
+            ByteBuffer payload = ByteBuffer.allocate(8).putInt(lastStreamId).putInt(code).flip();
+            writeFrame(GOAWAY, 0, 0, payload);
+        } catch (IOException e) {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sendSettings() throws IOException {
+        ByteBuffer settings = ByteBuffer.allocate(12)
+                .putShort((short) SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS)
+                .putShort((short) SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE)
+                .flip();
+        ByteBuffer window = ByteBuffer.allocate(4).putInt(CONNECTION_WINDOW - DEFAULT_WINDOW).flip();
+        lock.lock();
+        try {
+            writeFrames(frame(SETTINGS, 0, 0, settings.remaining()), settings,
+                    frame(WINDOW_UPDATE, 0, 0, 4), window);
+            settingsSent = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Wait until every stream has finished. After a failure the streams cannot write any more: wake them up
+    private void awaitStreams(boolean failed) {
+        lock.lock();
+        try {
+            if (failed) {
+                closed = true;
+                windowOpened.signalAll();
+            }
+            for (Stream s : streams.values()) {
+                if (s.body != null) {
+                    s.body.fail(new EOFException("Connection closed before the end of the request body"));
+                }
+                if (s.detached != null) {
+                    s.detached.closed();
+                }
+            }
+            while (!streams.isEmpty()) {
+                streamsClosed.await();
+            }
+        } catch (InterruptedException e) {
+            // The server gave up on the drain; the socket is closed under the streams
+            Thread.currentThread().interrupt();
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void readFrames() throws IOException {
+        byte[] header = new byte[FRAME_HEADER_LENGTH];
+        while (readFrameHeader(header)) {
+            int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int streamId = ByteBuffer.wrap(header, 5, 4).getInt() & 0x7fffffff;
+            if (length > MAX_FRAME_SIZE) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+            }
+            byte[] payload = new byte[length];
+            readFully(payload, 0, length);
+            if (headerBlock != null && type != CONTINUATION) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted by a frame of type " + type);
+            }
+            switch (type) {
+                case DATA:
+                    onData(streamId, flags, payload);
+                    break;
+                case HEADERS:
+                    onHeaders(streamId, flags, payload);
+                    break;
+                case CONTINUATION:
+                    onContinuation(streamId, flags, payload);
+                    break;
+                case RST_STREAM:
+                    if (streamId == 0 || length != 4) {
+                        throw new Http2Exception(length != 4 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "Bad RST_STREAM");
+                    }
+                    onReset(streamId, ByteBuffer.wrap(payload).getInt());
+                    break;
+                case SETTINGS:
+                    onSettings(streamId, flags, payload);
+                    break;
+                case PING:
+                    if (streamId != 0 || length != 8) {
+                        throw new Http2Exception(length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "Bad PING");
+                    }
+                    if ((flags & ACK) == 0) {
+                        writeControl(PING, ACK, 0, payload);
+                    }
+                    break;
+                case GOAWAY:
+                    // The client opens no more streams; the open ones finish and it closes the connection
+                    LOG.debug(() -> "Client sent GOAWAY");
+                    break;
+                case WINDOW_UPDATE:
+                    if (length != 4) {
+                        throw new Http2Exception(FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE");
+                    }
+                    onWindowUpdate(streamId, ByteBuffer.wrap(payload).getInt() & 0x7fffffff);
+                    break;
+                case PUSH_PROMISE:
+                    throw new Http2Exception(PROTOCOL_ERROR, "Client sent PUSH_PROMISE");
+                case PRIORITY:
+                default:
+                    // Priorities are advisory and every stream is served at once; unknown frame types are ignored
+                    break;
+            }
+        }
+    }
+
+    // false on end of stream between frames, or when the connection has been idle for the keep-alive timeout
+    private boolean readFrameHeader(byte[] header) throws IOException {
+        int got = 0;
+        while (got < header.length) {
+            int n;
+            try {
+                n = read(header, got, header.length - got);
+            } catch (SocketTimeoutException e) {
+                if (got == 0 && isIdle()) {
+                    goAway();
+                    return false;
+                }
+                continue;
+            }
+            if (n == -1) {
+                if (got == 0) {
+                    return false;
+                }
+                throw new EOFException("Connection closed inside a frame header");
+            }
+            got += n;
+        }
+        return true;
+    }
+
+    private boolean isIdle() {
+        lock.lock();
+        try {
+            return streams.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onHeaders(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+        }
+        int from = 0;
+        int to = payload.length;
+        if ((flags & PADDED) != 0) {
+            from = 1;
+            to -= payload.length == 0 ? 0 : payload[0] & 0xff;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) {
+            from += 5;
+        }
+        if (from > to) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Padding exceeds the HEADERS payload");
+        }
+        headerBlock = new ByteArrayOutputStream(Math.max(64, to - from));
+        headerBlock.write(payload, from, to - from);
+        headerStreamId = streamId;
+        headerFlags = flags;
+        if ((flags & END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onContinuation(int streamId, int flags, byte[] payload) throws IOException {
+        if (headerBlock == null || streamId != headerStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+        }
+        if (headerBlock.size() + payload.length > MAX_HEADER_LIST_SIZE) {
+            throw new Http2Exception(ENHANCE_YOUR_CALM, "Header block exceeds " + MAX_HEADER_LIST_SIZE + " bytes");
+        }
+        headerBlock.write(payload, 0, payload.length);
+        if ((flags & END_HEADERS) != 0) {
+            onHeaderBlock();
+        }
+    }
+
+    private void onHeaderBlock() throws IOException {
+        byte[] block = headerBlock.toByteArray();
+        int streamId = headerStreamId;
+        boolean endStream = (headerFlags & END_STREAM) != 0;
+        headerBlock = null;
+
+        long start = System.nanoTime();
+        RequestHead head = new RequestHead();
+        try {
+            // Decoded even if the stream is refused, to keep the dynamic table in step with the client's
+            decoder.decode(block, 0, block.length, head);
+        } catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+        }
+        long parseNanos = System.nanoTime() - start;
+
+        if (streamId <= highestStreamId) {
+            // Trailers of a request body: they end it, and their fields are not passed on
+            Stream stream = stream(streamId);
+            if (stream == null) {
+                // Reset or finished: ignored, like its DATA
+                return;
+            }
+            if (stream.body == null || stream.body.isComplete()) {
+                resetStream(stream, STREAM_CLOSED);
+                return;
+            }
+            if (!endStream) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Trailers without END_STREAM");
+            }
+            stream.body.end();
+            return;
+        }
+        if (streamId % 2 == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Client opened even stream " + streamId);
+        }
+        highestStreamId = streamId;
+        RequestInfo info = head.toRequest();
+        if (info == null) {
+            writeReset(streamId, PROTOCOL_ERROR);
+            return;
+        }
+        open(streamId, info, block.length, parseNanos, endStream);
+    }
+
+    // Start a stream, or refuse it when the connection is going away or at its stream limit
+    private void open(int streamId, RequestInfo info, int headBytes, long parseNanos, boolean endStream)
+            throws IOException {
+        Stream stream = new Stream(streamId, info, headBytes, parseNanos, endStream);
+        lock.lock();
+        try {
+            if (goAwaySent || streams.size() >= MAX_CONCURRENT_STREAMS) {
+                writeReset(streamId, REFUSED_STREAM);
+                return;
+            }
+            lastStreamId = streamId;
+            streams.put(streamId, stream);
+            try {
+                executor.execute(() -> run(stream));
+            } catch (RejectedExecutionException e) {
+                streams.remove(streamId);
+                server.admission.rejected.incrementAndGet();
+                writeReset(streamId, REFUSED_STREAM);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Stream stream(int streamId) {
+        lock.lock();
+        try {
+            return streams.get(streamId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onData(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId == 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        }
+        if (streamId > highestStreamId) {
+            throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+        }
+        // The connection window counts the whole payload, padding included, and is returned on receipt
+        receiveWindow -= payload.length;
+        if (receiveWindow < 0) {
+            throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection receive window exceeded");
+        }
+        unacknowledged += payload.length;
+        if (unacknowledged >= CONNECTION_WINDOW / 2) {
+            writeWindowUpdate(0, unacknowledged);
+            receiveWindow += unacknowledged;
+            unacknowledged = 0;
+        }
+        int from = 0;
+        int to = payload.length;
+        if ((flags & PADDED) != 0) {
+            from = 1;
+            to -= payload.length == 0 ? 0 : payload[0] & 0xff;
+            if (from > to) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Padding exceeds the DATA payload");
+            }
+        }
+        Stream stream = stream(streamId);
+        if (stream == null) {
+            // Reset or finished: what was in flight is dropped
+            return;
+        }
+        if (stream.body == null || stream.body.isComplete()) {
+            resetStream(stream, STREAM_CLOSED);
+            return;
+        }
+        if (!stream.body.offer(payload, from, to - from, payload.length, (flags & END_STREAM) != 0)) {
+            resetStream(stream, FLOW_CONTROL_ERROR);
+        }
+    }
+
+    private void onReset(int streamId, int code) {
+        Stream stream = stream(streamId);
+        if (stream == null) {
+            return;
+        }
+        LOG.debug(() -> "Client reset stream " + streamId + " with error " + code);
+        lock.lock();
+        try {
+            stream.reset = true;
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (stream.body != null) {
+            stream.body.fail(new IOException("Stream reset by the client"));
+        }
+        if (stream.detached != null) {
+            stream.detached.closed();
+        }
+    }
+
+    private void onSettings(int streamId, int flags, byte[] payload) throws IOException {
+        if (streamId != 0) {
+            throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+        }
+        if ((flags & ACK) != 0) {
+            if (payload.length != 0) {
+                throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with a payload");
+            }
+            return;
+        }
+        if (payload.length % 6 != 0) {
+            throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS of " + payload.length + " bytes");
+        }
+        applySettings(payload, payload.length);
+        writeControl(SETTINGS, ACK, 0, new byte[0]);
+    }
+
+    private void applySettings(byte[] payload, int length) throws IOException {
+        ByteBuffer settings = ByteBuffer.wrap(payload, 0, length - length % 6);
+        lock.lock();
+        try {
+            while (settings.hasRemaining()) {
+                int id = settings.getShort() & 0xffff;
+                int value = settings.getInt();
+                switch (id) {
+                    case SETTINGS_HEADER_TABLE_SIZE:
+                        encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+                        break;
+                    case SETTINGS_ENABLE_PUSH:
+                        if (value != 0 && value != 1) {
+                            throw new Http2Exception(PROTOCOL_ERROR, "ENABLE_PUSH " + value);
+                        }
+                        break;
+                    case SETTINGS_INITIAL_WINDOW_SIZE:
+                        if (value < 0) {
+                            throw new Http2Exception(FLOW_CONTROL_ERROR, "INITIAL_WINDOW_SIZE " + value);
+                        }
+                        // Applies to the open streams as well (RFC 9113, 6.9.2)
+                        int delta = value - initialSendWindow;
+                        initialSendWindow = value;
+                        for (Stream s : streams.values()) {
+                            s.sendWindow += delta;
+                            if (s.sendWindow > Integer.MAX_VALUE) {
+                                throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+                            }
+                        }
+                        windowOpened.signalAll();
+                        break;
+                    case SETTINGS_MAX_FRAME_SIZE:
+                        // Frames are never larger than the default, which every client accepts
+                        if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+                            throw new Http2Exception(PROTOCOL_ERROR, "MAX_FRAME_SIZE " + value);
+                        }
+                        break;
+                    default:
+                        // MAX_CONCURRENT_STREAMS limits pushed streams, which are not used; unknown ids are ignored
+                        break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static byte[] decodeSettingsHeader(String value) throws Http2Exception {
+        try {
+            return Base64.getUrlDecoder().decode(value.trim());
+        } catch (IllegalArgumentException e) {
+            throw new Http2Exception(PROTOCOL_ERROR, "Malformed HTTP2-Settings header");
+        }
+    }
+
+    private void onWindowUpdate(int streamId, int increment) throws IOException {
+        if (increment == 0) {
+            if (streamId == 0) {
+                throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE of 0");
+            }
+            Stream stream = stream(streamId);
+            if (stream != null) {
+                resetStream(stream, PROTOCOL_ERROR);
+            }
+            return;
+        }
+        lock.lock();
+        try {
+            if (streamId == 0) {
+                sendWindow += increment;
+                if (sendWindow > Integer.MAX_VALUE) {
+                    throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+                }
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.sendWindow += increment;
+                if (stream.sendWindow > Integer.MAX_VALUE) {
+                    writeReset(streamId, FLOW_CONTROL_ERROR);
+                    stream.reset = true;
+                }
+            }
+            windowOpened.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs a stream on the executor: dispatch, finish the response, record it
+    private void run(Stream stream) {
+        ServerMetrics.Sample sample = new ServerMetrics.Sample();
+        sample.queueNanos = System.nanoTime() - stream.created;
+        sample.parseNanos = stream.parseNanos;
+        Http2ResponseWriter response = new Http2ResponseWriter(this, stream);
+        RequestInfo info = stream.info;
+        boolean recorded = false;
+        try {
+            boolean refused = false;
+            if (server.admission.shouldShed(stream.created)) {
+                server.admission.refuse(response);
+                sample.route = server.metrics.refused(info.getHttpCommand());
+                refused = true;
+            } else {
+                server.dispatch(info, response, sample);
+                if (stream.detached != null) {
+                    // Recorded as the servlet left it; the stream lives on for as long as the detached response
+                    server.metrics.record(sample, stream.headBytes, response.bytesSent());
+                    recorded = true;
+                    pump(stream, stream.detached);
+                }
+            }
+            if (!response.finish()) {
+                // Nothing was written: a refusal under the CLOSE policy, which the client may retry, or a servlet
+                // that failed to answer
+                resetStream(stream, refused ? REFUSED_STREAM : INTERNAL_ERROR);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (stream.reset) {
+                LOG.debug(() -> "Stream " + stream.id + " was reset while in progress");
+            } else {
+                LOG.warn("Stream " + stream.id + " of " + info.getHttpCommand() + " " + info.getUri() + " failed", e);
+            }
+            resetStream(stream, INTERNAL_ERROR);
+        } finally {
+            if (stream.body != null && !stream.body.isComplete()) {
+                // The response is complete; stop the client sending a body nobody reads (RFC 9113, 8.1)
+                resetStream(stream, NO_ERROR);
+            }
+            if (!recorded) {
+                server.metrics.record(sample, stream.headBytes + (stream.body == null ? 0 : stream.body.bytesRead()),
+                        response.bytesSent());
+            }
+            close(stream);
+        }
+    }
+
+    /**
+     * Detach the response of a stream whose head has been sent.
+     */
+    DetachedResponse detach(Stream stream) {
+        Detached response = new Detached();
+        stream.detached = response;
+        server.track(response);
+        return response;
+    }
+
+    // Send a detached response as DATA frames until it ends. Unlike HTTP/1.1, where a selector writes it, the stream
+    // keeps its thread: the frames wait for flow-control window as any response's do.
+    private void pump(Stream stream, Detached response) throws IOException {
+        try {
+            while (true) {
+                ByteBuffer data = response.poll();
+                if (data != null) {
+                    int n = data.remaining();
+                    writeData(stream, data, false);
+                    response.written(n);
+                } else if (response.isFinished()) {
+                    break;
+                } else {
+                    response.awaitOutput();
+                }
+            }
+            if (!stream.reset) {
+                writeData(stream, emptyData(), true);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for output of a detached response");
+        } finally {
+            response.closed();
+        }
+    }
+
+    private void close(Stream stream) {
+        lock.lock();
+        try {
+            streams.remove(stream.id);
+            if (streams.isEmpty()) {
+                streamsClosed.signalAll();
+                if (goAwaySent) {
+                    endInput.run();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Output, for the streams' response writers
+
+    /**
+     * Send a response head: HEADERS, followed by CONTINUATION frames if the block is larger than a frame.
+     *
+     * @param fields Field names (lower case) and values, alternating, pseudo-fields first
+     * @return bytes written
+     */
+    long writeHeaders(Stream stream, List<String> fields, boolean endStream) throws IOException {
+        lock.lock();
+        try {
+            checkWritable(stream);
+            ByteArrayOutputStream block = new ByteArrayOutputStream(128);
+            for (int i = 0; i < fields.size(); i += 2) {
+                String name = fields.get(i);
+                // The length differs between responses; indexing it would only evict fields that repeat
+                encoder.encode(block, name, fields.get(i + 1), !name.equals("content-length"));
+            }
+            byte[] bytes = block.toByteArray();
+            List<ByteBuffer> out = new ArrayList<>(2);
+            int offset = 0;
+            int type = HEADERS;
+            do {
+                int n = Math.min(MAX_FRAME_SIZE, bytes.length - offset);
+                int flags = offset + n == bytes.length ? END_HEADERS : 0;
+                if (type == HEADERS && endStream) {
+                    flags |= END_STREAM;
+                }
+                out.add(frame(type, flags, stream.id, n));
+                out.add(ByteBuffer.wrap(bytes, offset, n));
+                offset += n;
+                type = CONTINUATION;
+            } while (offset < bytes.length);
+            writeFrames(out.toArray(new ByteBuffer[0]));
+            return bytes.length + (long) FRAME_HEADER_LENGTH * (out.size() / 2);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send body bytes as DATA frames, waiting for flow-control window as needed. {@code data} goes back to the
+     * buffer pool once it has been written.
+     *
+     * @return bytes written
+     */
+    long writeData(Stream stream, ByteBuffer data, boolean endStream) throws IOException {
+        long written = 0;
+        lock.lock();
+        try {
+            // Frames are read-only views, which the sink does not return to the pool while data is in use
+            ByteBuffer view = data.asReadOnlyBuffer();
+            long nanos = TimeUnit.MILLISECONDS.toNanos(server.idleTimeoutMillis);
+            do {
+                int n = view.remaining();
+                if (n > 0) {
+                    while (stream.sendWindow <= 0 || sendWindow <= 0) {
+                        checkWritable(stream);
+                        if (nanos <= 0) {
+                            throw new SocketTimeoutException("Timed out waiting for the client's flow-control window");
+                        }
+                        nanos = windowOpened.awaitNanos(nanos);
+                    }
+                    n = (int) Math.min(n, Math.min(stream.sendWindow, sendWindow));
+                }
+                checkWritable(stream);
+                boolean last = endStream && n == view.remaining();
+                writeFrames(frame(DATA, last ? END_STREAM : 0, stream.id, n), view.slice(view.position(), n));
+                view.position(view.position() + n);
+                stream.sendWindow -= n;
+                sendWindow -= n;
+                written += FRAME_HEADER_LENGTH + n;
+            } while (view.hasRemaining());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the flow-control window");
+        } finally {
+            lock.unlock();
+            BufferPool.release(data);
+        }
+        return written;
+    }
+
+    /**
+     * End a stream with RST_STREAM, unless it is already reset.
+     */
+    void resetStream(Stream stream, int code) {
+        lock.lock();
+        try {
+            if (stream.reset || closed) {
+                return;
+            }
+            stream.reset = true;
+            writeReset(stream.id, code);
+        } catch (IOException e) {
+            closed = true;
+        } finally {
+            lock.unlock();
+        }
+        if (stream.body != null) {
+            stream.body.fail(new IOException("Stream reset"));
+        }
+    }
+
+    static ByteBuffer emptyData() {
+        return EMPTY.duplicate();
+    }
+
+    private void checkWritable(Stream stream) throws IOException {
+        if (closed) {
+            throw new EOFException("HTTP/2 connection closed");
+        }
+        if (stream.reset) {
+            throw new IOException("Stream " + stream.id + " was reset");
+        }
+    }
+
+    private void writeReset(int streamId, int code) throws IOException {
+        writeControl(RST_STREAM, 0, streamId, ByteBuffer.allocate(4).putInt(code).array());
+    }
+
+    private void writeWindowUpdate(int streamId, int increment) throws IOException {
+        writeControl(WINDOW_UPDATE, 0, streamId, ByteBuffer.allocate(4).putInt(increment).array());
+    }
+
+    private void writeControl(int type, int flags, int streamId, byte[] payload) throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            writeFrame(type, flags, streamId, ByteBuffer.wrap(payload));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeFrame(int type, int flags, int streamId, ByteBuffer payload) throws IOException {
+        writeFrames(frame(type, flags, streamId, payload.remaining()), payload);
+    }
+
+    // Under lock; a failed write leaves the connection unusable
+    private void writeFrames(ByteBuffer... buffers) throws IOException {
+        try {
+            sink.write(buffers);
+        } catch (IOException e) {
+            closed = true;
+            windowOpened.signalAll();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer frame(int type, int flags, int streamId, int length) {
+        return ByteBuffer.allocate(FRAME_HEADER_LENGTH)
+                .put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length)
+                .put((byte) type).put((byte) flags).putInt(streamId)
+                .flip();
+    }
+
+    // Input
+
+    private void expect(byte[] preface) throws IOException {
+        byte[] got = new byte[preface.length];
+        readFully(got, 0, got.length);
+        for (int i = 0; i < preface.length; i++) {
+            if (got[i] != preface[i]) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Invalid connection preface");
+            }
+        }
+    }
+
+    private void readFully(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int n = read(b, off, len);
+            if (n == -1) {
+                throw new EOFException("Connection closed inside a frame");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+
+    // Bytes left over from the HTTP/1.1 head first, then the socket
+    private int read(byte[] b, int off, int len) throws IOException {
+        if (buffer.hasRemaining()) {
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+        return in.read(b, off, len);
+    }
+
+    /**
+     * One request/response exchange on the connection.
+     */
+    final class Stream {
+        final int id;
+        final RequestInfo info;
+        // Null when the request has no body
+        final StreamBody body;
+        final int headBytes;
+        final long parseNanos;
+        final long created = System.nanoTime();
+        // Guarded by the connection lock
+        long sendWindow;
+        boolean reset;
+        // Set when the servlet detaches the response
+        volatile Detached detached;
+
+        Stream(int id, RequestInfo info, int headBytes, long parseNanos, boolean endStream) {
+            this.id = id;
+            this.info = info;
+            this.headBytes = headBytes;
+            this.parseNanos = parseNanos;
+            this.sendWindow = initialSendWindow;
+            if (endStream) {
+                this.body = null;
+            } else {
+                this.body = new StreamBody(this);
+                body.setMaxBufferedBytes(server.maxBufferedBodyBytes);
+                info.setBody(body);
+            }
+        }
+    }
+
+    /**
+     * A detached response of one stream, written to by any thread and sent by the stream's thread.
+     */
+    final class Detached extends DetachedResponse {
+        private final ReentrantLock signalLock = new ReentrantLock();
+        private final Condition signal = signalLock.newCondition();
+        private boolean signalled;
+
+        Detached() {
+            super(false);
+        }
+
+        @Override
+        void wakeup() {
+            signalLock.lock();
+            try {
+                signalled = true;
+                signal.signalAll();
+            } finally {
+                signalLock.unlock();
+            }
+        }
+
+        void awaitOutput() throws InterruptedException {
+            signalLock.lock();
+            try {
+                while (!signalled) {
+                    signal.await();
+                }
+                signalled = false;
+            } finally {
+                signalLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * The body of one request stream. The reading thread queues DATA payloads as they arrive, up to the stream's
+     * receive window; the servlet's reads return window to the client in steps of half a window.
+     */
+    private final class StreamBody extends RequestBody {
+        private final Stream stream;
+        private final ReentrantLock bodyLock = new ReentrantLock();
+        private final Condition readable = bodyLock.newCondition();
+        private final Queue<ByteBuffer> chunks = new ArrayDeque<>();
+        private int window = DEFAULT_WINDOW;
+        // Read by the servlet but not yet returned to the client
+        private int consumed;
+        private boolean ended;
+        private IOException failure;
+
+        StreamBody(Stream stream) {
+            this.stream = stream;
+        }
+
+        /**
+         * Queue body bytes. Runs on the reading thread.
+         *
+         * @param flowLength Bytes the frame counts against the window, padding included
+         * @return false if the client overran the stream's window
+         */
+        boolean offer(byte[] b, int off, int len, int flowLength, boolean end) {
+            int padding = flowLength - len;
+            bodyLock.lock();
+            try {
+                if (flowLength > window) {
+                    return false;
+                }
+                window -= flowLength;
+                // Padding is never read; it is returned with the next window update
+                consumed += padding;
+                if (len > 0) {
+                    chunks.add(ByteBuffer.wrap(b, off, len));
+                }
+                ended |= end;
+                readable.signalAll();
+                return true;
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+
+        void end() {
+            bodyLock.lock();
+            try {
+                ended = true;
+                readable.signalAll();
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+
+        void fail(IOException e) {
+            bodyLock.lock();
+            try {
+                if (!ended) {
+                    failure = e;
+                    readable.signalAll();
+                }
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+
+        @Override
+        protected int readBody(byte[] b, int off, int len) throws IOException {
+            int n;
+            int update = 0;
+            bodyLock.lock();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(server.idleTimeoutMillis);
+                while (chunks.isEmpty()) {
+                    if (ended) {
+                        return -1;
+                    }
+                    if (failure != null) {
+                        throw new IOException(failure.getMessage(), failure);
+                    }
+                    if (nanos <= 0) {
+                        throw new SocketTimeoutException("Timed out waiting for the request body");
+                    }
+                    try {
+                        nanos = readable.awaitNanos(nanos);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while reading the request body");
+                    }
+                }
+                ByteBuffer chunk = chunks.peek();
+                n = Math.min(len, chunk.remaining());
+                chunk.get(b, off, n);
+                if (!chunk.hasRemaining()) {
+                    chunks.poll();
+                }
+                consumed += n;
+                if (!ended && consumed >= DEFAULT_WINDOW / 2) {
+                    update = consumed;
+                    window += consumed;
+                    consumed = 0;
+                }
+            } finally {
+                bodyLock.unlock();
+            }
+            if (update > 0) {
+                writeWindowUpdate(stream.id, update);
+            }
+            return n;
+        }
+
+        @Override
+        boolean isComplete() {
+            bodyLock.lock();
+            try {
+                return ended;
+            } finally {
+                bodyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Collects the fields of a request header block into a {@link RequestInfo}.
+     */
+    private static final class RequestHead implements Hpack.FieldSink {
+        private String method;
+        private String path;
+        private String scheme;
+        private String authority;
+        private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private boolean regularSeen;
+        private boolean malformed;
+
+        @Override
+        public void field(String name, String value) {
+            if (!name.toLowerCase(Locale.ROOT).equals(name)) {
+                malformed = true;
+                return;
+            }
+            if (name.startsWith(":")) {
+                // Pseudo-fields come first, once each
+                if (regularSeen) {
+                    malformed = true;
+                    return;
+                }
+                switch (name) {
+                    case ":method": malformed |= method != null; method = value; break;
+                    case ":path": malformed |= path != null; path = value; break;
+                    case ":scheme": malformed |= scheme != null; scheme = value; break;
+                    case ":authority": malformed |= authority != null; authority = value; break;
+                    default: malformed = true; break;
+                }
+                return;
+            }
+            regularSeen = true;
+            switch (name) {
+                case "connection":
+                case "keep-alive":
+                case "proxy-connection":
+                case "transfer-encoding":
+                case "upgrade":
+                    // Connection-specific fields have no meaning in HTTP/2 (RFC 9113, 8.2.2)
+                    malformed = true;
+                    return;
+                case "te":
+                    malformed |= !value.equalsIgnoreCase("trailers");
+                    break;
+                default:
+                    break;
+            }
+            // Cookies may be split into several fields (RFC 9113, 8.2.3)
+            headers.merge(name, value, (a, b) -> a + (name.equals("cookie") ? "; " : ", ") + b);
+        }
+
+        // null when the request is malformed
+        RequestInfo toRequest() {
+            if (malformed || method == null || path == null || scheme == null || path.isEmpty()) {
+                return null;
+            }
+            if (authority != null) {
+                headers.putIfAbsent("Host", authority);
+            }
+            return new RequestInfo(method, path, null, null, headers, null, "HTTP/2.0");
+        }
+    }
+
+    /**
+     * A connection error: the connection ends with {@code GOAWAY} carrying {@link #code}.
+     */
+    static final class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int code;
+
+        Http2Exception(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
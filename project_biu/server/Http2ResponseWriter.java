@@ -0,0 +1,212 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Http2ResponseWriter encodes a {@link ResponseWriter} response as the frames of one HTTP/2 stream of a
+ * {@link Http2Connection}.
+ * <p>
+ * The body is collected in pooled buffers the size of a frame. A response that is complete before the first buffer
+ * fills goes out as a HEADERS frame with its {@code content-length} and a single DATA frame; a longer or flushed body
+ * is sent a frame at a time as the buffers fill. There is no chunked encoding and no {@code Connection} header: the
+ * body ends with the END_STREAM flag. Bodies are not compressed on this path; a servlet may still send a precompressed
+ * body with its own {@code Content-Encoding}. A {@link #detach() detached} body goes out as DATA frames as it is
+ * written.
+ * </p>
+ */
+final class Http2ResponseWriter extends ResponseWriter {
+    private final Http2Connection connection;
+    private final Http2Connection.Stream stream;
+    // Body bytes not sent yet, a pooled buffer in write mode
+    private ByteBuffer body;
+    private boolean committed;
+    private boolean finished;
+    private boolean sent;
+    private long bodyBytes;
+    private long bytesSent;
+
+    Http2ResponseWriter(Http2Connection connection, Http2Connection.Stream stream) {
+        this.connection = connection;
+        this.stream = stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (body == null) {
+            body = BufferPool.acquire();
+        }
+        body.put((byte) b);
+        bodyBytes++;
+        if (!body.hasRemaining()) {
+            emit(false);
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (body == null) {
+                body = BufferPool.acquire();
+            }
+            int n = Math.min(len, body.remaining());
+            body.put(b, off, n);
+            off += n;
+            len -= n;
+            bodyBytes += n;
+            if (!body.hasRemaining()) {
+                emit(false);
+            }
+        }
+    }
+
+    /**
+     * Send what has been written so far.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!finished && isTouched()) {
+            emit(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * The stream ends when the detached response does; its DATA frames are sent by the stream's thread.
+     */
+    @Override
+    public DetachedResponse detach() throws IOException {
+        if (committed || isBodyless(getStatus())) {
+            throw new IllegalStateException(committed ? "Response already committed" : "Status " + getStatus()
+                    + " has no body");
+        }
+        ensureOpen();
+        finished = true;
+        sent = true;
+        ByteBuffer data = body;
+        body = null;
+        contentLength(-1);
+        committed = true;
+        bytesSent += connection.writeHeaders(stream, headFields(false, null), false);
+        DetachedResponse response = connection.detach(stream);
+        if (data != null) {
+            response.write(data.flip());
+        }
+        return response;
+    }
+
+    /**
+     * @return bytes of this response handed to the connection so far, frame headers included
+     */
+    long bytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Complete the response. A body shorter or longer than its declared length ends the stream with an error
+     * instead, as the client could not tell it from a truncated one.
+     *
+     * @return whether a response was sent; false if the servlet wrote nothing
+     */
+    boolean finish() throws IOException {
+        if (finished) {
+            return sent;
+        }
+        finished = true;
+        if (!committed && !isTouched()) {
+            if (body != null) {
+                BufferPool.release(body);
+                body = null;
+            }
+            return false;
+        }
+        boolean mismatch = declaredLength() >= 0 && bodyBytes != declaredLength() && !isBodyless(getStatus());
+        emit(!mismatch);
+        if (mismatch) {
+            connection.resetStream(stream, Http2Connection.INTERNAL_ERROR);
+        }
+        sent = true;
+        return true;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Response already finished");
+        }
+        markTouched();
+    }
+
+    // Send the head (if not sent yet) and the buffered body
+    private void emit(boolean last) throws IOException {
+        ByteBuffer data = body;
+        body = null;
+        if (data != null) {
+            data.flip();
+            if (!data.hasRemaining() || isBodyless(getStatus())) {
+                BufferPool.release(data);
+                data = null;
+            }
+        }
+        boolean endWithHead = !committed && last && data == null;
+        if (!committed) {
+            committed = true;
+            try {
+                bytesSent += connection.writeHeaders(stream, headFields(last, data), endWithHead);
+            } catch (IOException e) {
+                if (data != null) {
+                    BufferPool.release(data);
+                }
+                throw e;
+            }
+        }
+        if (data != null) {
+            bytesSent += connection.writeData(stream, data, last);
+        } else if (last && !endWithHead) {
+            bytesSent += connection.writeData(stream, Http2Connection.emptyData(), true);
+        }
+    }
+
+    // Pseudo-field first, then the headers in the order they were set; names are lower case in HTTP/2
+    private List<String> headFields(boolean last, ByteBuffer data) {
+        int status = getStatus();
+        List<String> fields = new ArrayList<>(8 + headerNames().size() * 2);
+        fields.add(":status");
+        fields.add(Integer.toString(status));
+        if (contentTypeValue() != null) {
+            fields.add("content-type");
+            fields.add(contentTypeValue());
+        }
+        if (!isBodyless(status)) {
+            long length = declaredLength() >= 0 ? declaredLength() : last ? (data == null ? 0 : data.remaining()) : -1;
+            if (length >= 0) {
+                fields.add("content-length");
+                fields.add(Long.toString(length));
+            }
+        }
+        List<String> names = headerNames();
+        List<String> values = headerValues();
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i).toLowerCase(Locale.ROOT);
+            if (name.equals("keep-alive") || name.equals("proxy-connection") || name.equals("upgrade")) {
+                continue;
+            }
+            fields.add(name);
+            fields.add(values.get(i));
+        }
+        return fields;
+    }
+}
@@ -0,0 +1,306 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import server.RequestParser.RequestInfo;
+
+/**
+ * IncrementalRequestParser parses HTTP request heads out of a {@link ByteBuffer} as the bytes arrive.
+ * <p>
+ * Bytes are fed with {@link #parse(ByteBuffer)} in whatever pieces the socket delivers them; the parser keeps its
+ * state between calls and returns a {@link RequestInfo} once the request line and headers have been seen. It
+ * consumes exactly the bytes of the head. The body, if any, stays in the buffer: the engine frames it with
+ * {@link RequestInfo#getContentLength()} / {@link RequestInfo#isChunked()} and hands it to the servlet as a stream.
+ * </p>
+ * <p>
+ * The request line and headers are scanned in place into one reusable array; no per-line strings are built.
+ * Only the method, URI and the framing headers ({@code Content-Length}, {@code Transfer-Encoding},
+ * {@code Connection}) are extracted eagerly. The header map, query parameters and URI segments are created by
+ * {@link RequestInfo} on first use.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * IncrementalRequestParser parser = new IncrementalRequestParser();
+ * buffer.flip();
+ * RequestInfo info = parser.parse(buffer);   // null: need more bytes
+ * // ... attach the body that follows in buffer, see RequestInfo#getBody()
+ * buffer.compact();
+ * }</pre>
+ * One parser serves one connection and is not thread-safe.
+ */
+public final class IncrementalRequestParser {
+    /** Default upper bound for the request line plus headers. */
+    public static final int DEFAULT_MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final byte[] CONTENT_LENGTH = "content-length".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] TRANSFER_ENCODING = "transfer-encoding".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] CONNECTION = "connection".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] ACCEPT_ENCODING = "accept-encoding".getBytes(StandardCharsets.ISO_8859_1);
+
+    private enum State { REQUEST_LINE, HEADERS, COMPLETE }
+
+    private final int maxHeaderBytes;
+    private State state = State.REQUEST_LINE;
+
+    // Request line and header bytes of the current request
+    private byte[] head = new byte[1024];
+    private int headLength;
+    private int lineStart;
+    // [start, end) of every header line inside head, two ints per line
+    private int[] lines = new int[32];
+    private int lineCount;
+    private int requestLineEnd;
+
+    private long contentLength;
+    private String connection;
+    private String transferEncoding;
+    private String acceptEncoding;
+
+    public IncrementalRequestParser() {
+        this(DEFAULT_MAX_HEADER_BYTES);
+    }
+
+    public IncrementalRequestParser(int maxHeaderBytes) {
+        this.maxHeaderBytes = maxHeaderBytes;
+    }
+
+    /**
+     * Feed bytes to the parser. The buffer must be in read mode; its position is advanced past every byte
+     * that was consumed.
+     *
+     * @return the request with its head complete, or null if more bytes are needed
+     * @throws BadRequestException if the request is malformed or its head exceeds the size limit
+     */
+    public RequestInfo parse(ByteBuffer buf) throws IOException {
+        while (state != State.COMPLETE) {
+            if (!buf.hasRemaining()) {
+                return null;
+            }
+            byte b = buf.get();
+            if (headLength == head.length) {
+                if (headLength >= maxHeaderBytes) {
+                    throw new BadRequestException("Request header too large");
+                }
+                head = Arrays.copyOf(head, Math.min(head.length * 2, maxHeaderBytes));
+            }
+            head[headLength++] = b;
+            if (b == '\n') {
+                int end = headLength - 1;
+                if (end > lineStart && head[end - 1] == '\r') {
+                    end--;
+                }
+                onLine(lineStart, end);
+                lineStart = headLength;
+            }
+        }
+        RequestInfo info = buildRequest();
+        reset();
+        return info;
+    }
+
+    /**
+     * Discard any partially parsed request.
+     */
+    public void reset() {
+        state = State.REQUEST_LINE;
+        headLength = 0;
+        lineStart = 0;
+        lineCount = 0;
+        contentLength = 0;
+        connection = null;
+        transferEncoding = null;
+        acceptEncoding = null;
+        if (head.length > 8 * 1024) {
+            // Don't keep an unusually large head buffer around for the rest of the connection
+            head = new byte[1024];
+        }
+    }
+
+    /**
+     * @return whether part of a request has been consumed but not yet returned
+     */
+    public boolean inProgress() {
+        return headLength > 0;
+    }
+
+    private void onLine(int start, int end) throws IOException {
+        if (state == State.REQUEST_LINE) {
+            if (start == end) {
+                // Stray CRLF between pipelined requests is ignored (RFC 7230, 3.5)
+                headLength = 0;
+                return;
+            }
+            requestLineEnd = end;
+            state = State.HEADERS;
+            return;
+        }
+        if (start == end) {
+            // Blank line: the head is complete. Chunked is the only transfer coding understood, and it must be
+            // the final one (RFC 7230, 3.3.3); it takes precedence over any Content-Length.
+            if (transferEncoding != null && !isChunked(transferEncoding)) {
+                throw new BadRequestException("Unsupported Transfer-Encoding: " + transferEncoding);
+            }
+            state = State.COMPLETE;
+            return;
+        }
+        if (lineCount * 2 == lines.length) {
+            lines = Arrays.copyOf(lines, lines.length * 2);
+        }
+        lines[lineCount * 2] = start;
+        lines[lineCount * 2 + 1] = end;
+        lineCount++;
+
+        int colon = indexOf(head, start, end, (byte) ':');
+        if (colon < 0) {
+            return;
+        }
+        int nameEnd = trimEnd(head, start, colon);
+        if (equalsIgnoreCase(head, start, nameEnd, CONTENT_LENGTH)) {
+            contentLength = parseLength(head, trimStart(head, colon + 1, end), trimEnd(head, colon + 1, end));
+        } else if (equalsIgnoreCase(head, start, nameEnd, TRANSFER_ENCODING)) {
+            transferEncoding = value(colon, end);
+        } else if (equalsIgnoreCase(head, start, nameEnd, CONNECTION)) {
+            connection = value(colon, end);
+        } else if (equalsIgnoreCase(head, start, nameEnd, ACCEPT_ENCODING)) {
+            acceptEncoding = value(colon, end);
+        }
+    }
+
+    private RequestInfo buildRequest() throws IOException {
+        int sp1 = indexOf(head, 0, requestLineEnd, (byte) ' ');
+        int sp2 = sp1 < 0 ? -1 : indexOf(head, sp1 + 1, requestLineEnd, (byte) ' ');
+        if (sp1 <= 0) {
+            throw new BadRequestException("Malformed request line");
+        }
+        int uriEnd = sp2 < 0 ? requestLineEnd : sp2;
+        String method = method(head, sp1);
+        String uri = new String(head, sp1 + 1, uriEnd - sp1 - 1, StandardCharsets.ISO_8859_1);
+        String version = sp2 < 0 ? "HTTP/1.0" : version(head, sp2 + 1, requestLineEnd);
+
+        RawHeaders raw = new RawHeaders(Arrays.copyOf(head, headLength), Arrays.copyOf(lines, lineCount * 2),
+                connection, transferEncoding, acceptEncoding, contentLength);
+        return new RequestInfo(method, uri, version, raw);
+    }
+
+    private static boolean isChunked(String transferEncoding) {
+        int comma = transferEncoding.lastIndexOf(',');
+        return transferEncoding.substring(comma + 1).trim().equalsIgnoreCase("chunked");
+    }
+
+    private String value(int colon, int end) {
+        int from = trimStart(head, colon + 1, end);
+        int to = trimEnd(head, from, end);
+        return new String(head, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String method(byte[] b, int len) {
+        // Common methods map to constants, so the usual request allocates no method string
+        if (len == 3 && b[0] == 'G' && b[1] == 'E' && b[2] == 'T') return "GET";
+        if (len == 4 && b[0] == 'P' && b[1] == 'O' && b[2] == 'S' && b[3] == 'T') return "POST";
+        if (len == 6 && new String(b, 0, 6, StandardCharsets.ISO_8859_1).equals("DELETE")) return "DELETE";
+        return new String(b, 0, len, StandardCharsets.ISO_8859_1);
+    }
+
+    private static String version(byte[] b, int from, int to) {
+        if (to - from == 8 && b[from + 5] == '1' && b[from + 6] == '.') {
+            if (b[from + 7] == '1') return "HTTP/1.1";
+            if (b[from + 7] == '0') return "HTTP/1.0";
+        }
+        return new String(b, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static long parseLength(byte[] b, int from, int to) throws IOException {
+        if (from == to) {
+            throw new BadRequestException("Invalid Content-Length");
+        }
+        long n = 0;
+        for (int i = from; i < to; i++) {
+            int d = b[i] - '0';
+            if (d < 0 || d > 9 || n > (Long.MAX_VALUE - 9) / 10) {
+                throw new BadRequestException("Invalid Content-Length");
+            }
+            n = n * 10 + d;
+        }
+        return n;
+    }
+
+    private static int indexOf(byte[] b, int from, int to, byte c) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private static int trimStart(byte[] b, int from, int to) {
+        while (from < to && (b[from] == ' ' || b[from] == '\t')) from++;
+        return from;
+    }
+
+    private static int trimEnd(byte[] b, int from, int to) {
+        while (to > from && (b[to - 1] == ' ' || b[to - 1] == '\t')) to--;
+        return to;
+    }
+
+    // ASCII case-insensitive compare of b[from..to) against a lower-case name
+    private static boolean equalsIgnoreCase(byte[] b, int from, int to, byte[] lowerName) {
+        if (to - from != lowerName.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerName.length; i++) {
+            int c = b[from + i];
+            if (c >= 'A' && c <= 'Z') c += 'a' - 'A';
+            if (c != lowerName[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * The raw header block of one request. {@link RequestInfo} turns it into a map only when asked.
+     */
+    static final class RawHeaders {
+        private final byte[] head;
+        private final int[] lines;
+        final String connection;
+        final String transferEncoding;
+        final String acceptEncoding;
+        final long contentLength;
+
+        RawHeaders(byte[] head, int[] lines, String connection, String transferEncoding, String acceptEncoding,
+                   long contentLength) {
+            this.head = head;
+            this.lines = lines;
+            this.connection = connection;
+            this.transferEncoding = transferEncoding;
+            this.acceptEncoding = acceptEncoding;
+            this.contentLength = contentLength;
+        }
+
+        boolean isChunked() {
+            return transferEncoding != null;
+        }
+
+        int length() {
+            return head.length;
+        }
+
+        Map<String, String> toMap() {
+            Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            for (int i = 0; i < lines.length; i += 2) {
+                int start = lines[i], end = lines[i + 1];
+                int colon = indexOf(head, start, end, (byte) ':');
+                if (colon > start) {
+                    int nameEnd = trimEnd(head, start, colon);
+                    int from = trimStart(head, colon + 1, end);
+                    headers.put(new String(head, start, nameEnd - start, StandardCharsets.ISO_8859_1),
+                            new String(head, from, trimEnd(head, from, end) - from, StandardCharsets.ISO_8859_1));
+                }
+            }
+            return headers;
+        }
+    }
+}
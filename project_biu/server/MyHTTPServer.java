@@ -1,28 +1,59 @@
 package server;
+import log.Log;
+import log.Logger;
 import servlets.Servlet;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.ConcurrentHashMap;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import server.RequestParser.RequestInfo;
 
-import static server.RequestParser.parseRequest;
-
 /**
  * MyHTTPServer is a simple, reusable multi-threaded HTTP server implementation.
  * <p>
  * It allows developers to register servlets for specific HTTP methods and URI prefixes.
- * Each incoming request is dispatched to the appropriate servlet in a thread pool.
+ * Each incoming connection is served by a thread from the pool, which reads requests off it one after the other
+ * (HTTP/1.1 keep-alive and pipelining) until the client closes it, it idles out or it reaches its request limit.
+ * </p>
+ * <p>
+ * Accepted connections wait for a worker in a bounded queue. A connection that does not fit is refused on the accept
+ * thread; one that waited too long is refused by the worker after reading its first request (see
+ * {@link AbstractHTTPServer#setQueueDelayTarget}).
+ * </p>
+ * <p>
+ * One thread accepts connections by default. {@link #setAcceptors(int)} adds more, so that connection setup is not
+ * bound by a single core; they all feed the same worker pool.
+ * </p>
+ * <p>
+ * Clients may speak cleartext HTTP/2 (h2c), either from the start (prior knowledge) or by asking for
+ * {@code Upgrade: h2c} on a request without a body. The connection is then served by an {@link Http2Connection}: its
+ * worker reads frames, and each request stream runs on a thread of its own (a virtual thread where available), so
+ * one connection carries many requests at once through the same servlets.
+ * </p>
+ * <p>
+ * A response a servlet {@link ResponseWriter#detach() detaches} gives its socket to a single writer thread, which
+ * sends what is queued without blocking as the client reads it; the worker goes back to the pool.
  * </p>
  * <h2>Usage Example</h2>
  * <pre>{@code
@@ -39,15 +70,28 @@ import static server.RequestParser.parseRequest;
  * @see HTTPServer
  * @see servlets.Servlet
  */
-public class MyHTTPServer extends Thread implements HTTPServer{
-    // Maps for HTTP method to URI to Servlet
-    Map<String, Servlet> getMap, postMap, deleteMap;
+public class MyHTTPServer extends AbstractHTTPServer {
+    private static final Logger LOG = Log.getLogger(MyHTTPServer.class);
+
     // Server running flag
-    boolean run;
+    volatile boolean run;
     // Thread pool for handling client requests
     ExecutorService pool;
     // Main server socket
     ServerSocket serverSocket;
+    // Accepting threads, this one included, and the extra sockets of SO_REUSEPORT acceptors
+    private int acceptors = 1;
+    private final List<Thread> acceptorThreads = new CopyOnWriteArrayList<>();
+    private final List<ServerSocket> extraListeners = new CopyOnWriteArrayList<>();
+    // Connections being served -> whether they wait for a further request, so a drain can close the idle ones
+    private final ConcurrentMap<Socket, Boolean> connections = new ConcurrentHashMap<>();
+    // Connections that switched to HTTP/2, and the executor their streams run on, created with the first of them
+    private final Set<Http2Connection> sessions = ConcurrentHashMap.newKeySet();
+    private volatile ExecutorService streamPool;
+    // Writes detached responses, started with the first of them
+    private volatile DetachedWriter detachedWriter;
+    // Guards the creation of streamPool and detachedWriter
+    private final ReentrantLock lazyLock = new ReentrantLock();
 
     /**
      * Constructs a new HTTP server listening on the given port, using a fixed thread pool.
@@ -57,58 +101,98 @@ public class MyHTTPServer extends Thread implements HTTPServer{
      * @throws IOException if the server socket cannot be created
      */
     public MyHTTPServer(int port,int nThreads) throws IOException {
-        // Initialize servlet maps and thread pool
-        getMap = new ConcurrentHashMap<>();
-        postMap = new ConcurrentHashMap<>();
-        deleteMap = new ConcurrentHashMap<>();
-        run = false;
-        pool = Executors.newFixedThreadPool(nThreads);
-        serverSocket = new ServerSocket(port);
+        this(port, nThreads, AdmissionControl.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructs a new HTTP server with a fixed thread pool and a bounded queue of connections waiting for it.
+     *
+     * @param port          The TCP port to listen on (e.g., 8080)
+     * @param nThreads      Number of worker threads for handling requests
+     * @param queueCapacity Accepted connections that may wait for a worker; more are refused
+     * @throws IOException if the server socket cannot be created
+     */
+    public MyHTTPServer(int port, int nThreads, int queueCapacity) throws IOException {
+        this(port, AdmissionControl.newBoundedPool(nThreads, queueCapacity));
     }
 
     /**
-     * Register a servlet to handle a specific HTTP method and URI prefix.
+     * Constructs a new HTTP server listening on the given port, serving connections on the given executor.
      *
-     * @param httpCommanmd HTTP method (e.g., "GET", "POST", "DELETE")
-     * @param uri URI prefix to match (e.g., "/api/")
-     * @param s   The servlet to handle matching requests
+     * @param port The TCP port to listen on (e.g., 8080)
+     * @param pool Executor running one task per connection; it is shut down with the server
+     * @throws IOException if the server socket cannot be created
      */
-    public void addServlet(String httpCommanmd, String uri, Servlet s){
-        switch (httpCommanmd) {
-            case "GET":
-                getMap.put(uri, s);
-                break;
-            case "POST":
-                postMap.put(uri, s);
-                break;
-            case "DELETE":
-                deleteMap.put(uri, s);
-                break;
-            default:
-                break;
+    public MyHTTPServer(int port, ExecutorService pool) throws IOException {
+        run = false;
+        this.pool = pool;
+        serverSocket = openListener(port, false);
+    }
+
+    // Opened through a channel so accepted sockets have one: responses go out with gathering writes
+    private static ServerSocket openListener(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            return channel.bind(new InetSocketAddress(port)).socket();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
     }
 
     /**
-     * Remove a servlet for a specific HTTP method and URI prefix.
+     * Whether this platform lets several sockets listen on one port ({@code SO_REUSEPORT}, Linux and the BSDs).
+     */
+    public static boolean isReusePortSupported() {
+        try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Accept connections on several threads. Must be called before {@link #start()}.
+     * <p>
+     * Where {@code SO_REUSEPORT} is supported every acceptor listens on a socket of its own, all bound to the same
+     * port, and the kernel spreads incoming connections across them; nothing is shared between acceptors. Elsewhere
+     * they block in {@code accept()} on the one server socket, and the kernel hands each connection to one of them.
+     * Either way accepted connections go to the same worker pool and admission queue.
+     * </p>
      *
-     * @param httpCommanmd HTTP method (e.g., "GET", "POST", "DELETE")
-     * @param uri URI prefix to remove
+     * @param acceptors Number of accepting threads
+     * @throws IOException if the listening sockets cannot be rebound for {@code SO_REUSEPORT}
      */
-    public void removeServlet(String httpCommanmd, String uri){
-        switch (httpCommanmd) {
-            case "GET":
-                getMap.remove(uri);
-                break;
-            case "POST":
-                postMap.remove(uri);
-                break;
-            case "DELETE":
-                deleteMap.remove(uri);
-                break;
-            default:
-                break;
+    public void setAcceptors(int acceptors) throws IOException {
+        if (getState() != State.NEW) {
+            throw new IllegalStateException("Acceptors must be set before the server is started");
         }
+        this.acceptors = Math.max(1, acceptors);
+        if (this.acceptors > 1 && isReusePortSupported()
+                && !serverSocket.getChannel().getOption(StandardSocketOptions.SO_REUSEPORT)) {
+            // The port is only shared if every socket on it asks for it, the first one included
+            int port = serverSocket.getLocalPort();
+            serverSocket.close();
+            serverSocket = openListener(port, true);
+        }
+    }
+
+    /**
+     * Constructs a server that runs each connection on its own virtual thread.
+     * <p>
+     * Concurrency is no longer capped by a fixed pool: a servlet that blocks (for example on a full agent queue)
+     * parks only its own virtual thread.
+     * </p>
+     *
+     * @param port The TCP port to listen on (e.g., 8080)
+     * @return a new, not yet started server
+     * @throws IOException if the server socket cannot be created
+     */
+    public static MyHTTPServer withVirtualThreads(int port) throws IOException {
+        return new MyHTTPServer(port, newVirtualThreadPerTaskExecutor());
     }
 
     /**
@@ -120,155 +204,365 @@ public class MyHTTPServer extends Thread implements HTTPServer{
     @Override
     public void run() {
         run = true;
+        boolean reusePort = serverSocket.getChannel().supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)
+                && acceptors > 1;
+        for (int i = 1; i < acceptors; i++) {
+            ServerSocket listener = serverSocket;
+            if (reusePort) {
+                try {
+                    listener = openListener(serverSocket.getLocalPort(), true);
+                    extraListeners.add(listener);
+                } catch (IOException e) {
+                    LOG.warn("Cannot open another listener with SO_REUSEPORT, sharing the server socket", e);
+                }
+            }
+            ServerSocket socket = listener;
+            Thread t = new Thread(() -> acceptLoop(socket), getName() + "-acceptor-" + i);
+            acceptorThreads.add(t);
+            t.start();
+        }
+        try {
+            acceptLoop(serverSocket);
+        } finally {
+            pool.shutdown();
+            closeListeners();
+        }
+    }
+
+    // Accept until close() closes the socket, which ends a blocked accept at once
+    private void acceptLoop(ServerSocket listener) {
         try {
-            serverSocket.setSoTimeout(1000);
             while (run) {
+                Socket clientSocket = listener.accept();
+                long enqueued = System.nanoTime();
                 try {
-                    Socket clientSocket = serverSocket.accept();
-                    pool.submit(() -> handleClient(clientSocket));
-                } catch (SocketTimeoutException e) {
-                    // timeout every second to check `running`
+                    pool.submit(() -> handleClient(clientSocket, enqueued));
+                } catch (RejectedExecutionException e) {
+                    admission.rejected.incrementAndGet();
+                    refuse(clientSocket);
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            pool.shutdown();
+            if (run) {
+                LOG.error("Accept loop failed", e);
+            }
+        }
+    }
+
+    private void closeListeners() {
+        List<ServerSocket> all = new ArrayList<>(extraListeners);
+        all.add(serverSocket);
+        for (ServerSocket s : all) {
             try {
-                serverSocket.close();
+                s.close();
             } catch (IOException ignored) {}
         }
     }
 
-    private void handleClient(Socket clientSocket) {
-        System.out.println("New client connected: " + clientSocket.getRemoteSocketAddress());
+    /**
+     * @param enqueued {@link System#nanoTime()} at accept; a connection that waited too long for a worker has its
+     *                 first request refused
+     */
+    private void handleClient(Socket clientSocket, long enqueued) {
+        boolean shed = admission.shouldShed(enqueued);
+        ServerMetrics.Sample sample = new ServerMetrics.Sample();
+        sample.queueNanos = System.nanoTime() - enqueued;
+        LOG.debug(() -> "New client connected: " + clientSocket.getRemoteSocketAddress());
+        connections.put(clientSocket, Boolean.FALSE);
+        // Set once the socket belongs to a detached response, which closes it
+        boolean detached = false;
 
-        try (
-            InputStream in        = clientSocket.getInputStream();
-            OutputStream toClient = clientSocket.getOutputStream();
-        ) {
-            System.out.println("Handling client request...");
-            // Only use InputStream for parsing!
-            RequestInfo info = RequestParser.parseRequest(in);
-            if (info == null) {
-                clientSocket.close();
-                return;
-            }
+        try {
+            InputStream in = clientSocket.getInputStream();
+            SocketChannel channel = clientSocket.getChannel();
+            Http1ResponseWriter.Sink out = new Http1ResponseWriter.Sink() {
+                @Override
+                public void write(ByteBuffer... buffers) throws IOException {
+                    writeFully(channel, buffers);
+                }
 
-            Servlet servlet = null;
-            switch (info.getHttpCommand()) {
-                case "GET":    servlet = getLongestMatchingServlet(getMap, info.getUri());    break;
-                case "POST":   servlet = getLongestMatchingServlet(postMap, info.getUri());   System.out.println(servlet); break;
-                case "DELETE": servlet = getLongestMatchingServlet(deleteMap, info.getUri()); break;
-            }
+                @Override
+                public void transfer(FileChannel file, long position, long count) throws IOException {
+                    transferFully(file, position, count, channel);
+                }
 
-            if (servlet != null) {
-                servlet.handle(info, toClient);
-            } else {
-                toClient.write("HTTP/1.1 404 Not Found\r\n\r\n".getBytes());
+                @Override
+                public DetachedResponse detach(ByteBuffer head, boolean chunked) throws IOException {
+                    DetachedResponse response = detachedWriter().attach(channel, head, chunked);
+                    track(response);
+                    return response;
+                }
+            };
+            // Socket bytes are read in blocks; bytes of a pipelined request stay here between requests
+            ByteBuffer buffer = ByteBuffer.allocate(8192).flip();
+            IncrementalRequestParser parser = new IncrementalRequestParser();
+            // Bounds the wait for the next request on a persistent connection
+            clientSocket.setSoTimeout(idleTimeoutMillis);
+            int served = 0;
+            boolean keepAlive = true;
+            while (keepAlive) {
+                if (served > 0 && !buffer.hasRemaining()) {
+                    // Idle until the next request: set before looking at draining, which close() sets before it
+                    // looks for idle connections, so one of the two sees the other
+                    connections.put(clientSocket, Boolean.TRUE);
+                    if (draining) {
+                        break;
+                    }
+                }
+                RequestInfo info;
+                try {
+                    info = readRequest(in, buffer, parser, sample);
+                } catch (SocketTimeoutException e) {
+                    break;
+                } catch (BadRequestException e) {
+                    LOG.debug(() -> "Bad request from " + clientSocket.getRemoteSocketAddress()
+                            + ": " + e.getMessage());
+                    out.write(ByteBuffer.wrap(BAD_REQUEST));
+                    clientSocket.shutdownOutput();
+                    // Unread request bytes would turn the close into a reset that can discard the response
+                    in.skip(in.available());
+                    break;
+                }
+                connections.put(clientSocket, Boolean.FALSE);
+                if (info == null) {
+                    break;
+                }
+                boolean preface = served == 0 && Http2Connection.isPreface(info);
+                // A client asking to upgrade waits for the answer, so nothing may follow the request yet
+                if (preface || !buffer.hasRemaining() && Http2Connection.isUpgrade(info)) {
+                    serveHttp2(clientSocket, in, buffer, out, preface ? null : info);
+                    break;
+                }
+                LOG.debug(() -> "Handling " + info.getHttpCommand() + " " + info.getUri());
+                served++;
+                Http1ResponseWriter response = new Http1ResponseWriter(out,
+                        info.isKeepAlive() && served < maxRequestsPerConnection,
+                        "HTTP/1.0".equals(info.getHttpVersion()));
+                response.closeWhen(() -> draining);
+                RequestBody body = attachBody(info, in, buffer, out, response);
+                if (shed) {
+                    admission.refuse(response);
+                    sample.route = metrics.refused(info.getHttpCommand());
+                    response.finish();
+                    keepAlive = false;
+                } else {
+                    dispatch(info, response, sample);
+                    if (response.isDetached()) {
+                        // The worker is done with the connection; the detached writer sends the rest
+                        detached = true;
+                        metrics.record(sample, info.headBytes(), response.bytesSent());
+                        break;
+                    }
+                    keepAlive = response.finish();
+                }
+                if (body != null) {
+                    // The next request starts after this body, and closing on unread bytes would reset the
+                    // connection under the response: skip what the servlet did not read
+                    keepAlive = body.drain(MAX_DRAIN_BYTES) && keepAlive;
+                }
+                metrics.record(sample, info.headBytes() + (body == null ? 0 : body.bytesRead()), response.bytesSent());
+                // Later requests on the connection did not wait in the queue
+                sample.reset();
             }
-            toClient.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Connection " + clientSocket.getRemoteSocketAddress() + " failed", e);
         } finally {
+            connections.remove(clientSocket);
+            if (!detached) {
+                try {
+                    clientSocket.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    // The rest of the connection is HTTP/2; upgrade is the request that asked for it, answered as stream 1
+    private void serveHttp2(Socket clientSocket, InputStream in, ByteBuffer buffer, Http1ResponseWriter.Sink out,
+                            RequestInfo upgrade) throws IOException {
+        Http2Connection session = new Http2Connection(this, in, buffer, out, streamPool(), () -> {
             try {
-                clientSocket.close();
+                clientSocket.shutdownInput();
             } catch (IOException ignored) {}
+        });
+        sessions.add(session);
+        try {
+            session.serve(upgrade);
+        } finally {
+            sessions.remove(session);
         }
     }
 
-    // Main server loop: accept and handle client connections
-    /*public void run(){
-        this.run = true;
+    private ExecutorService streamPool() {
+        ExecutorService p = streamPool;
+        if (p != null) {
+            return p;
+        }
+        lazyLock.lock();
         try {
-            // Set timeout for accept to allow periodic shutdown check
-            serverSocket.setSoTimeout(1000);
-            while (this.run) {
-                try {
-                    Socket clientSocket = serverSocket.accept();
-                    // Handle each client in a thread pool task
-                    pool.submit(() -> {
-                        System.out.println("New client connected: " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
-                        try (
-                                InputStream in = clientSocket.getInputStream();
-                                BufferedReader fromClient = new BufferedReader(new InputStreamReader(in));
-                                OutputStream toClient = clientSocket.getOutputStream();
-                        ) {
-                            System.out.println("Ori");
-                            RequestParser.RequestInfo info = parseRequest(fromClient, in);
-                            System.out.println("Request info: " + info);
-                            if (info == null) {
-                                clientSocket.close();
-                                return;
-                            }
-                            System.out.println("Request info: " + info);
-                            Servlet s = null;
-                            switch (info.getHttpCommand()) {
-                                case "GET":    s = getLongestMatchingServlet(getMap, info.getUri());    break;
-                                case "POST":   s = getLongestMatchingServlet(postMap, info.getUri());   break;
-                                case "DELETE": s = getLongestMatchingServlet(deleteMap, info.getUri()); break;
-                                default: {
-                                    return;
-                                }
-                            }
-                            // Handle the request or return 404
-                            if (s != null) {
-                                s.handle(info, toClient);
-                                toClient.flush();
-                            } else {
-                                String errorResponse = "HTTP/1.1 404 Not Found\r\n\r\n";
-                                toClient.write(errorResponse.getBytes());
-                                toClient.flush();
-                            }
-                            clientSocket.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    });
-                } catch (SocketTimeoutException e) {}
+            if (streamPool == null) {
+                streamPool = newVirtualThreadPerTaskExecutor();
             }
-        } catch (IOException e) {}
-        // Shutdown: close thread pool and server socket
-        finally {
-            try {
-                pool.shutdown();
-                serverSocket.close();
-            } catch (IOException e) {}
+            return streamPool;
+        } finally {
+            lazyLock.unlock();
         }
-    } */
+    }
 
-    /**
-     * Signal the server to stop and release all resources.
-     * <p>
-     * After calling this method, the server will stop accepting new connections and shut down the thread pool.
-     * </p>
-     */
-    public void close(){
-        this.run = false;
-        /*
-        // Optionally close all servlets
-        for (Servlet s : getMap.values()){
-            s.close();
+    private DetachedWriter detachedWriter() throws IOException {
+        DetachedWriter w = detachedWriter;
+        if (w != null) {
+            return w;
         }
-        for (Servlet s : postMap.values()){
-            s.close();
+        lazyLock.lock();
+        try {
+            if (detachedWriter == null) {
+                DetachedWriter writer = new DetachedWriter(getName() + "-detached");
+                writer.start();
+                detachedWriter = writer;
+            }
+            return detachedWriter;
+        } finally {
+            lazyLock.unlock();
         }
-        for (Servlet s : deleteMap.values()){
-            s.close();
+    }
+
+    // Refuse a connection before reading from it, on the accept thread; a fresh socket's send buffer takes the
+    // short response without blocking
+    private void refuse(Socket clientSocket) {
+        try (clientSocket) {
+            if (admission.policy() == OverloadPolicy.REJECT) {
+                clientSocket.getChannel().write(ByteBuffer.wrap(admission.rejectionResponse()));
+                clientSocket.shutdownOutput();
+                // Unread request bytes would turn the close into a reset that can discard the response
+                InputStream in = clientSocket.getInputStream();
+                in.skip(in.available());
+            }
+        } catch (IOException ignored) {}
+    }
+
+    // Stream the request body off the socket as the servlet reads it
+    private RequestBody attachBody(RequestInfo info, InputStream in, ByteBuffer buffer, Http1ResponseWriter.Sink out,
+                                   Http1ResponseWriter response) {
+        BodyDecoder decoder = bodyDecoder(info);
+        if (decoder == null) {
+            return null;
         }
-        */
+        RequestBody body = new SocketRequestBody(in, buffer, decoder);
+        body.setMaxBufferedBytes(maxBufferedBodyBytes);
+        if (expectsContinue(info)) {
+            body.beforeFirstRead(() -> {
+                if (!response.isCommitted()) {
+                    try {
+                        out.write(ByteBuffer.wrap(CONTINUE));
+                    } catch (IOException ignored) {
+                        // The body read that follows reports the broken connection
+                    }
+                }
+            });
+        }
+        info.setBody(body);
+        return body;
     }
 
-    // Find the servlet with the longest matching URI prefix
-    private static Servlet getLongestMatchingServlet(Map<String, Servlet> map, String path) {
-        Servlet result = null;
-        int longest = -1;
-        for (String key : map.keySet()) {
-            if (path.startsWith(key) && key.length() > longest) {
-                longest = key.length();
-                result = map.get(key);
+    // Blocking gathering write of a whole response (or chunk); the buffers go back to the pool afterwards
+    private static void writeFully(SocketChannel channel, ByteBuffer... buffers) throws IOException {
+        try {
+            long remaining = 0;
+            for (ByteBuffer b : buffers) {
+                remaining += b.remaining();
             }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        } finally {
+            for (ByteBuffer b : buffers) {
+                BufferPool.release(b);
+            }
+        }
+    }
+
+    // Blocking zero-copy write of a file region (sendfile where the OS has it)
+    private static void transferFully(FileChannel file, long position, long count, SocketChannel channel) throws IOException {
+        while (count > 0) {
+            long n = file.transferTo(position, count, channel);
+            if (n == 0 && position >= file.size()) {
+                throw new EOFException("File ended " + count + " bytes before the end of the region");
+            }
+            position += n;
+            count -= n;
+        }
+    }
+
+    // Feed socket bytes to the parser until a request head is complete; null on end of stream. Only the time in the
+    // parser counts as parse time, not the wait for bytes.
+    private static RequestInfo readRequest(InputStream in, ByteBuffer buffer, IncrementalRequestParser parser,
+                                           ServerMetrics.Sample sample) throws IOException {
+        while (true) {
+            long start = System.nanoTime();
+            RequestInfo info = parser.parse(buffer);
+            sample.parseNanos += System.nanoTime() - start;
+            if (info != null) {
+                return info;
+            }
+            int n = in.read(buffer.array(), 0, buffer.capacity());
+            if (n == -1) {
+                return null;
+            }
+            buffer.clear().limit(n);
+        }
+    }
+
+    /**
+     * Stop accepting by closing the server socket, let queued and running connections finish their current request,
+     * and end idle ones by shutting down their input. HTTP/2 connections are sent {@code GOAWAY} and end once their
+     * open streams are done, and detached responses once they have sent what they had queued. Sockets still open at
+     * the deadline are closed under their workers.
+     */
+    @Override
+    boolean shutdown(long deadlineNanos) throws InterruptedException {
+        run = false;
+        closeListeners();
+        pool.shutdown();
+        for (Map.Entry<Socket, Boolean> entry : connections.entrySet()) {
+            if (entry.getValue()) {
+                try {
+                    // The worker's read sees the end of the stream and the connection closes normally
+                    entry.getKey().shutdownInput();
+                } catch (IOException ignored) {}
+            }
+        }
+        for (Http2Connection session : sessions) {
+            session.goAway();
+        }
+        boolean drained = pool.awaitTermination(millisUntil(deadlineNanos), TimeUnit.MILLISECONDS);
+        DetachedWriter writer = detachedWriter;
+        if (writer != null) {
+            // The responses were ended when the drain began; the writer stops by the deadline either way
+            writer.shutdown(deadlineNanos);
+            writer.join(millisUntil(deadlineNanos) + 1000);
+            drained = drained && writer.isDrained();
+        }
+        // An HTTP/2 connection ends after its streams, so once the connections are done the streams are as well
+        ExecutorService streams = streamPool;
+        if (streams != null) {
+            if (drained) {
+                streams.shutdown();
+            } else {
+                streams.shutdownNow();
+            }
+        }
+        if (!drained) {
+            pool.shutdownNow();
+            for (Socket s : connections.keySet()) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        join(1000);
+        for (Thread t : acceptorThreads) {
+            t.join(1000);
         }
-        return result;
+        return drained;
     }
 }
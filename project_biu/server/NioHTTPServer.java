@@ -0,0 +1,674 @@
+package server;
+
+import log.Log;
+import log.Logger;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import server.RequestParser.RequestInfo;
+
+/**
+ * NioHTTPServer is an event-loop HTTP server engine built on {@link ServerSocketChannel} and {@link Selector}.
+ * <p>
+ * A single selector thread accepts connections and performs all socket reads and writes without blocking.
+ * Only requests with a complete head are handed to the worker pool, so a slow client never ties up a worker thread
+ * while its headers trickle in. A request body is decoded by the selector into a bounded pipe that the servlet reads
+ * from; when the pipe is full the selector stops reading that socket until the servlet catches up.
+ * The servlet's response is queued in pooled buffers and written back by the selector thread, with gathering
+ * writes, as the socket becomes writable. A worker only waits for the client when a streamed response has more
+ * than {@value #OUTPUT_HIGH_WATER} bytes queued. Requests wait for a worker in a bounded queue; the selector answers
+ * a request that does not fit with a {@code 503} itself. A file sent with {@link ResponseWriter#sendFile} is queued as a
+ * region and written with {@link FileChannel#transferTo}, so its bytes never enter the JVM heap.
+ * </p>
+ * <p>
+ * Connections are persistent: after a response is written the connection goes back to reading, and a pipelined
+ * request that is already buffered is dispatched right away. Requests on one connection are processed one at a time,
+ * so responses always go out in request order. Idle connections are swept once per second.
+ * </p>
+ * <p>
+ * A response a servlet {@link ResponseWriter#detach() detaches} stays with the selector: its bytes are written as
+ * they are queued, whatever thread queues them, and the connection closes when it ends.
+ * </p>
+ * <h2>Usage Example</h2>
+ * <pre>{@code
+ * HTTPServer server = new NioHTTPServer(8080, 5);
+ * server.addServlet("GET", "/hello", new MyHelloServlet());
+ * server.start();
+ * // ...
+ * server.close();
+ * }</pre>
+ * It is a drop-in replacement for {@link MyHTTPServer}: servlet registration and the {@link servlets.Servlet}
+ * contract are identical.
+ *
+ * @see HTTPServer
+ * @see MyHTTPServer
+ */
+public class NioHTTPServer extends AbstractHTTPServer {
+    private static final Logger LOG = Log.getLogger(NioHTTPServer.class);
+
+    // How often idle keep-alive connections are looked for
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    // How often a draining event loop checks for connections to close and the deadline
+    private static final long DRAIN_POLL_MILLIS = 50;
+    // Queued response bytes above which a worker waits for the socket to drain
+    static final long OUTPUT_HIGH_WATER = 256 * 1024;
+
+    // Server running flag
+    volatile boolean run;
+    // Thread pool for running servlets
+    ExecutorService pool;
+    ServerSocketChannel serverChannel;
+    Selector selector;
+    // Connections whose interest ops workers want recomputed (output queued, body pipe drained)
+    private final Queue<Connection> pendingUpdates = new ConcurrentLinkedQueue<>();
+    // Set by close() before run is cleared: when the event loop gives up on open connections
+    private volatile long drainDeadlineNanos;
+    // Requests the event loop cut off at the drain deadline
+    private int abandoned;
+
+    /**
+     * Constructs a new non-blocking HTTP server listening on the given port.
+     *
+     * @param port     The TCP port to listen on (e.g., 8080)
+     * @param nThreads Number of worker threads for running servlets
+     * @throws IOException if the server channel or selector cannot be opened
+     */
+    public NioHTTPServer(int port, int nThreads) throws IOException {
+        this(port, nThreads, AdmissionControl.DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructs a new non-blocking HTTP server with a bounded queue of requests waiting for a worker.
+     *
+     * @param port          The TCP port to listen on (e.g., 8080)
+     * @param nThreads      Number of worker threads for running servlets
+     * @param queueCapacity Requests that may wait for a worker; more are refused
+     * @throws IOException if the server channel or selector cannot be opened
+     */
+    public NioHTTPServer(int port, int nThreads, int queueCapacity) throws IOException {
+        this(port, AdmissionControl.newBoundedPool(nThreads, queueCapacity));
+    }
+
+    /**
+     * Constructs a new non-blocking HTTP server that runs servlets on the given executor.
+     *
+     * @param port The TCP port to listen on (e.g., 8080)
+     * @param pool Executor running one task per request; it is shut down with the server
+     * @throws IOException if the server channel or selector cannot be opened
+     */
+    public NioHTTPServer(int port, ExecutorService pool) throws IOException {
+        run = false;
+        this.pool = pool;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Constructs a server that runs each servlet invocation on its own virtual thread.
+     *
+     * @param port The TCP port to listen on (e.g., 8080)
+     * @return a new, not yet started server
+     * @throws IOException if the server channel or selector cannot be opened
+     */
+    public static NioHTTPServer withVirtualThreads(int port) throws IOException {
+        return new NioHTTPServer(port, newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Event loop: accepts connections, reads requests and writes responses.
+     * <p>
+     * This method is called when the server thread is started. It should not be called directly.
+     * </p>
+     */
+    @Override
+    public void run() {
+        run = true;
+        long lastSweep = System.currentTimeMillis();
+        try {
+            // After close() the loop keeps serving the connections it has until they are done or the deadline
+            while (run || !drainConnections()) {
+                selector.select(run ? SWEEP_INTERVAL_MILLIS : DRAIN_POLL_MILLIS);
+                applyPendingUpdates();
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                    closeIdleConnections(now);
+                    lastSweep = now;
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        // While a body streams in, a key can be readable and writable (100 Continue) at once
+                        if (key.isReadable()) {
+                            read(key);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (IOException e) {
+                        closeKey(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Selector loop failed", e);
+        } finally {
+            pool.shutdown();
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection && ((Connection) key.attachment()).inFlight) {
+                    abandoned++;
+                }
+                closeKey(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Connection(channel));
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        if (conn.channel.read(conn.readBuffer) == -1) {
+            closeKey(key);
+            return;
+        }
+        conn.lastActivity = System.currentTimeMillis();
+        if (conn.detached != null) {
+            // Nothing more is read from a detached connection; reading only notices the client going away
+            conn.readBuffer.clear();
+            return;
+        }
+        if (conn.inFlight) {
+            feedBody(conn);
+            updateInterest(key, conn);
+        } else {
+            dispatchBuffered(key, conn);
+        }
+    }
+
+    // Feed buffered bytes to the connection's parser and dispatch the request once it is complete
+    private void dispatchBuffered(SelectionKey key, Connection conn) throws IOException {
+        conn.readBuffer.flip();
+        RequestInfo info;
+        long start = System.nanoTime();
+        try {
+            info = conn.parser.parse(conn.readBuffer);
+        } catch (BadRequestException e) {
+            LOG.debug(() -> "Bad request from " + conn.channel.socket().getRemoteSocketAddress()
+                    + ": " + e.getMessage());
+            // Nothing more is read; the connection closes once the answer is out
+            conn.inFlight = true;
+            conn.enqueue(ByteBuffer.wrap(BAD_REQUEST));
+            conn.closeAfterWrite = true;
+            conn.responseComplete = true;
+            updateInterest(key, conn);
+            return;
+        } finally {
+            conn.sample.parseNanos += System.nanoTime() - start;
+            conn.readBuffer.compact();
+        }
+        if (info == null) {
+            return;
+        }
+        // The head is parsed: hand the request to a worker. Its body, if any, is piped to the servlet as it
+        // arrives; pipelined requests behind it wait in the buffer until its response is written.
+        conn.inFlight = true;
+        conn.served++;
+        BodyDecoder decoder = bodyDecoder(info);
+        if (decoder != null) {
+            PipedRequestBody body = new PipedRequestBody(decoder, () -> requestUpdate(conn), idleTimeoutMillis);
+            body.setMaxBufferedBytes(maxBufferedBodyBytes);
+            info.setBody(body);
+            conn.body = body;
+            feedBody(conn);
+        }
+        updateInterest(key, conn);
+        long enqueued = System.nanoTime();
+        try {
+            pool.submit(() -> handleRequest(conn, info, enqueued));
+        } catch (RejectedExecutionException e) {
+            // Refused on the selector thread: no worker is involved, and the connection closes after the answer
+            admission.rejected.incrementAndGet();
+            long sent = 0;
+            if (admission.policy() == OverloadPolicy.REJECT) {
+                conn.enqueue(ByteBuffer.wrap(admission.rejectionResponse()));
+                sent = admission.rejectionResponse().length;
+            }
+            conn.sample.route = metrics.refused(info.getHttpCommand());
+            metrics.record(conn.sample, info.headBytes(), sent);
+            conn.sample.reset();
+            conn.closeAfterWrite = true;
+            conn.responseComplete = true;
+            updateInterest(key, conn);
+        }
+    }
+
+    // Move buffered body bytes into the connection's body pipe
+    private static void feedBody(Connection conn) throws IOException {
+        if (conn.body == null) {
+            return;
+        }
+        conn.readBuffer.flip();
+        try {
+            conn.body.feed(conn.readBuffer);
+        } finally {
+            conn.readBuffer.compact();
+        }
+    }
+
+    private void handleRequest(Connection conn, RequestInfo info, long enqueued) {
+        ServerMetrics.Sample sample = conn.sample;
+        sample.queueNanos = System.nanoTime() - enqueued;
+        boolean keepAlive = false;
+        try {
+            Http1ResponseWriter.Sink sink = new Http1ResponseWriter.Sink() {
+                @Override
+                public void write(ByteBuffer... buffers) throws IOException {
+                    send(conn, buffers);
+                }
+
+                @Override
+                public void transfer(FileChannel file, long position, long count) throws IOException {
+                    // The caller closes the file on return, so wait until the selector has sent all of it
+                    conn.enqueue(new FileRegion(file, position, count));
+                    requestUpdate(conn);
+                    conn.awaitDrained(0);
+                }
+
+                @Override
+                public DetachedResponse detach(ByteBuffer head, boolean chunked) {
+                    DetachedResponse response = new DetachedResponse(chunked) {
+                        @Override
+                        void wakeup() {
+                            requestUpdate(conn);
+                        }
+                    };
+                    conn.detached = response;
+                    response.enqueueHead(head);
+                    track(response);
+                    return response;
+                }
+            };
+            Http1ResponseWriter response = new Http1ResponseWriter(sink,
+                    info.isKeepAlive() && conn.served < maxRequestsPerConnection,
+                    "HTTP/1.0".equals(info.getHttpVersion()));
+            response.closeWhen(() -> draining);
+            if (conn.body != null && expectsContinue(info)) {
+                conn.body.beforeFirstRead(() -> {
+                    if (!response.isCommitted()) {
+                        conn.enqueue(ByteBuffer.wrap(CONTINUE));
+                        requestUpdate(conn);
+                    }
+                });
+            }
+            if (admission.shouldShed(enqueued)) {
+                admission.refuse(response);
+                sample.route = metrics.refused(info.getHttpCommand());
+                response.finish();
+            } else {
+                dispatch(info, response, sample);
+                if (response.isDetached()) {
+                    // The connection stays in flight until the detached response ends; the selector then closes it
+                    metrics.record(sample, info.headBytes(), response.bytesSent());
+                    sample.reset();
+                    return;
+                }
+                keepAlive = response.finish();
+            }
+            if (conn.body != null) {
+                // The response is on its way; skip what the servlet did not read of the body, since the next
+                // request starts after it and closing on unread bytes would reset the connection under the response
+                keepAlive = conn.body.drain(MAX_DRAIN_BYTES) && keepAlive;
+            }
+            metrics.record(sample, info.headBytes() + (conn.body == null ? 0 : conn.body.bytesRead()),
+                    response.bytesSent());
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Request " + info.getHttpCommand() + " " + info.getUri() + " failed", e);
+        }
+        // Before responseComplete: the selector starts on the next request once it sees that
+        sample.reset();
+        conn.closeAfterWrite = !keepAlive;
+        conn.responseComplete = true;
+        requestUpdate(conn);
+    }
+
+    // Response sink of a worker: queue the buffers for the selector, and wait only if the client lags far behind
+    private void send(Connection conn, ByteBuffer[] buffers) throws IOException {
+        conn.enqueue(buffers);
+        requestUpdate(conn);
+        conn.awaitDrained(OUTPUT_HIGH_WATER);
+    }
+
+    // Called by workers: have the selector thread recompute the connection's interest ops
+    private void requestUpdate(Connection conn) {
+        pendingUpdates.add(conn);
+        selector.wakeup();
+    }
+
+    private void applyPendingUpdates() throws IOException {
+        Connection conn;
+        while ((conn = pendingUpdates.poll()) != null) {
+            SelectionKey key = conn.channel.keyFor(selector);
+            if (key == null || !key.isValid()) {
+                continue;
+            }
+            try {
+                // The servlet made room in the body pipe: bytes already buffered go first
+                if (conn.inFlight) {
+                    feedBody(conn);
+                }
+                updateInterest(key, conn);
+            } catch (IOException e) {
+                closeKey(key);
+            }
+        }
+    }
+
+    // Read while idle, while the body pipe has room or to see a detached connection closed; write while there is
+    // output or a response to finish
+    private static void updateInterest(SelectionKey key, Connection conn) {
+        int ops = 0;
+        DetachedResponse detached = conn.detached;
+        if (!conn.inFlight || detached != null || (conn.body != null && conn.body.wantsInput())) {
+            ops |= SelectionKey.OP_READ;
+        }
+        if (conn.responseComplete || !conn.output.isEmpty() || !conn.writing.isEmpty()
+                || detached != null && (detached.hasOutput() || detached.isFinished())) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+        key.interestOps(ops);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Connection conn = (Connection) key.attachment();
+        // Read the flag first: everything queued before it was set is written below
+        boolean complete = conn.responseComplete;
+        Object item;
+        while ((item = conn.output.poll()) != null) {
+            conn.writing.add(item);
+        }
+        while (!conn.writing.isEmpty()) {
+            boolean socketFull;
+            if (conn.writing.peekFirst() instanceof FileRegion) {
+                FileRegion region = (FileRegion) conn.writing.peekFirst();
+                long written = region.transferTo(conn.channel);
+                conn.written(written);
+                socketFull = region.count > 0;
+                if (!socketFull) {
+                    conn.writing.pollFirst();
+                }
+            } else {
+                // One gathering write over as many queued buffers as fit in the batch, up to the next file region
+                int count = 0;
+                for (Object o : conn.writing) {
+                    if (count == conn.batch.length || !(o instanceof ByteBuffer)) {
+                        break;
+                    }
+                    conn.batch[count++] = (ByteBuffer) o;
+                }
+                long written = conn.channel.write(conn.batch, 0, count);
+                conn.written(written);
+                socketFull = conn.batch[count - 1].hasRemaining();
+                while (!conn.writing.isEmpty() && conn.writing.peekFirst() instanceof ByteBuffer
+                        && !((ByteBuffer) conn.writing.peekFirst()).hasRemaining()) {
+                    BufferPool.release((ByteBuffer) conn.writing.pollFirst());
+                }
+            }
+            if (socketFull) {
+                // Continue when the socket becomes writable
+                updateInterest(key, conn);
+                return;
+            }
+        }
+        if (conn.detached != null) {
+            // Written to by other threads; the connection ends with it
+            if (!conn.detached.writeTo(conn.channel) && conn.detached.isFinished()) {
+                closeKey(key);
+                return;
+            }
+            updateInterest(key, conn);
+            return;
+        }
+        if (!complete) {
+            updateInterest(key, conn);
+            return;
+        }
+        if (conn.closeAfterWrite) {
+            closeKey(key);
+            return;
+        }
+        // Back to reading; serve a pipelined request right away if it is already here
+        conn.responseComplete = false;
+        conn.body = null;
+        conn.inFlight = false;
+        conn.lastActivity = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_READ);
+        if (conn.readBuffer.position() > 0) {
+            dispatchBuffered(key, conn);
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection conn = (Connection) key.attachment();
+                if (!conn.inFlight && now - conn.lastActivity > idleTimeoutMillis) {
+                    closeKey(key);
+                }
+            }
+        }
+    }
+
+    // While draining: close connections between requests; true once none is left or the deadline has passed
+    private boolean drainConnections() {
+        boolean open = false;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+                Connection conn = (Connection) key.attachment();
+                // A connection that has not sent its first request yet gets the idle timeout, as on any other day
+                if (!conn.inFlight && conn.served > 0 && conn.readBuffer.position() == 0) {
+                    closeKey(key);
+                } else {
+                    open = true;
+                }
+            }
+        }
+        return !open || System.nanoTime() - drainDeadlineNanos >= 0;
+    }
+
+    private static void closeKey(SelectionKey key) {
+        if (key.attachment() instanceof Connection) {
+            Connection conn = (Connection) key.attachment();
+            if (conn.body != null) {
+                conn.body.fail(new EOFException("Connection closed before the end of the request body"));
+            }
+            conn.markClosed();
+            if (conn.detached != null) {
+                conn.detached.closed();
+            }
+        }
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Stop accepting and wake the event loop, which keeps serving open connections until they are done or the
+     * deadline passes and then exits; the pool is given what is left of the deadline.
+     */
+    @Override
+    boolean shutdown(long deadlineNanos) throws InterruptedException {
+        drainDeadlineNanos = deadlineNanos;
+        run = false;
+        try {
+            serverChannel.close();
+        } catch (IOException ignored) {}
+        selector.wakeup();
+        // The loop exits by the deadline, plus one poll
+        join(millisUntil(deadlineNanos) + 1000);
+        pool.shutdown();
+        boolean drained = pool.awaitTermination(millisUntil(deadlineNanos), TimeUnit.MILLISECONDS);
+        if (!drained) {
+            pool.shutdownNow();
+        }
+        return drained && abandoned == 0;
+    }
+
+    // Per-connection state, only touched by the selector thread except for the output fields and the body pipe
+    private static final class Connection {
+        final SocketChannel channel;
+        final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        final IncrementalRequestParser parser = new IncrementalRequestParser();
+        // Bytes for the client (ByteBuffers and FileRegions), queued by the worker and moved to writing by the
+        // selector thread
+        final Queue<Object> output = new ConcurrentLinkedQueue<>();
+        final ArrayDeque<Object> writing = new ArrayDeque<>();
+        final ByteBuffer[] batch = new ByteBuffer[16];
+        // Bytes in output and writing not yet written; guarded by outputLock
+        private final ReentrantLock outputLock = new ReentrantLock();
+        private final Condition outputDrained = outputLock.newCondition();
+        private long queuedBytes;
+        private boolean closed;
+        // Set by the worker once the whole response is queued
+        volatile boolean responseComplete;
+        volatile boolean closeAfterWrite;
+        // Body of the request in flight, null if it has none
+        PipedRequestBody body;
+        // Set by the worker when its servlet detaches the response; the connection carries nothing else afterwards
+        volatile DetachedResponse detached;
+        // A request of this connection is being handled by a worker
+        boolean inFlight;
+        // Requests received on this connection so far
+        int served;
+        long lastActivity = System.currentTimeMillis();
+        // Timings of the request being parsed or served; the selector and the worker take turns with it
+        final ServerMetrics.Sample sample = new ServerMetrics.Sample();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void enqueue(ByteBuffer... buffers) {
+            outputLock.lock();
+            try {
+                for (ByteBuffer b : buffers) {
+                    output.add(b);
+                    queuedBytes += b.remaining();
+                }
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        void enqueue(FileRegion region) {
+            outputLock.lock();
+            try {
+                output.add(region);
+                queuedBytes += region.count;
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        // Worker side: block while more than limit bytes are waiting for the socket
+        void awaitDrained(long limit) throws IOException {
+            outputLock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new IOException("Connection closed");
+                    }
+                    if (queuedBytes <= limit) {
+                        return;
+                    }
+                    outputDrained.awaitUninterruptibly();
+                }
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        // Selector side: account for bytes that reached the socket
+        void written(long n) {
+            outputLock.lock();
+            try {
+                queuedBytes -= n;
+                if (queuedBytes <= OUTPUT_HIGH_WATER) {
+                    outputDrained.signalAll();
+                }
+            } finally {
+                outputLock.unlock();
+            }
+        }
+
+        void markClosed() {
+            outputLock.lock();
+            try {
+                closed = true;
+                outputDrained.signalAll();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+    }
+
+    // Part of a file still to be sent; the worker that queued it keeps the file open until it is written
+    private static final class FileRegion {
+        final FileChannel file;
+        long position;
+        long count;
+
+        FileRegion(FileChannel file, long position, long count) {
+            this.file = file;
+            this.position = position;
+            this.count = count;
+        }
+
+        // Non-blocking: send what the socket takes now
+        long transferTo(SocketChannel channel) throws IOException {
+            long n = file.transferTo(position, count, channel);
+            if (n == 0 && position >= file.size()) {
+                throw new EOFException("File ended " + count + " bytes before the end of the region");
+            }
+            position += n;
+            count -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package server;
+
+/**
+ * What the server does with work it refuses because it is overloaded.
+ *
+ * @see AbstractHTTPServer#setOverloadPolicy(OverloadPolicy, int)
+ */
+public enum OverloadPolicy {
+    /** Answer {@code 503 Service Unavailable} with a {@code Retry-After} header, then close the connection. */
+    REJECT,
+    /** Close the connection without a response; cheapest for the server, but clients cannot tell why. */
+    CLOSE
+}
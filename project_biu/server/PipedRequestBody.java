@@ -0,0 +1,140 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PipedRequestBody carries a request body from the selector thread of {@link NioHTTPServer} to the worker running
+ * the servlet.
+ * <p>
+ * The selector decodes body bytes into a bounded ring as they arrive; the servlet blocks in {@code read} until
+ * there is something to take. When the ring is full the selector stops reading the socket, so a servlet that reads
+ * slowly pushes back on the client through TCP flow control instead of growing the heap.
+ * </p>
+ */
+final class PipedRequestBody extends RequestBody {
+    private static final int CAPACITY = 64 * 1024;
+
+    private final BodyDecoder decoder;
+    // Called by the reader when it frees space in a full ring, so the selector resumes reading
+    private final Runnable onSpace;
+    private final long timeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+    private final byte[] ring = new byte[CAPACITY];
+    private int readPos;
+    private int count;
+    private IOException failure;
+
+    /**
+     * @param decoder       Framing of the body
+     * @param onSpace       Run on the reading thread when a full ring gets room again
+     * @param timeoutMillis How long a read waits for the client before it fails
+     */
+    PipedRequestBody(BodyDecoder decoder, Runnable onSpace, long timeoutMillis) {
+        this.decoder = decoder;
+        this.onSpace = onSpace;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Decode as much of {@code in} into the ring as fits. Runs on the selector thread.
+     */
+    void feed(ByteBuffer in) throws IOException {
+        lock.lock();
+        try {
+            while (in.hasRemaining() && !decoder.isComplete()) {
+                int writePos = (readPos + count) % CAPACITY;
+                int free = Math.min(CAPACITY - count, CAPACITY - writePos);
+                int before = in.position();
+                count += decoder.decode(in, ring, writePos, free);
+                if (in.position() == before) {
+                    break;
+                }
+            }
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the selector should read more of the body from the socket
+     */
+    boolean wantsInput() {
+        lock.lock();
+        try {
+            return !decoder.isComplete() && count < CAPACITY;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wake up the reader with an error; the connection is gone.
+     */
+    void fail(IOException e) {
+        lock.lock();
+        try {
+            failure = e;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected int readBody(byte[] b, int off, int len) throws IOException {
+        boolean wasFull;
+        int n;
+        lock.lock();
+        try {
+            long nanos = timeoutNanos;
+            while (count == 0) {
+                if (decoder.isComplete()) {
+                    return -1;
+                }
+                if (failure != null) {
+                    throw new IOException(failure.getMessage(), failure);
+                }
+                if (nanos <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for the request body");
+                }
+                try {
+                    nanos = readable.awaitNanos(nanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading the request body");
+                }
+            }
+            wasFull = count == CAPACITY;
+            n = Math.min(len, count);
+            int first = Math.min(n, CAPACITY - readPos);
+            System.arraycopy(ring, readPos, b, off, first);
+            System.arraycopy(ring, 0, b, off + first, n - first);
+            readPos = (readPos + n) % CAPACITY;
+            count -= n;
+        } finally {
+            lock.unlock();
+        }
+        if (wasFull) {
+            onSpace.run();
+        }
+        return n;
+    }
+
+    @Override
+    boolean isComplete() {
+        lock.lock();
+        try {
+            return decoder.isComplete();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
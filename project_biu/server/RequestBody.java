@@ -0,0 +1,122 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * RequestBody is the stream a servlet reads a request body from, see {@link RequestParser.RequestInfo#getBody()}.
+ * <p>
+ * It yields the decoded body (fixed length or chunked) and then end-of-stream; it never reads into the next request
+ * on the connection. Bytes are pulled from the connection only as the servlet reads them, so a body is never held in
+ * memory as a whole unless the servlet asks for that with {@link RequestParser.RequestInfo#getContent()}.
+ * </p>
+ * Engines provide the transport: {@link SocketRequestBody} for blocking sockets, {@link PipedRequestBody} for the
+ * selector engine.
+ */
+abstract class RequestBody extends InputStream {
+    /** Default cap for bodies buffered with {@link RequestParser.RequestInfo#getContent()}. */
+    static final int DEFAULT_MAX_BUFFERED_BYTES = 16 * 1024 * 1024;
+
+    private Runnable beforeFirstRead;
+    private int maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+    // Decoded bytes read or drained so far
+    private long bytesRead;
+
+    /**
+     * Read decoded body bytes, blocking until some are available.
+     */
+    protected abstract int readBody(byte[] b, int off, int len) throws IOException;
+
+    /**
+     * @return whether the whole body has been received from the connection
+     */
+    abstract boolean isComplete();
+
+    @Override
+    public final int read(byte[] b, int off, int len) throws IOException {
+        if (beforeFirstRead != null) {
+            Runnable action = beforeFirstRead;
+            beforeFirstRead = null;
+            action.run();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int n = readBody(b, off, len);
+        if (n > 0) {
+            bytesRead += n;
+        }
+        return n;
+    }
+
+    @Override
+    public final int read() throws IOException {
+        byte[] one = new byte[1];
+        int n = read(one, 0, 1);
+        return n == -1 ? -1 : one[0] & 0xff;
+    }
+
+    /**
+     * Run an action just before the servlet first reads the body, e.g. to send {@code 100 Continue}.
+     */
+    void beforeFirstRead(Runnable action) {
+        this.beforeFirstRead = action;
+    }
+
+    /**
+     * @return body bytes taken from the connection so far, by the servlet or by {@link #drain(long)}
+     */
+    long bytesRead() {
+        return bytesRead;
+    }
+
+    void setMaxBufferedBytes(int maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Read the rest of the body into memory.
+     *
+     * @throws IOException if the body is larger than the buffering limit
+     */
+    byte[] readFully() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = read(chunk, 0, chunk.length)) != -1) {
+            if (out.size() + n > maxBufferedBytes) {
+                throw new IOException("Request body exceeds " + maxBufferedBytes + " bytes");
+            }
+            out.write(chunk, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Discard what the servlet left unread, so the next request on the connection can be parsed.
+     *
+     * @param limit Most bytes worth discarding; a larger remainder is cheaper to drop with the connection
+     * @return whether the body was consumed to its end
+     */
+    boolean drain(long limit) throws IOException {
+        if (beforeFirstRead != null) {
+            // The client still waits for 100 Continue; closing is cheaper than asking for a body nobody reads
+            beforeFirstRead = null;
+            if (!isComplete()) {
+                return false;
+            }
+        }
+        byte[] chunk = new byte[4096];
+        long discarded = 0;
+        while (discarded <= limit) {
+            int n = readBody(chunk, 0, chunk.length);
+            if (n == -1) {
+                return true;
+            }
+            discarded += n;
+            bytesRead += n;
+        }
+        return false;
+    }
+}
@@ -1,14 +1,23 @@
 package server;
 
+import log.Log;
+import log.Logger;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * RequestParser provides static methods for parsing raw HTTP requests from an InputStream.
+ * The server engines use the incremental, buffer-based {@link IncrementalRequestParser} instead.
  * <p>
  * It extracts the HTTP method, URI, headers, parameters, and body, and returns a {@link RequestInfo} object.
  * </p>
@@ -20,6 +29,8 @@ import java.util.Map;
  * }</pre>
  */
 public class RequestParser {
+    private static final Logger LOG = Log.getLogger(RequestParser.class);
+
 
     public static RequestInfo parseRequest(InputStream in) throws IOException {
         // 1. Read request line
@@ -30,30 +41,14 @@ public class RequestParser {
         String[] requestParts = requestLine.split(" ");
         String httpCommand = requestParts[0];
         String fullUri = requestParts[1];
+        String httpVersion = requestParts.length > 2 ? requestParts[2] : "HTTP/1.0";
 
         // Parse URI
-        String uri;
-        Map<String, String> parameters = new HashMap<>();
-        int idx = fullUri.indexOf('?');
-        if (idx >= 0) {
-            uri = fullUri.substring(0, idx);
-            String query = fullUri.substring(idx + 1);
-            for (String param : query.split("&")) {
-                if (param.isEmpty()) continue;
-                String[] pair = param.split("=", 2);
-                String key = pair[0];
-                String value = pair.length > 1 ? pair[1] : "";
-                parameters.put(key, value);
-            }
-        } else {
-            uri = fullUri;
-        }
-        String[] uriSegments = Arrays.stream(uri.split("/"))
-                .filter(segment -> !segment.isEmpty())
-                .toArray(String[]::new);
+        Map<String, String> parameters = parseQuery(fullUri);
+        String[] uriSegments = splitSegments(fullUri);
 
-        // Headers
-        Map<String, String> headers = new HashMap<>();
+        // Headers (names are case-insensitive)
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
         String line;
         int contentLength = 0;
         while ((line = readLine(in)) != null && !line.isEmpty()) {
@@ -82,9 +77,11 @@ public class RequestParser {
                 if (n == -1) break;
                 read += n;
             }
-            System.out.println("DEBUG: RequestParser read " + read + " bytes (should match Content-Length: " + contentLength + ")");
-            if (read > 0) {
-                System.out.println("DEBUG: First 80 chars: " + new String(content, 0, Math.min(80, read), java.nio.charset.StandardCharsets.ISO_8859_1));
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("RequestParser read " + read + " bytes (should match Content-Length: " + contentLength + ")");
+                if (read > 0) {
+                    LOG.debug("First 80 chars: " + new String(content, 0, Math.min(80, read), java.nio.charset.StandardCharsets.ISO_8859_1));
+                }
             }
         }
 
@@ -94,10 +91,37 @@ public class RequestParser {
                 uriSegments,
                 parameters,
                 headers,
-                content
+                content,
+                httpVersion
         );
     }
 
+    // Query parameters of a URI ("?a=1&b=2"), without decoding
+    static Map<String, String> parseQuery(String fullUri) {
+        Map<String, String> parameters = new HashMap<>();
+        int idx = fullUri.indexOf('?');
+        if (idx >= 0) {
+            String query = fullUri.substring(idx + 1);
+            for (String param : query.split("&")) {
+                if (param.isEmpty()) continue;
+                String[] pair = param.split("=", 2);
+                String key = pair[0];
+                String value = pair.length > 1 ? pair[1] : "";
+                parameters.put(key, value);
+            }
+        }
+        return parameters;
+    }
+
+    // Non-empty path segments of a URI, ignoring the query string
+    static String[] splitSegments(String fullUri) {
+        int idx = fullUri.indexOf('?');
+        String uri = idx >= 0 ? fullUri.substring(0, idx) : fullUri;
+        return Arrays.stream(uri.split("/"))
+                .filter(segment -> !segment.isEmpty())
+                .toArray(String[]::new);
+    }
+
     // Reads a line from InputStream, terminated by \r\n, returns ISO-8859-1 String.
     private static String readLine(InputStream in) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -112,22 +136,44 @@ public class RequestParser {
         return baos.size() == 0 && curr == -1 ? null : baos.toString("ISO-8859-1");
     }
 
-    // --- Your inner class stays the same ---
     public static class RequestInfo {
-        private final Map<String, String> headers;
+        // headers, uriSegments and parameters are built on first use when the request came from the
+        // IncrementalRequestParser; rawHeaders is then the source for headers
+        private Map<String, String> headers;
         private final String httpCommand;
         private final String uri;
-        private final String[] uriSegments;
-        private final Map<String, String> parameters;
-        private final byte[] content;
+        private String[] uriSegments;
+        private Map<String, String> parameters;
+        // Either the buffered body, or the stream it is read from (see getBody)
+        private byte[] content;
+        private RequestBody body;
+        private final String httpVersion;
+        private final IncrementalRequestParser.RawHeaders rawHeaders;
+        // Bound by the router from "{name}" segments of the matched servlet pattern
+        private Map<String, String> pathParameters = Collections.emptyMap();
 
         public RequestInfo(String httpCommand, String uri, String[] uriSegments, Map<String, String> parameters, Map<String, String> headers, byte[] content) {
+            this(httpCommand, uri, uriSegments, parameters, headers, content, "HTTP/1.1");
+        }
+
+        public RequestInfo(String httpCommand, String uri, String[] uriSegments, Map<String, String> parameters, Map<String, String> headers, byte[] content, String httpVersion) {
+            this.httpVersion = httpVersion;
             this.httpCommand = httpCommand;
             this.uri = uri;
             this.uriSegments = uriSegments;
             this.parameters = parameters;
             this.content = content;
             this.headers = headers;
+            this.rawHeaders = null;
+        }
+
+        // Used by IncrementalRequestParser: everything but the method, URI and framing headers is derived lazily.
+        // The engine attaches the body stream with setBody.
+        RequestInfo(String httpCommand, String uri, String httpVersion, IncrementalRequestParser.RawHeaders rawHeaders) {
+            this.httpCommand = httpCommand;
+            this.uri = uri;
+            this.httpVersion = httpVersion;
+            this.rawHeaders = rawHeaders;
         }
 
         public String getHttpCommand() {
@@ -139,18 +185,146 @@ public class RequestParser {
         }
 
         public String[] getUriSegments() {
+            if (uriSegments == null) {
+                uriSegments = splitSegments(uri);
+            }
             return uriSegments;
         }
 
         public Map<String, String> getParameters() {
+            if (parameters == null) {
+                parameters = parseQuery(uri);
+            }
             return parameters;
         }
 
+        /**
+         * The whole body in memory. On the first call the rest of the body stream is read and kept, so this is
+         * the opt-in to buffering: servlets that can process the body as it arrives should use {@link #getBody()}.
+         *
+         * @throws UncheckedIOException if the body cannot be read or exceeds the server's buffering limit
+         */
         public byte[] getContent() {
+            if (content == null) {
+                try {
+                    content = body == null ? new byte[0] : body.readFully();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                body = null;
+            }
             return content;
         }
 
-        public Map<String, String> getHeaders() { return headers; }
-        public String getHeader(String key) { return headers.get(key); }
+        /**
+         * The body as a stream that ends with the request body. Bytes are read from the connection on demand.
+         * Whatever the servlet leaves unread is discarded by the server after {@code handle} returns.
+         */
+        public InputStream getBody() {
+            if (body != null) {
+                return body;
+            }
+            return new ByteArrayInputStream(content == null ? new byte[0] : content);
+        }
+
+        /**
+         * {@link #getBody()} as a channel, for servlets that read into {@link java.nio.ByteBuffer}s.
+         */
+        public ReadableByteChannel getBodyChannel() {
+            return Channels.newChannel(getBody());
+        }
+
+        /**
+         * @return the declared {@code Content-Length}, or -1 if the body is chunked or its length is unknown
+         */
+        public long getContentLength() {
+            if (rawHeaders != null) {
+                return rawHeaders.isChunked() ? -1 : rawHeaders.contentLength;
+            }
+            return content != null ? content.length : -1;
+        }
+
+        /**
+         * @return whether the body is sent with {@code Transfer-Encoding: chunked}
+         */
+        public boolean isChunked() {
+            return rawHeaders != null && rawHeaders.isChunked();
+        }
+
+        // Whether a body follows the head on the connection
+        boolean hasBody() {
+            return rawHeaders != null && (rawHeaders.isChunked() || rawHeaders.contentLength > 0);
+        }
+
+        void setBody(RequestBody body) {
+            this.body = body;
+        }
+
+        RequestBody body() {
+            return body;
+        }
+
+        public Map<String, String> getHeaders() {
+            if (headers == null) {
+                headers = rawHeaders.toMap();
+            }
+            return headers;
+        }
+        public String getHeader(String key) { return getHeaders().get(key); }
+
+        /**
+         * The {@code Accept-Encoding} header, which every response consults, without building the header map.
+         */
+        String acceptEncoding() {
+            return headers == null ? rawHeaders.acceptEncoding : getHeader("Accept-Encoding");
+        }
+
+        /**
+         * The {@code Connection} header, which the engine checks on every request, without building the header map.
+         */
+        String connectionHeader() {
+            return headers == null ? rawHeaders.connection : getHeader("Connection");
+        }
+
+        /**
+         * Size of the request head as received, 0 for a request not read off a connection.
+         */
+        int headBytes() {
+            return rawHeaders == null ? 0 : rawHeaders.length();
+        }
+
+        /**
+         * Path parameters bound by the matched servlet pattern, e.g. {@code name} for {@code /topics/{name}}.
+         */
+        public Map<String, String> getPathParameters() {
+            return pathParameters;
+        }
+
+        public String getPathParameter(String name) {
+            return pathParameters.get(name);
+        }
+
+        void setPathParameters(Map<String, String> pathParameters) {
+            this.pathParameters = pathParameters;
+        }
+
+        public String getHttpVersion() {
+            return httpVersion;
+        }
+
+        /**
+         * Whether the client allows the connection to be reused after this request.
+         * HTTP/1.1 connections persist unless the client sends {@code Connection: close};
+         * HTTP/1.0 connections persist only with {@code Connection: keep-alive}.
+         */
+        public boolean isKeepAlive() {
+            String connection = connectionHeader();
+            if (connection != null) {
+                String value = connection.toLowerCase();
+                if (value.contains("close")) return false;
+                if (value.contains("keep-alive")) return true;
+            }
+            return "HTTP/1.1".equals(httpVersion);
+        }
     }
 }
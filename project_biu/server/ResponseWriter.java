@@ -0,0 +1,293 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ResponseWriter is how a servlet answers a request: set the status and headers, then write the body.
+ * <p>
+ * The server owns the framing. Body bytes are collected in a pooled buffer; a response that fits is sent with a
+ * {@code Content-Length}, head and body in one write. A body that outgrows the buffer, or that the servlet
+ * {@link #flush() flushes} before it is done, is streamed with {@code Transfer-Encoding: chunked} instead
+ * (HTTP/1.0: until the connection closes). The {@code Connection} header is set by the server as well.
+ * </p>
+ * <p>
+ * Text-like bodies are compressed with the coding the client prefers ({@code gzip} or {@code deflate}) once they
+ * reach the server's compression threshold. A servlet that sends an already encoded body sets
+ * {@code Content-Encoding} itself, see {@link #acceptsEncoding(String)}; the body is then passed through as is.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * response.status(200)
+ *         .contentType("text/html; charset=UTF-8")
+ *         .send(html.getBytes(StandardCharsets.UTF_8));
+ * }</pre>
+ * The status and headers can no longer be changed once the response is {@link #isCommitted() committed}.
+ */
+public abstract class ResponseWriter extends OutputStream {
+    private int status = 200;
+    private String reason;
+    private String contentType;
+    private String contentEncoding;
+    private long contentLength = -1;
+    // Request's Accept-Encoding and the smallest body worth compressing (negative: never), set by the engine
+    private String acceptEncoding;
+    private int compressionThreshold = -1;
+    // Further headers in the order they were set
+    private final List<String> headerNames = new ArrayList<>(4);
+    private final List<String> headerValues = new ArrayList<>(4);
+    // Whether the servlet has started a response at all
+    private boolean touched;
+
+    /**
+     * Set the status code; the reason phrase is the standard one.
+     */
+    public ResponseWriter status(int status) {
+        return status(status, null);
+    }
+
+    public ResponseWriter status(int status, String reason) {
+        checkNotCommitted();
+        touched = true;
+        this.status = status;
+        this.reason = reason;
+        return this;
+    }
+
+    public ResponseWriter contentType(String contentType) {
+        checkNotCommitted();
+        touched = true;
+        this.contentType = contentType;
+        return this;
+    }
+
+    /**
+     * Declare the body length up front, so a streamed body does not need chunked encoding.
+     */
+    public ResponseWriter contentLength(long contentLength) {
+        checkNotCommitted();
+        touched = true;
+        this.contentLength = contentLength;
+        return this;
+    }
+
+    /**
+     * Add a response header. {@code Content-Type} and {@code Content-Length} are the same as the dedicated setters;
+     * {@code Connection} and {@code Transfer-Encoding} are managed by the server and ignored here.
+     */
+    public ResponseWriter header(String name, String value) {
+        if (name.equalsIgnoreCase("Content-Type")) {
+            return contentType(value);
+        }
+        if (name.equalsIgnoreCase("Content-Length")) {
+            return contentLength(Long.parseLong(value.trim()));
+        }
+        checkNotCommitted();
+        touched = true;
+        if (name.equalsIgnoreCase("Content-Encoding")) {
+            contentEncoding = value;
+        }
+        if (!name.equalsIgnoreCase("Connection") && !name.equalsIgnoreCase("Transfer-Encoding")) {
+            headerNames.add(name);
+            headerValues.add(value);
+        }
+        return this;
+    }
+
+    /**
+     * Send {@code body} as the complete response body.
+     */
+    public void send(byte[] body) throws IOException {
+        contentLength(body.length);
+        write(body, 0, body.length);
+        close();
+    }
+
+    /**
+     * Send the remaining bytes of {@code body} as the complete response body. The writer may hand the buffer to the
+     * connection as is instead of copying it, so its content must not change afterwards; the buffer's position is
+     * left alone.
+     */
+    public void send(ByteBuffer body) throws IOException {
+        ByteBuffer src = body.duplicate();
+        contentLength(src.remaining());
+        byte[] chunk = new byte[Math.min(src.remaining(), 8192)];
+        while (src.hasRemaining()) {
+            int n = Math.min(chunk.length, src.remaining());
+            src.get(chunk, 0, n);
+            write(chunk, 0, n);
+        }
+        close();
+    }
+
+    /**
+     * Send {@code count} bytes of {@code file}, starting at {@code position}, as the complete response body. Where
+     * the engine can, the bytes go from the file to the socket without passing through the JVM
+     * ({@link FileChannel#transferTo}). The file is not closed; the bytes have been written when this returns.
+     */
+    public void sendFile(FileChannel file, long position, long count) throws IOException {
+        contentLength(count);
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(count, 8192));
+        while (count > 0) {
+            chunk.clear().limit((int) Math.min(chunk.capacity(), count));
+            int n = file.read(chunk, position);
+            if (n < 0) {
+                throw new EOFException("File ended " + count + " bytes before the end of the region");
+            }
+            write(chunk.array(), 0, n);
+            position += n;
+            count -= n;
+        }
+        close();
+    }
+
+    /**
+     * A UTF-8 writer onto the body. Flushing it only encodes pending characters; use {@link #flush()} on the
+     * response to push bytes to the client early.
+     */
+    public Writer writer() {
+        touched = true;
+        return new OutputStreamWriter(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                ResponseWriter.this.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ResponseWriter.this.write(b, off, len);
+            }
+        }, StandardCharsets.UTF_8);
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * Whether the client accepts a content coding, for servlets that keep precompressed bodies.
+     *
+     * @param coding e.g. {@code "gzip"}
+     */
+    public boolean acceptsEncoding(String coding) {
+        return Compression.accepts(acceptEncoding, coding);
+    }
+
+    /**
+     * @return whether the status line and headers have been sent
+     */
+    public abstract boolean isCommitted();
+
+    /**
+     * Keep the response open after the servlet returns: send the status and headers now, and hand the body over to
+     * a {@link DetachedResponse} that any thread may write to later without blocking. The servlet's thread is free
+     * as soon as it returns, and the connection carries nothing else until the detached response ends. The body is
+     * not compressed and has no declared length. Bytes written before are sent first.
+     *
+     * @throws IllegalStateException if the response is already committed, or its status has no body
+     */
+    public abstract DetachedResponse detach() throws IOException;
+
+    // For the implementations
+
+    String reason() {
+        return reason != null ? reason : reasonPhrase(status);
+    }
+
+    String contentTypeValue() {
+        return contentType;
+    }
+
+    String contentEncodingValue() {
+        return contentEncoding;
+    }
+
+    void setCompression(String acceptEncoding, int threshold) {
+        this.acceptEncoding = acceptEncoding;
+        this.compressionThreshold = threshold;
+    }
+
+    String acceptEncodingValue() {
+        return acceptEncoding;
+    }
+
+    int compressionThreshold() {
+        return compressionThreshold;
+    }
+
+    long declaredLength() {
+        return contentLength;
+    }
+
+    List<String> headerNames() {
+        return headerNames;
+    }
+
+    List<String> headerValues() {
+        return headerValues;
+    }
+
+    boolean isTouched() {
+        return touched;
+    }
+
+    // Forget the status and headers set so far, so that an error can be sent in place of the response
+    void resetHead() {
+        checkNotCommitted();
+        status = 200;
+        reason = null;
+        contentType = null;
+        contentEncoding = null;
+        contentLength = -1;
+        headerNames.clear();
+        headerValues.clear();
+    }
+
+    void markTouched() {
+        touched = true;
+    }
+
+    private void checkNotCommitted() {
+        if (isCommitted()) {
+            throw new IllegalStateException("Response already committed");
+        }
+    }
+
+    static boolean isBodyless(int status) {
+        return status / 100 == 1 || status == 204 || status == 304;
+    }
+
+    static String reasonPhrase(int status) {
+        switch (status) {
+            case 100: return "Continue";
+            case 200: return "OK";
+            case 201: return "Created";
+            case 202: return "Accepted";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 408: return "Request Timeout";
+            case 413: return "Payload Too Large";
+            case 416: return "Range Not Satisfiable";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 501: return "Not Implemented";
+            case 503: return "Service Unavailable";
+            default: return "Unknown";
+        }
+    }
+}
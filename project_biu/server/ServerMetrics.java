@@ -0,0 +1,198 @@
+package server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ServerMetrics keeps request latency and size histograms per HTTP method and matched servlet prefix, and renders
+ * them in the Prometheus text format (see {@link #writePrometheus(Writer)} and {@code servlets.MetricsServlet}).
+ * <p>
+ * For every request the engines record:
+ * </p>
+ * <ul>
+ *   <li>{@code http_request_queue_wait_seconds}: from accept (blocking engine, first request of a connection) or
+ *   from the complete head (selector engine) until a worker starts on it</li>
+ *   <li>{@code http_request_parse_seconds}: time spent parsing the request head</li>
+ *   <li>{@code http_request_servlet_seconds}: time in the servlet</li>
+ *   <li>{@code http_request_bytes} and {@code http_response_bytes}: bytes read and written, heads included</li>
+ * </ul>
+ * <p>
+ * Requests that match no servlet are counted under the route {@code none}, requests refused under overload under
+ * {@code refused}; methods other than the standard ones are labelled {@code OTHER}, so clients cannot create
+ * series at will. Recording is lock-free and allocation-free (see {@link Histogram}); the cost is paid when the
+ * metrics are scraped.
+ * </p>
+ */
+public final class ServerMetrics {
+    static final String UNMATCHED = "none";
+    static final String REFUSED = "refused";
+    private static final Set<String> STANDARD_METHODS =
+            Set.of("GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PATCH", "TRACE", "CONNECT");
+
+    // Prometheus "le" bounds: latencies in seconds, sizes in bytes
+    private static final String[] SECONDS_BOUNDS = {"0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005",
+            "0.01", "0.025", "0.05", "0.1", "0.25", "0.5", "1", "2.5", "5", "10"};
+    private static final String[] BYTES_BOUNDS = {"64", "256", "1024", "4096", "16384", "65536", "262144",
+            "1048576", "4194304", "16777216"};
+
+    private final AdmissionControl admission;
+    // Method -> route pattern -> histograms
+    private final ConcurrentMap<String, ConcurrentMap<String, RouteMetrics>> routes = new ConcurrentHashMap<>();
+
+    ServerMetrics(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @param pattern The matched servlet pattern, or null if none matched
+     */
+    RouteMetrics route(String method, String pattern) {
+        String route = pattern == null ? UNMATCHED : pattern;
+        // A matched method is a registered one; an unmatched one comes straight from the client
+        String label = pattern != null || STANDARD_METHODS.contains(method) ? method : "OTHER";
+        ConcurrentMap<String, RouteMetrics> byRoute = routes.get(label);
+        if (byRoute == null) {
+            byRoute = routes.computeIfAbsent(label, m -> new ConcurrentHashMap<>());
+        }
+        RouteMetrics metrics = byRoute.get(route);
+        if (metrics == null) {
+            metrics = byRoute.computeIfAbsent(route, r -> new RouteMetrics());
+        }
+        return metrics;
+    }
+
+    RouteMetrics refused(String method) {
+        return route(STANDARD_METHODS.contains(method) ? method : "OTHER", REFUSED);
+    }
+
+    /**
+     * Record a finished request.
+     *
+     * @param bytesIn  Request head and body bytes read
+     * @param bytesOut Response bytes written
+     */
+    void record(Sample sample, long bytesIn, long bytesOut) {
+        RouteMetrics route = sample.route;
+        if (route == null) {
+            return;
+        }
+        if (sample.queueNanos >= 0) {
+            route.queueWait.record(sample.queueNanos);
+        }
+        route.parse.record(sample.parseNanos);
+        route.servlet.record(sample.servletNanos);
+        route.bytesIn.record(bytesIn);
+        route.bytesOut.record(bytesOut);
+    }
+
+    /**
+     * Write every metric in the Prometheus text exposition format (version 0.0.4).
+     */
+    public void writePrometheus(Writer out) throws IOException {
+        // Sorted, so consecutive scrapes list series in the same order
+        Map<String, Map<String, RouteMetrics>> snapshot = new TreeMap<>();
+        for (Map.Entry<String, ConcurrentMap<String, RouteMetrics>> e : routes.entrySet()) {
+            snapshot.put(e.getKey(), new TreeMap<>(e.getValue()));
+        }
+        long[] buckets = new long[Histogram.BUCKETS];
+        StringBuilder text = new StringBuilder(4096);
+        writeFamily(text, snapshot, buckets, "http_request_queue_wait_seconds",
+                "Time a request waited for a worker.", SECONDS_BOUNDS, true, m -> m.queueWait);
+        writeFamily(text, snapshot, buckets, "http_request_parse_seconds",
+                "Time spent parsing the request head.", SECONDS_BOUNDS, true, m -> m.parse);
+        writeFamily(text, snapshot, buckets, "http_request_servlet_seconds",
+                "Time spent in the servlet.", SECONDS_BOUNDS, true, m -> m.servlet);
+        writeFamily(text, snapshot, buckets, "http_request_bytes",
+                "Request size, head included.", BYTES_BOUNDS, false, m -> m.bytesIn);
+        writeFamily(text, snapshot, buckets, "http_response_bytes",
+                "Response size, head included.", BYTES_BOUNDS, false, m -> m.bytesOut);
+
+        text.append("# HELP http_requests_refused_total Work refused under overload.\n")
+                .append("# TYPE http_requests_refused_total counter\n")
+                .append("http_requests_refused_total{reason=\"queue_full\"} ").append(admission.rejected.get())
+                .append("\nhttp_requests_refused_total{reason=\"queue_delay\"} ").append(admission.shed.get())
+                .append("\nhttp_requests_refused_total{reason=\"method_limit\"} ").append(admission.limited.get())
+                .append('\n');
+        out.append(text);
+    }
+
+    private interface Select {
+        Histogram of(RouteMetrics metrics);
+    }
+
+    private static void writeFamily(StringBuilder text, Map<String, Map<String, RouteMetrics>> snapshot,
+                                    long[] buckets, String name, String help, String[] bounds, boolean nanos,
+                                    Select select) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(" histogram\n");
+        for (Map.Entry<String, Map<String, RouteMetrics>> byMethod : snapshot.entrySet()) {
+            for (Map.Entry<String, RouteMetrics> byRoute : byMethod.getValue().entrySet()) {
+                long sum = select.of(byRoute.getValue()).snapshot(buckets);
+                String labels = "method=\"" + escape(byMethod.getKey()) + "\",route=\"" + escape(byRoute.getKey())
+                        + "\"";
+                long cumulative = 0;
+                int bucket = 0;
+                for (String bound : bounds) {
+                    long limit = nanos ? Math.round(Double.parseDouble(bound) * 1e9) : Long.parseLong(bound);
+                    // Only buckets that lie entirely at or below the bound: a le bucket must not count larger values
+                    while (bucket < Histogram.BUCKETS && Histogram.upperBound(bucket) <= limit) {
+                        cumulative += buckets[bucket++];
+                    }
+                    text.append(name).append("_bucket{").append(labels).append(",le=\"").append(bound).append("\"} ")
+                            .append(cumulative).append('\n');
+                }
+                while (bucket < Histogram.BUCKETS) {
+                    cumulative += buckets[bucket++];
+                }
+                text.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(cumulative)
+                        .append('\n');
+                text.append(name).append("_sum{").append(labels).append("} ");
+                if (nanos) {
+                    text.append(sum / 1e9);
+                } else {
+                    text.append(sum);
+                }
+                text.append('\n');
+                text.append(name).append("_count{").append(labels).append("} ").append(cumulative).append('\n');
+            }
+        }
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * Histograms of one method and route.
+     */
+    static final class RouteMetrics {
+        final Histogram queueWait = new Histogram();
+        final Histogram parse = new Histogram();
+        final Histogram servlet = new Histogram();
+        final Histogram bytesIn = new Histogram();
+        final Histogram bytesOut = new Histogram();
+    }
+
+    /**
+     * Measurements of the request in progress on a connection, reused for every request on it.
+     */
+    static final class Sample {
+        // -1 when the request did not wait in the worker queue (a later request on a blocking connection)
+        long queueNanos = -1;
+        long parseNanos;
+        long servletNanos;
+        RouteMetrics route;
+
+        void reset() {
+            queueNanos = -1;
+            parseNanos = 0;
+            servletNanos = 0;
+            route = null;
+        }
+    }
+}
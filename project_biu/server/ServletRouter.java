@@ -0,0 +1,289 @@
+package server;
+
+import servlets.Servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ServletRouter maps an HTTP method and request path to the servlet registered for the longest matching prefix.
+ * <p>
+ * Routes are kept in one segment trie per method. The trie is immutable: {@link #add} and {@link #remove} copy the
+ * nodes along the changed path and publish a new snapshot through a volatile field, so {@link #match} never locks
+ * and costs O(path length) no matter how many routes are registered (a level with a parameter child may be walked
+ * twice when the literal branch only matches part of the path).
+ * </p>
+ * <p>
+ * Matching is by whole path segments: {@code /publish} matches {@code /publish}, {@code /publish?topic=A} and
+ * {@code /publish/x}, but not {@code /publisher}. A pattern ending in {@code /} (e.g. {@code /app/}) only matches
+ * paths that continue past it. A segment written as {@code {name}} matches any single segment and binds it as a path
+ * parameter; literal segments win over parameters. Each trie level holds one parameter name.
+ * </p>
+ */
+final class ServletRouter {
+    private static final Node EMPTY = new Node(Collections.emptyMap(), null, null, null);
+
+    // HTTP method -> trie root; replaced as a whole on every change
+    private volatile Map<String, Node> roots = Collections.emptyMap();
+
+    /**
+     * Register (or replace) the servlet for a method and URI pattern.
+     */
+    synchronized void add(String method, String pattern, Servlet servlet) {
+        List<String> segments = segments(pattern);
+        Route route = new Route(pattern, servlet, !segments.isEmpty() && pattern.endsWith("/"));
+        Map<String, Node> next = new HashMap<>(roots);
+        next.put(method, next.getOrDefault(method, EMPTY).with(segments, 0, route));
+        roots = Collections.unmodifiableMap(next);
+    }
+
+    /**
+     * Remove the servlet registered for exactly this method and URI pattern, if any.
+     *
+     * @return the removed servlet, or null
+     */
+    synchronized Servlet remove(String method, String pattern) {
+        Node root = roots.get(method);
+        if (root == null) {
+            return null;
+        }
+        List<String> segments = segments(pattern);
+        Route removed = root.find(segments, 0);
+        if (removed == null) {
+            return null;
+        }
+        Map<String, Node> next = new HashMap<>(roots);
+        Node newRoot = root.without(segments, 0);
+        if (newRoot == null) {
+            next.remove(method);
+        } else {
+            next.put(method, newRoot);
+        }
+        roots = Collections.unmodifiableMap(next);
+        return removed.servlet;
+    }
+
+    /**
+     * @return every registered servlet once, even if it serves several routes
+     */
+    List<Servlet> servlets() {
+        Map<Servlet, Boolean> seen = new IdentityHashMap<>();
+        for (Node root : roots.values()) {
+            root.collect(seen);
+        }
+        return new ArrayList<>(seen.keySet());
+    }
+
+    /**
+     * Find the route for a request.
+     *
+     * @param method HTTP method
+     * @param uri    Request URI, optionally with a query string
+     * @return the longest matching route with its bound path parameters, or null if nothing matches
+     */
+    Match match(String method, String uri) {
+        Node root = roots.get(method);
+        if (root == null) {
+            return null;
+        }
+        int end = uri.indexOf('?');
+        if (end < 0) {
+            end = uri.length();
+        }
+        int pos = 0;
+        while (pos < end && uri.charAt(pos) == '/') {
+            pos++;
+        }
+        return find(root, uri, pos, end, pos > 0, null, 0);
+    }
+
+    // Deepest route at or below node for path[pos..end); literal children are tried before the parameter child,
+    // which is only explored when the literal branch did not match the whole path
+    private static Match find(Node node, String path, int pos, int end, boolean slashed, Binding params, int depth) {
+        if (pos < end) {
+            int segEnd = path.indexOf('/', pos);
+            if (segEnd < 0 || segEnd > end) {
+                segEnd = end;
+            }
+            int next = segEnd;
+            while (next < end && path.charAt(next) == '/') {
+                next++;
+            }
+            boolean slash = segEnd < end;
+            Match deeper = null;
+            if (!node.children.isEmpty()) {
+                Node child = node.children.get(path.substring(pos, segEnd));
+                if (child != null) {
+                    deeper = find(child, path, next, end, slash, params, depth + 1);
+                }
+            }
+            if (node.paramChild != null && (deeper == null || !deeper.complete)) {
+                Binding bound = new Binding(node.paramName, path.substring(pos, segEnd), params);
+                Match viaParam = find(node.paramChild, path, next, end, slash, bound, depth + 1);
+                if (viaParam != null && (deeper == null || viaParam.depth > deeper.depth)) {
+                    deeper = viaParam;
+                }
+            }
+            if (deeper != null) {
+                return deeper;
+            }
+        }
+        Route route = node.route;
+        if (route != null && (slashed || pos < end || !route.directory)) {
+            return new Match(route, params, depth, pos >= end);
+        }
+        return null;
+    }
+
+    private static List<String> segments(String pattern) {
+        List<String> segments = new ArrayList<>();
+        int q = pattern.indexOf('?');
+        for (String s : (q < 0 ? pattern : pattern.substring(0, q)).split("/")) {
+            if (!s.isEmpty()) {
+                segments.add(s);
+            }
+        }
+        return segments;
+    }
+
+    private static boolean isParam(String segment) {
+        return segment.length() > 2 && segment.charAt(0) == '{' && segment.charAt(segment.length() - 1) == '}';
+    }
+
+    /**
+     * The result of a lookup: the servlet, the pattern it was registered under and the bound path parameters.
+     */
+    static final class Match {
+        final Servlet servlet;
+        final String pattern;
+        final Map<String, String> pathParameters;
+        // Path segments consumed by the pattern, and whether they were all of them
+        private final int depth;
+        private final boolean complete;
+
+        private Match(Route route, Binding params, int depth, boolean complete) {
+            this.servlet = route.servlet;
+            this.pattern = route.pattern;
+            this.pathParameters = params == null ? Collections.emptyMap() : params.toMap();
+            this.depth = depth;
+            this.complete = complete;
+        }
+    }
+
+    private static final class Route {
+        final String pattern;
+        final Servlet servlet;
+        // Pattern ends with '/', so the path has to continue past it
+        final boolean directory;
+
+        Route(String pattern, Servlet servlet, boolean directory) {
+            this.pattern = pattern;
+            this.servlet = servlet;
+            this.directory = directory;
+        }
+    }
+
+    // Path parameters bound while descending, newest first
+    private static final class Binding {
+        final String name;
+        final String value;
+        final Binding parent;
+
+        Binding(String name, String value, Binding parent) {
+            this.name = name;
+            this.value = value;
+            this.parent = parent;
+        }
+
+        Map<String, String> toMap() {
+            Map<String, String> map = new LinkedHashMap<>();
+            for (Binding b = this; b != null; b = b.parent) {
+                map.putIfAbsent(b.name, b.value);
+            }
+            return Collections.unmodifiableMap(map);
+        }
+    }
+
+    // Immutable trie node
+    private static final class Node {
+        final Map<String, Node> children;
+        final Node paramChild;
+        final String paramName;
+        final Route route;
+
+        Node(Map<String, Node> children, Node paramChild, String paramName, Route route) {
+            this.children = children;
+            this.paramChild = paramChild;
+            this.paramName = paramName;
+            this.route = route;
+        }
+
+        // Copy of this node with the route stored at segments[i..]
+        Node with(List<String> segments, int i, Route r) {
+            if (i == segments.size()) {
+                return new Node(children, paramChild, paramName, r);
+            }
+            String segment = segments.get(i);
+            if (isParam(segment)) {
+                Node child = (paramChild == null ? EMPTY : paramChild).with(segments, i + 1, r);
+                return new Node(children, child, segment.substring(1, segment.length() - 1), route);
+            }
+            Map<String, Node> copy = new HashMap<>(children);
+            copy.put(segment, children.getOrDefault(segment, EMPTY).with(segments, i + 1, r));
+            return new Node(Collections.unmodifiableMap(copy), paramChild, paramName, route);
+        }
+
+        // Copy of this node without the route at segments[i..]; null when the node becomes empty
+        Node without(List<String> segments, int i) {
+            Node result;
+            if (i == segments.size()) {
+                result = new Node(children, paramChild, paramName, null);
+            } else if (isParam(segments.get(i))) {
+                Node child = paramChild == null ? null : paramChild.without(segments, i + 1);
+                result = new Node(children, child, child == null ? null : paramName, route);
+            } else {
+                Node child = children.get(segments.get(i));
+                if (child == null) {
+                    return this;
+                }
+                Map<String, Node> copy = new HashMap<>(children);
+                Node newChild = child.without(segments, i + 1);
+                if (newChild == null) {
+                    copy.remove(segments.get(i));
+                } else {
+                    copy.put(segments.get(i), newChild);
+                }
+                result = new Node(Collections.unmodifiableMap(copy), paramChild, paramName, route);
+            }
+            boolean empty = result.route == null && result.paramChild == null && result.children.isEmpty();
+            return empty ? null : result;
+        }
+
+        void collect(Map<Servlet, Boolean> seen) {
+            if (route != null) {
+                seen.put(route.servlet, Boolean.TRUE);
+            }
+            for (Node child : children.values()) {
+                child.collect(seen);
+            }
+            if (paramChild != null) {
+                paramChild.collect(seen);
+            }
+        }
+
+        // The route registered at exactly segments[i..], or null
+        Route find(List<String> segments, int i) {
+            if (i == segments.size()) {
+                return route;
+            }
+            String segment = segments.get(i);
+            Node child = isParam(segment) ? paramChild : children.get(segment);
+            return child == null ? null : child.find(segments, i + 1);
+        }
+    }
+}
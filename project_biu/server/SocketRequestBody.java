@@ -0,0 +1,54 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * SocketRequestBody reads a request body from a blocking socket for {@link MyHTTPServer}.
+ * <p>
+ * Bytes that arrived together with the head are taken from the connection's buffer first; after that the buffer is
+ * refilled from the socket as the servlet reads. Whatever the last read brings in beyond the body stays in the
+ * buffer for the next request.
+ * </p>
+ */
+final class SocketRequestBody extends RequestBody {
+    private final InputStream in;
+    private final ByteBuffer buffer;
+    private final BodyDecoder decoder;
+
+    /**
+     * @param in     The socket's input stream
+     * @param buffer The connection buffer in read mode, shared with the request parser
+     */
+    SocketRequestBody(InputStream in, ByteBuffer buffer, BodyDecoder decoder) {
+        this.in = in;
+        this.buffer = buffer;
+        this.decoder = decoder;
+    }
+
+    @Override
+    protected int readBody(byte[] b, int off, int len) throws IOException {
+        while (true) {
+            int n = decoder.decode(buffer, b, off, len);
+            if (n > 0) {
+                return n;
+            }
+            if (decoder.isComplete()) {
+                return -1;
+            }
+            // The decoder consumed everything buffered, refill from the start
+            int read = in.read(buffer.array(), 0, buffer.capacity());
+            if (read == -1) {
+                throw new EOFException("Connection closed before the end of the request body");
+            }
+            buffer.clear().limit(read);
+        }
+    }
+
+    @Override
+    boolean isComplete() {
+        return decoder.isComplete();
+    }
+}
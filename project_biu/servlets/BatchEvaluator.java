@@ -0,0 +1,334 @@
+package servlets;
+
+import log.Log;
+import log.Logger;
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import graph.BatchPlan;
+import graph.Graph;
+import graph.TopicManagerSingleton;
+
+/**
+ * BatchEvaluator is a servlet that evaluates the current graph over many rows of input values in one POST request,
+ * for graphs used as scoring models, without publishing anything.
+ * <p>
+ * The graph is planned with {@link BatchPlan} when it has changed since the last request, and evaluated a column
+ * at a time. The body gives a
+ * column per input topic of the graph (the topics no agent writes) and the response holds a column per computed
+ * topic, or only the topics named by the {@code outputs} parameter, in that order. Two formats:
+ * </p>
+ * <ul>
+ * <li>CSV, the default: a header line with the input topics, then a line of values per row. The response is CSV
+ * the same way.</li>
+ * <li>Binary, with {@code Content-Type: application/octet-stream}: the {@code columns} parameter names the input
+ * topics, and the body holds their columns one after the other, each as the row values in IEEE 754 doubles,
+ * little-endian. The response is the output columns the same way, named in the {@code X-Columns} header.</li>
+ * </ul>
+ * A request the graph cannot evaluate is answered with 400 and {@code {"error":"..."}}. More rows than the servlet
+ * takes ({@value #DEFAULT_MAX_ROWS} unless given), or a binary body larger than the server buffers
+ * ({@code setMaxBufferedBody}), is answered with 413 the same way.
+ * <p>
+ * A batch holds a worker for as long as it runs, so the route has a concurrency limit of its own, apart from uploads
+ * and bulk feeds: {@code Main} allows one batch at a time and answers more with 503.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * server.addServlet("POST", "/evaluate", new BatchEvaluator());
+ * server.setConcurrencyLimit("POST", "/evaluate", 1);
+ * // curl --data-binary @rows.csv -H 'Content-Type: text/csv' 'http://localhost:8080/evaluate?outputs=D'
+ * }</pre>
+ */
+public class BatchEvaluator implements Servlet {
+    private static final Logger LOG = Log.getLogger(BatchEvaluator.class);
+    static final String BINARY = "application/octet-stream";
+    // Longer CSV lines are rejected
+    static final int MAX_LINE_BYTES = 8192;
+    // CSV rows written to the response at a time
+    static final int ROWS_PER_WRITE = 256;
+    static final int DEFAULT_MAX_ROWS = 1_000_000;
+
+    private final int maxRows;
+    // The plan of the graph at a version of it, replaced once the graph changes
+    private volatile Planned planned;
+
+    public BatchEvaluator() {
+        this(DEFAULT_MAX_ROWS);
+    }
+
+    /**
+     * @param maxRows Most rows a request may have
+     */
+    public BatchEvaluator(int maxRows) {
+        this.maxRows = maxRows;
+    }
+
+    @Override
+    public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+        String contentType = ri.getHeader("Content-Type");
+        boolean binary = contentType != null && contentType.startsWith(BINARY);
+        Map<String, double[]> outputs;
+        try {
+            BatchPlan plan = plan();
+            Map<String, double[]> columns = binary ? readBinary(ri) : readCsv(ri.getBody());
+            long start = System.nanoTime();
+            outputs = select(plan.evaluate(columns), ri.getParameters().get("outputs"));
+            int rows = columns.isEmpty() ? 0 : columns.values().iterator().next().length;
+            LOG.debug(() -> "Batch of " + rows + " rows evaluated in " + (System.nanoTime() - start) / 1000 + " us");
+        } catch (TooLarge e) {
+            sendError(response, 413, e.getMessage());
+            return;
+        } catch (IllegalArgumentException e) {
+            sendError(response, 400, e.getMessage());
+            return;
+        }
+        if (binary) {
+            writeBinary(outputs, response);
+        } else {
+            writeCsv(outputs, response);
+        }
+    }
+
+    private static void sendError(ResponseWriter response, int status, String message) throws IOException {
+        StringBuilder error = new StringBuilder("{\"error\":");
+        Json.appendString(error, String.valueOf(message));
+        response.status(status).contentType("application/json")
+                .send(error.append('}').toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Graphs change only with uploads, so the plan is built again only then
+    private BatchPlan plan() {
+        long version = TopicManagerSingleton.get().getGraphVersion();
+        Planned p = planned;
+        if (p != null && p.version == version) {
+            return p.plan;
+        }
+        // A change while planning leaves the older version with the plan, and only causes one more plan
+        Graph graph = new Graph();
+        graph.createFromTopics();
+        BatchPlan plan = BatchPlan.compile(graph);
+        planned = new Planned(version, plan);
+        return plan;
+    }
+
+    // Only the named columns, in that order; all of them without names
+    private static Map<String, double[]> select(Map<String, double[]> outputs, String names) {
+        if (names == null || names.isEmpty()) {
+            return outputs;
+        }
+        Map<String, double[]> selected = new LinkedHashMap<>();
+        for (String name : names.split(",")) {
+            double[] column = outputs.get(name.trim());
+            if (column == null) {
+                throw new IllegalArgumentException("\"" + name.trim() + "\" is not computed by the graph");
+            }
+            selected.put(name.trim(), column);
+        }
+        return selected;
+    }
+
+    private Map<String, double[]> readBinary(RequestInfo ri) {
+        String names = ri.getParameters().get("columns");
+        if (names == null || names.isEmpty()) {
+            throw new IllegalArgumentException("The columns parameter is missing");
+        }
+        String[] columns = names.split(",");
+        long maxBytes = (long) columns.length * Double.BYTES * maxRows;
+        if (ri.getContentLength() > maxBytes) {
+            throw new TooLarge("More than " + maxRows + " rows");
+        }
+        byte[] content;
+        try {
+            // Buffered up to the server's limit; past it, or if the connection fails, no rows can be read
+            content = ri.getContent();
+        } catch (UncheckedIOException e) {
+            throw new TooLarge(e.getCause().getMessage());
+        }
+        if (content.length > maxBytes) {
+            throw new TooLarge("More than " + maxRows + " rows");
+        }
+        ByteBuffer body = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+        long columnBytes = (long) body.remaining() / columns.length;
+        if (body.remaining() % columns.length != 0 || columnBytes % Double.BYTES != 0) {
+            throw new IllegalArgumentException("The body is not " + columns.length + " columns of doubles");
+        }
+        int rows = (int) (columnBytes / Double.BYTES);
+        Map<String, double[]> values = new LinkedHashMap<>();
+        for (String name : columns) {
+            double[] column = new double[rows];
+            body.asDoubleBuffer().get(column);
+            body.position(body.position() + rows * Double.BYTES);
+            if (values.put(name.trim(), column) != null) {
+                throw new IllegalArgumentException("Column \"" + name.trim() + "\" given twice");
+            }
+        }
+        return values;
+    }
+
+    private Map<String, double[]> readCsv(InputStream body) throws IOException {
+        Csv csv = new Csv(maxRows);
+        byte[] chunk = new byte[8192];
+        byte[] line = new byte[MAX_LINE_BYTES];
+        int lineLength = 0;
+        int n;
+        while ((n = body.read(chunk, 0, chunk.length)) != -1) {
+            for (int i = 0; i < n; i++) {
+                byte b = chunk[i];
+                if (b == '\n') {
+                    csv.line(line, lineLength);
+                    lineLength = 0;
+                } else if (lineLength < line.length) {
+                    line[lineLength++] = b;
+                } else {
+                    throw new IllegalArgumentException("Line " + (csv.lineNumber + 1) + " is longer than "
+                            + MAX_LINE_BYTES + " bytes");
+                }
+            }
+        }
+        if (lineLength > 0) {
+            csv.line(line, lineLength);
+        }
+        return csv.columns();
+    }
+
+    // Columns parsed so far
+    private static final class Csv {
+        final int maxRows;
+        String[] names;
+        double[][] values;
+        int rows;
+        int lineNumber;
+
+        Csv(int maxRows) {
+            this.maxRows = maxRows;
+        }
+
+        void line(byte[] bytes, int length) {
+            lineNumber++;
+            String text = new String(bytes, 0, length, StandardCharsets.UTF_8).trim();
+            if (text.isEmpty()) {
+                return;
+            }
+            String[] fields = text.split(",", -1);
+            if (names == null) {
+                names = fields;
+                values = new double[fields.length][1024];
+                return;
+            }
+            if (fields.length != names.length) {
+                throw new IllegalArgumentException("Line " + lineNumber + " has " + fields.length + " fields, not "
+                        + names.length);
+            }
+            if (rows == maxRows) {
+                throw new TooLarge("More than " + maxRows + " rows");
+            }
+            if (rows == values[0].length) {
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = Arrays.copyOf(values[c], (int) Math.min((long) rows * 2, maxRows));
+                }
+            }
+            for (int c = 0; c < fields.length; c++) {
+                try {
+                    values[c][rows] = Double.parseDouble(fields[c]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Line " + lineNumber + ": \"" + fields[c].trim()
+                            + "\" is not a number");
+                }
+            }
+            rows++;
+        }
+
+        Map<String, double[]> columns() {
+            if (names == null) {
+                throw new IllegalArgumentException("The header line is missing");
+            }
+            Map<String, double[]> columns = new LinkedHashMap<>();
+            for (int c = 0; c < names.length; c++) {
+                if (columns.put(names[c].trim(), Arrays.copyOf(values[c], rows)) != null) {
+                    throw new IllegalArgumentException("Column \"" + names[c].trim() + "\" given twice");
+                }
+            }
+            return columns;
+        }
+    }
+
+    private static void writeBinary(Map<String, double[]> outputs, ResponseWriter response) throws IOException {
+        long length = 0;
+        for (double[] column : outputs.values()) {
+            length += (long) column.length * Double.BYTES;
+        }
+        response.contentType(BINARY).header("X-Columns", String.join(",", outputs.keySet())).contentLength(length);
+        ByteBuffer buffer = ByteBuffer.allocate(8192).order(ByteOrder.LITTLE_ENDIAN);
+        for (double[] column : outputs.values()) {
+            for (double v : column) {
+                if (!buffer.hasRemaining()) {
+                    response.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                buffer.putDouble(v);
+            }
+        }
+        response.write(buffer.array(), 0, buffer.position());
+        response.close();
+    }
+
+    private static void writeCsv(Map<String, double[]> outputs, ResponseWriter response) throws IOException {
+        List<double[]> columns = new ArrayList<>(outputs.values());
+        int rows = columns.isEmpty() ? 0 : columns.get(0).length;
+        response.contentType("text/csv; charset=UTF-8");
+        Writer writer = response.writer();
+        StringBuilder sb = new StringBuilder(String.join(",", outputs.keySet())).append('\n');
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns.size(); c++) {
+                if (c > 0) {
+                    sb.append(',');
+                }
+                sb.append(columns.get(c)[r]);
+            }
+            sb.append('\n');
+            if (r % ROWS_PER_WRITE == ROWS_PER_WRITE - 1) {
+                writer.append(sb);
+                sb.setLength(0);
+            }
+        }
+        writer.append(sb);
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Nothing to release
+    }
+
+    private static final class Planned {
+        final long version;
+        final BatchPlan plan;
+
+        Planned(long version, BatchPlan plan) {
+            this.version = version;
+            this.plan = plan;
+        }
+    }
+
+    // A request with more rows than the servlet takes
+    private static final class TooLarge extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        TooLarge(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package servlets;
+
+import log.Log;
+import log.Logger;
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import graph.Message;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+
+/**
+ * BulkPublisher is a servlet that publishes many topic values from one POST request.
+ * <p>
+ * The body holds one record per line, either CSV ({@code topic,value}, fields may be double-quoted) or NDJSON
+ * ({@code {"topic":"A","value":42}}); each line is recognised on its own. A first line {@code topic,value} is taken
+ * as a header. The body is read as it arrives and records are published through {@link TopicManager} in batches of
+ * {@value #BATCH_SIZE}, so a feed of any length is loaded with constant memory. Like {@link TopicDisplayer}, only
+ * topics of the current graph are accepted.
+ * </p>
+ * The response is a JSON summary rather than a page:
+ * <pre>{@code
+ * {"accepted":998,"rejected":2,"rejectedLines":[{"line":4,"reason":"Unknown topic \"Q\""},...]}
+ * }</pre>
+ * Only the first {@value #MAX_REPORTED} rejected lines are listed.
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * server.addServlet("POST", "/publish/bulk", new BulkPublisher());
+ * // curl --data-binary @feed.csv -H 'Content-Type: text/csv' http://localhost:8080/publish/bulk
+ * }</pre>
+ */
+public class BulkPublisher implements Servlet {
+    private static final Logger LOG = Log.getLogger(BulkPublisher.class);
+    static final int BATCH_SIZE = 256;
+    static final int MAX_REPORTED = 50;
+    // Longer lines are rejected without being held in memory
+    static final int MAX_LINE_BYTES = 8192;
+
+    @Override
+    public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+        Batch batch = new Batch(TopicManagerSingleton.get());
+        InputStream body = ri.getBody();
+        byte[] chunk = new byte[8192];
+        byte[] line = new byte[MAX_LINE_BYTES];
+        int lineLength = 0;
+        boolean tooLong = false;
+        int n;
+        while ((n = body.read(chunk, 0, chunk.length)) != -1) {
+            for (int i = 0; i < n; i++) {
+                byte b = chunk[i];
+                if (b == '\n') {
+                    batch.line(line, lineLength, tooLong);
+                    lineLength = 0;
+                    tooLong = false;
+                } else if (lineLength < line.length) {
+                    line[lineLength++] = b;
+                } else {
+                    tooLong = true;
+                }
+            }
+        }
+        if (lineLength > 0 || tooLong) {
+            batch.line(line, lineLength, tooLong);
+        }
+        batch.publish();
+        LOG.debug(() -> "Bulk publish: " + batch.accepted + " accepted, " + batch.rejected + " rejected");
+        response.contentType("application/json").send(batch.summary().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Nothing to release
+    }
+
+    // Records parsed but not published yet, and the counts for the summary
+    private static final class Batch {
+        final TopicManager tm;
+        final List<String> topics = new ArrayList<>(BATCH_SIZE);
+        final List<Message> messages = new ArrayList<>(BATCH_SIZE);
+        final StringBuilder rejectedLines = new StringBuilder();
+        int lineNumber;
+        long accepted;
+        long rejected;
+
+        Batch(TopicManager tm) {
+            this.tm = tm;
+        }
+
+        void line(byte[] bytes, int length, boolean tooLong) {
+            lineNumber++;
+            if (tooLong) {
+                reject("Line longer than " + MAX_LINE_BYTES + " bytes");
+                return;
+            }
+            int start = 0;
+            if (lineNumber == 1 && length >= 3 && (bytes[0] & 0xff) == 0xef && (bytes[1] & 0xff) == 0xbb
+                    && (bytes[2] & 0xff) == 0xbf) {
+                // UTF-8 byte order mark
+                start = 3;
+            }
+            String text = new String(bytes, start, length - start, StandardCharsets.UTF_8).trim();
+            if (text.isEmpty() || lineNumber == 1 && text.equalsIgnoreCase("topic,value")) {
+                return;
+            }
+            String topic;
+            String value;
+            try {
+                if (text.charAt(0) == '{') {
+                    Map<String, String> fields = Json.parseFlatObject(text);
+                    topic = fields.get("topic");
+                    value = fields.get("value");
+                } else {
+                    String[] fields = splitCsv(text);
+                    topic = fields[0];
+                    value = fields[1];
+                }
+            } catch (IllegalArgumentException e) {
+                reject(e.getMessage());
+                return;
+            }
+            if (topic == null || topic.isEmpty()) {
+                reject("Topic missing");
+            } else if (value == null || value.isEmpty()) {
+                reject("Value missing");
+            } else if (!tm.hasTopic(topic)) {
+                reject("Unknown topic \"" + topic + "\"");
+            } else {
+                topics.add(topic);
+                messages.add(new Message(value));
+                if (topics.size() == BATCH_SIZE) {
+                    publish();
+                }
+            }
+        }
+
+        void publish() {
+            if (topics.isEmpty()) {
+                return;
+            }
+            int published = tm.publishAll(topics, messages);
+            accepted += published;
+            // Topics a new graph removed in the meantime
+            rejected += topics.size() - published;
+            topics.clear();
+            messages.clear();
+        }
+
+        void reject(String reason) {
+            rejected++;
+            if (rejected > MAX_REPORTED) {
+                return;
+            }
+            if (rejectedLines.length() > 0) {
+                rejectedLines.append(',');
+            }
+            rejectedLines.append("{\"line\":").append(lineNumber).append(",\"reason\":");
+            Json.appendString(rejectedLines, reason);
+            rejectedLines.append('}');
+        }
+
+        String summary() {
+            return "{\"accepted\":" + accepted + ",\"rejected\":" + rejected + ",\"rejectedLines\":["
+                    + rejectedLines + "]}";
+        }
+    }
+
+    // Two CSV fields; a quoted field may contain commas and "" for a quote
+    private static String[] splitCsv(String line) {
+        List<String> fields = new ArrayList<>(2);
+        int i = 0;
+        while (true) {
+            StringBuilder field = new StringBuilder();
+            if (i < line.length() && line.charAt(i) == '"') {
+                i++;
+                while (true) {
+                    if (i >= line.length()) {
+                        throw new IllegalArgumentException("Unterminated quoted field");
+                    }
+                    char c = line.charAt(i++);
+                    if (c == '"') {
+                        if (i < line.length() && line.charAt(i) == '"') {
+                            field.append('"');
+                            i++;
+                        } else {
+                            break;
+                        }
+                    } else {
+                        field.append(c);
+                    }
+                }
+                while (i < line.length() && line.charAt(i) == ' ') {
+                    i++;
+                }
+                if (i < line.length() && line.charAt(i) != ',') {
+                    throw new IllegalArgumentException("Text after a quoted field");
+                }
+            } else {
+                int comma = line.indexOf(',', i);
+                int end = comma < 0 ? line.length() : comma;
+                field.append(line, i, end);
+                i = end;
+            }
+            fields.add(field.toString().trim());
+            if (i >= line.length()) {
+                break;
+            }
+            i++;
+        }
+        if (fields.size() != 2) {
+            throw new IllegalArgumentException("Expected topic,value but got " + fields.size() + " fields");
+        }
+        return fields.toArray(new String[0]);
+    }
+}
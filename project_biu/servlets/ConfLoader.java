@@ -1,12 +1,20 @@
 package servlets;
 
+import log.Log;
+import log.Logger;
 import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.AtomicReference;
 
 import configs.GenericConfig;
 import graph.Graph;
@@ -19,6 +27,9 @@ import views.HtmlGraphWriter;
  * <p>
  * It processes multipart/form-data uploads, saves the configuration file, updates the topic manager,
  * creates a new computation graph, and responds with an HTML visualization of the graph.
+ * The upload is streamed from the request body straight to disk, so its size does not matter for the heap.
+ * The agents of the previous graph are stopped when a new one replaces it, and those of the current graph when the
+ * servlet is closed.
  * </p>
  * <h2>Usage</h2>
  * Register this servlet for POST requests to a specific URI:
@@ -27,21 +38,22 @@ import views.HtmlGraphWriter;
  * }</pre>
  */
 public class ConfLoader implements Servlet {
+    private static final Logger LOG = Log.getLogger(ConfLoader.class);
+
+    // Configuration whose agents are running
+    private final AtomicReference<GenericConfig> current = new AtomicReference<>();
 
     @Override
-    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+    public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
         String contentType = ri.getHeader("Content-Type");
-        byte[] body = ri.getContent();
         if (contentType != null && contentType.startsWith("multipart/form-data")) {
             try {
-                UploadFile upload = parseMultipartFile(body, contentType);
                 Path dir = Paths.get("config_files");
                 if (Files.notExists(dir)) {
                     Files.createDirectories(dir);
                 }
-                Path target = dir.resolve(upload.filename);
-                Files.write(target, upload.content);
-                System.out.println("File uploaded: " + upload.filename);
+                UploadFile upload = receiveMultipartFile(ri.getBody(), contentType, dir);
+                LOG.info("File uploaded: " + upload.filename);
 
                 TopicManager tm = TopicManagerSingleton.get();
                 tm.clear();
@@ -49,73 +61,195 @@ public class ConfLoader implements Servlet {
                 GenericConfig gc = new GenericConfig();
                 gc.setConfFile("config_files/" + upload.filename);
                 gc.create();  
-                System.out.println("Configuration created ");
+                GenericConfig previous = current.getAndSet(gc);
+                if (previous != null) {
+                    previous.close();
+                }
+                LOG.debug("Configuration created");
                 
                 Graph g = new Graph();
                 g.createFromTopics();
-                System.out.println("Graph nodes: " + g.size());
-                System.out.println("Graph created from topics");
-                
-                // Send HTTP headers first
-                String headers = "HTTP/1.1 200 OK\r\n"
-                    + "Content-Type: text/html; charset=UTF-8\r\n"
-                    + "Connection: close\r\n\r\n";
-                toClient.write(headers.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+                LOG.debug(() -> "Graph created from topics, " + g.size() + " nodes");
                 
-                // Use HtmlGraphWriter to write the graph HTML directly to the client
-                OutputStreamWriter writer = new OutputStreamWriter(toClient, java.nio.charset.StandardCharsets.UTF_8);
+                // Stream the graph page; a small page still goes out with a Content-Length,
+                // a large one is sent chunked
+                response.contentType("text/html; charset=UTF-8");
+                Writer writer = response.writer();
                 HtmlGraphWriter.write(g, writer);
                 writer.flush();
 
             } catch (Exception e) {
-                e.printStackTrace();
+                LOG.error("Upload failed", e);
+                if (response.isCommitted()) {
+                    // Part of the page is out already; the server closes the connection
+                    throw new IOException(e);
+                }
                 // Send error response
                 String errorHtml = "<html><body><h2>Error uploading file</h2><p>" + e.getMessage() + "</p></body></html>";
-                byte[] content = errorHtml.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-                String headers = "HTTP/1.1 500 Internal Server Error\r\n"
-                    + "Content-Type: text/html; charset=UTF-8\r\n"
-                    + "Content-Length: " + content.length + "\r\n"
-                    + "Connection: close\r\n\r\n";
-                toClient.write(headers.getBytes(java.nio.charset.StandardCharsets.UTF_8));
-                toClient.write(content);
+                response.status(500).contentType("text/html; charset=UTF-8")
+                        .send(errorHtml.getBytes(StandardCharsets.UTF_8));
             }
         }
     }
 
     @Override
-    public void close() throws IOException {}
+    public void close() throws IOException {
+        GenericConfig gc = current.getAndSet(null);
+        if (gc != null) {
+            gc.close();
+        }
+    }
 
     public static class UploadFile {
         public String filename;
-        public byte[] content;
+        // Where the upload was saved
+        public Path path;
     }
 
-    private static UploadFile parseMultipartFile(byte[] body, String contentType) throws Exception {
+    // Stream the first file part of a multipart body into dir. Other parts are skipped; the server discards
+    // whatever follows the file.
+    private static UploadFile receiveMultipartFile(InputStream body, String contentType, Path dir) throws Exception {
         int idx = contentType.indexOf("boundary=");
         if (idx < 0) throw new Exception("Boundary not found");
-        String boundary = contentType.substring(idx + "boundary=".length());
-        if (!boundary.startsWith("--")) boundary = "--" + boundary;
-        boundary = "--" + boundary;
-        System.out.println("DEBUG: Boundary: [" + boundary + "]");
-        String bodyStr = new String(body, java.nio.charset.StandardCharsets.ISO_8859_1);
-        System.out.println("DEBUG: First 400 of bodyStr: [" + bodyStr.substring(0, Math.min(400, bodyStr.length())) + "]");
-
-        int partStart = bodyStr.indexOf(boundary);
-        if (partStart < 0) throw new Exception("Boundary not found in body");
-        int dispIdx = bodyStr.indexOf("Content-Disposition", partStart);
-        int filenameIdx = bodyStr.indexOf("filename=\"", dispIdx);
-        int filenameEnd = bodyStr.indexOf("\"", filenameIdx + 10);
-        String filename = bodyStr.substring(filenameIdx + 10, filenameEnd);
-
-        int doubleNewline = bodyStr.indexOf("\r\n\r\n", filenameEnd);
-        int contentStart = doubleNewline + 4;
-        int partEnd = bodyStr.indexOf(boundary, contentStart) - 2;
-
-        byte[] fileContent = java.util.Arrays.copyOfRange(body, contentStart, partEnd);
-
-        UploadFile upload = new UploadFile();
-        upload.filename = filename;
-        upload.content = fileContent;
-        return upload;
+        String boundary = contentType.substring(idx + "boundary=".length()).trim();
+        int semicolon = boundary.indexOf(';');
+        if (semicolon >= 0) boundary = boundary.substring(0, semicolon).trim();
+        if (boundary.length() > 1 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+            boundary = boundary.substring(1, boundary.length() - 1);
+        }
+        MultipartReader reader = new MultipartReader(body, "--" + boundary);
+        if (!reader.skipPreamble()) throw new Exception("Boundary not found in body");
+
+        while (true) {
+            String filename = reader.readPartFilename();
+            if (filename == null) {
+                reader.copyPart(OutputStream.nullOutputStream());
+                if (reader.lastPart) throw new Exception("No file in upload");
+                continue;
+            }
+            // Only the file name is kept; a client cannot write outside the config directory
+            Path name = Paths.get(filename).getFileName();
+            if (name == null) throw new Exception("Invalid file name");
+            Path temp = Files.createTempFile(dir, ".upload", ".tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    reader.copyPart(out);
+                }
+                Path target = dir.resolve(name.toString());
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                UploadFile upload = new UploadFile();
+                upload.filename = name.toString();
+                upload.path = target;
+                return upload;
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    // Reads multipart/form-data parts off a stream, holding only a buffer's worth of bytes at a time
+    private static final class MultipartReader {
+        private final InputStream in;
+        private final byte[] delimiter;
+        // "\r\n" + delimiter: where a part's content ends
+        private final byte[] marker;
+        private final byte[] buf = new byte[16 * 1024];
+        private int start;
+        private int end;
+        boolean lastPart;
+
+        MultipartReader(InputStream in, String delimiter) {
+            this.in = in;
+            this.delimiter = delimiter.getBytes(StandardCharsets.ISO_8859_1);
+            this.marker = ("\r\n" + delimiter).getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        // Skip to the line after the first delimiter
+        boolean skipPreamble() throws IOException {
+            String d = new String(delimiter, StandardCharsets.ISO_8859_1);
+            String line;
+            while ((line = readLine()) != null) {
+                if (line.startsWith(d)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Read the part headers; the file name of a file part, null for a plain field
+        String readPartFilename() throws IOException {
+            String filename = null;
+            String line;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                if (line.regionMatches(true, 0, "Content-Disposition", 0, 19)) {
+                    int i = line.indexOf("filename=\"");
+                    if (i >= 0) {
+                        int close = line.indexOf('"', i + 10);
+                        filename = close < 0 ? line.substring(i + 10) : line.substring(i + 10, close);
+                    }
+                }
+            }
+            if (line == null) throw new IOException("Upload ended inside part headers");
+            return filename;
+        }
+
+        // Copy the part content to out, then step over the delimiter line that ends it
+        void copyPart(OutputStream out) throws IOException {
+            while (true) {
+                int at = indexOf(marker);
+                if (at >= 0) {
+                    out.write(buf, start, at - start);
+                    start = at + marker.length;
+                    String rest = readLine();
+                    lastPart = rest == null || rest.startsWith("--");
+                    return;
+                }
+                // Everything but a possible partial marker at the end is content
+                int safe = Math.max(start, end - (marker.length - 1));
+                out.write(buf, start, safe - start);
+                start = safe;
+                if (!fill()) throw new IOException("Upload ended before the closing boundary");
+            }
+        }
+
+        private String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            while (true) {
+                if (start == end && !fill()) {
+                    return line.size() == 0 ? null : line.toString(StandardCharsets.ISO_8859_1);
+                }
+                byte b = buf[start++];
+                if (b == '\n') {
+                    String s = line.toString(StandardCharsets.ISO_8859_1);
+                    return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+                }
+                if (line.size() > buf.length) throw new IOException("Multipart line too long");
+                line.write(b);
+            }
+        }
+
+        // Move unread bytes to the front and read more; false at end of stream
+        private boolean fill() throws IOException {
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            int n = in.read(buf, end, buf.length - end);
+            if (n == -1) return false;
+            end += n;
+            return true;
+        }
+
+        private int indexOf(byte[] pattern) {
+            outer:
+            for (int i = start; i <= end - pattern.length; i++) {
+                for (int j = 0; j < pattern.length; j++) {
+                    if (buf[i + j] != pattern[j]) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
     }
 }
\ No newline at end of file
@@ -1,17 +1,57 @@
 package servlets;
 
+import log.Log;
+import log.Logger;
 import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * HtmlLoader is a servlet that serves static HTML files from a specified directory.
  * <p>
  * It handles HTTP GET requests, loads the requested HTML file, and returns it as the HTTP response.
  * </p>
+ * <p>
+ * Files are served from a cache bounded by size and evicted least recently used first. Small files are held on the
+ * heap, larger ones are memory-mapped; text files also get gzip and deflate versions, compressed once at the
+ * highest level. Files above {@link #MAX_CACHED_FILE} are not cached and go from disk to the socket with
+ * {@link ResponseWriter#sendFile}. A {@link WatchService} on the directory drops entries whose file changed.
+ * </p>
+ * <p>
+ * Responses carry the content type for the file extension, a strong {@code ETag} and {@code Last-Modified}, and
+ * answer {@code If-None-Match} / {@code If-Modified-Since} with {@code 304 Not Modified}. A single
+ * {@code Range} ({@code bytes=first-last}, {@code first-} or {@code -suffix}) is answered with
+ * {@code 206 Partial Content}.
+ * </p>
  * <h2>Usage</h2>
  * Register this servlet for GET requests to a URI prefix:
  * <pre>{@code
@@ -19,55 +59,421 @@ import java.nio.file.Paths;
  * }</pre>
  */
 public class HtmlLoader implements Servlet {
+    private static final Logger LOG = Log.getLogger(HtmlLoader.class);
+
+    /** Default bound for the bytes held by the cache, heap and mapped together. */
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+    // Files up to this size are copied to the heap, larger ones are mapped
+    static final long MAX_HEAP_FILE = 64 * 1024;
+    /** Largest file that is cached; bigger files are streamed from disk on every request. */
+    public static final long MAX_CACHED_FILE = 8L * 1024 * 1024;
+
+    // IMF-fixdate, the date format of HTTP headers (RFC 7231, 7.1.1.1)
+    private static final DateTimeFormatter HTTP_DATE =
+            DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=UTF-8"),
+            Map.entry("htm", "text/html; charset=UTF-8"),
+            Map.entry("css", "text/css; charset=UTF-8"),
+            Map.entry("js", "application/javascript; charset=UTF-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("txt", "text/plain; charset=UTF-8"),
+            Map.entry("conf", "text/plain; charset=UTF-8"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("wasm", "application/wasm"));
+
     private String directory;
+    private final long maxCacheBytes;
+    // File path -> loaded content, in access order for LRU eviction; guarded by cacheLock
+    private final LinkedHashMap<Path, CachedFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final ReentrantLock cacheLock = new ReentrantLock();
+    private long cachedBytes;
+    // Bumped by every invalidation, so a load that raced with one does not cache what it read
+    private long generation;
+    // Null when the directory cannot be watched; entries are then checked against the file on every hit
+    private final WatchService watcher;
 
     public HtmlLoader(String directory) {
+        this(directory, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @param directory     Directory the files are served from
+     * @param maxCacheBytes Bound for the bytes held in the cache
+     */
+    public HtmlLoader(String directory, long maxCacheBytes) {
         this.directory = directory;
+        this.maxCacheBytes = maxCacheBytes;
+        this.watcher = watch(Paths.get(directory));
     }
 
     @Override
-    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+    public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
         // Extract requested HTML file name
         String fileName = ri.getUriSegments()[1];
-        
-        System.out.println("Requested file: " + fileName);
+
+        LOG.debug(() -> "Requested file: " + fileName);
         // Security check: prevent directory traversal
         if (fileName == null || fileName.contains("..")) {
             String error = "<html><body><h1>Invalid file request</h1></body></html>";
-            toClient.write(error.getBytes());
+            response.status(400).contentType("text/html").send(error.getBytes(StandardCharsets.UTF_8));
             return;
         }
 
         // Build the file path from the directory and file name
-        String filePath = this.directory + '/' + fileName;
-        System.out.println(filePath);
+        Path path = Paths.get(this.directory, fileName);
+        CachedFile file;
         try {
-            // Load file content and send response
-            System.out.println("Loading file: " + filePath);
-            byte[] content = Files.readAllBytes(Paths.get(filePath));
-            // Prepare HTTP response headers
-            String headers = "HTTP/1.1 200 OK\r\n"
-                + "Content-Type: text/html; charset=UTF-8\r\n"
-                + "Content-Length: " + content.length + "\r\n"
-                + "Connection: close\r\n"
-                + "\r\n";
-            toClient.write(headers.getBytes(StandardCharsets.UTF_8));
-            toClient.write(content);
-            toClient.flush();
-            return;
+            file = load(path);
         } catch (IOException e) {
+            file = null;
+        }
+        if (file == null) {
             // Handle file not found or read error
             String error = "<html><body><h1>File not found: " + fileName + "</h1></body></html>";
-            String headers = "HTTP/1.1 404 Not Found\r\nContent-Type: text/html\r\nContent-Length: " + error.length() + "\r\n\r\n";
-            toClient.write(headers.getBytes());
-            toClient.write(error.getBytes());
-            toClient.flush();
+            response.status(404).contentType("text/html").send(error.getBytes(StandardCharsets.UTF_8));
             return;
         }
+
+        // Pick the representation: a precompressed variant if the client takes one
+        String etag = file.etag;
+        byte[] encoded = null;
+        String encoding = null;
+        if (file.gzip != null && response.acceptsEncoding("gzip")) {
+            encoded = file.gzip;
+            encoding = "gzip";
+        } else if (file.deflate != null && response.acceptsEncoding("deflate")) {
+            encoded = file.deflate;
+            encoding = "deflate";
+        }
+        if (encoding != null) {
+            // Each representation has its own strong validator
+            etag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+
+        response.header("ETag", etag).header("Last-Modified", file.lastModifiedHeader);
+        if (file.gzip != null || file.deflate != null) {
+            response.header("Vary", "Accept-Encoding");
+        }
+        if (notModified(ri, etag, file.lastModified)) {
+            response.status(304);
+            response.close();
+            return;
+        }
+        response.header("Accept-Ranges", "bytes").contentType(file.contentType);
+
+        long[] range = encoding == null ? range(ri, etag, file.size) : null;
+        if (range != null && range[0] < 0) {
+            response.status(416).header("Content-Range", "bytes */" + file.size).contentLength(0);
+            response.close();
+            return;
+        }
+        long start = range != null ? range[0] : 0;
+        long length = range != null ? range[1] - range[0] + 1 : file.size;
+        if (range != null) {
+            response.status(206).header("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + file.size);
+        }
+
+        if (encoded != null) {
+            response.header("Content-Encoding", encoding);
+            response.send(ByteBuffer.wrap(encoded));
+        } else if (file.content != null) {
+            ByteBuffer content = file.content.duplicate();
+            content.position((int) start).limit((int) (start + length));
+            response.send(content);
+        } else {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                response.sendFile(channel, start, length);
+            }
+        }
+    }
+
+    // Whether the client's cached copy is current: If-None-Match, or If-Modified-Since when there is none
+    private static boolean notModified(RequestInfo ri, String etag, long lastModified) {
+        String ifNoneMatch = ri.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                // Weak comparison (RFC 7232, 3.2): a W/ prefix does not matter here
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = ri.getHeader("If-Modified-Since");
+        if (ifModifiedSince != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().getEpochSecond();
+                return lastModified / 1000 <= since;
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The requested byte range as {first, last}, {-1, -1} if it cannot be satisfied, or null to send the whole
+     * file (no or unsupported Range header, or an If-Range that does not match).
+     */
+    private static long[] range(RequestInfo ri, String etag, long size) {
+        String header = ri.getHeader("Range");
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) {
+            return null;
+        }
+        String ifRange = ri.getHeader("If-Range");
+        if (ifRange != null && !ifRange.trim().equals(etag)) {
+            return null;
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long first;
+        long last;
+        try {
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix == 0) {
+                    return new long[] {-1, -1};
+                }
+                first = Math.max(0, size - suffix);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                if (last < first) {
+                    // Invalid: ignored like a missing header
+                    return null;
+                }
+                if (first >= size) {
+                    return new long[] {-1, -1};
+                }
+                last = Math.min(last, size - 1);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return new long[] {first, last};
+    }
+
+    // Cached file, loaded (and cached if it fits) on a miss; null if there is no such regular file
+    private CachedFile load(Path path) throws IOException {
+        CachedFile file;
+        long loadGeneration;
+        cacheLock.lock();
+        try {
+            file = cache.get(path);
+            loadGeneration = generation;
+        } finally {
+            cacheLock.unlock();
+        }
+        if (file != null && (watcher != null || file.matches(Files.readAttributes(path, BasicFileAttributes.class)))) {
+            return file;
+        }
+
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+        LOG.debug(() -> "Loading file: " + path);
+        file = new CachedFile(path, attributes);
+        if (file.weight > 0 && file.weight <= maxCacheBytes) {
+            cacheLock.lock();
+            try {
+                if (generation != loadGeneration) {
+                    return file;
+                }
+                CachedFile previous = cache.put(path, file);
+                if (previous != null) {
+                    cachedBytes -= previous.weight;
+                }
+                cachedBytes += file.weight;
+                // Evict least recently used entries, never the one just added
+                Iterator<CachedFile> it = cache.values().iterator();
+                while (cachedBytes > maxCacheBytes && it.hasNext()) {
+                    CachedFile eldest = it.next();
+                    if (eldest != file) {
+                        cachedBytes -= eldest.weight;
+                        it.remove();
+                    }
+                }
+            } finally {
+                cacheLock.unlock();
+            }
+        }
+        return file;
+    }
+
+    private void invalidate(Path path) {
+        cacheLock.lock();
+        try {
+            generation++;
+            if (path == null) {
+                cache.clear();
+                cachedBytes = 0;
+                return;
+            }
+            CachedFile removed = cache.remove(path);
+            if (removed != null) {
+                cachedBytes -= removed.weight;
+            }
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    // Watch the directory on a daemon thread; null if the file system does not support it
+    private WatchService watch(Path dir) {
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Not watching " + dir + " (" + e + "), cached files are checked on every request");
+            return null;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = service.take();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // Events were lost: start over
+                            invalidate(null);
+                        } else {
+                            invalidate(dir.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Servlet closed
+            }
+        }, "HtmlLoader-watch");
+        thread.setDaemon(true);
+        thread.start();
+        return service;
     }
 
     @Override
     public void close() throws IOException {
-        // No resources to close in this simple loader
+        if (watcher != null) {
+            watcher.close();
+        }
+        invalidate(null);
+    }
+
+    private static String contentType(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type != null ? type : "application/octet-stream";
+    }
+
+    private static final class CachedFile {
+        final long lastModified;
+        final long size;
+        final String etag;
+        final String lastModifiedHeader;
+        final String contentType;
+        // Heap copy or mapping of the file; null for files streamed from disk
+        final ByteBuffer content;
+        // Compressed variants of text files, null where compressing does not make the file smaller
+        final byte[] gzip;
+        final byte[] deflate;
+        // Bytes this entry holds; 0 if it is not cached
+        final long weight;
+
+        CachedFile(Path path, BasicFileAttributes attributes) throws IOException {
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+            // Changes with every write that changes the modification time or the size
+            this.etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+            this.lastModifiedHeader = HTTP_DATE.format(
+                    ZonedDateTime.ofInstant(Instant.ofEpochMilli(lastModified), ZoneOffset.UTC));
+            this.contentType = contentType(path);
+
+            if (size > MAX_CACHED_FILE) {
+                this.content = null;
+                this.gzip = null;
+                this.deflate = null;
+                this.weight = 0;
+                return;
+            }
+            byte[] bytes = null;
+            if (size <= MAX_HEAP_FILE) {
+                bytes = Files.readAllBytes(path);
+                this.content = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            } else {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                    // Read-only: the server's buffer pool must never take a view of it back
+                    this.content = mapped.asReadOnlyBuffer();
+                }
+            }
+            if (isText(contentType)) {
+                if (bytes == null) {
+                    bytes = new byte[(int) size];
+                    content.duplicate().get(bytes);
+                }
+                this.gzip = smaller(bytes, compress(bytes, true));
+                this.deflate = smaller(bytes, compress(bytes, false));
+            } else {
+                this.gzip = null;
+                this.deflate = null;
+            }
+            this.weight = size + length(gzip) + length(deflate);
+        }
+
+        private static boolean isText(String contentType) {
+            return contentType.startsWith("text/") || contentType.startsWith("application/javascript")
+                    || contentType.startsWith("application/json") || contentType.startsWith("application/xml")
+                    || contentType.startsWith("image/svg");
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.lastModifiedTime().toMillis() == lastModified && attributes.size() == size;
+        }
+
+        private static byte[] compress(byte[] content, boolean gzip) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2 + 64);
+            if (gzip) {
+                try (GZIPOutputStream zip = new GZIPOutputStream(out) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+                    zip.write(content);
+                }
+            } else {
+                Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+                try (DeflaterOutputStream zip = new DeflaterOutputStream(out, deflater)) {
+                    zip.write(content);
+                } finally {
+                    deflater.end();
+                }
+            }
+            return out.toByteArray();
+        }
+
+        private static byte[] smaller(byte[] identity, byte[] compressed) {
+            return compressed.length < identity.length ? compressed : null;
+        }
+
+        private static int length(byte[] bytes) {
+            return bytes == null ? 0 : bytes.length;
+        }
     }
-}
\ No newline at end of file
+}
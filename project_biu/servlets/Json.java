@@ -0,0 +1,170 @@
+package servlets;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Json holds the little JSON the servlets need: writing string literals, and reading the flat objects of
+ * newline-delimited input. It is not a general JSON library.
+ */
+final class Json {
+    private Json() {}
+
+    /**
+     * Append {@code s} as a JSON string literal. Line breaks are escaped too, so the result always fits on one line.
+     */
+    static void appendString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * Read an object whose values are strings, numbers, booleans or null, such as {@code {"topic":"A","value":42}}.
+     * Numbers and literals are returned as written; null becomes a null value.
+     *
+     * @throws IllegalArgumentException if {@code text} is not such an object
+     */
+    static Map<String, String> parseFlatObject(String text) {
+        Parser p = new Parser(text);
+        Map<String, String> fields = new LinkedHashMap<>();
+        p.skipSpace();
+        p.expect('{');
+        p.skipSpace();
+        if (!p.consume('}')) {
+            do {
+                p.skipSpace();
+                String name = p.string();
+                p.skipSpace();
+                p.expect(':');
+                p.skipSpace();
+                fields.put(name, p.scalar());
+                p.skipSpace();
+            } while (p.consume(','));
+            p.expect('}');
+        }
+        p.skipSpace();
+        if (p.pos != text.length()) {
+            throw new IllegalArgumentException("Unexpected text after the object at " + p.pos);
+        }
+        return fields;
+    }
+
+    private static final class Parser {
+        final String s;
+        int pos;
+
+        Parser(String s) {
+            this.s = s;
+        }
+
+        void skipSpace() {
+            while (pos < s.length() && (s.charAt(pos) == ' ' || s.charAt(pos) == '\t' || s.charAt(pos) == '\r')) {
+                pos++;
+            }
+        }
+
+        boolean consume(char c) {
+            if (pos < s.length() && s.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) {
+            if (!consume(c)) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+            }
+        }
+
+        String scalar() {
+            if (pos < s.length() && s.charAt(pos) == '"') {
+                return string();
+            }
+            int start = pos;
+            while (pos < s.length() && "-+.eE0123456789truefalsn".indexOf(s.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String literal = s.substring(start, pos);
+            if (literal.equals("null")) {
+                return null;
+            }
+            if (literal.equals("true") || literal.equals("false") || isNumber(literal)) {
+                return literal;
+            }
+            throw new IllegalArgumentException("Expected a string, number or literal at " + start);
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                if (pos >= s.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char c = s.charAt(pos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) {
+                    throw new IllegalArgumentException("Unterminated string");
+                }
+                char e = s.charAt(pos++);
+                switch (e) {
+                    case '"': case '\\': case '/': sb.append(e); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        if (pos + 4 > s.length()) {
+                            throw new IllegalArgumentException("Bad \\u escape at " + pos);
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException ex) {
+                            throw new IllegalArgumentException("Bad \\u escape at " + pos);
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Bad escape at " + (pos - 1));
+                }
+            }
+        }
+
+        private static boolean isNumber(String literal) {
+            if (literal.isEmpty()) {
+                return false;
+            }
+            try {
+                Double.parseDouble(literal);
+                // Double also takes forms JSON does not, such as "1." or "+1"
+                return literal.charAt(0) != '+' && !literal.endsWith(".");
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+}
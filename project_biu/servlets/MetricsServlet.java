@@ -0,0 +1,40 @@
+package servlets;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+import server.ServerMetrics;
+
+/**
+ * MetricsServlet serves a server's request metrics in the Prometheus text format, for a scraper to collect.
+ * <p>
+ * The page lists latency and size histograms per HTTP method and route plus the overload counters; see
+ * {@link ServerMetrics} for the metric names. Building it sums the recorders of every route, which is the only
+ * time that work is done.
+ * </p>
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * MyHTTPServer server = new MyHTTPServer(8080, 5);
+ * server.addServlet("GET", "/metrics", new MetricsServlet(server.getMetrics()));
+ * }</pre>
+ */
+public class MetricsServlet implements Servlet {
+    private final ServerMetrics metrics;
+
+    public MetricsServlet(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+        response.contentType("text/plain; version=0.0.4; charset=UTF-8").header("Cache-Control", "no-store");
+        Writer writer = response.writer();
+        metrics.writePrometheus(writer);
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {}
+}
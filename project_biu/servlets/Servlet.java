@@ -1,22 +1,24 @@
 package servlets;
 
 import java.io.IOException;
-import java.io.OutputStream;
 
 import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
 
 /**
  * Servlet defines the contract for handling HTTP requests in the custom HTTP server.
  * <p>
  * Developers should implement this interface to create custom request handlers (servlets).
  * Each servlet can be registered to handle specific HTTP methods and URI patterns.
+ * The server owns the response framing: a servlet sets the status and headers on the {@link ResponseWriter} and
+ * writes the body.
  * </p>
  * <h2>Usage Example</h2>
  * <pre>{@code
  * public class MyHelloServlet implements Servlet {
- *     public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
- *         String response = "<html><body>Hello, world!</body></html>";
- *         toClient.write(response.getBytes(StandardCharsets.UTF_8));
+ *     public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+ *         String html = "<html><body>Hello, world!</body></html>";
+ *         response.contentType("text/html; charset=UTF-8").send(html.getBytes(StandardCharsets.UTF_8));
  *     }
  *     public void close() {}
  * }
@@ -26,16 +28,18 @@ import server.RequestParser.RequestInfo;
  * @see server.HTTPServer
  * @see server.MyHTTPServer
  * @see server.RequestParser.RequestInfo
+ * @see server.ResponseWriter
  */
 public interface Servlet {
     /**
      * Handle an HTTP request and write a response to the client.
      *
-     * @param ri       Parsed request information (method, URI, headers, body, etc.)
-     * @param toClient Output stream to write the HTTP response
+     * @param ri       Parsed request information (method, URI, headers, body, etc.). The body arrives as a
+     *                 stream ({@link RequestInfo#getBody()}); {@link RequestInfo#getContent()} buffers it
+     * @param response Status, headers and body of the response; the server completes it when handle returns
      * @throws IOException if an I/O error occurs
      */
-    void handle(RequestInfo ri, OutputStream toClient) throws IOException;
+    void handle(RequestInfo ri, ResponseWriter response) throws IOException;
 
     /**
      * Release any resources held by this servlet (optional).
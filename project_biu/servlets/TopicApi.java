@@ -0,0 +1,50 @@
+package servlets;
+
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+
+import java.io.IOException;
+
+import graph.Message;
+
+/**
+ * TopicApi is a servlet that serves the latest value of every topic as JSON, the data of {@link TopicDisplayer}'s
+ * table for scripts and pages that render it themselves.
+ * <p>
+ * The document is kept up to date as values are published (see {@link TopicSnapshot}), so a request renders nothing
+ * and only copies the bytes out; frequent polling is cheap.
+ * </p>
+ * <pre>{@code
+ * {"topics":[{"topic":"A","value":"42"},{"topic":"B","value":"hello"}]}
+ * }</pre>
+ * Topics are listed by name. Values are strings, as they were published; the same objects as the events of
+ * {@link TopicEventStream}.
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * server.addServlet("GET", "/api/topics", new TopicApi());
+ * }</pre>
+ */
+public class TopicApi implements Servlet {
+    private final TopicSnapshot snapshot = new TopicSnapshot(TopicApi::render, "{\"topics\":[", ",", "]}");
+
+    @Override
+    public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+        response.contentType("application/json")
+                .header("Cache-Control", "no-cache")
+                .send(snapshot.bytes());
+    }
+
+    private static String render(String topic, Message message) {
+        StringBuilder sb = new StringBuilder(32 + topic.length() + message.asText().length());
+        sb.append("{\"topic\":");
+        Json.appendString(sb, topic);
+        sb.append(",\"value\":");
+        Json.appendString(sb, message.asText());
+        return sb.append('}').toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        snapshot.close();
+    }
+}
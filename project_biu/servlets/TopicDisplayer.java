@@ -1,9 +1,11 @@
 package servlets;
+import log.Log;
+import log.Logger;
 import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 import graph.TopicManagerSingleton;
 import graph.TopicManagerSingleton.TopicManager;
@@ -21,123 +23,75 @@ import graph.Message;
  * }</pre>
  */
 public class TopicDisplayer implements Servlet {
+    private static final Logger LOG = Log.getLogger(TopicDisplayer.class);
+    // The page is the same apart from the status line: the head is rendered once per kind of status, the table is
+    // kept current by the snapshot, and only the status is built per request
+    private static final byte[] SUCCESS_HEAD = head("#e8f5e9", "#2e7d32", "#c8e6c9");
+    private static final byte[] ERROR_HEAD = head("#ffebee", "#c62828", "#ffcdd2");
+
+    private final TopicSnapshot table = new TopicSnapshot(TopicDisplayer::row,
+            "<h2>Topics Info</h2><table><thead><tr><th>Topic Name</th><th>Last Value</th></tr></thead><tbody>",
+            "", "</tbody></table></body></html>");
 
     @Override
-    public void handle(RequestInfo ri, OutputStream toClient) throws IOException {
+    public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
         // Extract parameters from the request
         Map<String, String> params = ri.getParameters();
         String topicStr = params.get("topic");
         String messageStr = params.get("message");
-        System.out.println("Topic: " + topicStr);
-        System.out.println("Message: " + messageStr);
+        LOG.debug(() -> "Topic: " + topicStr + ", message: " + messageStr);
                 
         // Get the singleton TopicManager instance
         TopicManager tm=TopicManagerSingleton.get();
         // Validate topic and message parameters
         if (topicStr == null || topicStr.isEmpty() || messageStr == null || messageStr.isEmpty()) {
             String error = "<html><body><h1>Topic not specified</h1></body></html>";
-            String headers = "HTTP/1.1 400 Bad Request\r\nContent-Type: text/html; charset=UTF-8\r\nContent-Length: " + error.getBytes().length + "\r\n\r\n";
-            toClient.write(headers.getBytes());
-            toClient.write(error.getBytes());
-            toClient.flush();
+            response.status(400).contentType("text/html; charset=UTF-8").send(error.getBytes(StandardCharsets.UTF_8));
             return;
         }
         if (messageStr == null || messageStr.isEmpty()) {
             String error = "<html><body><h1>Message not specified</h1></body></html>";
-            String headers = "HTTP/1.1 400 Bad Request\r\nContent-Type: text/html; charset=UTF-8\r\nContent-Length: " + error.getBytes().length + "\r\n\r\n";
-            toClient.write(headers.getBytes());
-            toClient.write(error.getBytes());
-            toClient.flush();
+            response.status(400).contentType("text/html; charset=UTF-8").send(error.getBytes(StandardCharsets.UTF_8));
             return;
         }
 
         if (!tm.hasTopic(topicStr)) {
             // Instead of sending an error, show a status message in the HTML response
-            StringBuilder html = new StringBuilder();
-            html.append("""
-            <html><head>
-            <meta charset="UTF-8">
-            <title>Topics Info</title>
-            <style>
-                body{
-                font-family:'Montserrat',Arial,sans-serif;
-                margin:18px;
-                color:#333;
-                }
-                h2{
-                color:#1976d2;
-                margin-bottom:14px;
-                font-size:1.1rem;
-                }
-                table{
-                width:100%;
-                border-collapse:collapse;
-                border-radius:10px;
-                overflow:hidden;
-                box-shadow:0 2px 8px #ddd;
-                background:#fff;
-                }
-                thead{
-                background:#e3f2fd;
-                }
-                th,td{
-                padding:10px 14px;
-                text-align:left;
-                }
-                tbody tr:nth-child(even){
-                background:#f9f9f9;
-                }
-                tbody tr:hover{
-                background:#eaf4ff;
-                }
-                .status{
-                margin-bottom:18px;
-                padding:8px 12px;
-                background:#ffebee;
-                color:#c62828;
-                border:1px solid #ffcdd2;
-                border-radius:6px;
-                font-size:0.9rem;
-                }
-            </style>
-            </head><body>
-            """);
-            html.append("<div class='status'>There isn't such topic!</div>");
-            html.append("<h2>Topics Info</h2>");
-            html.append("<table><thead><tr><th>Topic Name</th><th>Last Value</th></tr></thead><tbody>");
-            ConcurrentHashMap<String, Message> updateLeastValuesMap = tm.getLeastValuesMap();
-            for (Map.Entry<String, Message> entry : updateLeastValuesMap.entrySet()) {
-                String topicName = entry.getKey();
-                Message lastMessage = entry.getValue();
-                html.append("<tr><td>")
-                    .append(escapeHtml(topicName))
-                    .append("</td><td>")
-                    .append(escapeHtml(lastMessage.asText))
-                    .append("</td></tr>");
-            }
-            html.append("</tbody></table></body></html>");
-            byte[] content = html.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
-            String headers = "HTTP/1.1 200 OK\r\n"
-                + "Content-Type: text/html; charset=UTF-8\r\n"
-                + "Content-Length: " + content.length + "\r\n"
-                + "Connection: close\r\n"
-                + "\r\n";
-            toClient.write(headers.getBytes(java.nio.charset.StandardCharsets.UTF_8));
-            toClient.write(content);
-            toClient.flush();
+            sendPage(response, ERROR_HEAD, "<div class='status'>There isn't such topic!</div>");
             return;
         }
         // Publish the message to the specified topic
         Message msg = new Message(messageStr);
         tm.getTopic(topicStr).publish(msg);
                 
-        // Update the least values map with the new message
+        // Update the least values map with the new message; this also updates the table
         tm.addLeastValue(topicStr, msg);
-        ConcurrentHashMap<String, Message> updateLeastValuesMap = tm.getLeastValuesMap();
 
-        // Build the HTML response
-        StringBuilder html = new StringBuilder();
-        html.append("""
+        // Show a status message for the published message
+        String status = "<div class='status'>Message &quot;" + escapeHtml(messageStr)
+                + "&quot; published to topic <strong>" + escapeHtml(topicStr) + "</strong>.</div>";
+        sendPage(response, SUCCESS_HEAD, status);
+    }
+
+    private void sendPage(ResponseWriter response, byte[] head, String status) throws IOException {
+        byte[] statusBytes = status.getBytes(StandardCharsets.UTF_8);
+        byte[] rows = table.bytes();
+        response.contentType("text/html; charset=UTF-8")
+                .contentLength(head.length + statusBytes.length + rows.length);
+        response.write(head);
+        response.write(statusBytes);
+        response.write(rows);
+        response.close();
+    }
+
+    // One row of the table: a topic and its last message
+    private static String row(String topicName, Message lastMessage) {
+        return "<tr><td>" + escapeHtml(topicName) + "</td><td>" + escapeHtml(lastMessage.asText()) + "</td></tr>";
+    }
+
+    // Everything before the status line, with the status colors (background, text, border)
+    private static byte[] head(String background, String color, String border) {
+        String html = """
         <html><head>
         <meta charset="UTF-8">
         <title>Topics Info</title>
@@ -153,7 +107,7 @@ public class TopicDisplayer implements Servlet {
             font-size:1.1rem;
             }
             table{
-            width:100%;
+            width:100%%;
             border-collapse:collapse;
             border-radius:10px;
             overflow:hidden;
@@ -176,47 +130,16 @@ public class TopicDisplayer implements Servlet {
             .status{
             margin-bottom:18px;
             padding:8px 12px;
-            background:#e8f5e9;
-            color:#2e7d32;
-            border:1px solid #c8e6c9;
+            background:%s;
+            color:%s;
+            border:1px solid %s;
             border-radius:6px;
             font-size:0.9rem;
             }
         </style>
         </head><body>
-        """);
-
-        // Show a status message for the published message
-        html.append("<div class='status'>Message &quot;")
-            .append(escapeHtml(messageStr))
-            .append("&quot; published to topic <strong>")
-            .append(escapeHtml(topicStr))
-            .append("</strong>.</div>");
-
-        html.append("<h2>Topics Info</h2>");
-        html.append("<table><thead><tr><th>Topic Name</th><th>Last Value</th></tr></thead><tbody>");
-
-        // List all topics and their last message
-        for (Map.Entry<String, Message> entry : updateLeastValuesMap.entrySet()) {
-            String topicName = entry.getKey();
-            Message lastMessage = entry.getValue();
-            html.append("<tr><td>")
-                .append(escapeHtml(topicName))
-                .append("</td><td>")
-                .append(escapeHtml(lastMessage.asText))
-                .append("</td></tr>");
-        }
-        html.append("</tbody></table></body></html>");
-
-        // Build and send the HTML response
-        byte[] content = html.toString().getBytes(java.nio.charset.StandardCharsets.UTF_8);
-        String headers = "HTTP/1.1 200 OK\r\n"
-            + "Content-Type: text/html; charset=UTF-8\r\n"
-            + "Content-Length: " + content.length + "\r\n"
-            + "Connection: close\r\n"
-            + "\r\n";
-        toClient.write(headers.getBytes(java.nio.charset.StandardCharsets.UTF_8));
-        toClient.write(content);
+        """.formatted(background, color, border);
+        return html.getBytes(StandardCharsets.UTF_8);
     }
     
     // Helper to escape HTML special characters
@@ -226,7 +149,7 @@ public class TopicDisplayer implements Servlet {
 
     @Override
     public void close() throws IOException {
-        // Clean up resources if necessary
+        table.close();
     }
     
 }
\ No newline at end of file
@@ -0,0 +1,233 @@
+package servlets;
+
+import log.Log;
+import log.Logger;
+import server.DetachedResponse;
+import server.RequestParser.RequestInfo;
+import server.ResponseWriter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+import graph.Message;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+
+/**
+ * TopicEventStream is a servlet that pushes topic values to clients as Server-Sent Events, instead of having them
+ * poll {@link TopicDisplayer}.
+ * <p>
+ * A client opens one long-lived GET and gets an event whenever a topic it watches is published to, by a request or
+ * by an agent of the graph. It first gets the last value of each watched topic that {@link TopicDisplayer} knows.
+ * The response is {@link ResponseWriter#detach() detached}, so a subscriber holds no worker thread.
+ * </p>
+ * <p>
+ * Events are coalesced per client: while a client has not taken the previous batch yet, a new value only replaces
+ * the one waiting for its topic. A slow client therefore sees the latest value of each topic rather than a backlog,
+ * and costs at most one pending value per topic. Idle streams get a comment line every
+ * {@value #HEARTBEAT_SECONDS} seconds, so that proxies keep them open.
+ * </p>
+ * Each event's data is a JSON object: {@code data: {"topic":"A","value":"42"}}.
+ * <h2>Usage</h2>
+ * <pre>{@code
+ * server.addServlet("GET", "/topics/stream", new TopicEventStream());
+ * // GET /topics/stream?topic=A,B watches A and B; without the parameter every topic is watched
+ * // In a page: new EventSource("/topics/stream?topic=A").onmessage = e => show(JSON.parse(e.data));
+ * }</pre>
+ */
+public class TopicEventStream implements Servlet {
+    private static final Logger LOG = Log.getLogger(TopicEventStream.class);
+    static final long HEARTBEAT_SECONDS = 15;
+    private static final byte[] HEARTBEAT = ascii(": ping\n\n");
+    // How long EventSource waits before it reconnects
+    private static final byte[] PREAMBLE = ascii("retry: 2000\n\n");
+
+    // Subscribers by watched topic, and those that watch every topic
+    private final ConcurrentHashMap<String, Set<Subscriber>> byTopic = new ConcurrentHashMap<>();
+    private final Set<Subscriber> everyTopic = ConcurrentHashMap.newKeySet();
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+    private final BiConsumer<String, Message> listener = this::published;
+    private final ScheduledExecutorService heartbeat;
+
+    public TopicEventStream() {
+        TopicManagerSingleton.get().addListener(listener);
+        heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "topic-stream-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+        heartbeat.scheduleAtFixedRate(this::sendHeartbeats, HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void handle(RequestInfo ri, ResponseWriter response) throws IOException {
+        String topicParam = ri.getParameters().get("topic");
+        Set<String> topics = null;
+        if (topicParam != null && !topicParam.isEmpty()) {
+            topics = new HashSet<>(Arrays.asList(topicParam.split(",")));
+        }
+        DetachedResponse events = response.contentType("text/event-stream")
+                .header("Cache-Control", "no-cache")
+                .detach();
+        Subscriber subscriber = new Subscriber(events, topics);
+        events.write(ByteBuffer.wrap(PREAMBLE));
+        // Listen before reading the values known so far, so that a value published in between is not missed
+        add(subscriber);
+        TopicManager tm = TopicManagerSingleton.get();
+        subscriber.start(tm.getLeastValuesMap());
+        events.onClose(() -> remove(subscriber));
+        events.onDrained(subscriber::flush);
+        LOG.debug(() -> "Event stream opened for " + (subscriber.topics == null ? "all topics" : subscriber.topics)
+                + ", " + subscribers.size() + " open");
+        subscriber.flush();
+    }
+
+    /**
+     * @return open event streams
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    // Topic listener: runs on the publishing thread and only queues, so a slow client never holds it up
+    private void published(String topic, Message message) {
+        Set<Subscriber> watching = byTopic.get(topic);
+        if (watching != null) {
+            for (Subscriber s : watching) {
+                s.offer(topic, message);
+            }
+        }
+        for (Subscriber s : everyTopic) {
+            s.offer(topic, message);
+        }
+    }
+
+    private void sendHeartbeats() {
+        for (Subscriber s : subscribers) {
+            if (s.events.pendingBytes() == 0) {
+                s.events.write(ByteBuffer.wrap(HEARTBEAT));
+            }
+        }
+    }
+
+    private void add(Subscriber s) {
+        subscribers.add(s);
+        if (s.topics == null) {
+            everyTopic.add(s);
+            return;
+        }
+        for (String topic : s.topics) {
+            byTopic.compute(topic, (k, set) -> {
+                Set<Subscriber> watching = set != null ? set : ConcurrentHashMap.newKeySet();
+                watching.add(s);
+                return watching;
+            });
+        }
+    }
+
+    private void remove(Subscriber s) {
+        subscribers.remove(s);
+        if (s.topics == null) {
+            everyTopic.remove(s);
+            return;
+        }
+        for (String topic : s.topics) {
+            byTopic.computeIfPresent(topic, (k, watching) -> {
+                watching.remove(s);
+                return watching.isEmpty() ? null : watching;
+            });
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        TopicManagerSingleton.get().removeListener(listener);
+        heartbeat.shutdownNow();
+        // The server ends detached responses when it drains; this covers a servlet removed while it runs
+        for (Subscriber s : subscribers) {
+            s.events.close();
+        }
+    }
+
+    // One client: values not sent yet, and the stream they go to
+    private static final class Subscriber {
+        final DetachedResponse events;
+        // Null: every topic
+        final Set<String> topics;
+        private final ReentrantLock lock = new ReentrantLock();
+        // Latest value per topic, in the order the topics first changed since the last batch; guarded by lock
+        final Map<String, Message> pending = new LinkedHashMap<>();
+        // Whether the known values were added to pending; nothing is sent before. Guarded by lock
+        private boolean started;
+
+        Subscriber(DetachedResponse events, Set<String> topics) {
+            this.events = events;
+            this.topics = topics;
+        }
+
+        // Add the values known when the stream opened; a value already received live is newer and stays
+        void start(Map<String, Message> known) {
+            lock.lock();
+            try {
+                for (Map.Entry<String, Message> entry : known.entrySet()) {
+                    if (topics == null || topics.contains(entry.getKey())) {
+                        pending.putIfAbsent(entry.getKey(), entry.getValue());
+                    }
+                }
+                started = true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void offer(String topic, Message message) {
+            lock.lock();
+            try {
+                pending.put(topic, message);
+            } finally {
+                lock.unlock();
+            }
+            flush();
+        }
+
+        // Send the pending values as one batch, unless the client has not taken the previous one yet: the drain
+        // listener calls this again once it has
+        void flush() {
+            lock.lock();
+            try {
+                if (!started || pending.isEmpty() || events.pendingBytes() > 0 || !events.isOpen()) {
+                    return;
+                }
+                StringBuilder batch = new StringBuilder(64 * pending.size());
+                for (Map.Entry<String, Message> entry : pending.entrySet()) {
+                    // Json escapes line breaks, so each event is a single data line
+                    batch.append("data: {\"topic\":");
+                    Json.appendString(batch, entry.getKey());
+                    batch.append(",\"value\":");
+                    Json.appendString(batch, entry.getValue().asText());
+                    batch.append("}\n\n");
+                }
+                pending.clear();
+                events.write(ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8)));
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,107 @@
+package servlets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import graph.Message;
+import graph.TopicManagerSingleton;
+import graph.TopicManagerSingleton.TopicManager;
+
+/**
+ * TopicSnapshot keeps the latest value of every topic, as {@link TopicManager} records them, rendered and ready to
+ * send: a JSON document, or the rows of an HTML table.
+ * <p>
+ * A topic's part is rendered when its value changes, so a publish costs one part whatever the number of topics. The
+ * parts, in topic name order, are joined into the whole the first time it is asked for after a change; until the
+ * next change every request gets those same bytes.
+ * </p>
+ * Close it to stop following the topics.
+ */
+final class TopicSnapshot implements AutoCloseable {
+    private final TopicManager tm;
+    private final BiFunction<String, Message, String> render;
+    private final byte[] prefix;
+    private final byte[] separator;
+    private final byte[] suffix;
+    private final Map<String, byte[]> parts = new ConcurrentSkipListMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile Joined joined;
+    private final BiConsumer<String, Message> listener = (topic, message) -> changed(topic);
+
+    /**
+     * @param render    Renders the part of one topic from its name and latest value
+     * @param prefix    Goes before the parts, {@code separator} between them and {@code suffix} after them
+     */
+    TopicSnapshot(BiFunction<String, Message, String> render, String prefix, String separator, String suffix) {
+        this.tm = TopicManagerSingleton.get();
+        this.render = render;
+        this.prefix = prefix.getBytes(StandardCharsets.UTF_8);
+        this.separator = separator.getBytes(StandardCharsets.UTF_8);
+        this.suffix = suffix.getBytes(StandardCharsets.UTF_8);
+        tm.addValueListener(listener);
+        for (String topic : tm.getLeastValuesMap().keySet()) {
+            changed(topic);
+        }
+    }
+
+    /**
+     * @return the whole rendering; the array is shared and must not be changed
+     */
+    byte[] bytes() {
+        Joined j = joined;
+        long v = version.get();
+        if (j != null && j.version == v) {
+            return j.bytes;
+        }
+        // Parts changed while joining are in the result already and only cause one more join
+        byte[][] current = parts.values().toArray(new byte[0][]);
+        int length = prefix.length + suffix.length + Math.max(0, current.length - 1) * separator.length;
+        for (byte[] part : current) {
+            length += part.length;
+        }
+        byte[] bytes = new byte[length];
+        int pos = append(bytes, 0, prefix);
+        for (int i = 0; i < current.length; i++) {
+            if (i > 0) {
+                pos = append(bytes, pos, separator);
+            }
+            pos = append(bytes, pos, current[i]);
+        }
+        append(bytes, pos, suffix);
+        joined = new Joined(v, bytes);
+        return bytes;
+    }
+
+    private void changed(String topic) {
+        // The map is read inside compute: of two racing updates of a topic, the part that stays is the later value
+        parts.compute(topic, (name, old) -> {
+            Message latest = tm.getLeastValuesMap().get(name);
+            return latest == null ? old : render.apply(name, latest).getBytes(StandardCharsets.UTF_8);
+        });
+        version.incrementAndGet();
+    }
+
+    private static int append(byte[] to, int pos, byte[] from) {
+        System.arraycopy(from, 0, to, pos, from.length);
+        return pos + from.length;
+    }
+
+    @Override
+    public void close() {
+        tm.removeValueListener(listener);
+    }
+
+    private static final class Joined {
+        final long version;
+        final byte[] bytes;
+
+        Joined(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package views;
 
+import log.Log;
+import log.Logger;
 import graph.Graph;
 import graph.Node;
 
@@ -21,12 +23,14 @@ import java.util.ArrayList;
  * }</pre>
  */
 public final class HtmlGraphWriter {
+    private static final Logger LOG = Log.getLogger(HtmlGraphWriter.class);
+
     /*Public API*/
 
     // Write a full <html> document
     public static void write(Graph graph, Writer out) throws IOException {
         Map<Node, Point> coords = LayoutEngine.compute(graph);
-        System.out.println("Graph nodes: " + graph.size());
+        LOG.debug(() -> "Graph nodes: " + graph.size());
         out.write("""
                   <!DOCTYPE html>
                   <html lang="en">